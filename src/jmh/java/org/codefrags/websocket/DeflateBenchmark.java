@@ -0,0 +1,114 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compressing a chat style JSON message for permessage-deflate, keeping the context
+ * between messages against starting over each time, next to sending it plain.  The
+ * sizes sent are printed at setup, with the context kept for the second of the same
+ * message.
+ *
+ * @author Austin Miller
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class DeflateBenchmark {
+
+	@Param({"128", "1024", "16384"})
+	int size;
+
+	private String text;
+	private PerMessageDeflate takeover;
+	private PerMessageDeflate noTakeover;
+	private final BufferPool pool = new BufferPool();
+
+	@Setup
+	public void setup() throws IOException {
+		StringBuilder json = new StringBuilder("[");
+		for(int i = 0;json.length() < size - 1;++i) {
+			json.append("{\"room\":\"lobby\",\"user\":\"user").append(i % 17)
+					.append("\",\"text\":\"message number ").append(i).append("\"},");
+		}
+		json.setLength(size - 1);
+		text = json.append(']').toString();
+
+		takeover = negotiate("permessage-deflate", true);
+		noTakeover = negotiate("permessage-deflate", false);
+
+		System.out.println();
+		System.out.println("plain " + FrameBuffer.createTextFrame(text).getBuffer().remaining()
+				+ " takeover " + takeover.createTextFrame(text, null).getBuffer().remaining()
+				+ " repeated " + takeover.createTextFrame(text, null).getBuffer().remaining()
+				+ " no takeover " + noTakeover.createTextFrame(text, null).getBuffer().remaining());
+	}
+
+	@TearDown
+	public void tearDown() {
+		takeover.release();
+		noTakeover.release();
+	}
+
+	private static PerMessageDeflate negotiate(String offer,boolean contextTakeover) throws IOException {
+		HandshakeParser parser = new HandshakeParser();
+		parser.parse(ByteBuffer.wrap(("GET / HTTP/1.1\r\nSec-WebSocket-Extensions: " + offer + "\r\n\r\n").getBytes("US-ASCII")));
+		return PerMessageDeflate.negotiate(parser, contextTakeover, 0, new CompressionStats());
+	}
+
+	@Benchmark
+	public FrameBuffer plain() {
+		return FrameBuffer.createTextFrame(text);
+	}
+
+	/**
+	 * Compressed frames are pooled, as they are queued on a user, and go back once
+	 * written.
+	 */
+	@Benchmark
+	public int contextTakeover() {
+		FrameBuffer frame = takeover.createTextFrame(text, pool);
+		frame.release();
+		return frame.size();
+	}
+
+	@Benchmark
+	public int noContextTakeover() {
+		FrameBuffer frame = noTakeover.createTextFrame(text, pool);
+		frame.release();
+		return frame.size();
+	}
+
+}
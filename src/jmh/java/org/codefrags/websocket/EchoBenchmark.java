@@ -0,0 +1,180 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.management.ThreadMXBean;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A full round trip through a running server over loopback: the event loop reads a
+ * client frame, the user decodes it and hands it to the listener, the listener sends
+ * it back and the loop writes the reply.  The client side is a plain blocking
+ * channel on the benchmark thread.
+ *
+ * The gc profiler only counts allocation on the benchmark thread, so the loop's own
+ * allocation per round trip is reported separately as loopBytes.
+ *
+ * @author Austin Miller
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class EchoBenchmark {
+
+	@Param({"16", "1024", "65536"})
+	int size;
+
+	private WebSocketServer server;
+	private Thread thread;
+	private SocketChannel client;
+	private ByteBuffer request;
+	private ByteBuffer reply;
+
+	/**
+	 * Bytes allocated by the event loop thread, per round trip.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Allocation {
+		private long start;
+		private long roundTrips;
+		public long loopBytes;
+
+		@Setup(Level.Iteration)
+		public void start() {
+			start = allocatedBytes(loopThread);
+			roundTrips = 0;
+		}
+
+		@TearDown(Level.Iteration)
+		public void stop() {
+			loopBytes = roundTrips == 0 ? 0 : (allocatedBytes(loopThread) - start) / roundTrips;
+		}
+	}
+
+	private static volatile Thread loopThread;
+
+	public static class Echo implements WebSocketListener {
+		public void onNewUser(WebSocketUser user) {
+			loopThread = Thread.currentThread();
+		}
+
+		public void onMessage(WebSocketUser user, String message) {
+			user.send(message);
+		}
+
+		public void onCloseConnection(WebSocketUser user) {
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		int port = freePort();
+
+		server = new WebSocketServer();
+		server.setPort(port);
+		server.setWebSocketListener(new Echo());
+		thread = new Thread(server, "benchmark-server");
+		thread.start();
+
+		while(server.isRunning() == false) {
+			Thread.sleep(10);
+		}
+
+		client = SocketChannel.open(new InetSocketAddress("localhost", port));
+		client.socket().setTcpNoDelay(true);
+		client.write(ByteBuffer.wrap(HandshakeBenchmark.REQUEST.getBytes("US-ASCII")));
+
+		ByteBuffer response = ByteBuffer.allocate(1024);
+		while(endsWithBlankLine(response) == false) {
+			client.read(response);
+		}
+
+		request = ByteBuffer.wrap(FrameBenchmark.maskedFrame(true, OpCode.TEXT.getValue(), FrameBenchmark.payload(size)));
+		int headerSize = size < 126 ? 2 : size < 1<<16 ? 4 : 10;
+		reply = ByteBuffer.allocate(headerSize + size);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		client.close();
+		server.shutdown(false);
+	}
+
+	@Benchmark
+	public ByteBuffer roundTrip(Allocation allocation) throws IOException {
+		++allocation.roundTrips;
+		request.clear();
+		while(request.hasRemaining()) {
+			client.write(request);
+		}
+
+		reply.clear();
+		while(reply.hasRemaining()) {
+			if(client.read(reply) == -1) {
+				throw new IOException("server closed the connection");
+			}
+		}
+		return reply;
+	}
+
+	private static long allocatedBytes(Thread thread) {
+		ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		return threads.getThreadAllocatedBytes(thread.getId());
+	}
+
+	private static boolean endsWithBlankLine(ByteBuffer buffer) {
+		int end = buffer.position();
+		return end >= 4
+				&& buffer.get(end - 4) == '\r' && buffer.get(end - 3) == '\n'
+				&& buffer.get(end - 2) == '\r' && buffer.get(end - 1) == '\n';
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * The selector engine against the blocking engine with many connections open.  Each
+ * benchmark thread owns a share of the connections and makes echo round trips on them
+ * in turn, so throughput mode gives round trips per millisecond and sample mode gives
+ * the latency percentiles, p99 included.
+ *
+ * Memory is measured once the connections are open and printed per connection: the
+ * growth of the heap after a full collection, which covers virtual thread stacks,
+ * what the buffer pool allocated and the platform threads started, whose stacks live
+ * outside the heap.  The client sockets are in the same JVM and weigh the same for
+ * both engines.
+ *
+ * Needs Java 21 for virtual threads, otherwise the blocking engine falls back to
+ * platform threads, and a file descriptor limit above twice the connections:
+ *
+ * java -jar target/benchmarks.jar EngineBenchmark
+ *
+ * @author Austin Miller
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class EngineBenchmark {
+
+	@Param({"SELECTOR", "BLOCKING"})
+	WebSocketServer.Engine engine;
+
+	@Param({"1000", "10000"})
+	int connections;
+
+	@Param({"64"})
+	int size;
+
+	/**
+	 * Event loops for the selector engine, 0 for one per processor so it gets the same
+	 * cores the blocking engine's threads do.
+	 */
+	@Param({"0"})
+	int eventLoops;
+
+	private WebSocketServer server;
+	private SocketChannel [] clients;
+	private byte [] request;
+	private AtomicInteger threadIndex = new AtomicInteger(0);
+
+	public static class Echo implements WebSocketListener {
+		public void onNewUser(WebSocketUser user) {
+		}
+
+		public void onMessage(WebSocketUser user, String message) {
+			user.send(message);
+		}
+
+		public void onCloseConnection(WebSocketUser user) {
+		}
+	}
+
+	/**
+	 * A benchmark thread's share of the connections.
+	 */
+	@State(Scope.Thread)
+	public static class Client {
+		private SocketChannel [] channels;
+		private int next;
+		private ByteBuffer request;
+		private ByteBuffer reply;
+
+		@Setup(Level.Trial)
+		public void setup(EngineBenchmark benchmark, BenchmarkParams params) {
+			int threads = params.getThreads();
+			int index = benchmark.threadIndex.getAndIncrement() % threads;
+			int share = benchmark.clients.length / threads;
+
+			channels = new SocketChannel[share];
+			System.arraycopy(benchmark.clients, index * share, channels, 0, share);
+			request = ByteBuffer.wrap(benchmark.request);
+			reply = ByteBuffer.allocate(replySize(benchmark.size));
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		int port = freePort();
+
+		server = new WebSocketServer();
+		server.setEngine(engine);
+		server.setEventLoopCount(eventLoops > 0 ? eventLoops : Runtime.getRuntime().availableProcessors());
+		server.setPort(port);
+		server.setWebSocketListener(new Echo());
+		new Thread(server, "benchmark-server").start();
+
+		while(server.isRunning() == false) {
+			Thread.sleep(10);
+		}
+
+		long heap = usedHeap();
+		long direct = server.getBufferPool().getAllocatedBytes();
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		clients = new SocketChannel[connections];
+		byte [] handshake = HandshakeBenchmark.REQUEST.getBytes("US-ASCII");
+		for(int i = 0;i<connections;++i) {
+			clients[i] = connect(port, handshake);
+		}
+
+		// one round trip each so every connection is fully set up before measuring
+		request = FrameBenchmark.maskedFrame(true, OpCode.TEXT.getValue(), FrameBenchmark.payload(size));
+		ByteBuffer reply = ByteBuffer.allocate(replySize(size));
+		for(SocketChannel client : clients) {
+			roundTrip(client, ByteBuffer.wrap(request), reply);
+		}
+
+		System.out.printf("%n%s engine, %d connections, %d event loops: %d heap bytes, %d direct bytes and %.3f platform threads per connection%n",
+				engine, connections, server.getEventLoopCount(),
+				(usedHeap() - heap) / connections,
+				(server.getBufferPool().getAllocatedBytes() - direct) / connections,
+				(ManagementFactory.getThreadMXBean().getThreadCount() - threads) / (double) connections);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		for(SocketChannel client : clients) {
+			client.close();
+		}
+		server.shutdown(false);
+	}
+
+	@Benchmark
+	public ByteBuffer roundTrip(Client client) throws IOException {
+		SocketChannel channel = client.channels[client.next];
+		if(++client.next == client.channels.length) {
+			client.next = 0;
+		}
+		return roundTrip(channel, client.request, client.reply);
+	}
+
+	private static ByteBuffer roundTrip(SocketChannel channel, ByteBuffer request, ByteBuffer reply) throws IOException {
+		request.clear();
+		while(request.hasRemaining()) {
+			channel.write(request);
+		}
+
+		reply.clear();
+		while(reply.hasRemaining()) {
+			if(channel.read(reply) == -1) {
+				throw new IOException("server closed the connection");
+			}
+		}
+		return reply;
+	}
+
+	private static SocketChannel connect(int port, byte [] handshake) throws IOException {
+		SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", port));
+		client.socket().setTcpNoDelay(true);
+		client.write(ByteBuffer.wrap(handshake));
+
+		ByteBuffer response = ByteBuffer.allocate(1024);
+		while(endsWithBlankLine(response) == false) {
+			if(client.read(response) == -1) {
+				throw new IOException("server closed the connection");
+			}
+		}
+		return client;
+	}
+
+	private static int replySize(int size) {
+		int headerSize = size < 126 ? 2 : size < 1<<16 ? 4 : 10;
+		return headerSize + size;
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		for(int i = 0;i<3;++i) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private static boolean endsWithBlankLine(ByteBuffer buffer) {
+		int end = buffer.position();
+		return end >= 4
+				&& buffer.get(end - 4) == '\r' && buffer.get(end - 3) == '\n'
+				&& buffer.get(end - 2) == '\r' && buffer.get(end - 1) == '\n';
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+}
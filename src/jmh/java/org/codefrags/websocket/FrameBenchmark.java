@@ -0,0 +1,208 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The frame codec: decoding client frames with {@link MaskedFrame#writeBytes(byte[], int, int)},
+ * joining fragments and encoding server frames.
+ *
+ * @author Austin Miller
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class FrameBenchmark {
+
+	private static final byte [] MASK = { 0x37, (byte) 0xFA, 0x21, 0x3D };
+
+	@State(Scope.Thread)
+	public static class Decode {
+
+		@Param({"16", "125", "4096", "65536"})
+		int size;
+
+		/**
+		 * Where the frame is cut between two reads: not at all, inside the header or
+		 * halfway through the payload.
+		 */
+		@Param({"none", "header", "payload"})
+		String split;
+
+		byte [] bytes;
+		int cut;
+
+		@Setup
+		public void setup() {
+			bytes = maskedFrame(true, OpCode.TEXT.getValue(), payload(size));
+
+			if("header".equals(split)) {
+				cut = 1;
+			} else if("payload".equals(split)) {
+				cut = bytes.length - size / 2;
+			} else {
+				cut = bytes.length;
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Join {
+
+		@Param({"125", "4096"})
+		int size;
+
+		@Param({"2", "16"})
+		int fragments;
+
+		List<MaskedFrame> frames = new ArrayList<MaskedFrame>();
+
+		@Setup
+		public void setup() throws IOException {
+			for(int i = 0;i<fragments;++i) {
+				byte [] bytes = maskedFrame(i == fragments - 1, i == 0 ? OpCode.TEXT.getValue() : 0, payload(size));
+				MaskedFrame frame = MaskedFrame.newFrame();
+				frame.writeBytes(bytes, 0, bytes.length);
+				frames.add(frame);
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Encode {
+
+		@Param({"16", "125", "4096", "65536"})
+		int size;
+
+		/**
+		 * Plain ASCII, or one character in eight accented Latin-1 with the odd euro sign.
+		 */
+		@Param({"ascii", "mixed"})
+		String content;
+
+		String text;
+		StringBuilder builder;
+		BufferPool pool = new BufferPool();
+
+		@Setup
+		public void setup() {
+			char [] chars = new char[size];
+			for(int i = 0;i<size;++i) {
+				chars[i] = "ascii".equals(content) || i % 8 != 7 ? 'x' : i % 64 == 63 ? '\u20ac' : '\u00e9';
+			}
+			text = new String(chars);
+			builder = new StringBuilder(text);
+		}
+	}
+
+	/**
+	 * Decoding unmasks in place, so every other call sees a masked payload again.
+	 * That costs the same either way.
+	 */
+	@Benchmark
+	public MaskedFrame writeBytes(Decode state) throws IOException {
+		MaskedFrame frame = MaskedFrame.newFrame();
+		int written = frame.writeBytes(state.bytes, 0, state.cut);
+		if(written < state.bytes.length) {
+			frame.writeBytes(state.bytes, written, state.bytes.length - written);
+		}
+		MaskedFrame.returnFrame(frame);
+		return frame;
+	}
+
+	@Benchmark
+	public String join(Join state) {
+		return MaskedFrame.join(state.frames);
+	}
+
+	@Benchmark
+	public FrameBuffer createTextFrame(Encode state) {
+		return FrameBuffer.createTextFrame(state.text);
+	}
+
+	@Benchmark
+	public FrameBuffer createTextFrameFromBuilder(Encode state) {
+		return FrameBuffer.createTextFrame(state.builder);
+	}
+
+	/**
+	 * What a user sends: encoded into a direct buffer from the pool, which goes back
+	 * once the frame is written.
+	 */
+	@Benchmark
+	public int createPooledTextFrame(Encode state) {
+		FrameBuffer frame = FrameBuffer.createTextFrame(state.text, state.pool);
+		int size = frame.size();
+		frame.release();
+		return size;
+	}
+
+	static byte [] payload(int size) {
+		byte [] payload = new byte[size];
+		Arrays.fill(payload, (byte) 'x');
+		return payload;
+	}
+
+	/**
+	 * @param fin
+	 * @param opCode zero for a continuation frame
+	 * @param payload
+	 * @return a client frame masked with a fixed key
+	 */
+	static byte [] maskedFrame(boolean fin,int opCode,byte [] payload) {
+		int length = payload.length;
+		int headerSize = length < 126 ? 2 : length < 1<<16 ? 4 : 10;
+		ByteBuffer buffer = ByteBuffer.allocate(headerSize + MASK.length + length);
+
+		buffer.put((byte) ((fin ? 0x80 : 0) | opCode));
+		if(length < 126) {
+			buffer.put((byte) (0x80 | length));
+		} else if(length < 1<<16) {
+			buffer.put((byte) (0x80 | 126));
+			buffer.putShort((short) length);
+		} else {
+			buffer.put((byte) (0x80 | 127));
+			buffer.putLong(length);
+		}
+
+		buffer.put(MASK);
+		for(int i = 0;i<length;++i) {
+			buffer.put((byte) (payload[i] ^ MASK[i & 3]));
+		}
+		return buffer.array();
+	}
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import org.codefrags.websocket.codec.Base64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The server side of the opening handshake: parsing the client's request and
+ * writing the response with its Sec-WebSocket-Accept.  {@link #encodeBytes()} is the
+ * general purpose Base64 codec the accept key used to go through, for comparison with
+ * {@link #encodeAccept()}.
+ *
+ * @author Austin Miller
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class HandshakeBenchmark {
+
+	static final String REQUEST = "GET /chat HTTP/1.1\r\n"
+			+ "Host: server.example.com\r\n"
+			+ "Upgrade: websocket\r\n"
+			+ "Connection: Upgrade\r\n"
+			+ "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+			+ "Origin: http://example.com\r\n"
+			+ "Sec-WebSocket-Protocol: chat, superchat\r\n"
+			+ "Sec-WebSocket-Version: 13\r\n\r\n";
+
+	private ByteBuffer request;
+	private HandshakeParser parser = new HandshakeParser();
+	private WebSocketUser user;
+	private byte [] digest;
+	private ByteBuffer response;
+
+	@Setup
+	public void setup() throws IOException, NoSuchAlgorithmException {
+		request = ByteBuffer.wrap(REQUEST.getBytes("US-ASCII"));
+		// the loop is never started, the user only needs it for configuration
+		EventLoop eventLoop = new EventLoop(new WebSocketServer(), "benchmark");
+		user = new SelectorWebSocketUser(eventLoop, null, null, "chat");
+
+		MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+		digest = sha1.digest("dGhlIHNhbXBsZSBub25jZQ==258EAFA5-E914-47DA-95CA-C5AB0DC85B11".getBytes("US-ASCII"));
+		response = ByteBuffer.allocate(1024);
+		parser.parse(request);
+	}
+
+	@Benchmark
+	public ByteBuffer handshake() throws IOException {
+		parser.reset();
+		request.rewind();
+		parser.parse(request);
+		response.clear();
+		user.acceptHandshake(parser, response);
+		return response;
+	}
+
+	@Benchmark
+	public ByteBuffer accept() throws IOException {
+		response.clear();
+		HandshakeResponse.writeAccept(parser, response);
+		return response;
+	}
+
+	@Benchmark
+	public boolean readHeaders() throws IOException {
+		parser.reset();
+		request.rewind();
+		return parser.parse(request);
+	}
+
+	@Benchmark
+	public String encodeBytes() {
+		return Base64.encodeBytes(digest);
+	}
+
+	@Benchmark
+	public ByteBuffer encodeAccept() {
+		response.clear();
+		HandshakeResponse.encode(digest, response);
+		return response;
+	}
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Unmasking throughput of the old byte at a time loop against each {@link Unmasker}.
+ *
+ * The vector benchmarks only measure the Vector API when the fork is started with
+ * the incubator module, otherwise they quietly measure words:
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar UnmaskBenchmark -jvmArgsAppend "--add-modules jdk.incubator.vector"
+ * </pre>
+ *
+ * The vector implementation only handles heap arrays, vectorDirect is there to show
+ * that a direct buffer, which is what the event loops read into, costs the same as
+ * wordsDirect.
+ *
+ * @author Austin Miller
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class UnmaskBenchmark {
+
+	@Param({"16", "125", "1024", "16384", "131072"})
+	int size;
+
+	private static final int MASK = 0x37FA213D;
+
+	private final Unmasker scalar = Unmasker.create("scalar");
+	private final Unmasker words = Unmasker.create("words");
+	private final Unmasker vector = Unmasker.create("vector");
+
+	private byte [] mask = new byte[] { 0x37, (byte) 0xFA, 0x21, 0x3D };
+	private byte [] array;
+	private byte [] copy;
+	private ByteBuffer heap;
+	private ByteBuffer direct;
+
+	@Setup
+	public void setup() {
+		array = new byte[size];
+		new Random(size).nextBytes(array);
+		copy = new byte[size];
+
+		heap = ByteBuffer.wrap(array);
+		direct = ByteBuffer.allocateDirect(size);
+		direct.put(array).clear();
+	}
+
+	/**
+	 * The loop MaskedFrame used before the decoder, modulo included.
+	 */
+	@Benchmark
+	public byte [] legacyLoop() {
+		int headerSize = 6;
+		for(int i = headerSize;i<size + headerSize;++i) {
+			array[i - headerSize] = (byte) (array[i - headerSize] ^ mask[(i - headerSize) % 4]);
+		}
+		return array;
+	}
+
+	@Benchmark
+	public ByteBuffer scalarHeap() {
+		scalar.unmask(heap, 0, size, MASK, 0);
+		return heap;
+	}
+
+	@Benchmark
+	public ByteBuffer wordsHeap() {
+		words.unmask(heap, 0, size, MASK, 0);
+		return heap;
+	}
+
+	@Benchmark
+	public ByteBuffer wordsDirect() {
+		words.unmask(direct, 0, size, MASK, 0);
+		return direct;
+	}
+
+	@Benchmark
+	public byte [] wordsCopy() {
+		direct.clear();
+		words.unmask(direct, copy, 0, size, MASK, 0);
+		return copy;
+	}
+
+	@Benchmark
+	public ByteBuffer vectorHeap() {
+		vector.unmask(heap, 0, size, MASK, 0);
+		return heap;
+	}
+
+	@Benchmark
+	public ByteBuffer vectorDirect() {
+		vector.unmask(direct, 0, size, MASK, 0);
+		return direct;
+	}
+
+	@Benchmark
+	public byte [] vectorCopy() {
+		heap.clear();
+		vector.unmask(heap, copy, 0, size, MASK, 0);
+		return copy;
+	}
+
+}
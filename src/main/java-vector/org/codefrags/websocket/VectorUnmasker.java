@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Unmasks a full SIMD register at a time with the incubating Vector API.  Only
+ * compiled by the vector profile on JDK 17 or later, and only loaded when asked for
+ * with -Dorg.codefrags.websocket.unmask=vector.
+ *
+ * The array based Vector API is the part that has stayed put between JDK releases, so
+ * heap buffers are unmasked here and direct buffers are left to {@link Unmasker.Words}.
+ * Copying out of a direct buffer is a bulk copy followed by an in place pass over the
+ * destination array.
+ *
+ * @author Austin Miller
+ */
+class VectorUnmasker extends Unmasker {
+
+	private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+	private final Unmasker words = new Unmasker.Words();
+
+	void unmask(ByteBuffer buffer,int offset,int length,int mask,int maskOffset) {
+		if(buffer.hasArray() == false) {
+			words.unmask(buffer, offset, length, mask, maskOffset);
+			return;
+		}
+
+		unmask(buffer.array(), buffer.arrayOffset() + offset, length, mask, maskOffset);
+	}
+
+	void unmask(ByteBuffer src,byte [] dst,int dstOffset,int length,int mask,int maskOffset) {
+		src.get(dst, dstOffset, length);
+		unmask(dst, dstOffset, length, mask, maskOffset);
+	}
+
+	private void unmask(byte [] data,int offset,int length,int mask,int maskOffset) {
+		int rotated = rotate(mask, maskOffset);
+
+		// the int lanes are laid out in native order, the mask bytes must come out in wire order
+		int lane = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? rotated : Integer.reverseBytes(rotated);
+		ByteVector wide = IntVector.broadcast(INTS, lane).reinterpretAsBytes();
+
+		int i = 0;
+		for(int end = BYTES.loopBound(length);i<end;i+=BYTES.length()) {
+			ByteVector.fromArray(BYTES, data, offset + i)
+				.lanewise(VectorOperators.XOR, wide)
+				.intoArray(data, offset + i);
+		}
+
+		// a register is a multiple of four bytes, so the tail starts in phase
+		words.unmask(ByteBuffer.wrap(data), offset + i, length - i, rotated, 0);
+	}
+
+}
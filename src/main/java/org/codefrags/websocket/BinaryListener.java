@@ -0,0 +1,39 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Implemented by a {@link WebSocketListener} that takes binary messages, which are
+ * otherwise handed to onMessage as text.
+ * 
+ * The buffer holds the payload as it came off the wire, unmasked: without workers a
+ * slice of the event loop's read buffer when the message came in a single frame, with
+ * them a pooled copy given back once the call returns.  Either way it is only good
+ * until the call returns.  A {@link StreamingListener} gets binary messages as
+ * fragments instead.
+ * 
+ * Called on the same thread as the rest of the listener.
+ * 
+ * @author Austin Miller
+ * @see org.codefrags.websocket.WebSocketUser#send(ByteBuffer)
+ */
+public interface BinaryListener {
+
+	public void onBinaryMessage(WebSocketUser webSocketUser,ByteBuffer message);
+
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.codefrags.websocket.WebSocketServer.Command;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link WebSocketServer.Engine#BLOCKING} engine.  Accepts connections with a
+ * plain blocking server socket and runs each on a thread of its own, a virtual thread
+ * where the JVM has them (Java 21 and up) and a platform thread otherwise.
+ *
+ * @author Austin Miller
+ * @see org.codefrags.websocket.BlockingWebSocketUser
+ */
+class BlockingEngine {
+	protected static final Logger logger = LoggerFactory.getLogger(BlockingEngine.class);
+
+	/**
+	 * How long, in milliseconds, a graceful shutdown waits for clients to answer the
+	 * close frame before closing their sockets anyway.
+	 */
+	private static final long CLOSE_WAIT_TIME = 5*1000;
+
+	private final WebSocketServer server;
+	private final ServerSocket serverSocket;
+	private ExecutorService executor;
+
+	/**
+	 * Looks for stuck writes, null without a write timeout.
+	 */
+	private ScheduledExecutorService writeWatch;
+	private Set<BlockingWebSocketUser> users = Collections.newSetFromMap(new ConcurrentHashMap<BlockingWebSocketUser,Boolean>());
+
+	/**
+	 * Subscribers by topic.  Publishing reads it without locking, subscribing and
+	 * unsubscribing lock it so an emptied topic can be removed safely.
+	 */
+	private ConcurrentHashMap<String,Set<BlockingWebSocketUser>> topics = new ConcurrentHashMap<String,Set<BlockingWebSocketUser>>();
+
+	BlockingEngine(WebSocketServer server) throws IOException {
+		this.server = server;
+		if(server.getSslContext() == null) {
+			this.serverSocket = new ServerSocket();
+		} else {
+			// the handshake happens on the connection's thread, at its first read
+			this.serverSocket = server.getSslContext().getServerSocketFactory().createServerSocket();
+		}
+	}
+
+	/**
+	 * @param port
+	 * @throws IOException
+	 */
+	void start(int port) throws IOException {
+		serverSocket.bind(new InetSocketAddress(port));
+		executor = newConnectionExecutor();
+
+		final long writeTimeout = server.getWriteTimeout();
+		if(writeTimeout > 0) {
+			writeWatch = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "websocket-write-watch");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			long period = Math.max(1, writeTimeout / 4);
+			writeWatch.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					long deadline = System.currentTimeMillis() - writeTimeout;
+					for(BlockingWebSocketUser user : users) {
+						user.checkWrite(deadline);
+					}
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Accept connections until {@link #stopAccepting()}.
+	 *
+	 * @throws IOException
+	 */
+	void acceptAll() throws IOException {
+		while(true) {
+			Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch(IOException e) {
+				if(serverSocket.isClosed()) {
+					return;
+				}
+				logger.error(e.getMessage(),e);
+				continue;
+			}
+
+			BlockingWebSocketUser user = new BlockingWebSocketUser(this, socket);
+			users.add(user);
+			executor.execute(user);
+		}
+	}
+
+	/**
+	 * Safe to call from any thread, even before {@link #start(int)}, which then fails.
+	 */
+	void stopAccepting() {
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			logger.error(e.getMessage(),e);
+		}
+	}
+
+	/**
+	 * Close every connection as the command dictates and wait for their threads.
+	 *
+	 * @param command
+	 */
+	void shutdown(Command command) {
+		stopAccepting();
+		if(executor == null) {
+			return;
+		}
+		executor.shutdown();
+
+		try {
+			if(command == Command.SHUTDOWN) {
+				for(BlockingWebSocketUser user : users) {
+					user.sendCloseFrame();
+				}
+				if(executor.awaitTermination(CLOSE_WAIT_TIME, TimeUnit.MILLISECONDS)) {
+					return;
+				}
+			}
+
+			logger.debug("closing {} connections aggressively", users.size());
+			for(BlockingWebSocketUser user : users) {
+				user.fail();
+			}
+			executor.awaitTermination(CLOSE_WAIT_TIME, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			logger.error(e.getMessage(),e);
+		} finally {
+			if(writeWatch != null) {
+				writeWatch.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * Called by a user's own thread once it is done.
+	 *
+	 * @param user
+	 */
+	void connectionClosed(BlockingWebSocketUser user) {
+		users.remove(user);
+		unsubscribeAll(user);
+	}
+
+	/**
+	 * @return the connections open now
+	 */
+	int getConnectionCount() {
+		return users.size();
+	}
+
+	/**
+	 * @param user
+	 * @param topic
+	 */
+	void subscribe(BlockingWebSocketUser user,String topic) {
+		synchronized(topics) {
+			if(user.isClosed()) {
+				return;
+			}
+
+			Set<BlockingWebSocketUser> subscribers = topics.get(topic);
+			if(subscribers == null) {
+				subscribers = Collections.newSetFromMap(new ConcurrentHashMap<BlockingWebSocketUser,Boolean>());
+				topics.put(topic, subscribers);
+			}
+			subscribers.add(user);
+			user.getTopics().add(topic);
+		}
+	}
+
+	/**
+	 * @param user
+	 * @param topic
+	 */
+	void unsubscribe(BlockingWebSocketUser user,String topic) {
+		synchronized(topics) {
+			user.getTopics().remove(topic);
+			remove(user, topic);
+		}
+	}
+
+	private void unsubscribeAll(BlockingWebSocketUser user) {
+		synchronized(topics) {
+			for(String topic : user.getTopics()) {
+				remove(user, topic);
+			}
+			user.getTopics().clear();
+		}
+	}
+
+	/**
+	 * Called holding the topics.
+	 *
+	 * @param user
+	 * @param topic
+	 */
+	private void remove(BlockingWebSocketUser user,String topic) {
+		Set<BlockingWebSocketUser> subscribers = topics.get(topic);
+		if(subscribers != null && subscribers.remove(user) && subscribers.isEmpty()) {
+			topics.remove(topic);
+		}
+	}
+
+	/**
+	 * Write the frame to each subscriber in turn, on the calling thread.  A subscriber
+	 * that doesn't take it within the write timeout is failed and the rest still get
+	 * it.
+	 *
+	 * @param topic
+	 * @param message
+	 */
+	void publish(String topic,CharSequence message) {
+		Set<BlockingWebSocketUser> subscribers = topics.get(topic);
+		if(subscribers == null) {
+			return;
+		}
+
+		SharedFrame frame = SharedFrame.createTextFrame(message, server.getBufferPool());
+		try {
+			for(BlockingWebSocketUser user : subscribers) {
+				user.send(frame);
+			}
+		} finally {
+			frame.release();
+		}
+	}
+
+	WebSocketServer getServer() {
+		return server;
+	}
+
+	/**
+	 * Looked up by reflection so the library still builds and runs on older JVMs.
+	 *
+	 * @return an executor that starts a virtual thread per connection, or a platform
+	 * thread per connection where there are no virtual threads
+	 */
+	static ExecutorService newConnectionExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch(NoSuchMethodException e) {
+			logger.info("No virtual threads in this JVM, using a platform thread per connection");
+		} catch(Exception e) {
+			logger.warn("Couldn't use virtual threads, using a platform thread per connection", e);
+		}
+
+		final AtomicInteger count = new AtomicInteger(0);
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "websocket-connection-" + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+}
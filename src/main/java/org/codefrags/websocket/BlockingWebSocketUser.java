@@ -0,0 +1,628 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.MalformedInputException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A user of the {@link WebSocketServer.Engine#BLOCKING} engine.  The handshake and
+ * every read happen on the connection's own thread, which also makes all of its
+ * listener callbacks, so the whole life of the connection is one straight loop of
+ * blocking reads.
+ *
+ * Sends from any thread write straight to the socket, one at a time, and return
+ * once the socket has taken the frame.  Nothing is queued, so a sender waits for a
+ * slow reader and the water marks, queue limit and overflow policy don't apply.  A
+ * write that takes longer than {@link WebSocketServer#getWriteTimeout()} fails the
+ * connection, which lets the sender go.  Writers take turns with a lock rather than
+ * a monitor, so a virtual thread blocked in a write doesn't pin its carrier.
+ *
+ * Ping and idle deadlines are kept with the socket's read timeout.
+ *
+ * @author Austin Miller
+ * @see org.codefrags.websocket.BlockingEngine
+ */
+class BlockingWebSocketUser extends WebSocketUser implements Runnable {
+	protected static final Logger logger = LoggerFactory.getLogger(BlockingWebSocketUser.class);
+
+	/**
+	 * Held for the connection's life, so kept small.  The handshake is parsed as it
+	 * arrives and frames that don't fit are gathered by the decoder.
+	 */
+	private static final int READ_BUFFER_SIZE = 1<<13;
+
+	/**
+	 * For copying out of direct buffers, which the socket's stream can't write.
+	 */
+	private static final int COPY_SIZE = 1<<13;
+
+	private final BlockingEngine engine;
+	private final Socket socket;
+	private InputStream in;
+	private OutputStream out;
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private byte [] copy;
+
+	/**
+	 * When the write in progress started, 0 between writes.  Watched by the engine.
+	 */
+	private volatile long writeStartTime = 0;
+
+	private byte [] bytes = new byte[READ_BUFFER_SIZE];
+	private ByteBuffer buffer = ByteBuffer.wrap(bytes);
+	private final FrameDecoder decoder;
+	private MaskedFrame frame;
+	private List<MaskedFrame> frames = new ArrayList<MaskedFrame>();
+
+	private volatile Status status = Status.CONNECTING;
+	private boolean opened;
+	private AtomicBoolean closed = new AtomicBoolean(false);
+	private volatile long pingSentTime = 0;
+	private long lastReadTime;
+	private long pingInterval;
+	private long idleTimeout;
+	private long pingJitter;
+
+	/**
+	 * Guarded by the engine's topics.
+	 */
+	private Set<String> topics = new HashSet<String>(4);
+
+	BlockingWebSocketUser(BlockingEngine engine,Socket socket) {
+		super(engine.getServer(), engine.getServer().getWebSocketListener(), engine.getServer().getProtocol());
+		this.engine = engine;
+		this.decoder = newDecoder(engine.getServer());
+		this.pingInterval = engine.getServer().getPingInterval();
+		this.idleTimeout = engine.getServer().getIdleTimeout();
+		this.socket = socket;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		try {
+			in = socket.getInputStream();
+			out = socket.getOutputStream();
+			lastReadTime = System.currentTimeMillis();
+			if(pingInterval > 0) {
+				pingJitter = ThreadLocalRandom.current().nextLong(pingInterval);
+			}
+
+			if(receiveClientHeader()) {
+				status = Status.OPEN;
+				opened = true;
+				callListener(Worker.NEW_USER, null);
+				readFrames();
+			}
+		} catch(MalformedInputException e) {
+			logger.debug("Invalid UTF-8 from user {}", getId());
+			sendCloseFrame(CLOSE_INVALID_DATA);
+		} catch(CloseException e) {
+			logger.debug("Closing user {}: {}", getId(), e.getMessage());
+			sendCloseFrame(e.getCode());
+		} catch(IOException e) {
+			logger.debug("Connection of user {} ended: {}", getId(), e.getMessage());
+		} catch(Exception e) {
+			logger.error(e.getMessage(),e);
+		} finally {
+			finish();
+		}
+	}
+
+	/**
+	 * Read until the end of the headers, answer them and keep whatever came after for
+	 * the first frame.
+	 *
+	 * @return false if the socket closed first
+	 * @throws IOException
+	 */
+	private boolean receiveClientHeader() throws IOException {
+		HandshakeParser handshake = new HandshakeParser();
+		boolean done = false;
+
+		while(done == false) {
+			if(read() == -1) {
+				return false;
+			}
+
+			buffer.flip();
+			done = handshake.parse(buffer);
+			buffer.compact();
+		}
+
+		ByteBuffer response = ByteBuffer.allocate(engine.getServer().getHandshakeResponse().maxLength());
+		acceptHandshake(handshake, response);
+		response.flip();
+		writeLock.lock();
+		try {
+			write(response);
+		} finally {
+			writeLock.unlock();
+		}
+		return true;
+	}
+
+	/**
+	 * Decode and handle frames until the connection closes.  Frames whole in the buffer
+	 * are handled as slices of it, so the buffer is only reused once they are.  For a
+	 * streaming listener data frames are handed over a part at a time, straight out of
+	 * the buffer.
+	 *
+	 * @throws IOException
+	 */
+	private void readFrames() throws IOException {
+		while(true) {
+			buffer.flip();
+			while(buffer.hasRemaining()) {
+				if(frame == null) {
+					frame = MaskedFrame.newFrame();
+				}
+
+				if(isStreaming()) {
+					if(stream() == false) {
+						return;
+					}
+				} else if(decoder.decode(buffer, frame)) {
+					MaskedFrame done = frame;
+					frame = null;
+					if(handleFrame(done) == false) {
+						return;
+					}
+				}
+			}
+			buffer.clear();
+
+			if(read() == -1) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return false once the connection is done
+	 * @throws IOException
+	 */
+	private boolean stream() throws IOException {
+		switch(decoder.stream(buffer, frame, frames.size() > 0)) {
+		case FrameDecoder.PART:
+			streamPart(frame, false);
+			return true;
+		case FrameDecoder.LAST_PART:
+			streamPart(frame, true);
+			MaskedFrame.returnFrame(frame);
+			frame = null;
+			return true;
+		case FrameDecoder.WHOLE:
+			MaskedFrame done = frame;
+			frame = null;
+			return handleFrame(done);
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * @param frame
+	 * @return false once the connection is done
+	 * @throws IOException
+	 */
+	private boolean handleFrame(MaskedFrame frame) throws IOException {
+		checkReservedBits(frame, frames.size() > 0);
+		OpCode opCode = frame.getOpCode();
+
+		if(opCode == OpCode.CLOSE) {
+			MaskedFrame.returnFrame(frame);
+			if(status != Status.CLOSING) {
+				sendCloseFrame();
+			}
+			return false;
+		}
+
+		if(opCode == OpCode.PING) {
+			MaskedFrame.returnFrame(frame);
+			writeFrame(FrameBuffer.createControlFrame(OpCode.PONG));
+			return true;
+		}
+
+		if(opCode == OpCode.PONG) {
+			MaskedFrame.returnFrame(frame);
+			pingSentTime = 0;
+			return true;
+		}
+
+		handleData(frames, frame);
+		return true;
+	}
+
+	/**
+	 * Read whatever the socket has into the buffer, waking up for ping and idle
+	 * deadlines on the way.
+	 *
+	 * @return the bytes read, or -1 if the socket closed or a deadline passed
+	 * @throws IOException
+	 */
+	private int read() throws IOException {
+		while(true) {
+			long now = System.currentTimeMillis();
+			long next = checkDeadlines(now);
+			if(next < 0) {
+				return -1;
+			}
+			socket.setSoTimeout((int) Math.min(Math.max(1, next - now), Integer.MAX_VALUE));
+
+			try {
+				int read = in.read(bytes, buffer.position(), buffer.remaining());
+				if(read > 0) {
+					buffer.position(buffer.position() + read);
+					lastReadTime = System.currentTimeMillis();
+				}
+				return read;
+			} catch(SocketTimeoutException e) {
+				// a deadline is up, the socket is still good
+			}
+		}
+	}
+
+	/**
+	 * The same deadlines the event loops keep, see {@link WebSocketServer#setPingInterval(long)}.
+	 * With neither set the read still times out every {@link #PING_WAIT_TIME}, so that
+	 * a ping sent from another thread is followed up.
+	 *
+	 * @param now
+	 * @return when to check again, or -1 to close the connection
+	 */
+	private long checkDeadlines(long now) {
+		long sent = pingSentTime;
+		if(sent != 0) {
+			if(lastReadTime >= sent) {
+				pingSentTime = sent = 0;
+			} else if(now - sent >= PING_WAIT_TIME) {
+				logger.debug("No pong from user {} in time, closing", getId());
+				return -1;
+			}
+		}
+
+		if(idleTimeout > 0 && now - lastReadTime >= idleTimeout) {
+			logger.debug("User {} idle for {} ms, closing", getId(), now - lastReadTime);
+			return -1;
+		}
+
+		long next = now + PING_WAIT_TIME;
+		if(sent != 0) {
+			next = sent + PING_WAIT_TIME;
+		} else if(pingInterval > 0) {
+			next = lastReadTime + pingInterval - pingJitter;
+			if(next <= now && status == Status.OPEN) {
+				pingJitter = 0;
+				ping();
+				next = now + PING_WAIT_TIME;
+			} else if(next <= now) {
+				next = now + pingInterval;
+			}
+		}
+
+		if(idleTimeout > 0) {
+			next = Math.min(next, lastReadTime + idleTimeout);
+		}
+		return next;
+	}
+
+	/**
+	 * Listener exceptions are logged rather than ending the connection, as they are
+	 * with workers.
+	 *
+	 * @param type
+	 * @param message
+	 */
+	private void callListener(int type,String message) {
+		deliver(type, message, null);
+	}
+
+	/**
+	 * Intentionally package private.
+	 *
+	 * Always on the connection's own thread, so a fragment needs no copy.
+	 */
+	@Override
+	void deliver(int type,String message,ByteBuffer payload) {
+		try {
+			Worker.deliver(getWebSocketListener(), this, type, message, payload);
+		} catch(Exception e) {
+			logger.error(e.getMessage(),e);
+		}
+	}
+
+	@Override
+	public void send(CharSequence message) {
+		PerMessageDeflate deflate = getDeflate();
+		if(deflate == null) {
+			writeFrame(FrameBuffer.createTextFrame(message));
+			return;
+		}
+
+		// the connection's deflater is used by one sender at a time, in the order written
+		writeLock.lock();
+		try {
+			if(closed.get() == false) {
+				writeFrame(deflate.createTextFrame(message, null));
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Written straight from the caller's bytes after the header, without copying
+	 * them into a frame first.
+	 */
+	@Override
+	public void send(ByteBuffer message) {
+		writeBinary(message.duplicate());
+	}
+
+	@Override
+	public void send(byte [] message,int offset,int length) {
+		writeBinary(ByteBuffer.wrap(message, offset, length));
+	}
+
+	/**
+	 * @param payload
+	 */
+	private void writeBinary(ByteBuffer payload) {
+		ByteBuffer header = ByteBuffer.allocate(FrameBuffer.headerSize(payload.remaining()));
+		FrameBuffer.putHeader(header, OpCode.BINARY, payload.remaining());
+		header.flip();
+
+		try {
+			if(closed.get()) {
+				return;
+			}
+
+			writeLock.lock();
+			try {
+				write(header);
+				write(payload);
+			} finally {
+				writeLock.unlock();
+			}
+		} catch(IOException e) {
+			logger.debug("Write to user {} failed: {}", getId(), e.getMessage());
+			fail();
+		}
+	}
+
+	/**
+	 * Nothing is ever queued, a send returns once the socket has taken the frame.
+	 */
+	@Override
+	public long getQueuedBytes() {
+		return 0;
+	}
+
+	/**
+	 * Always, as nothing is queued.
+	 */
+	@Override
+	public boolean isWritable() {
+		return true;
+	}
+
+	/**
+	 * None, as nothing is queued.
+	 */
+	@Override
+	public long getDroppedFrames() {
+		return 0;
+	}
+
+	@Override
+	public void send(SharedFrame frame) {
+		writeFrame(viewFor(frame));
+	}
+
+	@Override
+	public void subscribe(String topic) {
+		engine.subscribe(this, topic);
+	}
+
+	@Override
+	public void unsubscribe(String topic) {
+		engine.unsubscribe(this, topic);
+	}
+
+	/**
+	 * Intentionally package private.
+	 *
+	 * @return
+	 */
+	Set<String> getTopics() {
+		return topics;
+	}
+
+	@Override
+	public void ping() {
+		writeFrame(FrameBuffer.createControlFrame(OpCode.PING));
+		pingSentTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Write a frame now, waiting for any other thread writing to this user.  A write
+	 * that fails fails the connection.
+	 *
+	 * @param frameBuffer
+	 */
+	private void writeFrame(FrameBuffer frameBuffer) {
+		try {
+			if(closed.get()) {
+				return;
+			}
+
+			writeLock.lock();
+			try {
+				write(frameBuffer.getBuffer());
+			} finally {
+				writeLock.unlock();
+			}
+		} catch(IOException e) {
+			logger.debug("Write to user {} failed: {}", getId(), e.getMessage());
+			fail();
+		} finally {
+			frameBuffer.release();
+		}
+	}
+
+	/**
+	 * Called holding the write lock.
+	 *
+	 * @param buffer
+	 * @throws IOException
+	 */
+	private void write(ByteBuffer buffer) throws IOException {
+		writeStartTime = System.currentTimeMillis();
+		try {
+			if(buffer.hasArray()) {
+				out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+				buffer.position(buffer.limit());
+				return;
+			}
+
+			if(copy == null) {
+				copy = new byte[COPY_SIZE];
+			}
+			while(buffer.hasRemaining()) {
+				int length = Math.min(buffer.remaining(), copy.length);
+				buffer.get(copy, 0, length);
+				out.write(copy, 0, length);
+			}
+		} finally {
+			writeStartTime = 0;
+		}
+	}
+
+	/**
+	 * Intentionally package private.
+	 *
+	 * Fail the connection if a write has been stuck since before the deadline, which
+	 * makes the write throw and lets its sender go.
+	 *
+	 * @param deadline
+	 */
+	void checkWrite(long deadline) {
+		long started = writeStartTime;
+		if(started != 0 && started < deadline) {
+			logger.debug("Write to user {} stuck for {} ms, failing the connection", getId(),
+					System.currentTimeMillis() - started);
+			fail();
+		}
+	}
+
+	/**
+	 * Intentionally package private.
+	 *
+	 * Send a close frame and wait for the client's, which ends the connection.
+	 *
+	 * @param code
+	 */
+	@Override
+	void sendCloseFrame(int code) {
+		status = Status.CLOSING;
+		writeFrame(FrameBuffer.createCloseFrame(code));
+	}
+
+	@Override
+	boolean isClosed() {
+		return closed.get();
+	}
+
+	@Override
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * Closes the socket, which ends the connection's thread.
+	 */
+	@Override
+	public void fail() {
+		status = Status.CLOSING;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			logger.error(e.getMessage(),e);
+		}
+		logger.debug("Failed the connection for user " + getId());
+	}
+
+	/**
+	 * Only called by the connection's own thread, once it is done.
+	 */
+	private void finish() {
+		status = Status.CLOSING;
+
+		try {
+			socket.close();
+		} catch (IOException e) {
+			logger.error(e.getMessage(),e);
+		}
+
+		if(closed.compareAndSet(false, true) == false) {
+			return;
+		}
+		engine.connectionClosed(this);
+
+		for(MaskedFrame mf : frames) {
+			MaskedFrame.returnFrame(mf);
+		}
+		frames.clear();
+		if(frame != null) {
+			MaskedFrame.returnFrame(frame);
+			frame = null;
+		}
+
+		PerMessageDeflate deflate = getDeflate();
+		if(deflate != null) {
+			writeLock.lock();
+			try {
+				deflate.release();
+			} finally {
+				writeLock.unlock();
+			}
+		}
+
+		// the listener only hears of users it was told opened
+		if(opened) {
+			callListener(Worker.CLOSE, null);
+		}
+	}
+
+}
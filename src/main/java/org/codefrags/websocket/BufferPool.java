@@ -0,0 +1,192 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct ByteBuffers in power of two size classes, from 4 kilobytes up to
+ * a megabyte.  Connections borrow a buffer for the duration of a read or a write and
+ * give it back afterwards, so idle connections hold no buffers at all.
+ *
+ * Direct memory is only released by the garbage collector, so the pool never frees
+ * what it allocates.  Once the ceiling is reached, or for requests larger than the
+ * largest size class, plain heap buffers are handed out instead and simply dropped
+ * when they are released.
+ *
+ * Safe to share between event loops and servers.
+ *
+ * @author Austin Miller
+ */
+public class BufferPool {
+
+	private static final int MIN_SHIFT = 12; // 4 kilobytes
+	private static final int MAX_SHIFT = 20; // a megabyte
+
+	/**
+	 * The default ceiling on direct memory, 64 megabytes.
+	 */
+	public static final long DEFAULT_MAX_BYTES = 1L<<26;
+
+	private final long maxBytes;
+	private final Queue<ByteBuffer> [] free;
+
+	private AtomicLong allocatedBytes = new AtomicLong(0);
+	private AtomicLong borrowed = new AtomicLong(0);
+	private AtomicLong hits = new AtomicLong(0);
+	private AtomicLong misses = new AtomicLong(0);
+	private AtomicLong heapAllocations = new AtomicLong(0);
+
+	public BufferPool() {
+		this(DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * @param maxBytes the most direct memory this pool will ever allocate
+	 */
+	@SuppressWarnings("unchecked")
+	public BufferPool(long maxBytes) {
+		this.maxBytes = maxBytes;
+		free = new Queue[MAX_SHIFT - MIN_SHIFT + 1];
+		for(int i = 0;i<free.length;++i) {
+			free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+		}
+	}
+
+	/**
+	 * Borrow a cleared buffer with at least size bytes of capacity.  It must be
+	 * handed back with {@link #release(ByteBuffer)} once the read or write is done.
+	 *
+	 * @param size
+	 * @return
+	 */
+	public ByteBuffer acquire(int size) {
+		int sizeClass = sizeClass(size);
+
+		if(sizeClass >= free.length) {
+			heapAllocations.incrementAndGet();
+			return ByteBuffer.allocate(size);
+		}
+
+		borrowed.incrementAndGet();
+
+		ByteBuffer buffer = free[sizeClass].poll();
+		if(buffer != null) {
+			hits.incrementAndGet();
+			buffer.clear();
+			return buffer;
+		}
+
+		misses.incrementAndGet();
+
+		int capacity = 1 << (sizeClass + MIN_SHIFT);
+		if(allocatedBytes.addAndGet(capacity) > maxBytes) {
+			allocatedBytes.addAndGet(-capacity);
+			heapAllocations.incrementAndGet();
+			return ByteBuffer.allocate(capacity);
+		}
+
+		return ByteBuffer.allocateDirect(capacity);
+	}
+
+	/**
+	 * Hand a buffer back.  Heap buffers are dropped.
+	 *
+	 * @param buffer
+	 */
+	public void release(ByteBuffer buffer) {
+		if(buffer == null) {
+			return;
+		}
+
+		int sizeClass = sizeClass(buffer.capacity());
+		if(sizeClass >= free.length) {
+			return;
+		}
+
+		borrowed.decrementAndGet();
+
+		if(buffer.isDirect()) {
+			buffer.clear();
+			free[sizeClass].offer(buffer);
+		}
+	}
+
+	/**
+	 * @param size
+	 * @return the index of the smallest size class that holds size bytes
+	 */
+	private static int sizeClass(int size) {
+		if(size <= 1<<MIN_SHIFT) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+
+	/**
+	 * @return the ceiling on direct memory
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return direct memory allocated so far, borrowed and idle
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes.get();
+	}
+
+	/**
+	 * @return pooled buffers currently borrowed and not yet released
+	 */
+	public long getBorrowed() {
+		return borrowed.get();
+	}
+
+	/**
+	 * @return requests served from an idle pooled buffer
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return requests that found no idle buffer of their size class
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return requests served from the heap, being over the ceiling or too large to pool
+	 */
+	public long getHeapAllocations() {
+		return heapAllocations.get();
+	}
+
+	public String toString() {
+		return "BufferPool[allocated=" + getAllocatedBytes() + "/" + maxBytes
+				+ " borrowed=" + getBorrowed()
+				+ " hits=" + getHits()
+				+ " misses=" + getMisses()
+				+ " heap=" + getHeapAllocations() + "]";
+	}
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.io.IOException;
+
+/**
+ * The peer sent something the connection can't go on after, and the close frame
+ * ending it should say why.
+ * 
+ * @author Austin Miller
+ *
+ */
+class CloseException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int code;
+
+	/**
+	 * @param code the close code, see RFC 6455 #7.4.1
+	 * @param message
+	 */
+	CloseException(int code,String message) {
+		super(message);
+		this.code = code;
+	}
+
+	int getCode() {
+		return code;
+	}
+
+}
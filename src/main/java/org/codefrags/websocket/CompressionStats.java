@@ -0,0 +1,165 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running totals for permessage-deflate across a server's connections: how much was
+ * compressed and inflated, to what size, and the time spent doing it.  Times are
+ * measured around the Deflater and Inflater calls on the thread making them, so they
+ * approximate the CPU compression costs.
+ *
+ * A message published to many users is compressed once and counted once.
+ *
+ * Safe to read from any thread.
+ *
+ * @author Austin Miller
+ * @see org.codefrags.websocket.WebSocketServer#setPerMessageDeflate(boolean)
+ */
+public class CompressionStats {
+
+	private AtomicLong deflatedMessages = new AtomicLong(0);
+	private AtomicLong deflatedBytesIn = new AtomicLong(0);
+	private AtomicLong deflatedBytesOut = new AtomicLong(0);
+	private AtomicLong deflateNanos = new AtomicLong(0);
+	private AtomicLong uncompressedMessages = new AtomicLong(0);
+	private AtomicLong inflatedMessages = new AtomicLong(0);
+	private AtomicLong inflatedBytesIn = new AtomicLong(0);
+	private AtomicLong inflatedBytesOut = new AtomicLong(0);
+	private AtomicLong inflateNanos = new AtomicLong(0);
+
+	/**
+	 * @param in bytes before compressing
+	 * @param out bytes after
+	 * @param nanos
+	 */
+	void deflated(long in,long out,long nanos) {
+		deflatedMessages.incrementAndGet();
+		deflatedBytesIn.addAndGet(in);
+		deflatedBytesOut.addAndGet(out);
+		deflateNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * A message sent as it was, being under the threshold or not getting smaller.
+	 */
+	void uncompressed() {
+		uncompressedMessages.incrementAndGet();
+	}
+
+	/**
+	 * @param in compressed bytes received
+	 * @param out bytes after inflating
+	 * @param nanos
+	 */
+	void inflated(long in,long out,long nanos) {
+		inflatedMessages.incrementAndGet();
+		inflatedBytesIn.addAndGet(in);
+		inflatedBytesOut.addAndGet(out);
+		inflateNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * @return messages sent compressed
+	 */
+	public long getDeflatedMessages() {
+		return deflatedMessages.get();
+	}
+
+	/**
+	 * @return bytes of the messages sent compressed, before compressing
+	 */
+	public long getDeflatedBytesIn() {
+		return deflatedBytesIn.get();
+	}
+
+	/**
+	 * @return bytes of the messages sent compressed, as sent
+	 */
+	public long getDeflatedBytesOut() {
+		return deflatedBytesOut.get();
+	}
+
+	/**
+	 * @return nanoseconds spent compressing
+	 */
+	public long getDeflateNanos() {
+		return deflateNanos.get();
+	}
+
+	/**
+	 * @return messages to users with compression sent uncompressed, being under the
+	 * threshold or not getting any smaller
+	 */
+	public long getUncompressedMessages() {
+		return uncompressedMessages.get();
+	}
+
+	/**
+	 * @return compressed messages received
+	 */
+	public long getInflatedMessages() {
+		return inflatedMessages.get();
+	}
+
+	/**
+	 * @return bytes of the compressed messages received, as received
+	 */
+	public long getInflatedBytesIn() {
+		return inflatedBytesIn.get();
+	}
+
+	/**
+	 * @return bytes of the compressed messages received, once inflated
+	 */
+	public long getInflatedBytesOut() {
+		return inflatedBytesOut.get();
+	}
+
+	/**
+	 * @return nanoseconds spent inflating
+	 */
+	public long getInflateNanos() {
+		return inflateNanos.get();
+	}
+
+	/**
+	 * @return compressed size over original size for messages sent, 1 before any
+	 */
+	public double getDeflateRatio() {
+		return ratio(getDeflatedBytesOut(), getDeflatedBytesIn());
+	}
+
+	/**
+	 * @return compressed size over inflated size for messages received, 1 before any
+	 */
+	public double getInflateRatio() {
+		return ratio(getInflatedBytesIn(), getInflatedBytesOut());
+	}
+
+	private static double ratio(long compressed,long original) {
+		return original == 0 ? 1 : compressed / (double) original;
+	}
+
+	public String toString() {
+		return String.format("CompressionStats[deflated=%d %d/%d bytes ratio=%.3f %dus uncompressed=%d inflated=%d %d/%d bytes ratio=%.3f %dus]",
+				getDeflatedMessages(), getDeflatedBytesOut(), getDeflatedBytesIn(), getDeflateRatio(), getDeflateNanos() / 1000,
+				getUncompressedMessages(),
+				getInflatedMessages(), getInflatedBytesIn(), getInflatedBytesOut(), getInflateRatio(), getInflateNanos() / 1000);
+	}
+
+}
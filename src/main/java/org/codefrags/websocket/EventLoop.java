@@ -0,0 +1,768 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.codefrags.websocket.WebSocketServer.Command;
+import org.codefrags.websocket.WebSocketServer.LoopMode;
+import org.codefrags.websocket.WebSocketUser.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A reactor thread with its own Selector.  Every user registered with a loop is
+ * read, decoded, handed to the listener and written on this loop's thread only, so
+ * per-connection state never needs to be shared.  Other threads talk to the loop
+ * through {@link #execute(Runnable)} and {@link #scheduleWrite(SelectorWebSocketUser)}.
+ *
+ * @author Austin Miller
+ * @see org.codefrags.websocket.EventLoopGroup
+ */
+class EventLoop implements Runnable {
+	protected static final Logger logger = LoggerFactory.getLogger(EventLoop.class);
+
+	/**
+	 * The size of the read buffer shared by every user on the loop.
+	 */
+	private static final int READ_BUFFER_SIZE = 1<<17;
+
+	/**
+	 * The size of the buffer ciphertext is read into with TLS, a few records.
+	 */
+	private static final int NET_BUFFER_SIZE = 1<<16;
+
+	/**
+	 * Timers are at most this many milliseconds late.
+	 */
+	private static final long TIMER_TICK = 100;
+
+	/**
+	 * Slots in the timing wheel, a little under a minute's worth of ticks.
+	 */
+	private static final int TIMER_SLOTS = 512;
+
+	/**
+	 * How long a graceful shutdown waits for clients to answer the close frame.
+	 */
+	private static final long CLOSE_WAIT_TIME = 5*1000;
+
+	private static final ThreadLocal<EventLoop> CURRENT = new ThreadLocal<EventLoop>();
+
+	private final WebSocketServer server;
+	private final Selector selector;
+	private final String name;
+	private volatile Command command = Command.RUN;
+	private Thread thread;
+	private ByteBuffer readBuffer;
+	private ByteBuffer netBuffer;
+
+	/**
+	 * Ping, pong and idle deadlines of this loop's users.
+	 */
+	private TimingWheel timers;
+
+	/**
+	 * Work handed over by other threads, such as freshly accepted channels.
+	 */
+	private Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * Users that queued outgoing data since the last flush pass.  Only these are
+	 * visited, idle connections cost nothing.
+	 */
+	private Queue<SelectorWebSocketUser> dirtyUsers = new ConcurrentLinkedQueue<SelectorWebSocketUser>();
+	/**
+	 * Users that stopped reading because their worker's ring was full, only touched
+	 * by the loop's thread.
+	 */
+	private List<SelectorWebSocketUser> stalled = new ArrayList<SelectorWebSocketUser>();
+	private final Runnable resumeStalled = new Runnable() {
+		public void run() {
+			resumeStalled();
+		}
+	};
+
+	private AtomicBoolean wakeupPending = new AtomicBoolean(false);
+	private AtomicInteger connections = new AtomicInteger(0);
+
+	/**
+	 * Topics with subscribers on this loop.  Only changed on the loop's thread, other
+	 * threads just look to see whether a topic is here before handing over a publish.
+	 */
+	private Map<String,Topic> topics = new ConcurrentHashMap<String,Topic>();
+
+	EventLoop(WebSocketServer server,String name) throws IOException {
+		this.server = server;
+		this.name = name;
+		this.selector = Selector.open();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		thread = Thread.currentThread();
+		CURRENT.set(this);
+		readBuffer = server.getBufferPool().acquire(READ_BUFFER_SIZE);
+		if(server.getSslContext() != null) {
+			netBuffer = server.getBufferPool().acquire(NET_BUFFER_SIZE);
+		}
+		timers = new TimingWheel(TIMER_TICK, TIMER_SLOTS, System.currentTimeMillis());
+
+		try {
+			runLoop();
+
+			runTasks();
+
+			if(command == Command.SHUTDOWN) {
+				closeAll();
+			}
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		} finally {
+			closeAllNow();
+
+			CURRENT.remove();
+			server.getBufferPool().release(readBuffer);
+			server.getBufferPool().release(netBuffer);
+			readBuffer = null;
+			netBuffer = null;
+
+			try {
+				selector.close();
+			} catch (IOException e) {
+				logger.error(e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void runLoop() throws IOException, InterruptedException {
+		long time;
+		LoopMode loopMode = server.getLoopMode();
+
+		logger.info("Running {}", name);
+
+		while(command == Command.RUN) {
+			time = System.currentTimeMillis();
+
+			if(loopMode == LoopMode.EVENT) {
+				wakeupPending.set(false);
+				runTasks();
+				flushDirtyUsers();
+				selector.select(timers.timeUntilDue(System.currentTimeMillis()));
+			} else {
+				runTasks();
+				flushDirtyUsers();
+				selector.selectNow();
+			}
+
+			processSelectedKeys();
+			timers.advance(System.currentTimeMillis());
+
+			if(loopMode == LoopMode.EVENT) {
+				continue;
+			}
+
+			time = server.getSleepTime() - (System.currentTimeMillis() - time);
+
+			// We don't want to force the thread to sleep if the connection is really busy
+			if(time > 0) {
+				Thread.sleep(time);
+			}
+		}
+		logger.info("{} shutting down", name);
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch(Exception e) {
+				logger.error(e.getMessage(),e);
+			}
+		}
+	}
+
+	/**
+	 * Write to every user that has queued data since the last pass without waiting
+	 * for the selector.  A socket is almost always writable, so OP_WRITE is only
+	 * turned on for users the socket couldn't take everything from.
+	 */
+	private void flushDirtyUsers() {
+		SelectorWebSocketUser user;
+		while((user = dirtyUsers.poll()) != null) {
+			SelectionKey sk = user.getSocketChannel().keyFor(selector);
+			if(sk == null || sk.isValid() == false) {
+				continue;
+			}
+
+			try {
+				flush(sk, user);
+			} catch(Exception e) {
+				handleException(sk, user, e);
+			}
+		}
+	}
+
+	/**
+	 * Write what the socket will take and keep OP_WRITE set only while there is
+	 * data left over.  A user that was only waiting to get its close frame out is
+	 * closed once it has.
+	 *
+	 * @param sk
+	 * @param user
+	 * @throws IOException
+	 */
+	private void flush(SelectionKey sk,SelectorWebSocketUser user) throws IOException {
+		user.write();
+		if(user.isCloseWritten()) {
+			user.close();
+			return;
+		}
+
+		int ops = sk.interestOps();
+		if(user.writeDone()) {
+			if((ops & SelectionKey.OP_WRITE) != 0) {
+				sk.interestOps(ops & ~SelectionKey.OP_WRITE);
+			}
+		} else if((ops & SelectionKey.OP_WRITE) == 0) {
+			sk.interestOps(ops | SelectionKey.OP_WRITE);
+		}
+	}
+
+	private void processSelectedKeys() {
+        Set<SelectionKey> readyKeys = selector.selectedKeys();
+        Iterator<SelectionKey> i = readyKeys.iterator();
+
+		while(i.hasNext()) {
+			SelectionKey sk = i.next();
+			i.remove();
+
+			SelectorWebSocketUser user = (SelectorWebSocketUser) sk.attachment();
+
+			try {
+				if (sk.isWritable()) {
+					flush(sk, user);
+				}
+
+				if (sk.isValid() && sk.isReadable()) {
+					if(user.read(readBuffer) == false) {
+						user.close();
+					}
+				}
+			} catch(Exception e) {
+				handleException(sk, user, e);
+			}
+		}
+	}
+
+	/**
+	 * An IOException means the socket failed or the client broke the protocol, either
+	 * way the connection can't go on.  Anything else came from the listener, which
+	 * doesn't end the connection.
+	 *
+	 * @param sk
+	 * @param user
+	 * @param e
+	 */
+	private void handleException(SelectionKey sk,SelectorWebSocketUser user,Exception e) {
+		logger.error(e.getMessage(),e);
+
+		if(e instanceof IOException || sk.channel().isOpen() == false) {
+			closeQuietly(user);
+		}
+	}
+
+	private void closeQuietly(SelectorWebSocketUser user) {
+		try {
+			user.close();
+		} catch (IOException e) {
+			logger.error(e.getMessage(),e);
+		}
+	}
+
+	/**
+	 * Hand a freshly accepted channel to this loop.  The user is created and
+	 * registered on the loop's own thread.
+	 *
+	 * @param socketChannel
+	 */
+	void register(final SocketChannel socketChannel) {
+		connections.incrementAndGet();
+
+		execute(new Runnable() {
+			public void run() {
+				accept(socketChannel);
+			}
+		});
+	}
+
+	/**
+	 * Set up the user for a channel.  If that fails the channel is closed and whatever
+	 * the user holds given back, and the listener only hears of the close if it was
+	 * already told of the user.
+	 *
+	 * @param sc
+	 */
+	private void accept(SocketChannel sc) {
+		SelectorWebSocketUser user = null;
+		boolean opening = false;
+		try {
+			user = new SelectorWebSocketUser(this,sc,server.getWebSocketListener(),server.getProtocol());
+			sc.register(selector, SelectionKey.OP_READ, user);
+			user.startTimer(System.currentTimeMillis());
+			opening = true;
+			user.opened();
+		} catch(Exception e) {
+			logger.error(e.getMessage(),e);
+
+			SelectionKey sk = sc.keyFor(selector);
+			if(sk != null) {
+				sk.cancel();
+			}
+
+			if(opening) {
+				closeQuietly(user);
+			} else if(user != null) {
+				user.abort();
+			} else {
+				try {
+					sc.close();
+				} catch(IOException ce) {
+					logger.error(ce.getMessage(),ce);
+				}
+				connections.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Run a task on this loop's thread.
+	 *
+	 * @param task
+	 */
+	void execute(Runnable task) {
+		tasks.add(task);
+
+		if(Thread.currentThread() != thread) {
+			wakeup();
+		}
+	}
+
+	/**
+	 * Intentionally package private.
+	 *
+	 * Called by a user after queuing outgoing data.  The user is marked dirty for the
+	 * next flush pass and, in event mode, the selector is woken if it is blocked on
+	 * another thread.
+	 *
+	 * @param user
+	 */
+	void scheduleWrite(SelectorWebSocketUser user) {
+		dirtyUsers.add(user);
+
+		if(server.getLoopMode() == LoopMode.EVENT && Thread.currentThread() != thread) {
+			wakeup();
+		}
+	}
+
+	/**
+	 * Intentionally package private.
+	 * 
+	 * Stop reading from a user until its worker has room again.  Only called on the
+	 * loop's thread.
+	 * 
+	 * @param user
+	 */
+	void stall(SelectorWebSocketUser user) {
+		setReading(user, false);
+		stalled.add(user);
+	}
+
+	/**
+	 * Intentionally package private.
+	 * 
+	 * Called by a worker that made room after turning this loop down.
+	 */
+	void wakeStalled() {
+		execute(resumeStalled);
+	}
+
+	/**
+	 * Give every stalled user another go.  Those that are still turned down stall
+	 * themselves again.
+	 */
+	private void resumeStalled() {
+		if(stalled.isEmpty()) {
+			return;
+		}
+
+		List<SelectorWebSocketUser> users = stalled;
+		stalled = new ArrayList<SelectorWebSocketUser>();
+
+		for(SelectorWebSocketUser user : users) {
+			try {
+				user.resume(readBuffer);
+			} catch(Exception e) {
+				handleException(user, e);
+			}
+		}
+	}
+
+	/**
+	 * Intentionally package private.
+	 * 
+	 * Called by a TLS thread once it has run a user's handshake tasks, to carry on
+	 * with the handshake on the loop's thread.
+	 * 
+	 * @param user
+	 */
+	void tasksDone(final SelectorWebSocketUser user) {
+		execute(new Runnable() {
+			public void run() {
+				try {
+					user.tasksDone(readBuffer);
+				} catch(Exception e) {
+					handleException(user, e);
+				}
+			}
+		});
+	}
+
+	private void handleException(SelectorWebSocketUser user,Exception e) {
+		SelectionKey sk = user.getSocketChannel().keyFor(selector);
+		if(sk != null) {
+			handleException(sk, user, e);
+		} else {
+			logger.error(e.getMessage(),e);
+		}
+	}
+
+	/**
+	 * Intentionally package private.
+	 * 
+	 * @return the buffer TLS users read ciphertext into, shared like the read buffer
+	 */
+	ByteBuffer getNetBuffer() {
+		return netBuffer;
+	}
+
+	/**
+	 * Intentionally package private.
+	 * 
+	 * @param user
+	 * @param reading whether the loop should read from the user
+	 */
+	void setReading(SelectorWebSocketUser user,boolean reading) {
+		SelectionKey sk = user.getSocketChannel().keyFor(selector);
+		if(sk == null || sk.isValid() == false) {
+			return;
+		}
+
+		int ops = sk.interestOps();
+		if(reading) {
+			sk.interestOps(ops | SelectionKey.OP_READ);
+		} else {
+			sk.interestOps(ops & ~SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Intentionally package private.
+	 * 
+	 * @param user
+	 * @return whether the loop is waiting for the user's socket to take more
+	 */
+	boolean isWaitingToWrite(SelectorWebSocketUser user) {
+		SelectionKey sk = user.getSocketChannel().keyFor(selector);
+		return sk != null && sk.isValid() && (sk.interestOps() & SelectionKey.OP_WRITE) != 0;
+	}
+
+	/**
+	 * Intentionally package private.
+	 * 
+	 * @return the number of users waiting for the next flush pass
+	 */
+	int getDirtyCount() {
+		return dirtyUsers.size();
+	}
+
+	/**
+	 * Intentionally package private.
+	 * 
+	 * Schedule or move a timeout.  Only called on the loop's thread.
+	 * 
+	 * @param timeout
+	 * @param deadline in milliseconds
+	 */
+	void schedule(TimingWheel.Timeout timeout,long deadline) {
+		timers.schedule(timeout, deadline);
+	}
+
+	/**
+	 * Intentionally package private.
+	 * 
+	 * Only called on the loop's thread.
+	 * 
+	 * @param timeout
+	 */
+	void cancel(TimingWheel.Timeout timeout) {
+		timers.cancel(timeout);
+	}
+
+	/**
+	 * Intentionally package private.
+	 * 
+	 * Subscribe a user of this loop to a topic, right away when called on the loop's
+	 * thread and as soon as the loop gets to it otherwise.
+	 * 
+	 * @param user
+	 * @param name
+	 */
+	void subscribe(final SelectorWebSocketUser user,final String name) {
+		if(inEventLoop()) {
+			join(user, name);
+			return;
+		}
+
+		execute(new Runnable() {
+			public void run() {
+				join(user, name);
+			}
+		});
+	}
+
+	/**
+	 * Intentionally package private.
+	 * 
+	 * @param user
+	 * @param name
+	 */
+	void unsubscribe(final SelectorWebSocketUser user,final String name) {
+		if(inEventLoop()) {
+			leave(user, topics.get(name));
+			return;
+		}
+
+		execute(new Runnable() {
+			public void run() {
+				leave(user, topics.get(name));
+			}
+		});
+	}
+
+	/**
+	 * Take a closing user out of all its topics.  Only called on the loop's thread.
+	 * 
+	 * @param user
+	 */
+	void unsubscribeAll(SelectorWebSocketUser user) {
+		if(user.getSubscriptions().isEmpty()) {
+			return;
+		}
+
+		for(Topic topic : new ArrayList<Topic>(user.getSubscriptions().keySet())) {
+			leave(user, topic);
+		}
+	}
+
+	private void join(SelectorWebSocketUser user,String name) {
+		// a user that closed before getting here would never leave
+		if(user.isClosed()) {
+			return;
+		}
+
+		Topic topic = topics.get(name);
+		if(topic == null) {
+			topic = new Topic(name);
+			topics.put(name, topic);
+		}
+		topic.add(user);
+	}
+
+	private void leave(SelectorWebSocketUser user,Topic topic) {
+		if(topic != null && topic.remove(user) && topic.isEmpty()) {
+			topics.remove(topic.getName());
+		}
+	}
+
+	/**
+	 * @param name
+	 * @return whether any user of this loop is subscribed to the topic
+	 */
+	boolean hasTopic(String name) {
+		return topics.containsKey(name);
+	}
+
+	/**
+	 * Send a frame to this loop's subscribers of a topic.  Off the loop's thread the
+	 * loop takes its own reference to the frame until it gets around to it.
+	 * 
+	 * @param name
+	 * @param frame
+	 */
+	void publish(final String name,final SharedFrame frame) {
+		if(hasTopic(name) == false) {
+			return;
+		}
+
+		if(inEventLoop()) {
+			deliver(name, frame);
+			return;
+		}
+
+		frame.retain();
+		execute(new Runnable() {
+			public void run() {
+				try {
+					deliver(name, frame);
+				} finally {
+					frame.release();
+				}
+			}
+		});
+	}
+
+	private void deliver(String name,SharedFrame frame) {
+		Topic topic = topics.get(name);
+		if(topic != null) {
+			topic.publish(frame);
+		}
+	}
+
+	/**
+	 * @return the loop whose thread is calling, or null for any other thread
+	 */
+	static EventLoop current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * @return whether the caller is this loop's thread
+	 */
+	boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Called once per user when its connection goes away.
+	 */
+	void connectionClosed() {
+		connections.decrementAndGet();
+	}
+
+	/**
+	 * @return the number of connections handed to this loop and not yet closed
+	 */
+	int getConnectionCount() {
+		return connections.get();
+	}
+
+	/**
+	 * Wakes the selector once, no matter how many threads ask before it returns.
+	 */
+	private void wakeup() {
+		if(wakeupPending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Ask the loop to stop.  It finishes its current pass and then closes its
+	 * connections as the command dictates.
+	 *
+	 * @param command
+	 */
+	void shutdown(Command command) {
+		this.command = command;
+		selector.wakeup();
+	}
+
+	/**
+	 * Gracefully close all connected clients by following the protocol of sending
+	 * a close frame and waiting for a response.  The loop keeps running until every
+	 * client has answered or CLOSE_WAIT_TIME has passed, whatever is left is closed
+	 * by closeAllNow.
+	 *
+	 * @throws IOException
+	 */
+	private void closeAll() throws IOException {
+		for(SelectionKey sk : selector.keys()) {
+			SelectorWebSocketUser user = (SelectorWebSocketUser) sk.attachment();
+			if(user.getStatus() == Status.OPEN) {
+				user.sendCloseFrame();
+			} else if(user.getStatus() != Status.CLOSING) {
+				closeQuietly(user);
+			}
+		}
+
+		long wait = CLOSE_WAIT_TIME;
+		long deadline = System.currentTimeMillis() + wait;
+		while(connections.get() > 0 && wait > 0) {
+			runTasks();
+			flushDirtyUsers();
+			selector.select(wait);
+			processSelectedKeys();
+			wait = deadline - System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * This aggressively closes all sockets without following the protocol of
+	 * sending a close frame and waiting for a resulting close frame.  Whatever is
+	 * already queued gets one last chance to go out, then every user is closed so
+	 * its listener hears about it and its buffers go back to the pool.
+	 */
+	private void closeAllNow() {
+		logger.debug("closing all keys {} aggressively",selector.keys());
+
+		runTasks();
+		flushDirtyUsers();
+
+		for(SelectionKey sk : selector.keys()) {
+			closeQuietly((SelectorWebSocketUser) sk.attachment());
+		}
+	}
+
+	String getName() {
+		return name;
+	}
+
+	WebSocketServer getServer() {
+		return server;
+	}
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+import org.codefrags.websocket.WebSocketServer.Balancing;
+import org.codefrags.websocket.WebSocketServer.Command;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A fixed set of event loops, each on its own thread.  The acceptor hands every
+ * new channel to exactly one loop, which owns it for the rest of its life.
+ *
+ * @author Austin Miller
+ * @see org.codefrags.websocket.EventLoop
+ */
+class EventLoopGroup {
+	protected static final Logger logger = LoggerFactory.getLogger(EventLoopGroup.class);
+
+	private final EventLoop [] loops;
+	private final Thread [] threads;
+	private final Balancing balancing;
+	private int next = 0;
+
+	EventLoopGroup(WebSocketServer server,int size,Balancing balancing) throws IOException {
+		this.balancing = balancing;
+		loops = new EventLoop[size];
+		threads = new Thread[size];
+
+		for(int i = 0;i<size;++i) {
+			loops[i] = new EventLoop(server,"websocket-loop-"+i);
+		}
+	}
+
+	void start() {
+		for(int i = 0;i<loops.length;++i) {
+			threads[i] = new Thread(loops[i],loops[i].getName());
+			threads[i].start();
+		}
+	}
+
+	/**
+	 * @param name
+	 * @return whether any loop has subscribers to the topic
+	 */
+	boolean hasTopic(String name) {
+		for(EventLoop loop : loops) {
+			if(loop.hasTopic(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Hand the frame to every loop with subscribers to the topic.
+	 *
+	 * @param name
+	 * @param frame
+	 */
+	void publish(String name,SharedFrame frame) {
+		for(EventLoop loop : loops) {
+			loop.publish(name, frame);
+		}
+	}
+
+	/**
+	 * Only ever called by the acceptor thread.
+	 *
+	 * @param socketChannel
+	 */
+	void register(SocketChannel socketChannel) {
+		next().register(socketChannel);
+	}
+
+	private EventLoop next() {
+		if(balancing == Balancing.LEAST_LOADED) {
+			EventLoop least = loops[0];
+			for(int i = 1;i<loops.length;++i) {
+				if(loops[i].getConnectionCount() < least.getConnectionCount()) {
+					least = loops[i];
+				}
+			}
+			return least;
+		}
+
+		EventLoop loop = loops[next];
+		next = (next + 1) % loops.length;
+		return loop;
+	}
+
+	/**
+	 * Stop every loop and block until their threads finish.
+	 *
+	 * @param command
+	 */
+	void shutdown(Command command) {
+		for(EventLoop loop : loops) {
+			loop.shutdown(command);
+		}
+
+		for(Thread thread : threads) {
+			if(thread == null) {
+				continue;
+			}
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				logger.error(e.getMessage(),e);
+			}
+		}
+	}
+
+	int size() {
+		return loops.length;
+	}
+
+}
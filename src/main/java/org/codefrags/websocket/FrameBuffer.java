@@ -18,80 +18,302 @@ package org.codefrags.websocket;
 import java.nio.ByteBuffer;
 
 /**
+ * An outgoing frame, queued on a single user.  It either owns its buffer or is a view
+ * of a {@link SharedFrame}, and is released once it is written or dropped.
+ * 
+ * The selector engine borrows the buffers of the frames it queues from the server's
+ * {@link BufferPool}, so they are direct and a gathering write hands them to the
+ * socket without copying them first.  The public factories, and the blocking engine,
+ * which writes frames to a stream from their arrays, make heap buffers.
+ * 
  * @author Austin Miller
  *
  */
 public class FrameBuffer {
 	
+	/**
+	 * What a ping or a pong carries.
+	 */
+	private static final byte [] CONTROL_PAYLOAD = {'c', 't', 'l'};
+	
 	private OpCode opCode = OpCode.TEXT;
 	private ByteBuffer buffer;
 	private int dataLength = 0;
+	private SharedFrame shared;
+	private BufferPool pool;
+	
+	/**
+	 * The link to the next frame in a {@link FrameQueue}.
+	 */
+	volatile FrameBuffer next;
+	
+	/**
+	 * The text is encoded as UTF-8 straight into the frame's buffer, after the header,
+	 * so a StringBuilder can be reused once this returns.
+	 * 
+	 * @param text
+	 * @return a text frame
+	 */
+	public static FrameBuffer createTextFrame(CharSequence text) {
+		return createTextFrame(text, Utf8Encoder.length(text), null);
+	}
 	
+	/**
+	 * @param text
+	 * @return a text frame
+	 * @see #createTextFrame(CharSequence)
+	 */
 	public static FrameBuffer createTextFrame(String text) {
-		byte [] bytes = text.getBytes();
-		
-		FrameBuffer fb = new FrameBuffer();
-		
-		fb.createBuffer(bytes);
+		return createTextFrame((CharSequence) text);
+	}
+	
+	/**
+	 * Intentionally package private.
+	 * 
+	 * @param text
+	 * @param pool where the buffer comes from, or null
+	 * @return a text frame
+	 */
+	static FrameBuffer createTextFrame(CharSequence text,BufferPool pool) {
+		return createTextFrame(text, Utf8Encoder.length(text), pool);
+	}
+	
+	/**
+	 * Intentionally package private.
+	 * 
+	 * @param text
+	 * @param length the bytes it takes as UTF-8, from {@link Utf8Encoder#length(CharSequence)}
+	 * @param pool where the buffer comes from, or null
+	 * @return a text frame
+	 */
+	static FrameBuffer createTextFrame(CharSequence text,int length,BufferPool pool) {
+		FrameBuffer fb = create(OpCode.TEXT, false, length, pool);
+		Utf8Encoder.encode(text, length, fb.buffer);
+		fb.buffer.flip();
+		return fb;
+	}
+	
+	/**
+	 * Intentionally package private.
+	 * 
+	 * @param bytes the payload, its first length bytes
+	 * @param length
+	 * @param compressed whether to set RSV1, for a message compressed by {@link PerMessageDeflate}
+	 * @param pool where the buffer comes from, or null
+	 * @return
+	 */
+	static FrameBuffer createTextFrame(byte [] bytes,int length,boolean compressed,BufferPool pool) {
+		FrameBuffer fb = create(OpCode.TEXT, compressed, length, pool);
+		fb.buffer.put(bytes, 0, length);
+		fb.buffer.flip();
+		return fb;
+	}
+	
+	/**
+	 * @param payload copied from position to limit, leaving the buffer as it was
+	 * @return a binary frame
+	 */
+	public static FrameBuffer createBinaryFrame(ByteBuffer payload) {
+		return createBinaryFrame(payload, null);
+	}
+	
+	/**
+	 * Intentionally package private.
+	 * 
+	 * @param payload copied from position to limit, leaving the buffer as it was
+	 * @param pool where the buffer comes from, or null
+	 * @return a binary frame
+	 */
+	static FrameBuffer createBinaryFrame(ByteBuffer payload,BufferPool pool) {
+		FrameBuffer fb = create(OpCode.BINARY, false, payload.remaining(), pool);
+		fb.buffer.put(payload.duplicate());
+		fb.buffer.flip();
+		return fb;
+	}
+	
+	/**
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @return a binary frame
+	 */
+	public static FrameBuffer createBinaryFrame(byte [] bytes,int offset,int length) {
+		return createBinaryFrame(bytes, offset, length, null);
+	}
+	
+	/**
+	 * Intentionally package private.
+	 * 
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @param pool where the buffer comes from, or null
+	 * @return a binary frame
+	 */
+	static FrameBuffer createBinaryFrame(byte [] bytes,int offset,int length,BufferPool pool) {
+		FrameBuffer fb = create(OpCode.BINARY, false, length, pool);
+		fb.buffer.put(bytes, offset, length);
+		fb.buffer.flip();
 		return fb;
 	}
 	
 	public static FrameBuffer createControlFrame(OpCode opCode) {
-		byte [] bytes = "ctl".getBytes();
-		
+		return createControlFrame(opCode, null);
+	}
+	
+	/**
+	 * Intentionally package private.
+	 * 
+	 * @param opCode
+	 * @param pool where the buffer comes from, or null
+	 * @return a ping or pong frame
+	 */
+	static FrameBuffer createControlFrame(OpCode opCode,BufferPool pool) {
+		FrameBuffer fb = create(opCode, false, CONTROL_PAYLOAD.length, pool);
+		fb.buffer.put(CONTROL_PAYLOAD);
+		fb.buffer.flip();
+		return fb;
+	}
+	
+	/**
+	 * @param code the status code, see RFC 6455 #7.4
+	 * @return a close frame carrying the code and no reason
+	 */
+	public static FrameBuffer createCloseFrame(int code) {
+		return createCloseFrame(code, null);
+	}
+	
+	/**
+	 * Intentionally package private.
+	 * 
+	 * @param code the status code, see RFC 6455 #7.4
+	 * @param pool where the buffer comes from, or null
+	 * @return a close frame carrying the code and no reason
+	 */
+	static FrameBuffer createCloseFrame(int code,BufferPool pool) {
+		FrameBuffer fb = create(OpCode.CLOSE, false, 2, pool);
+		fb.buffer.putShort((short) code);
+		fb.buffer.flip();
+		return fb;
+	}
+	
+	/**
+	 * A frame with its header put, ready for the payload.  A pooled buffer goes back
+	 * to the pool once the frame is released.
+	 * 
+	 * @param opCode
+	 * @param compressed whether to set RSV1
+	 * @param length of the payload
+	 * @param pool where the buffer comes from, or null for a heap buffer of its own
+	 * @return
+	 */
+	private static FrameBuffer create(OpCode opCode,boolean compressed,int length,BufferPool pool) {
 		FrameBuffer fb = new FrameBuffer();
+		int size = headerSize(length) + length;
 		
 		fb.opCode = opCode;
+		fb.dataLength = length;
+		if(pool == null) {
+			fb.buffer = ByteBuffer.allocate(size);
+		} else {
+			fb.buffer = pool.acquire(size);
+			fb.pool = pool;
+		}
+		putHeader(fb.buffer, opCode, compressed, length);
+		return fb;
+	}
+	
+	/**
+	 * Intentionally package private.
+	 * 
+	 * @param shared
+	 * @param view the user's own view of the shared buffer
+	 * @param dataLength
+	 * @return
+	 */
+	static FrameBuffer createView(SharedFrame shared,ByteBuffer view,int dataLength) {
+		FrameBuffer fb = new FrameBuffer();
 		
-		fb.createBuffer(bytes);
+		fb.shared = shared;
+		fb.buffer = view;
+		fb.dataLength = dataLength;
 		return fb;
 	}
 	
 	/**
-	 * @param bytes
+	 * @param length of the payload
+	 * @return the size of an unmasked, final frame's header
 	 */
-	private void createBuffer(byte[] bytes) {
-		dataLength = bytes.length;
+	static int headerSize(int length) {
+		if(length > 125) {
+			return length < 1<<16 ? 4 : 10;
+		}
+		return 2;
+	}
+	
+	/**
+	 * Puts the header of an unmasked, final frame.
+	 * 
+	 * @param buffer
+	 * @param opCode
+	 * @param length of the payload
+	 */
+	static void putHeader(ByteBuffer buffer,OpCode opCode,int length) {
+		putHeader(buffer, opCode, false, length);
+	}
+	
+	/**
+	 * Puts the header of an unmasked, final frame.
+	 * 
+	 * @param buffer
+	 * @param opCode
+	 * @param compressed whether to set RSV1
+	 * @param length of the payload
+	 */
+	static void putHeader(ByteBuffer buffer,OpCode opCode,boolean compressed,int length) {
 		int size = 0;
-		int bsize = 2;
 		
-		if(bytes.length > 125) {
-			if(bytes.length < 1<<16) {
-				bsize += 2;
-				size=126;
-			} else {
-				bsize +=8;
-				size = 127;
-			}
+		if(length > 125) {
+			size = length < 1<<16 ? 126 : 127;
 		} else {
-			size = bytes.length;
+			size = length;
 		}
 		
-		buffer = ByteBuffer.allocate(bsize + bytes.length);
-		
-		buffer.put((byte) (0x80 | opCode.getValue()));
+		buffer.put((byte) (0x80 | (compressed ? 0x40 : 0) | opCode.getValue()));
 		buffer.put((byte) (size & 0x7F));
 		
+		// frame buffers are all big endian, as the lengths are
 		if(size==126) {
-			buffer.put((byte) (bytes.length >> (Byte.SIZE)));
-			buffer.put((byte) (bytes.length));
+			buffer.putShort((short) length);
 		}
 		
 		if(size == 127) {
-			buffer.put((byte) 0);
-			buffer.put((byte) 0);
-			buffer.put((byte) 0);
-			buffer.put((byte) 0);
-			buffer.put((byte) (bytes.length >> (3*Byte.SIZE)));
-			buffer.put((byte) (bytes.length >> (2*Byte.SIZE)));
-			buffer.put((byte) (bytes.length >> (Byte.SIZE)));
-			buffer.put((byte) (bytes.length));
+			buffer.putLong(length);
+		}
+	}
+	
+	/**
+	 * Intentionally package private.
+	 * 
+	 * Called once the frame is written or dropped.  Gives a view's reference to the
+	 * shared frame back, or a pooled buffer back to its pool.  A frame with a heap
+	 * buffer of its own is left to the garbage collector.
+	 */
+	void release() {
+		if(shared != null) {
+			shared.release();
+			shared = null;
+		}
+		if(pool != null) {
+			pool.release(buffer);
+			pool = null;
 		}
-		buffer.put(bytes);
-		buffer.flip();
 	}
 
-	private FrameBuffer() {
+	/**
+	 * Intentionally package private, for the stub a {@link FrameQueue} starts with.
+	 */
+	FrameBuffer() {
 		
 	}
 	
@@ -100,9 +322,10 @@ public class FrameBuffer {
 		
 		sb.append("\n\n>>> Outgoing Header\n");
 		
-		binary(sb,buffer.array(),0,buffer.limit() - dataLength);
+		int headerLength = buffer.limit() - dataLength;
+		binary(sb,buffer,0,headerLength);
 		sb.append(">>> Outgoing Payload\n");
-		binary(sb,buffer.array(),0,dataLength);
+		binary(sb,buffer,headerLength,dataLength);
 		
 		return sb.toString();
 	}
@@ -111,11 +334,11 @@ public class FrameBuffer {
 	 * @param sb
 	 * @param bytes 
 	 */
-	private void binary(StringBuilder sb, byte[] bytes,int offset,int length) {
+	private void binary(StringBuilder sb, ByteBuffer bytes,int offset,int length) {
 		int count = 0;
 		int stop = offset + length;
 		for(int i = offset;i<stop;++i) {
-			sb.append(" "+MaskedFrame.binary(bytes[i]));
+			sb.append(" "+MaskedFrame.binary(bytes.get(i)));
 			++count;
 			if(count == 32/Byte.SIZE) {
 				sb.append("\n");
@@ -125,6 +348,20 @@ public class FrameBuffer {
 		sb.append("\n");
 	}
 
+	/**
+	 * @return the size of the whole frame in bytes, header included
+	 */
+	public int size() {
+		return buffer.limit();
+	}
+	
+	/**
+	 * @return whether this is a ping, pong or close frame
+	 */
+	public boolean isControl() {
+		return (opCode.getValue() & 0x8) != 0;
+	}
+	
 	/**
 	 * @return
 	 */
@@ -0,0 +1,426 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An incremental decoder for inbound frames.  Bytes can arrive split anywhere, even
+ * in the middle of the header, and the decoder picks up where it left off.
+ *
+ * When the header and the whole payload are already in the read buffer, which is
+ * the common case, the header is parsed in place and the frame's payload is a slice
+ * of the read buffer, unmasked in place.  Nothing is copied.  Only a frame that
+ * spans reads has its payload copied, unmasking as it goes, into the frame's own
+ * storage.
+ *
+ * For a streaming listener the payload of a data frame can instead be handed out as
+ * it arrives, each part a slice of the read buffer unmasked in place, so even frames
+ * that span reads are never gathered.  Only frames gathered whole are held to the
+ * maximum frame length, and the messages they make up to the maximum message
+ * length, a streamed frame can be as long as the protocol allows.  A gathered
+ * payload's storage grows as its bytes arrive rather than by what its header claims.
+ *
+ * Frames that break the protocol, or are too long to gather, end the connection
+ * with a {@link CloseException} carrying the close code to send.
+ *
+ * One decoder per connection, used by one thread at a time.
+ *
+ * @author Austin Miller
+ * @see org.codefrags.websocket.MaskedFrame
+ */
+class FrameDecoder {
+
+	private static final int HEADER = 0;
+	private static final int PAYLOAD = 1;
+
+	/**
+	 * The longest frame gathered whole unless the server says otherwise, 256 kilobytes.
+	 */
+	static final int DEFAULT_MAX_FRAME_LENGTH=1<<18;
+
+	/**
+	 * The longest message gathered whole unless the server says otherwise, a megabyte.
+	 */
+	static final int DEFAULT_MAX_MESSAGE_LENGTH=1<<20;
+
+	/**
+	 * The most fragments a message gathered whole may come in, however short they
+	 * are, since each is kept until the last.
+	 */
+	private static final int MAX_FRAGMENTS=1<<10;
+	private static final int MAX_CONTROL_LENGTH=125;
+
+	/**
+	 * What {@link #stream(ByteBuffer, MaskedFrame, boolean)} handed out.
+	 */
+	static final int INCOMPLETE = 0;
+	static final int PART = 1;
+	static final int LAST_PART = 2;
+	static final int WHOLE = 3;
+
+	private int state = HEADER;
+
+	/**
+	 * Holds the header only when it is split across reads.
+	 */
+	private byte [] header = new byte[MaskedFrame.MAX_DATA_SIZE];
+	private ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+	private int headerRead;
+
+	private Unmasker unmasker = Unmasker.get();
+	private int mask;
+	private boolean masked;
+	private long length;
+	private long payloadRead;
+	private boolean streamed;
+
+	private final int maxFrameLength;
+	private final int maxMessageLength;
+	private final boolean requireMask;
+
+	/**
+	 * What the gathered message in progress adds up to so far.
+	 */
+	private long messageLength;
+	private int fragments;
+
+	/**
+	 * With the default limits, taking unmasked frames as well, for frames decoded
+	 * outside a connection.
+	 */
+	FrameDecoder() {
+		this(DEFAULT_MAX_FRAME_LENGTH, DEFAULT_MAX_MESSAGE_LENGTH, false);
+	}
+
+	/**
+	 * @param maxFrameLength the longest frame gathered whole
+	 * @param maxMessageLength the longest message gathered whole, all its fragments
+	 * together
+	 * @param requireMask whether every frame must be masked, as a client's must
+	 */
+	FrameDecoder(int maxFrameLength,int maxMessageLength,boolean requireMask) {
+		this.maxFrameLength = maxFrameLength;
+		this.maxMessageLength = maxMessageLength;
+		this.requireMask = requireMask;
+	}
+
+	/**
+	 * Decode as much of the frame as the buffer holds, advancing its position past
+	 * the bytes used.  Bytes belonging to the next frame are left in the buffer.
+	 *
+	 * @param src the bytes read so far, from position to limit
+	 * @param frame where to put the frame, which must be the same object on every
+	 * call until one returns true
+	 * @return whether the frame is complete
+	 * @throws IOException if the frame breaks the protocol or is larger than we are
+	 * willing to hold
+	 */
+	boolean decode(ByteBuffer src,MaskedFrame frame) throws IOException {
+		if(state == HEADER) {
+			if(readHeader(src, frame) == false) {
+				return false;
+			}
+			checkGathered(frame);
+		}
+
+		if(readPayload(src, frame) == false) {
+			return false;
+		}
+
+		finish(frame);
+		return true;
+	}
+
+	/**
+	 * Like {@link #decode(ByteBuffer, MaskedFrame)}, but the payload of a data frame is
+	 * handed out as it arrives: each call that gets some of it sets the frame's payload
+	 * to that part.  Control frames and compressed frames are still gathered whole.
+	 *
+	 * @param src the bytes read so far, from position to limit
+	 * @param frame where to put the frame, which must be the same object on every
+	 * call until one returns {@link #LAST_PART} or {@link #WHOLE}
+	 * @param gather whether to gather data frames too, as for the rest of a
+	 * compressed message
+	 * @return {@link #INCOMPLETE} if there is nothing to hand out yet, {@link #PART}
+	 * or {@link #LAST_PART} for a part of a data frame's payload, the last completing
+	 * the frame, and {@link #WHOLE} for a complete frame gathered whole
+	 * @throws IOException if the frame breaks the protocol or is to be gathered and
+	 * larger than we are willing to hold
+	 */
+	int stream(ByteBuffer src,MaskedFrame frame,boolean gather) throws IOException {
+		if(state == HEADER) {
+			if(readHeader(src, frame) == false) {
+				return INCOMPLETE;
+			}
+			streamed = gather == false && frame.isControl() == false && frame.isCompressed() == false;
+			if(streamed == false) {
+				checkGathered(frame);
+			}
+		}
+
+		if(streamed == false) {
+			if(readPayload(src, frame) == false) {
+				return INCOMPLETE;
+			}
+			finish(frame);
+			return WHOLE;
+		}
+
+		int position = src.position();
+		int bytes = (int) Math.min(length - payloadRead, src.remaining());
+		int limit = src.limit();
+		src.limit(position + bytes);
+		ByteBuffer payload = src.slice();
+		src.limit(limit);
+		src.position(position + bytes);
+
+		if(masked) {
+			// only the mask's phase matters, which the low bits keep
+			unmasker.unmask(payload, 0, bytes, mask, (int) payloadRead);
+		}
+		frame.setPayload(payload);
+		payloadRead += bytes;
+
+		if(payloadRead < length) {
+			return bytes > 0 ? PART : INCOMPLETE;
+		}
+
+		finish(frame);
+		return LAST_PART;
+	}
+
+	/**
+	 * Hold a frame about to be gathered, and the message it belongs to, to the limits.
+	 *
+	 * @param frame whose header was just read
+	 * @throws CloseException if the frame or its message is too long to gather
+	 */
+	private void checkGathered(MaskedFrame frame) throws CloseException {
+		if(length > maxFrameLength) {
+			throw new CloseException(WebSocketUser.CLOSE_TOO_BIG, "Frame of " + length
+					+ " bytes from peer is over " + maxFrameLength + ".  This might be malicious.");
+		}
+
+		if(frame.isControl()) {
+			return;
+		}
+
+		if(frame.isContinuation()) {
+			messageLength += length;
+			++fragments;
+		} else {
+			messageLength = length;
+			fragments = 1;
+		}
+
+		if(messageLength > maxMessageLength || fragments > MAX_FRAGMENTS) {
+			throw new CloseException(WebSocketUser.CLOSE_TOO_BIG, "Message of " + fragments + " fragments and "
+					+ messageLength + " bytes so far from peer is too long.  This might be malicious.");
+		}
+	}
+
+	/**
+	 * Get ready for the next frame.
+	 *
+	 * @param frame the one just completed
+	 */
+	private void finish(MaskedFrame frame) {
+		state = HEADER;
+		headerRead = 0;
+		payloadRead = 0;
+		frame.setConstructed();
+	}
+
+	/**
+	 * @param src
+	 * @param frame
+	 * @return whether the header is complete
+	 * @throws IOException
+	 */
+	private boolean readHeader(ByteBuffer src,MaskedFrame frame) throws IOException {
+		int position = src.position();
+
+		// the whole header is in the buffer, parse it where it is
+		if(headerRead == 0 && src.remaining() >= 2) {
+			int size = headerSize(src.get(position + 1));
+			if(src.remaining() >= size) {
+				parseHeader(src, position, frame);
+				src.position(position + size);
+				return true;
+			}
+		}
+
+		while(headerRead < 2 && src.hasRemaining()) {
+			header[headerRead++] = src.get();
+		}
+
+		if(headerRead < 2) {
+			return false;
+		}
+
+		int size = headerSize(header[1]);
+		while(headerRead < size && src.hasRemaining()) {
+			header[headerRead++] = src.get();
+		}
+
+		if(headerRead < size) {
+			return false;
+		}
+
+		parseHeader(headerBuffer, 0, frame);
+		return true;
+	}
+
+	/**
+	 * @param b1 the second byte of the header
+	 * @return the size of the header in bytes
+	 */
+	private static int headerSize(byte b1) {
+		int size = 2;
+
+		if((b1 & 0x80) != 0) {
+			size += 4;
+		}
+
+		int length = b1 & 0x7F;
+		if(length == 126) {
+			size += 2;
+		} else if(length == 127) {
+			size += 8;
+		}
+		return size;
+	}
+
+	/**
+	 * Reads a complete header starting at index without moving the buffer's position.
+	 * Multi-byte fields are read a byte at a time so the buffer's byte order doesn't matter.
+	 *
+	 * @param buffer
+	 * @param index
+	 * @param frame
+	 * @throws CloseException if the header breaks the protocol
+	 */
+	private void parseHeader(ByteBuffer buffer,int index,MaskedFrame frame) throws CloseException {
+		byte b0 = buffer.get(index);
+		byte b1 = buffer.get(index + 1);
+		index += 2;
+
+		long size = b1 & 0x7F;
+		if(size == 126) {
+			size = bigEndian(buffer, index, 2);
+			index += 2;
+		} else if(size == 127) {
+			size = bigEndian(buffer, index, 8);
+			index += 8;
+		}
+
+		// the most significant bit must be 0
+		if(size < 0) {
+			throw new CloseException(WebSocketUser.CLOSE_PROTOCOL_ERROR, "Invalid frame length from peer.");
+		}
+
+		if(MaskedFrame.isReserved(b0)) {
+			throw new CloseException(WebSocketUser.CLOSE_PROTOCOL_ERROR, "Reserved op code " + (b0 & 0xF) + " from peer.");
+		}
+
+		if((b0 & 0x08) != 0) {
+			if((b0 & 0x80) == 0) {
+				throw new CloseException(WebSocketUser.CLOSE_PROTOCOL_ERROR, "Fragmented control frame from peer.");
+			}
+			if(size > MAX_CONTROL_LENGTH) {
+				throw new CloseException(WebSocketUser.CLOSE_PROTOCOL_ERROR, "Control frame longer than " + MAX_CONTROL_LENGTH + " bytes.");
+			}
+		}
+
+		masked = (b1 & 0x80) != 0;
+		if(masked == false && requireMask) {
+			throw new CloseException(WebSocketUser.CLOSE_PROTOCOL_ERROR, "Unmasked frame from client.");
+		}
+		if(masked) {
+			mask = (int) bigEndian(buffer, index, 4);
+		}
+
+		// a streamed frame can be longer than an int, but its parts carry their own length
+		length = size;
+		frame.setHeader(b0, (int) Math.min(size, Integer.MAX_VALUE));
+		state = PAYLOAD;
+	}
+
+	/**
+	 * @param buffer
+	 * @param index
+	 * @param bytes
+	 * @return the unsigned, big endian number in the bytes starting at index
+	 */
+	private static long bigEndian(ByteBuffer buffer,int index,int bytes) {
+		long value = 0;
+		for(int i = 0;i<bytes;++i) {
+			value = (value << Byte.SIZE) | (buffer.get(index + i) & 0xFF);
+		}
+		return value;
+	}
+
+	/**
+	 * Only for frames gathered whole, whose length fits an int.
+	 *
+	 * @param src
+	 * @param frame
+	 * @return whether the payload is complete
+	 * @throws IOException
+	 */
+	private boolean readPayload(ByteBuffer src,MaskedFrame frame) throws IOException {
+		int position = src.position();
+		int length = (int) this.length;
+		int payloadRead = (int) this.payloadRead;
+
+		// the whole payload is in the buffer, hand out a slice of it
+		if(payloadRead == 0 && src.remaining() >= length) {
+			int limit = src.limit();
+			src.limit(position + length);
+			ByteBuffer payload = src.slice();
+			src.limit(limit);
+			src.position(position + length);
+
+			if(masked) {
+				unmasker.unmask(payload, 0, length, mask, 0);
+			}
+			frame.setPayload(payload);
+			return true;
+		}
+
+		// the payload spans reads, gather it in the frame's own storage, unmasking on the
+		// way, which only grows to hold what has actually arrived
+		int bytes = Math.min(length - payloadRead, src.remaining());
+		byte [] data = frame.storage(payloadRead + bytes, payloadRead);
+
+		if(masked) {
+			unmasker.unmask(src, data, payloadRead, bytes, mask, payloadRead);
+		} else {
+			src.get(data, payloadRead, bytes);
+		}
+		this.payloadRead = payloadRead + bytes;
+
+		if(payloadRead + bytes < length) {
+			return false;
+		}
+
+		frame.setPayload(ByteBuffer.wrap(data, 0, length));
+		return true;
+	}
+
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pools {@link MaskedFrame} objects and the arrays they keep payloads in, and is safe
+ * to use from any number of threads.
+ *
+ * Arrays come in power of two size classes from 64 bytes to a megabyte, so a frame
+ * only holds as much memory as its payload needs.  Each event loop thread keeps a
+ * small cache of frames and arrays that it reaches without any synchronization.
+ * Arrays that don't fit in the releasing loop's cache overflow to a lock free stack
+ * per size class, shared by every thread.  Any other thread, such as a worker or a
+ * blocking engine's connection thread, which may be one of many short lived virtual
+ * threads, goes straight to the shared stacks and has its frames allocated, so no
+ * cache is left behind when it ends.
+ *
+ * The shared stacks are bounded by a byte budget.  An array that would go over it
+ * evicts idle arrays of its own size class or larger, largest first, and is dropped
+ * if that doesn't make room.  The thread caches are bounded by count instead, at most
+ * {@link #THREAD_CACHE_BYTES} per size class and thread, and arrays larger than that
+ * always go to the shared stacks.
+ *
+ * Hits and misses are counted in {@link LongAdder}s, so counting doesn't bounce a
+ * shared cache line between threads.
+ *
+ * @author Austin Miller
+ * @see org.codefrags.websocket.MaskedFrame
+ */
+public class FramePool {
+
+	private static final int MIN_SHIFT = 6; // 64 bytes
+	private static final int MAX_SHIFT = 20; // a megabyte
+	private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+	/**
+	 * The most frames and arrays of one size class a single loop keeps to itself.
+	 */
+	private static final int THREAD_CACHE_COUNT = 16;
+
+	/**
+	 * The most bytes of one size class a single loop keeps to itself.
+	 */
+	public static final int THREAD_CACHE_BYTES = 1<<16;
+
+	/**
+	 * The default budget for the shared stacks, 16 megabytes.
+	 */
+	public static final long DEFAULT_MAX_BYTES = 1L<<24;
+
+	static final byte [] EMPTY = new byte[0];
+
+	private static final FramePool DEFAULT = new FramePool();
+
+	/**
+	 * @return the pool behind {@link MaskedFrame#newFrame()}
+	 */
+	public static FramePool getDefault() {
+		return DEFAULT;
+	}
+
+	private final long maxBytes;
+
+	@SuppressWarnings("unchecked")
+	private final AtomicReference<Node> [] shared = new AtomicReference[CLASSES];
+
+	/**
+	 * Only ever asked for on an event loop's thread.
+	 */
+	private final ThreadLocal<Cache> caches = new ThreadLocal<Cache>() {
+		protected Cache initialValue() {
+			return new Cache();
+		}
+	};
+
+	private AtomicLong idleBytes = new AtomicLong(0);
+	private AtomicLong evictions = new AtomicLong(0);
+	private LongAdder hits = new LongAdder();
+	private LongAdder misses = new LongAdder();
+
+	public FramePool() {
+		this(DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * @param maxBytes the most bytes held idle in the shared stacks
+	 */
+	public FramePool(long maxBytes) {
+		this.maxBytes = maxBytes;
+		for(int i = 0;i<CLASSES;++i) {
+			shared[i] = new AtomicReference<Node>();
+		}
+	}
+
+	/**
+	 * @return a reset frame holding no storage
+	 */
+	public MaskedFrame acquireFrame() {
+		Cache cache = cache();
+
+		MaskedFrame frame;
+		if(cache != null && cache.frameCount > 0) {
+			hits.increment();
+			frame = cache.frames[--cache.frameCount];
+			cache.frames[cache.frameCount] = null;
+		} else {
+			misses.increment();
+			frame = new MaskedFrame();
+		}
+
+		frame.reset();
+		return frame;
+	}
+
+	/**
+	 * Take the frame back along with its storage.  The frame and its payload must not
+	 * be used afterwards.
+	 *
+	 * @param frame
+	 */
+	public void releaseFrame(MaskedFrame frame) {
+		release(frame.releaseStorage());
+
+		Cache cache = cache();
+		if(cache != null && cache.frameCount < THREAD_CACHE_COUNT) {
+			cache.frames[cache.frameCount++] = frame;
+		}
+	}
+
+	/**
+	 * Borrow an array of at least size bytes.  Its contents are whatever it last held.
+	 *
+	 * @param size
+	 * @return
+	 */
+	public byte [] acquire(int size) {
+		if(size == 0) {
+			return EMPTY;
+		}
+
+		int sizeClass = sizeClass(size);
+		if(sizeClass >= CLASSES) {
+			misses.increment();
+			return new byte[size];
+		}
+
+		Cache cache = cache();
+		if(cache != null && cache.counts[sizeClass] > 0) {
+			hits.increment();
+			int count = --cache.counts[sizeClass];
+			byte [] array = cache.arrays[sizeClass][count];
+			cache.arrays[sizeClass][count] = null;
+			return array;
+		}
+
+		byte [] array = pop(sizeClass);
+		if(array != null) {
+			hits.increment();
+			return array;
+		}
+
+		misses.increment();
+		return new byte[1 << (sizeClass + MIN_SHIFT)];
+	}
+
+	/**
+	 * Hand an array back.  Arrays not of a size class, such as those larger than a
+	 * megabyte, are dropped.
+	 *
+	 * @param array
+	 */
+	public void release(byte [] array) {
+		if(array == null || array.length == 0 || Integer.bitCount(array.length) != 1) {
+			return;
+		}
+
+		int sizeClass = sizeClass(array.length);
+		if(sizeClass >= CLASSES || array.length < 1<<MIN_SHIFT) {
+			return;
+		}
+
+		Cache cache = cache();
+		if(cache != null && cache.counts[sizeClass] < cache.arrays[sizeClass].length) {
+			cache.arrays[sizeClass][cache.counts[sizeClass]++] = array;
+			return;
+		}
+
+		if(reserve(array.length, sizeClass)) {
+			push(sizeClass, array);
+		}
+	}
+
+	/**
+	 * @return the calling event loop's cache, or null for any other thread
+	 */
+	private Cache cache() {
+		if(EventLoop.current() == null) {
+			return null;
+		}
+		return caches.get();
+	}
+
+	/**
+	 * Count bytes against the budget, evicting larger idle arrays first if needed.
+	 *
+	 * @param bytes
+	 * @param sizeClass
+	 * @return false if there was no making room
+	 */
+	private boolean reserve(int bytes,int sizeClass) {
+		while(true) {
+			long idle = idleBytes.get();
+			if(idle + bytes <= maxBytes) {
+				if(idleBytes.compareAndSet(idle, idle + bytes)) {
+					return true;
+				}
+				continue;
+			}
+
+			if(evict(sizeClass) == false) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @param smallest the smallest size class that may be evicted
+	 * @return whether an array was evicted
+	 */
+	private boolean evict(int smallest) {
+		for(int i = CLASSES - 1;i>=smallest;--i) {
+			if(pop(i) != null) {
+				evictions.incrementAndGet();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void push(int sizeClass,byte [] array) {
+		AtomicReference<Node> top = shared[sizeClass];
+		Node node = new Node(array);
+		do {
+			node.next = top.get();
+		} while(top.compareAndSet(node.next, node) == false);
+	}
+
+	/**
+	 * Nodes are never reused, so a node seen at the top can't have been popped and
+	 * pushed back in between.
+	 *
+	 * @param sizeClass
+	 * @return an idle array, or null if there are none
+	 */
+	private byte [] pop(int sizeClass) {
+		AtomicReference<Node> top = shared[sizeClass];
+		Node node;
+		do {
+			node = top.get();
+			if(node == null) {
+				return null;
+			}
+		} while(top.compareAndSet(node, node.next) == false);
+
+		idleBytes.addAndGet(-node.array.length);
+		return node.array;
+	}
+
+	/**
+	 * @param size
+	 * @return the index of the smallest size class that holds size bytes
+	 */
+	private static int sizeClass(int size) {
+		if(size <= 1<<MIN_SHIFT) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+
+	/**
+	 * @return the budget for the shared stacks
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return bytes held idle in the shared stacks, not counting the loops' caches
+	 */
+	public long getIdleBytes() {
+		return idleBytes.get();
+	}
+
+	/**
+	 * @return frames and arrays handed out from a cache or the shared stacks
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return frames and arrays that had to be allocated
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return idle arrays dropped to make room under the budget
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public String toString() {
+		return "FramePool[idle=" + getIdleBytes() + "/" + maxBytes
+				+ " hits=" + getHits()
+				+ " misses=" + getMisses()
+				+ " evictions=" + getEvictions() + "]";
+	}
+
+	private static class Node {
+		final byte [] array;
+		Node next;
+
+		Node(byte [] array) {
+			this.array = array;
+		}
+	}
+
+	/**
+	 * One per event loop thread, never touched by any other.
+	 */
+	private static class Cache {
+		MaskedFrame [] frames = new MaskedFrame[THREAD_CACHE_COUNT];
+		int frameCount;
+
+		byte [][][] arrays = new byte[CLASSES][][];
+		int [] counts = new int[CLASSES];
+
+		Cache() {
+			for(int i = 0;i<CLASSES;++i) {
+				int size = 1 << (i + MIN_SHIFT);
+				arrays[i] = new byte[Math.min(THREAD_CACHE_COUNT, THREAD_CACHE_BYTES / size)][];
+			}
+		}
+	}
+
+}
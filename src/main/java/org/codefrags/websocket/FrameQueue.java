@@ -0,0 +1,165 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * A user's outgoing frames.  Any thread may offer, only the event loop's thread takes
+ * frames off.
+ *
+ * Frames are linked through their own next field, so queueing allocates nothing.
+ * Producers swap themselves in as the last frame and then link the one before them
+ * to it, the consumer follows the links from the last frame it took.  A producer
+ * caught between the swap and the link hides the frames behind it for that moment,
+ * which is fine because it schedules a write as soon as it is done.
+ *
+ * The queue also counts bytes, from when a frame is offered until the consumer says
+ * they were written or dropped, so frames the consumer has taken but not yet written
+ * still count.
+ *
+ * @author Austin Miller
+ * @see org.codefrags.websocket.WebSocketUser
+ */
+class FrameQueue {
+
+	private static final AtomicReferenceFieldUpdater<FrameQueue,FrameBuffer> LAST =
+			AtomicReferenceFieldUpdater.newUpdater(FrameQueue.class, FrameBuffer.class, "last");
+
+	/**
+	 * The last frame offered, swapped in by producers.
+	 */
+	private volatile FrameBuffer last;
+
+	/**
+	 * The last frame taken, or the initial stub, only touched by the consumer.  The
+	 * next frame to take is linked from it.
+	 */
+	private FrameBuffer taken;
+
+	private AtomicLong bytes = new AtomicLong(0);
+
+	FrameQueue() {
+		taken = new FrameBuffer();
+		last = taken;
+	}
+
+	/**
+	 * Any thread.
+	 *
+	 * @param frameBuffer a frame not in any queue
+	 * @return bytes pending, including this frame
+	 */
+	long offer(FrameBuffer frameBuffer) {
+		long pending = bytes.addAndGet(frameBuffer.size());
+
+		frameBuffer.next = null;
+		FrameBuffer previous = LAST.getAndSet(this, frameBuffer);
+		previous.next = frameBuffer;
+		return pending;
+	}
+
+	/**
+	 * Consumer only.
+	 *
+	 * @return the first frame, or null if there are none
+	 */
+	FrameBuffer peek() {
+		return taken.next;
+	}
+
+	/**
+	 * Consumer only.  The bytes of the frame stay pending until {@link #written(long)}.
+	 *
+	 * @return the first frame, or null if there are none
+	 */
+	FrameBuffer poll() {
+		FrameBuffer next = taken.next;
+		if(next != null) {
+			advance(next);
+		}
+		return next;
+	}
+
+	/**
+	 * Consumer only.  Take frames until there are none left, length have been taken or
+	 * the next one would take them past maxBytes.  The first frame is taken however
+	 * large it is.
+	 *
+	 * @param frames
+	 * @param offset
+	 * @param length
+	 * @param maxBytes
+	 * @return the number of frames taken
+	 */
+	int drain(FrameBuffer [] frames,int offset,int length,long maxBytes) {
+		int count = 0;
+		long size = 0;
+		FrameBuffer next;
+
+		while(count < length && (next = taken.next) != null) {
+			if(count > 0 && size + next.size() > maxBytes) {
+				break;
+			}
+			advance(next);
+			frames[offset + count++] = next;
+			size += next.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Unlink the frame taken before, which no producer can reach any longer, so it
+	 * doesn't keep the frames after it from being collected.
+	 *
+	 * @param next
+	 */
+	private void advance(FrameBuffer next) {
+		taken.next = null;
+		taken = next;
+	}
+
+	/**
+	 * Consumer only.  May miss a frame whose producer hasn't finished linking it, which
+	 * then schedules a write of its own.
+	 *
+	 * @return
+	 */
+	boolean isEmpty() {
+		return taken.next == null;
+	}
+
+	/**
+	 * Settle bytes that were written or dropped.
+	 *
+	 * @param written
+	 * @return bytes still pending
+	 */
+	long written(long written) {
+		return bytes.addAndGet(-written);
+	}
+
+	/**
+	 * Any thread.
+	 *
+	 * @return bytes offered and not yet written or dropped
+	 */
+	long getBytes() {
+		return bytes.get();
+	}
+
+}
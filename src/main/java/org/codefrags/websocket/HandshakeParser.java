@@ -0,0 +1,362 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * An incremental parser for the client's opening handshake, an HTTP/1.1 GET request.
+ * Bytes can arrive split anywhere and the parser picks up where it left off, so
+ * nothing needs to be kept between reads.
+ *
+ * The request is scanned a byte at a time.  Header names are matched against the
+ * few the upgrade needs as they go by, and only the values of those are copied, into
+ * slots allocated with the parser.  Everything else is skipped, so parsing allocates
+ * nothing.  A header that appears more than once has its values joined with commas.
+ *
+ * The request head may be at most {@link #MAX_HEADER_SIZE} bytes with
+ * {@link #MAX_HEADERS} headers, and each value kept at most {@link #MAX_VALUE_SIZE}.
+ *
+ * One parser per connection, used by one thread at a time.
+ *
+ * @author Austin Miller
+ * @see org.codefrags.websocket.WebSocketUser
+ */
+class HandshakeParser {
+
+	static final int MAX_HEADER_SIZE = 1<<13;
+	static final int MAX_HEADERS = 64;
+	static final int MAX_VALUE_SIZE = 256;
+
+	static final int UPGRADE = 0;
+	static final int CONNECTION = 1;
+	static final int SEC_WEBSOCKET_KEY = 2;
+	static final int SEC_WEBSOCKET_VERSION = 3;
+	static final int SEC_WEBSOCKET_PROTOCOL = 4;
+	static final int SEC_WEBSOCKET_EXTENSIONS = 5;
+
+	/**
+	 * Lower case, indexed by slot.
+	 */
+	private static final byte [][] NAMES = {
+		"upgrade".getBytes(StandardCharsets.US_ASCII),
+		"connection".getBytes(StandardCharsets.US_ASCII),
+		"sec-websocket-key".getBytes(StandardCharsets.US_ASCII),
+		"sec-websocket-version".getBytes(StandardCharsets.US_ASCII),
+		"sec-websocket-protocol".getBytes(StandardCharsets.US_ASCII),
+		"sec-websocket-extensions".getBytes(StandardCharsets.US_ASCII),
+	};
+	private static final int ALL_NAMES = (1 << NAMES.length) - 1;
+	private static final byte [] METHOD = "GET ".getBytes(StandardCharsets.US_ASCII);
+
+	private static final int REQUEST_LINE = 0;
+	private static final int LINE_START = 1;
+	private static final int NAME = 2;
+	private static final int VALUE_START = 3;
+	private static final int VALUE = 4;
+	private static final int DONE = 5;
+
+	private int state;
+	private int size;
+	private int headers;
+
+	/**
+	 * Bytes of the request line, or of the current header name, seen so far.
+	 */
+	private int matched;
+
+	/**
+	 * The names the current header name could still be, one bit per slot.
+	 */
+	private int candidates;
+
+	/**
+	 * The slot the current value goes in, or -1 to skip it.
+	 */
+	private int slot;
+
+	private byte [][] values = new byte[NAMES.length][MAX_VALUE_SIZE];
+
+	/**
+	 * -1 for a header that wasn't sent.
+	 */
+	private int [] lengths = new int[NAMES.length];
+
+	HandshakeParser() {
+		reset();
+	}
+
+	/**
+	 * Forget the request so far, to parse another.
+	 */
+	void reset() {
+		state = REQUEST_LINE;
+		size = 0;
+		headers = 0;
+		matched = 0;
+		for(int i = 0;i<lengths.length;++i) {
+			lengths[i] = -1;
+		}
+	}
+
+	/**
+	 * Parse as much of the request as the buffer holds, advancing its position past
+	 * the bytes used.  Once the request is complete whatever follows it, such as the
+	 * first frames, is left in the buffer.
+	 *
+	 * @param in
+	 * @return whether the request is complete
+	 * @throws IOException if the request is malformed or over the limits
+	 */
+	boolean parse(ByteBuffer in) throws IOException {
+		while(state != DONE && in.hasRemaining()) {
+			if(++size > MAX_HEADER_SIZE) {
+				throw new IOException("Probably malicious attempt to flood buffers.");
+			}
+			next(in.get());
+		}
+		return state == DONE;
+	}
+
+	/**
+	 * @param b
+	 * @throws IOException
+	 */
+	private void next(byte b) throws IOException {
+		switch(state) {
+		case REQUEST_LINE:
+			if(b == '\n') {
+				state = LINE_START;
+			} else if(matched < METHOD.length && b != METHOD[matched++]) {
+				throw new IOException("Opening handshake is not a GET request.");
+			}
+			break;
+		case LINE_START:
+			if(b == '\n') {
+				state = DONE;
+			} else if(b != '\r') {
+				if(++headers > MAX_HEADERS) {
+					throw new IOException("More than " + MAX_HEADERS + " headers in the opening handshake.");
+				}
+				matched = 0;
+				candidates = ALL_NAMES;
+				state = NAME;
+				name(b);
+			}
+			break;
+		case NAME:
+			name(b);
+			break;
+		case VALUE_START:
+			if(b == ' ' || b == '\t') {
+				break;
+			}
+			state = VALUE;
+			value(b);
+			break;
+		case VALUE:
+			value(b);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * @param b the next byte of a header name
+	 * @throws IOException
+	 */
+	private void name(byte b) throws IOException {
+		if(b == ':') {
+			startValue();
+			return;
+		}
+
+		if(b == '\n' || b == '\r') {
+			throw new IOException("Header line without a colon in the opening handshake.");
+		}
+
+		if(b >= 'A' && b <= 'Z') {
+			b += 'a' - 'A';
+		}
+
+		for(int i = 0;i<NAMES.length;++i) {
+			if((candidates & (1 << i)) != 0 && (matched >= NAMES[i].length || NAMES[i][matched] != b)) {
+				candidates &= ~(1 << i);
+			}
+		}
+		++matched;
+	}
+
+	private void startValue() throws IOException {
+		slot = -1;
+		for(int i = 0;i<NAMES.length;++i) {
+			if((candidates & (1 << i)) != 0 && NAMES[i].length == matched) {
+				slot = i;
+			}
+		}
+
+		// a repeated header continues the list
+		if(slot >= 0 && lengths[slot] > 0) {
+			append((byte) ',');
+		} else if(slot >= 0) {
+			lengths[slot] = 0;
+		}
+		state = VALUE_START;
+	}
+
+	/**
+	 * @param b the next byte of a header value
+	 * @throws IOException
+	 */
+	private void value(byte b) throws IOException {
+		if(b == '\n') {
+			if(slot >= 0) {
+				trim(slot);
+			}
+			state = LINE_START;
+			return;
+		}
+
+		if(slot >= 0) {
+			append(b);
+		}
+	}
+
+	/**
+	 * @param b
+	 * @throws IOException
+	 */
+	private void append(byte b) throws IOException {
+		if(lengths[slot] == MAX_VALUE_SIZE) {
+			throw new IOException("Header value longer than " + MAX_VALUE_SIZE + " bytes in the opening handshake.");
+		}
+		values[slot][lengths[slot]++] = b;
+	}
+
+	/**
+	 * Drop trailing white space and the carriage return.
+	 *
+	 * @param slot
+	 */
+	private void trim(int slot) {
+		byte [] value = values[slot];
+		int length = lengths[slot];
+		while(length > 0 && (value[length - 1] == '\r' || value[length - 1] == ' ' || value[length - 1] == '\t')) {
+			--length;
+		}
+		lengths[slot] = length;
+	}
+
+	/**
+	 * @return whether the blank line ending the request has been read
+	 */
+	boolean isDone() {
+		return state == DONE;
+	}
+
+	/**
+	 * @param slot
+	 * @return whether the header was sent
+	 */
+	boolean has(int slot) {
+		return lengths[slot] >= 0;
+	}
+
+	/**
+	 * @param slot
+	 * @return the value, or null if the header wasn't sent
+	 */
+	String getValue(int slot) {
+		if(lengths[slot] < 0) {
+			return null;
+		}
+		return new String(values[slot], 0, lengths[slot], StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Feed the value to a digest without copying it out.
+	 *
+	 * @param slot a header that was sent
+	 * @param digest
+	 */
+	void update(int slot,MessageDigest digest) {
+		digest.update(values[slot], 0, lengths[slot]);
+	}
+
+	/**
+	 * @param slot
+	 * @param expected
+	 * @return whether the whole value is expected, ignoring case
+	 */
+	boolean equalsIgnoreCase(int slot,String expected) {
+		return lengths[slot] >= 0 && matches(values[slot], 0, lengths[slot], expected, true);
+	}
+
+	/**
+	 * @param slot
+	 * @param token
+	 * @param ignoreCase
+	 * @return whether the value is a comma separated list holding the token
+	 */
+	boolean containsToken(int slot,String token,boolean ignoreCase) {
+		byte [] value = values[slot];
+		int length = lengths[slot];
+		int i = 0;
+
+		while(i < length) {
+			while(i < length && (value[i] == ' ' || value[i] == '\t' || value[i] == ',')) {
+				++i;
+			}
+			int start = i;
+			while(i < length && value[i] != ',') {
+				++i;
+			}
+			int end = i;
+			while(end > start && (value[end - 1] == ' ' || value[end - 1] == '\t')) {
+				--end;
+			}
+
+			if(end > start && matches(value, start, end - start, token, ignoreCase)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean matches(byte [] bytes,int offset,int length,String expected,boolean ignoreCase) {
+		if(length != expected.length()) {
+			return false;
+		}
+
+		for(int i = 0;i<length;++i) {
+			int a = bytes[offset + i];
+			int b = expected.charAt(i);
+			if(ignoreCase) {
+				a = Character.toLowerCase(a);
+				b = Character.toLowerCase(b);
+			}
+			if(a != b) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.codefrags.websocket.WebSocketServer.OverflowPolicy;
+
+/**
+ * The server's answer to an accepted opening handshake.  Everything but
+ * Sec-WebSocket-Accept is the same for every connection, so the response is kept as
+ * the bytes before and after the accept key and only the key is computed, straight
+ * into the output buffer.
+ *
+ * The SHA-1 digest is cloned once per thread and reused, and the 20 byte hash is
+ * encoded by a Base64 encoder for exactly that width, so writing a response
+ * allocates nothing.
+ *
+ * Also holds the server's settings for the extensions it negotiates.  Immutable, one
+ * per server.
+ *
+ * @author Austin Miller
+ * @see <a href="http://tools.ietf.org/html/rfc6455#section-4.2.2">RFC 6455 #4.2.2</a>
+ */
+class HandshakeResponse {
+
+	static final int HASH_SIZE = 20;
+
+	/**
+	 * Base64 of the hash: six whole groups of three bytes and one of two, padded.
+	 */
+	static final int ACCEPT_SIZE = 28;
+
+	private static final byte [] WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11".getBytes(StandardCharsets.US_ASCII);
+	private static final byte [] END = "\r\n".getBytes(StandardCharsets.US_ASCII);
+	private static final byte [] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+
+	private static final MessageDigest SHA1;
+	static {
+		try {
+			SHA1 = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			// every JVM is required to have it
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * Cloning skips the provider lookup of {@link MessageDigest#getInstance(String)}.
+	 */
+	private static final ThreadLocal<Digest> DIGEST = new ThreadLocal<Digest>() {
+		@Override
+		protected Digest initialValue() {
+			try {
+				return new Digest((MessageDigest) SHA1.clone());
+			} catch (CloneNotSupportedException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private static class Digest {
+		private final MessageDigest sha1;
+		private final byte [] hash = new byte[HASH_SIZE];
+
+		Digest(MessageDigest sha1) {
+			this.sha1 = sha1;
+		}
+	}
+
+	private final String protocol;
+	private final byte [] head;
+	private final byte [] tail;
+
+	private final boolean perMessageDeflate;
+	private final boolean contextTakeover;
+	private final int deflateThreshold;
+	private final CompressionStats compressionStats;
+
+	/**
+	 * Without any extensions.
+	 *
+	 * @param protocol the sub protocol accepted
+	 */
+	HandshakeResponse(String protocol) {
+		this(protocol, false, false, 0, null);
+	}
+
+	/**
+	 * With the server's settings.  Context takeover is only offered when the overflow
+	 * policy never drops frames, since the client's context would miss what was dropped.
+	 *
+	 * @param server
+	 */
+	HandshakeResponse(WebSocketServer server) {
+		this(server.getProtocol(), server.isPerMessageDeflate(),
+				server.isContextTakeover()
+						&& server.getOverflowPolicy() != OverflowPolicy.DROP_NEWEST
+						&& server.getOverflowPolicy() != OverflowPolicy.DROP_OLDEST,
+				server.getDeflateThreshold(), server.getCompressionStats());
+	}
+
+	private HandshakeResponse(String protocol,boolean perMessageDeflate,boolean contextTakeover,
+			int deflateThreshold,CompressionStats compressionStats) {
+		this.protocol = protocol;
+		this.head = ("HTTP/1.1 101 Switching Protocols\r\n"
+				+ "Upgrade: websocket\r\n"
+				+ "Connection: Upgrade\r\n"
+				+ "Sec-WebSocket-Accept: ").getBytes(StandardCharsets.US_ASCII);
+		this.tail = ("\r\n"
+				+ "Sec-WebSocket-Protocol: " + protocol + "\r\n").getBytes(StandardCharsets.US_ASCII);
+		this.perMessageDeflate = perMessageDeflate;
+		this.contextTakeover = contextTakeover;
+		this.deflateThreshold = deflateThreshold;
+		this.compressionStats = compressionStats;
+	}
+
+	String getProtocol() {
+		return protocol;
+	}
+
+	/**
+	 * @return the most a response takes, with every extension
+	 */
+	int maxLength() {
+		return head.length + ACCEPT_SIZE + tail.length + PerMessageDeflate.MAX_RESPONSE_HEADER_SIZE + END.length;
+	}
+
+	/**
+	 * @param handshake a complete handshake
+	 * @return permessage-deflate as agreed, or null if the server doesn't offer it or
+	 * the client didn't ask for it in a way we accept
+	 */
+	PerMessageDeflate negotiate(HandshakeParser handshake) {
+		if(perMessageDeflate == false) {
+			return null;
+		}
+		return PerMessageDeflate.negotiate(handshake, contextTakeover, deflateThreshold, compressionStats);
+	}
+
+	/**
+	 * @param handshake a complete handshake with a key
+	 * @param deflate the extension agreed, or null
+	 * @param out with at least {@link #maxLength()} remaining
+	 */
+	void write(HandshakeParser handshake,PerMessageDeflate deflate,ByteBuffer out) {
+		out.put(head);
+		writeAccept(handshake, out);
+		out.put(tail);
+		if(deflate != null) {
+			out.put(deflate.getResponseHeader());
+		}
+		out.put(END);
+	}
+
+	/**
+	 * Base64 of the SHA-1 of the client's key followed by the websocket GUID.
+	 *
+	 * Intentionally package private, for the handshake benchmark.
+	 *
+	 * @param handshake a complete handshake with a key
+	 * @param out with at least {@link #ACCEPT_SIZE} remaining
+	 */
+	static void writeAccept(HandshakeParser handshake,ByteBuffer out) {
+		Digest digest = DIGEST.get();
+		handshake.update(HandshakeParser.SEC_WEBSOCKET_KEY, digest.sha1);
+		digest.sha1.update(WEBSOCKET_GUID);
+		try {
+			digest.sha1.digest(digest.hash, 0, HASH_SIZE);
+		} catch (DigestException e) {
+			// the hash array is always big enough
+			throw new IllegalStateException(e);
+		}
+		encode(digest.hash, out);
+	}
+
+	/**
+	 * Base64 for exactly {@link #HASH_SIZE} bytes.
+	 *
+	 * @param hash
+	 * @param out
+	 */
+	static void encode(byte [] hash,ByteBuffer out) {
+		int i = 0;
+		for(;i<HASH_SIZE - 2;i += 3) {
+			int bits = (hash[i] & 0xff) << 16 | (hash[i + 1] & 0xff) << 8 | (hash[i + 2] & 0xff);
+			out.put(BASE64[bits >>> 18]);
+			out.put(BASE64[(bits >>> 12) & 0x3f]);
+			out.put(BASE64[(bits >>> 6) & 0x3f]);
+			out.put(BASE64[bits & 0x3f]);
+		}
+
+		int bits = (hash[i] & 0xff) << 16 | (hash[i + 1] & 0xff) << 8;
+		out.put(BASE64[bits >>> 18]);
+		out.put(BASE64[(bits >>> 12) & 0x3f]);
+		out.put(BASE64[(bits >>> 6) & 0x3f]);
+		out.put((byte) '=');
+	}
+
+}
@@ -16,7 +16,8 @@
 package org.codefrags.websocket;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -25,18 +26,21 @@ import org.slf4j.LoggerFactory;
 /**
  * This class is meant to encapsulate a websocket frame while also keeping
  * buffers around to limit the amount of allocation that occurs for better performance.
+ * Frames and their storage are pooled by a {@link FramePool}.
+ * 
+ * The payload is either a slice of the buffer the frame was read from, which is
+ * only valid until that buffer is reused, or a copy in the frame's own storage.
+ * {@link #detach()} makes sure it is the latter.
  * 
  * @author Austin Miller
- *
+ * @see org.codefrags.websocket.FrameDecoder
  */
 public class MaskedFrame {
 	protected static final Logger logger = LoggerFactory.getLogger(MaskedFrame.class);
 	
-	OpCode opCode;
-
 	private static OpCode [] OPCODES = new OpCode[1<<4];
 
-	{
+	static {
 		for(OpCode opCode : OpCode.values()) {
 			OPCODES[opCode.getValue()] = opCode;
 		}
@@ -44,85 +48,89 @@ public class MaskedFrame {
 	
 	public static final int MAX_DATA_SIZE = 2+8+4;
 	
-	private static final int KEEP_FRAMES_COUNT = 30;
-	private static final int DATA_BUFFER_SIZE=1<<18; // 1/4 megabyte
-	private static final int MAX_BUFFER_SIZE=1<<20; // a megabyte
-	private static final int MAX_FRAME_LENGTH=1<<25; // 32 megabytes
-	
 	/**
-	 * the max amount of memory this can become is ....
-	 * KEEP_FRAMES_COUNT*(MAX_data_SIZE + MAX_BUFFER_SIZE + class overhead)
+	 * Safe to call from any thread.
+	 * 
+	 * @return a reset frame from the default {@link FramePool}
 	 */
-	private static List<MaskedFrame> storage = new ArrayList<MaskedFrame>();
-	
 	public static MaskedFrame newFrame() {
-		
-		MaskedFrame frame;
-		int size = storage.size();
-		if(size == 0) {
-			frame = new MaskedFrame();
-		} else {
-			frame = storage.get(size-1);
-			storage.remove(size-1);
-		}
-		frame.reset();
-		return frame;
+		return FramePool.getDefault().acquireFrame();
 	}
 	
+	/**
+	 * Give the frame and its storage back to the default {@link FramePool}.  Neither
+	 * the frame nor its payload may be used afterwards.
+	 * 
+	 * @param frame
+	 */
 	public static void returnFrame(MaskedFrame frame) {
-		if(storage.size() < KEEP_FRAMES_COUNT) {
-			storage.add(frame);
-		}
+		FramePool.getDefault().releaseFrame(frame);
 	}
 	
 
 	/**
 	 * Joins multiple fragmented continuation frames and a final frame, expecting them in order in the list
-	 * and returning the String;
+	 * and returning the String.  Bytes that aren't UTF-8 are replaced rather than turned away, the
+	 * connection itself checks text with a {@link Utf8Decoder} as it arrives.
 	 * @param frames
 	 * @return
 	 */
 	public static String join(List<MaskedFrame> frames) {
-		String text;
-
-		// TODO Consider rewriting to avoid copying the bytes twice
+		byte [] bytes = joinBytes(frames);
+		String text = new String(bytes, StandardCharsets.UTF_8);
+		
+		if(logger.isDebugEnabled()) {
+			logger.debug("joined " + bytes.length + " bytes, text: " + text);
+		}
+		return text;
+	}
+	
+	/**
+	 * Joins the payloads of a fragmented binary message, in order.
+	 * 
+	 * @param frames
+	 * @return a buffer around a single array holding them all
+	 */
+	public static ByteBuffer joinPayload(List<MaskedFrame> frames) {
+		return ByteBuffer.wrap(joinBytes(frames));
+	}
+	
+	/**
+	 * The decoder holds a message gathered whole to the server's maximum message
+	 * length, so the total always fits an array.
+	 */
+	private static byte [] joinBytes(List<MaskedFrame> frames) {
 		int bytesToAllocate = 0;
 		for(MaskedFrame frame : frames) {
-			bytesToAllocate += frame.data.length - frame.headerSize;
+			bytesToAllocate += frame.length;
 		}
 		
 		int marker = 0;
-		
-		// TODO Consider how to fix the error where bytesToAllocate > 2^31
 		byte [] bytes = new byte[bytesToAllocate];
 		
 		for(MaskedFrame frame : frames) {
-			int length = frame.data.length - frame.headerSize;
-			System.arraycopy(frame.data, frame.headerSize, bytes, marker, length);
-			marker += length;
-		}
-		
-		text = new String(bytes);
-		
-		if(logger.isDebugEnabled()) {
-			logger.debug("marker = " + marker + " bytesToAllocate=" +bytesToAllocate);
-			logger.debug("joined frames text: " + text);
+			frame.copyPayload(bytes, marker);
+			marker += frame.length;
 		}
-		return text;
+		return bytes;
 	}
 
-	private MaskedFrame() {
+	MaskedFrame() {
 		
 	}
 
 	/**
-	 * It is difficult to come up with an optimal size. 
+	 * Only borrowed from the pool once a payload has to be copied, sized to fit it.
 	 */
-	private byte [] data = new byte[DATA_BUFFER_SIZE];
+	private byte [] data = FramePool.EMPTY;
 	
+	/**
+	 * The first byte of the header, holding the final bit and the op code.
+	 */
+	private byte b0;
 	private int length;
-	private int dataSize;
-	private int headerSize;
+	private ByteBuffer payload;
+	private FrameDecoder decoder;
 
 	private boolean constructed;
 	
@@ -132,12 +140,8 @@ public class MaskedFrame {
 	 */
 	public void reset() {
 		length = -1;
-		dataSize=0;
+		payload = null;
 		constructed=false;
-		
-		if(data.length >= MAX_BUFFER_SIZE) {
-			data = new byte[DATA_BUFFER_SIZE];
-		}
 	}
 	
 	public boolean isConstructed() {
@@ -145,7 +149,19 @@ public class MaskedFrame {
 	}
 	
 	public OpCode getOpCode() {
-		return OPCODES[data[0] & 0xF]; 
+		return OPCODES[b0 & 0xF]; 
+	}
+	
+	/**
+	 * Intentionally package private.
+	 * 
+	 * @param b0 the first byte of a header
+	 * @return whether its op code is one RFC 6455 reserves, neither a continuation nor
+	 * an {@link OpCode}
+	 */
+	static boolean isReserved(byte b0) {
+		int opCode = b0 & 0xF;
+		return opCode != 0 && OPCODES[opCode] == null;
 	}
 	
 	/**
@@ -158,76 +174,138 @@ public class MaskedFrame {
 	 * @throws Exception
 	 */
 	public int writeBytes(byte[] bytes,int offset,int length) throws IOException {
-		
-		if(dataSize + length > data.length) {
-			increaseAllocation(dataSize + length);
+		return writeBytes(ByteBuffer.wrap(bytes, offset, length));
+	}
+	
+	/**
+	 * Copies bytes from the buffer's position, advancing it past the bytes used.  Works
+	 * the same for heap and direct buffers.  The finished frame keeps its own copy of
+	 * the payload; the connection itself uses a {@link FrameDecoder} to avoid that copy.
+	 * 
+	 * @param The buffer to copy from.
+	 * @return The number of bytes written, less than the remaining means the frame finished
+	 * @throws IOException
+	 */
+	public int writeBytes(ByteBuffer bytes) throws IOException {
+		if(decoder == null) {
+			decoder = new FrameDecoder();
 		}
 		
-		copyHeader(bytes,offset,length);
+		int position = bytes.position();
 		
-		int bytesToWrite = length;
-		if(this.length !=-1) {
-			int bytesNeeded = headerSize + this.length;
-			int bytesLeft = bytesNeeded - dataSize;
-			bytesToWrite = Math.min(bytesLeft, length);
+		if(decoder.decode(bytes, this)) {
+			detach();
 		}
 		
-		System.arraycopy(bytes, offset, data, dataSize, bytesToWrite);
-		
-		dataSize+=bytesToWrite;
-		
-		if(dataSize == headerSize + this.length && dataSize > headerSize) {
-			finishFrame();
+		return bytes.position() - position;
+	}
+
+	/**
+	 * Called by the decoder once the header is parsed.
+	 * 
+	 * @param b0
+	 * @param length
+	 */
+	void setHeader(byte b0,int length) {
+		this.b0 = b0;
+		this.length = length;
+	}
+
+	void setPayload(ByteBuffer payload) {
+		this.payload = payload;
+	}
+
+	void setConstructed() {
+		constructed = true;
+	}
+
+	/**
+	 * The frame's own storage, grown to hold at least length bytes.
+	 * 
+	 * @param length
+	 * @return
+	 */
+	byte [] storage(int length) {
+		return storage(length, 0);
+	}
+
+	/**
+	 * The frame's own storage, grown to hold at least length bytes with the first keep
+	 * bytes kept.  It grows at least twofold, up to the frame's length, so gathering a
+	 * payload as it arrives copies each byte only a few times.
+	 * 
+	 * @param length
+	 * @param keep
+	 * @return
+	 */
+	byte [] storage(int length,int keep) {
+		if(length > data.length) {
+			byte [] bytes = FramePool.getDefault().acquire(Math.max(length, Math.min(data.length << 1, this.length)));
+			System.arraycopy(data, 0, bytes, 0, keep);
+			FramePool.getDefault().release(data);
+			data = bytes;
 		}
-		
-		return bytesToWrite;
+		return data;
 	}
 
 	/**
+	 * Called by the pool when the frame is returned.
 	 * 
+	 * @return the storage, which the frame no longer holds
 	 */
-	private void finishFrame() {
-		if(constructed == true) {
+	byte [] releaseStorage() {
+		byte [] bytes = data;
+		data = FramePool.EMPTY;
+		payload = null;
+		return bytes;
+	}
+
+	/**
+	 * Intentionally package private.
+	 * 
+	 * Copy the payload into the frame's own storage if it is still a slice of the
+	 * buffer it was read from, so it survives that buffer being reused.  Needed
+	 * before holding on to a frame, as with fragments.
+	 */
+	void detach() {
+		if(payload == null || (payload.hasArray() && payload.array() == data)) {
 			return;
 		}
 		
-		constructed = true;
+		byte [] bytes = storage(length);
+		payload.duplicate().get(bytes, 0, length);
+		payload = ByteBuffer.wrap(bytes, 0, length);
+	}
 
-		if(isMasked()) {
-			unmask();
-		}
+	private void copyPayload(byte [] bytes,int offset) {
+		payload.duplicate().get(bytes, offset, length);
 	}
-	
-	private void unmask() {
-		int maskKeyOffset=headerSize-4;
-		int mod = 0;
-		for(int i = headerSize;i<dataSize;++i) {
-			mod = (i - headerSize) % 4;
-			data[i] ^= data[maskKeyOffset+mod];
-		}
+
+	/**
+	 * The unmasked payload, from position to limit.  Unless the frame was detached it
+	 * is a view of the read buffer and must not be kept once the frame is handled.
+	 * 
+	 * @return
+	 */
+	public ByteBuffer getPayload() {
+		return payload;
 	}
 	
+	/**
+	 * @return the payload as UTF-8, with anything that isn't replaced
+	 */
 	public String getText() {
-		String text =new String(data,headerSize,dataSize-headerSize);
+		byte [] bytes = new byte[length];
+		copyPayload(bytes, 0);
 		
-		return text;
+		return new String(bytes, StandardCharsets.UTF_8);
 	}
 	
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		
 		sb.append("\n\n>>> Frame\n");
-		
-		int count = 0;
-		for(int i = 0;i<dataSize;++i) {
-			sb.append(" "+binary(data[i]));
-			++count;
-			if(count == 32/Byte.SIZE) {
-				sb.append("\n");
-				count = 0;
-			}
-		}
-		sb.append("\n");
+		sb.append(" "+binary(b0)+"\n");
 		sb.append(">>> Payload\n");
 		sb.append(getText());
 		
@@ -246,114 +324,51 @@ public class MaskedFrame {
     }
 
 	/**
-	 * @param bytes
-	 * @param offset2
-	 * @param length2
-	 * @throws IOException 
+	 * 
+	 * @return the length of the data in bytes
 	 */
-	private void copyHeader(byte[] bytes, int offset, int length) throws IOException {
-		if(dataSize + length < 2) {
-			return;
-		}
-		
-		if(dataSize == 0) {
-			data[0] = bytes[offset];
-			data[1] = bytes[offset+1];
-		} else if(dataSize == 1){
-			data[1] = bytes[offset];
-		}
-		
-		headerSize = 2;
-		
-		if(isMasked()) {
-			headerSize+=4;
-		}
-		
-		int size = data[1] & 0x7F;
-		if(size == 126) {
-			headerSize+=2;
-		} else if(size == 127) {
-			headerSize+=8;
-		}
-		
-		if(dataSize + length < headerSize) {
-			return;
-		}
-		
-		int offset2 = 0;
-		for(int i = dataSize;i<headerSize;++i) {
-			data[i] = bytes[offset + offset2];
-			++offset2;
-		}
-		
-		calculateLength();
+	public int getLength() throws IOException {
+		return length;
 	}
-
+	
 	/**
-	 * @return whether the data is masked
+	 * Intentionally package private.
+	 * 
+	 * @return RSV1, RSV2 and RSV3 as the low three bits, RSV1 highest
 	 */
-	private boolean isMasked() {
-		return ((data[1]>>Byte.SIZE-1) & 1) == 1 ? true : false;
+	int getReservedBits() {
+		return (b0 >> 4) & 0x7;
 	}
 	
-	private void calculateLength() throws IOException {
-		int size = data[1] & 0x7F;
-		
-		if(size < 126) {
-			length = size;
-			return;
-		}
-		
-		if(size==126) {
-			length = (data[2] << Byte.SIZE) | data[3];
-			return;
-		}
-		
-		// the final case, bytes 3-10 are the length
-		// we're choosing not to support sizes greater 32 bits (about 4billion)
-		
-		if((data[2] | data[3] | data[4] | data[5]) != 0 ||
-				((data[6]>>Byte.SIZE-1) & 1) == 1) {
-			throw new IOException("Frame data length is larger than 2^31 which is not supported.");
-		}
-		
-		length = 0;
-		for(int i = 6;i<10;++i) {
-			length = (length << Byte.SIZE) | data[i];
-		}
-	}
-
 	/**
+	 * Intentionally package private.
 	 * 
-	 * @return the length of the data in bytes
+	 * @return whether RSV1 is set, which marks the first frame of a message compressed
+	 * by {@link PerMessageDeflate}
 	 */
-	public int getLength() throws IOException {
-		return length;
+	boolean isCompressed() {
+		return (b0 & 0x40) != 0;
 	}
 	
-	private void increaseAllocation(int desiredSize) throws IOException {
-
-		int newSize = data.length;
-		while(true) {
-			newSize <<= 1;
-			if(newSize < 0 || newSize > MAX_FRAME_LENGTH) {
-				throw new IOException("Too large a frame requested by peer.  This might be malicious.");
-			} 
-			if(newSize > desiredSize) {
-				break;
-			}
-		}
-		
-		byte[] newData = new byte[newSize];
-		System.arraycopy(data, 0, newData, 0, data.length);
-		data = newData;
+	/**
+	 * @return whether this is a ping, pong or close frame
+	 */
+	public boolean isControl() {
+		return (b0 & 0x8) != 0;
 	}
 
+	/**
+	 * @return whether this carries on a fragmented message
+	 */
+	public boolean isContinuation() {
+		return (b0 & 0xF) == 0;
+	}
+	
 	/**
 	 * @return whether the constructed frame is a final frame or a continuation frame
 	 */
 	public boolean isFinal() {
-		return (data[0] & 0x80) == 0x80 ? true : false;
+		return (b0 & 0x80) == 0x80 ? true : false;
 	}
 
 }
@@ -0,0 +1,598 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The permessage-deflate extension, as negotiated with one connection.  Messages the
+ * server sends are compressed with a raw deflate stream flushed at the end of each
+ * message, its trailing empty block dropped, and the first frame marked with RSV1.
+ * Messages the client marks the same way are inflated before the listener sees them.
+ *
+ * java.util.zip always uses a 32K window, so an offer limiting the server's window
+ * below 15 bits is declined.  Any client window is fine, a smaller one only makes
+ * the client's stream easier to inflate.
+ *
+ * Without context takeover each message is compressed on its own, so the Deflater
+ * and Inflater are only needed for the duration of a call, so every connection
+ * checks them out of a small shared pool and back in when it's done.  That also
+ * makes a message published to many users compress to the same bytes for all of
+ * them, so {@link SharedFrame} compresses it once.  With context takeover the
+ * connection keeps its own for its whole life, and they are used one thread at a time.
+ *
+ * @author Austin Miller
+ * @see <a href="http://tools.ietf.org/html/rfc7692">RFC 7692</a>
+ */
+class PerMessageDeflate {
+
+	static final String NAME = "permessage-deflate";
+
+	/**
+	 * What a sync flush ends with, left off the wire.
+	 */
+	private static final byte [] TAIL = {0, 0, (byte) 0xff, (byte) 0xff};
+
+	private static final int SERVER_NO_CONTEXT_TAKEOVER = 1;
+	private static final int CLIENT_NO_CONTEXT_TAKEOVER = 2;
+	private static final int SERVER_MAX_WINDOW_BITS = 4;
+
+	/**
+	 * Every response header we may send, indexed by the parameters it has.
+	 */
+	private static final byte [][] RESPONSE_HEADERS = new byte[8][];
+
+	static final int MAX_RESPONSE_HEADER_SIZE;
+
+	static {
+		int max = 0;
+		for(int parameters = 0;parameters<RESPONSE_HEADERS.length;++parameters) {
+			StringBuilder header = new StringBuilder("Sec-WebSocket-Extensions: ").append(NAME);
+			if((parameters & SERVER_NO_CONTEXT_TAKEOVER) != 0) {
+				header.append("; server_no_context_takeover");
+			}
+			if((parameters & CLIENT_NO_CONTEXT_TAKEOVER) != 0) {
+				header.append("; client_no_context_takeover");
+			}
+			if((parameters & SERVER_MAX_WINDOW_BITS) != 0) {
+				header.append("; server_max_window_bits=15");
+			}
+			RESPONSE_HEADERS[parameters] = header.append("\r\n").toString().getBytes(StandardCharsets.US_ASCII);
+			max = Math.max(max, RESPONSE_HEADERS[parameters].length);
+		}
+		MAX_RESPONSE_HEADER_SIZE = max;
+	}
+
+	/**
+	 * Scratch arrays, and the Deflater and Inflater for connections without context
+	 * takeover, made the first time they're needed.  Only used between
+	 * {@link PerMessageDeflate#checkOut()} and {@link PerMessageDeflate#checkIn(Codec)}.
+	 */
+	private static class Codec {
+		private Deflater deflater;
+		private Inflater inflater;
+		private byte [] in = new byte[1<<10];
+		private byte [] out = new byte[1<<10];
+
+		Deflater deflater() {
+			if(deflater == null) {
+				deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			}
+			return deflater;
+		}
+
+		Inflater inflater() {
+			if(inflater == null) {
+				inflater = new Inflater(true);
+			}
+			return inflater;
+		}
+
+		/**
+		 * @param length
+		 * @return the input array, grown to hold at least length bytes
+		 */
+		byte [] in(int length) {
+			if(in.length < length) {
+				in = new byte[Math.max(length, in.length * 2)];
+			}
+			return in;
+		}
+
+		/**
+		 * Drop the arrays a large message grew, so an idle codec stays small.
+		 */
+		void trim() {
+			if(in.length > MAX_KEPT) {
+				in = new byte[1<<10];
+			}
+			if(out.length > MAX_KEPT) {
+				out = new byte[1<<10];
+			}
+		}
+
+		/**
+		 * Free zlib's memory now rather than whenever it is finalized.
+		 */
+		void end() {
+			if(deflater != null) {
+				deflater.end();
+			}
+			if(inflater != null) {
+				inflater.end();
+			}
+		}
+	}
+
+	/**
+	 * The most an idle codec keeps of either array.
+	 */
+	private static final int MAX_KEPT = 1<<16;
+
+	/**
+	 * The most idle codecs kept.  One beyond that is ended when it's checked in.
+	 */
+	static final int MAX_IDLE_CODECS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+	private static final BlockingQueue<Codec> IDLE = new ArrayBlockingQueue<Codec>(MAX_IDLE_CODECS);
+
+	/**
+	 * @return an idle codec, or a new one if there are none
+	 */
+	private static Codec checkOut() {
+		Codec codec = IDLE.poll();
+		return codec == null ? new Codec() : codec;
+	}
+
+	/**
+	 * Nothing of the codec's may be used afterwards.
+	 *
+	 * @param codec
+	 */
+	private static void checkIn(Codec codec) {
+		codec.trim();
+		if(IDLE.offer(codec) == false) {
+			codec.end();
+		}
+	}
+
+	/**
+	 * Intentionally package private.
+	 *
+	 * @return how many codecs are idle
+	 */
+	static int getIdleCodecs() {
+		return IDLE.size();
+	}
+
+	private final boolean serverContextTakeover;
+	private final boolean clientContextTakeover;
+	private final int threshold;
+	private final CompressionStats stats;
+	private final byte [] responseHeader;
+
+	/**
+	 * Only for a connection with context takeover, made the first time they're needed.
+	 */
+	private Deflater deflater;
+	private Inflater inflater;
+
+	/**
+	 * @param serverContextTakeover
+	 * @param clientContextTakeover
+	 * @param threshold
+	 * @param stats
+	 * @param parameters
+	 */
+	private PerMessageDeflate(boolean serverContextTakeover,boolean clientContextTakeover,int threshold,CompressionStats stats,int parameters) {
+		this.serverContextTakeover = serverContextTakeover;
+		this.clientContextTakeover = clientContextTakeover;
+		this.threshold = threshold;
+		this.stats = stats;
+		this.responseHeader = RESPONSE_HEADERS[parameters];
+	}
+
+	/**
+	 * Accept the first permessage-deflate offer in Sec-WebSocket-Extensions that we
+	 * can honor.
+	 *
+	 * @param handshake a complete handshake
+	 * @param contextTakeover whether the server is willing to keep contexts between
+	 * messages, which the client can still refuse either way
+	 * @param threshold
+	 * @param stats
+	 * @return the extension as agreed, or null if there was no offer we accept
+	 */
+	static PerMessageDeflate negotiate(HandshakeParser handshake,boolean contextTakeover,int threshold,
+			CompressionStats stats) {
+		String extensions = handshake.getValue(HandshakeParser.SEC_WEBSOCKET_EXTENSIONS);
+		if(extensions == null) {
+			return null;
+		}
+
+		for(String offer : extensions.split(",")) {
+			String [] parameters = offer.split(";");
+			if(parameters[0].trim().equalsIgnoreCase(NAME) == false) {
+				continue;
+			}
+
+			int agreed = accept(parameters);
+			if(agreed < 0) {
+				continue;
+			}
+
+			if(contextTakeover == false) {
+				agreed |= SERVER_NO_CONTEXT_TAKEOVER | CLIENT_NO_CONTEXT_TAKEOVER;
+			}
+			return new PerMessageDeflate(
+					(agreed & SERVER_NO_CONTEXT_TAKEOVER) == 0,
+					(agreed & CLIENT_NO_CONTEXT_TAKEOVER) == 0,
+					threshold, stats, agreed);
+		}
+		return null;
+	}
+
+	/**
+	 * @param parameters an offer split at its semicolons, the name first
+	 * @return the response parameters accepting the offer, or -1 to decline it
+	 */
+	private static int accept(String [] parameters) {
+		int agreed = 0;
+		boolean clientWindow = false;
+
+		for(int i = 1;i<parameters.length;++i) {
+			String parameter = parameters[i].trim();
+			String value = null;
+			int equals = parameter.indexOf('=');
+			if(equals >= 0) {
+				value = parameter.substring(equals + 1).trim();
+				if(value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+					value = value.substring(1, value.length() - 1);
+				}
+				parameter = parameter.substring(0, equals).trim();
+			}
+
+			int flag;
+			if(parameter.equalsIgnoreCase("server_no_context_takeover") && value == null) {
+				flag = SERVER_NO_CONTEXT_TAKEOVER;
+			} else if(parameter.equalsIgnoreCase("client_no_context_takeover") && value == null) {
+				flag = CLIENT_NO_CONTEXT_TAKEOVER;
+			} else if(parameter.equalsIgnoreCase("server_max_window_bits")) {
+				// our window is always 15 bits, so it can't be limited any further
+				if(windowBits(value) != 15) {
+					return -1;
+				}
+				flag = SERVER_MAX_WINDOW_BITS;
+			} else if(parameter.equalsIgnoreCase("client_max_window_bits")) {
+				// a 15 bit window inflates whatever the client chooses, so it needs no answer
+				if(clientWindow || (value != null && windowBits(value) < 0)) {
+					return -1;
+				}
+				clientWindow = true;
+				continue;
+			} else {
+				return -1;
+			}
+
+			if((agreed & flag) != 0) {
+				return -1;
+			}
+			agreed |= flag;
+		}
+		return agreed;
+	}
+
+	/**
+	 * @param value
+	 * @return the window bits, or -1 if the value isn't a valid number of them
+	 */
+	private static int windowBits(String value) {
+		if(value == null || value.length() == 0 || value.length() > 2) {
+			return -1;
+		}
+		for(int i = 0;i<value.length();++i) {
+			if(Character.isDigit(value.charAt(i)) == false) {
+				return -1;
+			}
+		}
+		int bits = Integer.parseInt(value);
+		return bits >= 8 && bits <= 15 ? bits : -1;
+	}
+
+	/**
+	 * @return the Sec-WebSocket-Extensions line of the response, ending in CRLF
+	 */
+	byte [] getResponseHeader() {
+		return responseHeader;
+	}
+
+	/**
+	 * @return whether the server keeps its compression context between messages,
+	 * so messages have to be compressed in the order they are sent, one at a time
+	 */
+	boolean isServerContextTakeover() {
+		return serverContextTakeover;
+	}
+
+	/**
+	 * @return whether the connection can be sent the compressed frame a
+	 * {@link SharedFrame} shares between users
+	 */
+	boolean sharesFrames() {
+		return serverContextTakeover == false;
+	}
+
+	/**
+	 * With server context takeover the caller has to hold whatever orders the
+	 * connection's sends, from compressing until the frame is queued.
+	 *
+	 * @param text
+	 * @param pool where the frame's buffer comes from, or null
+	 * @return a text frame, compressed unless it is under the threshold or, without
+	 * context takeover, compressing doesn't make it any smaller
+	 */
+	FrameBuffer createTextFrame(CharSequence text,BufferPool pool) {
+		int original = Utf8Encoder.length(text);
+		if(original < threshold) {
+			stats.uncompressed();
+			return FrameBuffer.createTextFrame(text, original, pool);
+		}
+
+		long start = System.nanoTime();
+		Codec codec = checkOut();
+		try {
+			byte [] bytes = codec.in(original);
+			Utf8Encoder.encode(text, original, bytes, 0);
+
+			int length = deflate(codec, deflater(codec), serverContextTakeover, bytes, original);
+			if(serverContextTakeover == false && length >= original) {
+				stats.uncompressed();
+				return FrameBuffer.createTextFrame(bytes, original, false, pool);
+			}
+
+			stats.deflated(original, length, System.nanoTime() - start);
+			return FrameBuffer.createTextFrame(codec.out, length, true, pool);
+		} finally {
+			checkIn(codec);
+		}
+	}
+
+	/**
+	 * Compress a shared frame for every user without context takeover, with a pooled
+	 * Deflater.
+	 *
+	 * @param frame
+	 * @param pool
+	 * @return the compressed frame holding one reference, or the frame itself if it is
+	 * under the threshold or compressing doesn't make it any smaller
+	 */
+	SharedFrame deflate(SharedFrame frame,BufferPool pool) {
+		ByteBuffer payload = frame.getPayload();
+		int original = payload.remaining();
+		if(original < threshold) {
+			stats.uncompressed();
+			return frame;
+		}
+
+		long start = System.nanoTime();
+		Codec codec = checkOut();
+		try {
+			byte [] bytes = codec.in(original);
+			payload.get(bytes, 0, original);
+
+			int length = deflate(codec, codec.deflater(), false, bytes, original);
+			if(length >= original) {
+				stats.uncompressed();
+				return frame;
+			}
+
+			stats.deflated(original, length, System.nanoTime() - start);
+			return SharedFrame.createTextFrame(codec.out, length, true, pool);
+		} finally {
+			checkIn(codec);
+		}
+	}
+
+	/**
+	 * Compress into the codec's output array, which is grown as needed.
+	 *
+	 * @param codec
+	 * @param deflater
+	 * @param keepContext
+	 * @param bytes
+	 * @param length
+	 * @return the compressed length, without the flush's trailing bytes
+	 */
+	private static int deflate(Codec codec,Deflater deflater,boolean keepContext,byte [] bytes,int length) {
+		deflater.setInput(bytes, 0, length);
+		int compressed = 0;
+		while(true) {
+			compressed += deflater.deflate(codec.out, compressed, codec.out.length - compressed, Deflater.SYNC_FLUSH);
+			// a full array means there may be more to come
+			if(compressed < codec.out.length) {
+				break;
+			}
+			codec.out = Arrays.copyOf(codec.out, codec.out.length * 2);
+		}
+
+		if(keepContext == false) {
+			deflater.reset();
+		}
+		return compressed - TAIL.length;
+	}
+
+	/**
+	 * Inflate a text message and decode it while the codec is still checked out.
+	 *
+	 * @param frames every frame of a compressed message, in order, or null
+	 * @param frame the only frame of the message when frames is null
+	 * @param maxLength the most the message may inflate to
+	 * @param text where the inflated bytes are decoded
+	 * @throws IOException if the message doesn't inflate, inflates too large or
+	 * isn't UTF-8
+	 */
+	void inflate(List<MaskedFrame> frames,MaskedFrame frame,int maxLength,Utf8Decoder text) throws IOException {
+		Codec codec = checkOut();
+		try {
+			text.decode(ByteBuffer.wrap(codec.out, 0, inflate(codec, frames, frame, maxLength)));
+		} finally {
+			checkIn(codec);
+		}
+	}
+
+	/**
+	 * For a listener that takes the bytes, copied out of the codec before it is
+	 * checked back in.
+	 *
+	 * @param frames every frame of a compressed message, in order, or null
+	 * @param frame the only frame of the message when frames is null
+	 * @param maxLength the most the message may inflate to
+	 * @return the inflated bytes
+	 * @throws IOException if the message doesn't inflate or inflates too large
+	 */
+	ByteBuffer inflatePayload(List<MaskedFrame> frames,MaskedFrame frame,int maxLength) throws IOException {
+		Codec codec = checkOut();
+		try {
+			return ByteBuffer.wrap(Arrays.copyOf(codec.out, inflate(codec, frames, frame, maxLength)));
+		} finally {
+			checkIn(codec);
+		}
+	}
+
+	/**
+	 * @param codec
+	 * @param frames
+	 * @param frame
+	 * @param maxLength
+	 * @return the length inflated into the codec's output array
+	 * @throws IOException
+	 */
+	private int inflate(Codec codec,List<MaskedFrame> frames,MaskedFrame frame,int maxLength) throws IOException {
+		long start = System.nanoTime();
+		Inflater inflater = inflater(codec);
+		long compressed = 0;
+		int length = 0;
+
+		try {
+			if(frames == null) {
+				length = inflate(codec, inflater, frame.getPayload(), length, maxLength);
+				compressed = frame.getPayload().remaining();
+			} else {
+				for(MaskedFrame fragment : frames) {
+					length = inflate(codec, inflater, fragment.getPayload(), length, maxLength);
+					compressed += fragment.getPayload().remaining();
+				}
+			}
+			length = inflate(codec, inflater, ByteBuffer.wrap(TAIL), length, maxLength);
+		} catch(DataFormatException e) {
+			throw new IOException("Invalid compressed message: " + e.getMessage());
+		} finally {
+			// a final block ends the context even with takeover
+			if(clientContextTakeover == false || inflater.finished()) {
+				inflater.reset();
+			}
+		}
+
+		stats.inflated(compressed, length, System.nanoTime() - start);
+		return length;
+	}
+
+	/**
+	 * Inflate a payload into the codec's output array after the first length bytes,
+	 * growing it as needed.
+	 *
+	 * @param codec
+	 * @param inflater
+	 * @param payload
+	 * @param length
+	 * @param maxLength
+	 * @return the inflated length so far
+	 * @throws DataFormatException
+	 * @throws CloseException if the message inflates past maxLength
+	 */
+	private static int inflate(Codec codec,Inflater inflater,ByteBuffer payload,int length,int maxLength) throws DataFormatException, CloseException {
+		int remaining = payload.remaining();
+		if(payload.hasArray()) {
+			inflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), remaining);
+		} else {
+			byte [] bytes = codec.in(remaining);
+			payload.duplicate().get(bytes, 0, remaining);
+			inflater.setInput(bytes, 0, remaining);
+		}
+
+		while(true) {
+			if(length == codec.out.length) {
+				if(length >= maxLength) {
+					throw new CloseException(WebSocketUser.CLOSE_TOO_BIG, "Compressed message inflates past " + maxLength + " bytes.  This might be malicious.");
+				}
+				codec.out = Arrays.copyOf(codec.out, Math.min(codec.out.length * 2, maxLength));
+			}
+
+			int inflated = inflater.inflate(codec.out, length, codec.out.length - length);
+			length += inflated;
+
+			// with room to spare nothing came out, so the input is used up
+			if(inflated == 0) {
+				return length;
+			}
+		}
+	}
+
+	private Deflater deflater(Codec codec) {
+		if(serverContextTakeover == false) {
+			return codec.deflater();
+		}
+		if(deflater == null) {
+			deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+		return deflater;
+	}
+
+	private Inflater inflater(Codec codec) {
+		if(clientContextTakeover == false) {
+			return codec.inflater();
+		}
+		if(inflater == null) {
+			inflater = new Inflater(true);
+		}
+		return inflater;
+	}
+
+	/**
+	 * Free the connection's own Deflater and Inflater, if it has them.  Nothing may be
+	 * compressed or inflated for the connection afterwards.
+	 */
+	void release() {
+		if(deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+		if(inflater != null) {
+			inflater.end();
+			inflater = null;
+		}
+	}
+
+}
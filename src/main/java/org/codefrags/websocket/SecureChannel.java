@@ -0,0 +1,418 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * TLS between an event loop's user and its socket, with an SSLEngine.
+ *
+ * Ciphertext is read into the event loop's shared network buffer and unwrapped
+ * straight into its shared read buffer, so, as with plain reads, a connection holds
+ * nothing between reads but the end of a record that hasn't all arrived, copied into
+ * a pooled buffer until the rest does.  Outgoing frames are wrapped with a gathering
+ * wrap into a pooled buffer that is only borrowed while the socket hasn't taken all
+ * of it.
+ *
+ * The engine's delegated tasks, the expensive part of a handshake, run on the
+ * server's TLS threads rather than the event loop's.  The user stops reading until
+ * they are done.
+ *
+ * Only used by the event loop's thread.
+ *
+ * @author Austin Miller
+ * @see org.codefrags.websocket.WebSocketServer#setSslContext(javax.net.ssl.SSLContext)
+ */
+class SecureChannel {
+	protected static final Logger logger = LoggerFactory.getLogger(SecureChannel.class);
+
+	/**
+	 * Room for a few records, so a flush takes one write.
+	 */
+	private static final int NET_OUT_SIZE = 1<<16;
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final SSLEngine engine;
+	private final SocketChannel channel;
+	private final BufferPool bufferPool;
+	private final Executor tasks;
+	private final Runnable tasksDone;
+	private int packetSize;
+	private int applicationSize;
+
+	/**
+	 * A record cut off at the end of the last read, or whatever was left when the
+	 * handshake stopped for its tasks.  Null the rest of the time.
+	 */
+	private ByteBuffer netIn;
+
+	/**
+	 * Wrapped and not yet written, left ready to wrap into.  Null when there is none.
+	 */
+	private ByteBuffer netOut;
+	private boolean tasksRunning;
+	private boolean inboundDone;
+
+	/**
+	 * @param engine a server mode engine
+	 * @param channel
+	 * @param bufferPool
+	 * @param tasks runs the handshake's delegated tasks
+	 * @param tasksDone called on the task thread once they have run
+	 */
+	SecureChannel(SSLEngine engine,SocketChannel channel,BufferPool bufferPool,Executor tasks,Runnable tasksDone) {
+		this.engine = engine;
+		this.channel = channel;
+		this.bufferPool = bufferPool;
+		this.tasks = tasks;
+		this.tasksDone = tasksDone;
+		engine.setUseClientMode(false);
+		updateSizes();
+	}
+
+	private void updateSizes() {
+		packetSize = engine.getSession().getPacketBufferSize();
+		applicationSize = engine.getSession().getApplicationBufferSize();
+	}
+
+	/**
+	 * Put the ciphertext kept from last time back at the front of net and read what
+	 * the socket has after it.
+	 *
+	 * @param net the event loop's network buffer, left ready to unwrap from
+	 * @return the bytes read, -1 if the socket is closed
+	 * @throws IOException
+	 */
+	int read(ByteBuffer net) throws IOException {
+		restore(net);
+		int read = channel.read(net);
+		net.flip();
+		return read;
+	}
+
+	/**
+	 * @param net cleared, and left ready to fill after the ciphertext kept from last time
+	 */
+	void restore(ByteBuffer net) {
+		net.clear();
+		if(netIn != null) {
+			netIn.flip();
+			net.put(netIn);
+			bufferPool.release(netIn);
+			netIn = null;
+		}
+	}
+
+	/**
+	 * Copy out what couldn't be unwrapped yet, as the network buffer is shared.
+	 *
+	 * @param net
+	 */
+	void keep(ByteBuffer net) {
+		if(net.hasRemaining()) {
+			netIn = bufferPool.acquire(net.remaining());
+			netIn.put(net);
+		}
+	}
+
+	/**
+	 * Unwrap records from net into app, answering the handshake on the way.  Stops at a
+	 * record cut off at the end of net, when app has no room for another record, or
+	 * when the handshake has to wait for its tasks or for the socket.
+	 *
+	 * @param net
+	 * @param app
+	 * @return whether it stopped for room in app, with more to unwrap once it is emptied
+	 * @throws IOException
+	 */
+	boolean unwrap(ByteBuffer net,ByteBuffer app) throws IOException {
+		while(tasksRunning == false && inboundDone == false) {
+			HandshakeStatus status = engine.getHandshakeStatus();
+			if(status == HandshakeStatus.NEED_TASK) {
+				runTasks();
+				continue;
+			}
+
+			if(status == HandshakeStatus.NEED_WRAP) {
+				if(wrap(EMPTY) == false) {
+					return false;
+				}
+				continue;
+			}
+
+			if(net.hasRemaining() == false) {
+				return false;
+			}
+
+			if(app.remaining() < applicationSize) {
+				return true;
+			}
+
+			SSLEngineResult result = engine.unwrap(net, app);
+			switch(result.getStatus()) {
+			case BUFFER_UNDERFLOW:
+				return false;
+			case BUFFER_OVERFLOW:
+				// the session grew its buffers once the handshake settled on a protocol
+				updateSizes();
+				return true;
+			case CLOSED:
+				inboundDone = true;
+				return false;
+			default:
+				break;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Wrap as much of the buffers as there is room for and hand the socket what it will
+	 * take.
+	 *
+	 * @param srcs
+	 * @param offset
+	 * @param length
+	 * @return the plain bytes taken from the buffers
+	 * @throws IOException
+	 */
+	long write(ByteBuffer [] srcs,int offset,int length) throws IOException {
+		long consumed = 0;
+
+		while(tasksRunning == false && hasRemaining(srcs, offset, length) && room()) {
+			if(engine.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+				runTasks();
+				continue;
+			}
+
+			SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+			if(check(result) == false) {
+				break;
+			}
+			consumed += result.bytesConsumed();
+		}
+
+		writeOut();
+		return consumed;
+	}
+
+	/**
+	 * @param src
+	 * @return the plain bytes taken from src
+	 * @throws IOException
+	 */
+	long write(ByteBuffer src) throws IOException {
+		return write(new ByteBuffer [] { src }, 0, 1);
+	}
+
+	/**
+	 * Write the ciphertext waiting for the socket and carry on with a handshake that
+	 * has more to send.
+	 *
+	 * @return whether the socket took everything, so the user can go on with its own
+	 * @throws IOException
+	 */
+	boolean flush() throws IOException {
+		while(tasksRunning == false && engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+			if(wrap(EMPTY) == false) {
+				return false;
+			}
+		}
+		return writeOut();
+	}
+
+	/**
+	 * @return whether {@link #flush()} has anything to do
+	 */
+	boolean hasPendingOutput() {
+		return netOut != null
+				|| (tasksRunning == false && engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP);
+	}
+
+	/**
+	 * A handshake record, or close_notify.
+	 *
+	 * @param src
+	 * @return false if there was no room for the record, even after writing what was
+	 * waiting
+	 * @throws IOException
+	 */
+	private boolean wrap(ByteBuffer src) throws IOException {
+		if(room() == false) {
+			return false;
+		}
+		check(engine.wrap(src, netOut));
+		return true;
+	}
+
+	/**
+	 * @param result
+	 * @return whether the wrap made progress
+	 * @throws IOException
+	 */
+	private boolean check(SSLEngineResult result) throws IOException {
+		switch(result.getStatus()) {
+		case BUFFER_OVERFLOW:
+			updateSizes();
+			if(packetSize > netOut.capacity()) {
+				throw new IOException("TLS records of " + packetSize + " bytes are too large");
+			}
+			return writeOut() || netOut.remaining() >= packetSize;
+		case CLOSED:
+			if(engine.isOutboundDone() == false || result.bytesProduced() == 0) {
+				throw new IOException("TLS connection closed");
+			}
+			return false;
+		default:
+			return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+		}
+	}
+
+	/**
+	 * Make sure the outgoing buffer can take another record, writing what it holds if
+	 * need be.
+	 *
+	 * @return false if the socket wouldn't take enough
+	 * @throws IOException
+	 */
+	private boolean room() throws IOException {
+		if(netOut != null && netOut.remaining() < packetSize) {
+			writeOut();
+		}
+
+		if(netOut == null) {
+			netOut = bufferPool.acquire(Math.max(NET_OUT_SIZE, packetSize));
+		}
+		return netOut.remaining() >= packetSize;
+	}
+
+	/**
+	 * @return whether the socket took everything wrapped so far
+	 * @throws IOException
+	 */
+	private boolean writeOut() throws IOException {
+		if(netOut == null) {
+			return true;
+		}
+
+		netOut.flip();
+		channel.write(netOut);
+		netOut.compact();
+
+		if(netOut.position() == 0) {
+			bufferPool.release(netOut);
+			netOut = null;
+			return true;
+		}
+		return false;
+	}
+
+	private static boolean hasRemaining(ByteBuffer [] srcs,int offset,int length) {
+		for(int i = offset;i<offset + length;++i) {
+			if(srcs[i].hasRemaining()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Hand the delegated tasks to the TLS threads, or run them here if those are gone.
+	 */
+	private void runTasks() {
+		final List<Runnable> delegated = new ArrayList<Runnable>(2);
+		Runnable task;
+		while((task = engine.getDelegatedTask()) != null) {
+			delegated.add(task);
+		}
+
+		tasksRunning = true;
+		try {
+			tasks.execute(new Runnable() {
+				public void run() {
+					for(Runnable task : delegated) {
+						task.run();
+					}
+					tasksDone.run();
+				}
+			});
+		} catch(RejectedExecutionException e) {
+			for(Runnable rejected : delegated) {
+				rejected.run();
+			}
+			tasksRunning = false;
+		}
+	}
+
+	/**
+	 * Called on the event loop's thread once the tasks have run.
+	 */
+	void tasksDone() {
+		tasksRunning = false;
+	}
+
+	/**
+	 * @return whether the user should stop reading until {@link #tasksDone()}
+	 */
+	boolean isTasksRunning() {
+		return tasksRunning;
+	}
+
+	/**
+	 * @return whether the client sent close_notify
+	 */
+	boolean isInboundDone() {
+		return inboundDone;
+	}
+
+	/**
+	 * Send close_notify if the socket will take it right away.  The client isn't
+	 * waited for.
+	 */
+	void close() {
+		engine.closeOutbound();
+		try {
+			flush();
+		} catch(IOException e) {
+			logger.debug("No close_notify: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Give back the pooled buffers.
+	 */
+	void release() {
+		bufferPool.release(netIn);
+		bufferPool.release(netOut);
+		netIn = null;
+		netOut = null;
+	}
+
+}
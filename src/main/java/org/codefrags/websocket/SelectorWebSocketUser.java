@@ -0,0 +1,1455 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+
+import org.codefrags.websocket.WebSocketServer.OverflowPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A user of the {@link WebSocketServer.Engine#SELECTOR} engine.  This class is
+ * responsible for sending and receiving websocket frames in an NIO compatible way.
+ * It is also intended to negotiate the header acceptance and all control frames,
+ * pings, pongs, and close.  Actual frame manipulation is done by other classes.
+ * 
+ * It is owned by the thread of a single {@link EventLoop}, so all public interface
+ * methods need to be thread safe or throw ConcurrentModificationException.
+ *  
+ * @author Austin Miller
+ * @see org.codefrags.websocket.EventLoop
+ */
+class SelectorWebSocketUser extends WebSocketUser {
+	protected static final Logger logger = LoggerFactory.getLogger(SelectorWebSocketUser.class);
+	
+	/**
+	 * The most frames handed to a single gathering write, well under IOV_MAX.
+	 */
+	private static final int MAX_GATHER = 128;
+	
+	/**
+	 * How often, in milliseconds, a sender blocked on a full queue looks again in case
+	 * the connection went away without waking it.
+	 */
+	private static final long BLOCK_CHECK_INTERVAL = 100;
+	
+	private EventLoop eventLoop;
+	private SocketChannel socketChannel;
+	
+	/**
+	 * Null unless the server speaks TLS.
+	 */
+	private SecureChannel secure;
+	
+	private FrameQueue outgoingFrames;
+	private List<MaskedFrame> frames;
+	
+	/**
+	 * Reads go into the event loop's shared buffer.  Only bytes that couldn't be
+	 * handled yet, such as an incomplete handshake, are copied out into leftover,
+	 * which is borrowed from the pool and null the rest of the time.  The same goes
+	 * for out, which holds the handshake response until it is written.
+	 */
+	private ByteBuffer leftover;
+	private ByteBuffer out;
+	
+	/**
+	 * Only until the handshake is answered.
+	 */
+	private HandshakeParser handshake;
+	private BufferPool bufferPool;
+	private MaskedFrame frame;
+	private FrameDecoder decoder;
+	
+	/**
+	 * Set once the connection is to be closed as soon as the close frame queued has
+	 * been written, reading nothing more meanwhile.
+	 */
+	private boolean closeAfterWrite;
+	
+	/**
+	 * The worker that makes this user's listener callbacks, null if the event loop
+	 * makes them.  While the worker's ring is full the user is stalled: it doesn't
+	 * read and holds on to the callbacks it couldn't hand over, of which there is at
+	 * most one of each kind.
+	 */
+	private Worker worker;
+	private boolean stalled;
+	private boolean openPending;
+	
+	/**
+	 * MESSAGE_START or BINARY_START, 0 when neither is waiting.
+	 */
+	private int startPending;
+	private ByteBuffer payloadPending;
+	private int payloadType;
+	private String messagePending;
+	private boolean closePending;
+	private volatile long pingSentTime = 0;
+	
+	/**
+	 * Ping, pong and idle deadlines all share the one timeout on the event loop's
+	 * timing wheel, set for whichever comes first.
+	 */
+	private TimingWheel.Timeout timer;
+	private long lastReadTime;
+	private long pingInterval;
+	private long idleTimeout;
+	
+	/**
+	 * How much earlier than the interval the first ping goes out, so connections
+	 * accepted together aren't pinged together.
+	 */
+	private long pingJitter;
+	private int read;
+	private Status status = Status.CONNECTING;
+	
+	private AtomicBoolean writeScheduled = new AtomicBoolean(false);
+	private AtomicBoolean closed = new AtomicBoolean(false);
+	
+	/**
+	 * The topics the user is subscribed to and its index in each.  Only touched by
+	 * the event loop's thread.
+	 */
+	private Map<Topic,Integer> subscriptions;
+	
+	/**
+	 * Frames taken off the queue for the gathering write.  The live entries are
+	 * gather[gatherOffset] through gather[gatherOffset + gatherLength - 1], the first
+	 * of which may be partially written.
+	 */
+	private ByteBuffer [] gather;
+	private FrameBuffer [] gatherFrames;
+	private int gatherOffset;
+	private int gatherLength;
+	private long gatherBytes;
+	private int maxBytesPerFlush;
+	
+	private AtomicLong droppedFrames = new AtomicLong(0);
+	private AtomicBoolean writable = new AtomicBoolean(true);
+	private boolean notifiedWritable = true;
+	private AtomicBoolean trimScheduled = new AtomicBoolean(false);
+	private AtomicInteger blockedSenders = new AtomicInteger(0);
+	private final Object sendLock = new Object();
+	private int highWaterMark;
+	private int lowWaterMark;
+	private long maxQueuedBytes;
+	private OverflowPolicy overflowPolicy;
+	
+	SelectorWebSocketUser(EventLoop eventLoop,SocketChannel socketChannel,WebSocketListener webSocketListener,String protocol) throws IOException {
+		super(eventLoop.getServer(), webSocketListener, protocol);
+		this.eventLoop = eventLoop;
+		this.maxBytesPerFlush = eventLoop.getServer().getMaxBytesPerFlush();
+		this.bufferPool = eventLoop.getServer().getBufferPool();
+		this.highWaterMark = eventLoop.getServer().getHighWaterMark();
+		this.lowWaterMark = eventLoop.getServer().getLowWaterMark();
+		this.maxQueuedBytes = eventLoop.getServer().getMaxQueuedBytes();
+		this.overflowPolicy = eventLoop.getServer().getOverflowPolicy();
+		this.pingInterval = eventLoop.getServer().getPingInterval();
+		this.idleTimeout = eventLoop.getServer().getIdleTimeout();
+		this.socketChannel = socketChannel;
+		
+		this.outgoingFrames = new FrameQueue();
+		this.frames = new ArrayList<MaskedFrame>();
+		this.handshake = new HandshakeParser();
+		this.decoder = newDecoder(eventLoop.getServer());
+		this.subscriptions = new HashMap<Topic,Integer>(4);
+		this.gather = new ByteBuffer[MAX_GATHER];
+		this.gatherFrames = new FrameBuffer[MAX_GATHER];
+		this.timer = new TimingWheel.Timeout() {
+			void expire(long now) {
+				checkDeadlines(now);
+			}
+		};
+		
+		SSLContext sslContext = eventLoop.getServer().getSslContext();
+		if(sslContext != null) {
+			this.secure = new SecureChannel(sslContext.createSSLEngine(), socketChannel, bufferPool,
+					eventLoop.getServer().getTlsExecutor(), new Runnable() {
+						public void run() {
+							SelectorWebSocketUser.this.eventLoop.tasksDone(SelectorWebSocketUser.this);
+						}
+					});
+		}
+		
+		WorkerGroup workers = eventLoop.getServer().getWorkerGroup();
+		if(workers != null) {
+			this.worker = workers.workerFor(this);
+		}
+	}
+	
+	@Override
+	boolean isClosed() {
+		return closed.get();
+	}
+
+	SocketChannel getSocketChannel() {
+		return socketChannel;
+	}
+
+	EventLoop getEventLoop() {
+		return eventLoop;
+	}
+	
+	@Override
+	public void send(CharSequence message) {
+		PerMessageDeflate deflate = getDeflate();
+		if(deflate == null) {
+			enqueue(FrameBuffer.createTextFrame(message, bufferPool));
+			return;
+		}
+		
+		if(deflate.isServerContextTakeover() == false) {
+			enqueue(deflate.createTextFrame(message, bufferPool));
+			return;
+		}
+		
+		// the client inflates in the order frames are queued, so compress in that order
+		synchronized(deflate) {
+			if(closed.get() == false) {
+				enqueue(deflate.createTextFrame(message, bufferPool));
+			}
+		}
+	}
+
+	/**
+	 * Copied straight into the frame as it is queued.
+	 */
+	@Override
+	public void send(ByteBuffer message) {
+		enqueue(FrameBuffer.createBinaryFrame(message, bufferPool));
+	}
+	
+	@Override
+	public void send(byte [] message,int offset,int length) {
+		enqueue(FrameBuffer.createBinaryFrame(message, offset, length, bufferPool));
+	}
+
+	@Override
+	public void subscribe(String topic) {
+		eventLoop.subscribe(this, topic);
+	}
+
+	@Override
+	public void unsubscribe(String topic) {
+		eventLoop.unsubscribe(this, topic);
+	}
+
+	/**
+	 * Intentionally package private.
+	 * 
+	 * @return
+	 */
+	Map<Topic,Integer> getSubscriptions() {
+		return subscriptions;
+	}
+
+	/**
+	 * Queues a view of the frame, holding a reference to the frame until it is written.
+	 */
+	@Override
+	public void send(SharedFrame frame) {
+		enqueue(viewFor(frame));
+	}
+
+	@Override
+	public boolean isWritable() {
+		return writable.get();
+	}
+
+	@Override
+	public long getQueuedBytes() {
+		return outgoingFrames.getBytes();
+	}
+
+	@Override
+	public long getDroppedFrames() {
+		return droppedFrames.get();
+	}
+
+	/**
+	 * Queue a data frame, first applying the overflow policy if the queue is full.
+	 * 
+	 * @param frameBuffer
+	 */
+	private void enqueue(FrameBuffer frameBuffer) {
+		if(hasRoom(frameBuffer.size()) == false && overflow(frameBuffer) == false) {
+			return;
+		}
+		queue(frameBuffer);
+	}
+
+	/**
+	 * Control frames are small and the protocol depends on them, so they are queued
+	 * regardless of the overflow policy.
+	 * 
+	 * @param frameBuffer
+	 */
+	private void enqueueControl(FrameBuffer frameBuffer) {
+		queue(frameBuffer);
+	}
+
+	/**
+	 * Queue a frame and let the event loop know there is something to write.  Only the
+	 * first enqueue after a drain schedules the user, the rest ride along.
+	 * 
+	 * @param frameBuffer
+	 */
+	private void queue(FrameBuffer frameBuffer) {
+		long bytes = outgoingFrames.offer(frameBuffer);
+		
+		// raced with close, which may already have drained the queue
+		if(closed.get()) {
+			releaseQueuedLater();
+			return;
+		}
+		
+		if(bytes > highWaterMark && writable.compareAndSet(true, false)) {
+			writabilityChanged();
+		}
+		scheduleWrite();
+	}
+
+	/**
+	 * A frame always fits in an empty queue, however large it is.
+	 * 
+	 * @param size
+	 * @return whether a frame of size bytes fits under maxQueuedBytes
+	 */
+	private boolean hasRoom(int size) {
+		long queued = outgoingFrames.getBytes();
+		return queued == 0 || queued + size <= maxQueuedBytes;
+	}
+
+	/**
+	 * Apply the overflow policy to a frame that doesn't fit.
+	 * 
+	 * @param frameBuffer
+	 * @return whether to queue the frame after all
+	 */
+	private boolean overflow(FrameBuffer frameBuffer) {
+		switch(overflowPolicy) {
+		case BLOCK:
+			if(EventLoop.current() != null) {
+				break;
+			}
+			if(awaitRoom(frameBuffer.size())) {
+				return true;
+			}
+			droppedFrames.incrementAndGet();
+			frameBuffer.release();
+			return false;
+		case DROP_NEWEST:
+			droppedFrames.incrementAndGet();
+			frameBuffer.release();
+			return false;
+		case DROP_OLDEST:
+			scheduleTrim();
+			return true;
+		default:
+			break;
+		}
+		
+		logger.warn("Outgoing queue of user {} is over {} bytes, failing the connection", getId(), maxQueuedBytes);
+		frameBuffer.release();
+		fail();
+		return false;
+	}
+
+	/**
+	 * Wait for the event loop to write enough to make room and, if the queue went over
+	 * the high water mark, to bring it back down to the low one, so a blocked sender
+	 * isn't woken for every write.
+	 * 
+	 * @param size
+	 * @return false if the connection closed or the thread was interrupted first
+	 */
+	private boolean awaitRoom(int size) {
+		blockedSenders.incrementAndGet();
+		try {
+			synchronized(sendLock) {
+				while(hasRoom(size) == false || writable.get() == false) {
+					if(closed.get()) {
+						return false;
+					}
+					sendLock.wait(BLOCK_CHECK_INTERVAL);
+				}
+			}
+			return true;
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			blockedSenders.decrementAndGet();
+		}
+	}
+
+	private void wakeBlockedSenders() {
+		if(blockedSenders.get() > 0) {
+			synchronized(sendLock) {
+				sendLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Have the event loop drop the oldest queued frames.  Only the loop takes frames
+	 * off the queue.
+	 */
+	private void scheduleTrim() {
+		if(trimScheduled.compareAndSet(false, true)) {
+			eventLoop.execute(new Runnable() {
+				public void run() {
+					trimScheduled.set(false);
+					dropOldest();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Drop data frames from the front of the queue until it is back under
+	 * maxQueuedBytes.  Control frames found on the way skip ahead to the gather array
+	 * instead.  Only called on the event loop's thread.
+	 */
+	private void dropOldest() {
+		FrameBuffer oldest;
+		while(outgoingFrames.getBytes() > maxQueuedBytes && (oldest = outgoingFrames.peek()) != null) {
+			if(oldest.isControl()) {
+				if(appendGather() == false) {
+					break;
+				}
+				continue;
+			}
+			
+			outgoingFrames.poll();
+			droppedFrames.incrementAndGet();
+			written(oldest.size());
+			oldest.release();
+		}
+	}
+
+	/**
+	 * Called when queued bytes leave the queue, written or dropped.
+	 * 
+	 * @param bytes
+	 */
+	private void written(long bytes) {
+		if(bytes == 0) {
+			return;
+		}
+		
+		long remaining = outgoingFrames.written(bytes);
+		if(remaining <= lowWaterMark && writable.compareAndSet(false, true)) {
+			writabilityChanged();
+		}
+		wakeBlockedSenders();
+	}
+
+	/**
+	 * Let a {@link WritabilityListener} know, on the event loop's thread.
+	 */
+	private void writabilityChanged() {
+		if(getWebSocketListener() instanceof WritabilityListener == false) {
+			return;
+		}
+		
+		if(eventLoop.inEventLoop()) {
+			notifyWritability();
+			return;
+		}
+		
+		eventLoop.execute(new Runnable() {
+			public void run() {
+				notifyWritability();
+			}
+		});
+	}
+
+	/**
+	 * Changes can race, so report the state as it is now and only if it differs from
+	 * what the listener was last told.
+	 */
+	private void notifyWritability() {
+		boolean now = writable.get();
+		if(now == notifiedWritable || closed.get()) {
+			return;
+		}
+		notifiedWritable = now;
+		
+		try {
+			((WritabilityListener) getWebSocketListener()).onWritabilityChanged(this, now);
+		} catch(Exception e) {
+			logger.error(e.getMessage(),e);
+		}
+	}
+
+	/**
+	 * Drop everything still queued.  Only called on the event loop's thread.
+	 */
+	private void releaseQueued() {
+		FrameBuffer frameBuffer;
+		while((frameBuffer = outgoingFrames.poll()) != null) {
+			outgoingFrames.written(frameBuffer.size());
+			frameBuffer.release();
+		}
+	}
+
+	/**
+	 * Only the event loop takes frames off the queue, so a frame queued after close
+	 * is dropped there.
+	 */
+	private void releaseQueuedLater() {
+		if(eventLoop.inEventLoop()) {
+			releaseQueued();
+			return;
+		}
+		
+		eventLoop.execute(new Runnable() {
+			public void run() {
+				releaseQueued();
+			}
+		});
+	}
+
+	private void scheduleWrite() {
+		if(writeScheduled.compareAndSet(false, true)) {
+			eventLoop.scheduleWrite(this);
+		}
+	}
+
+	/**
+	 * Intentionally package private.
+	 * 
+	 * Called by the event loop after a write pass.  Clears the scheduled flag before
+	 * checking for pending data so a concurrent enqueue is never lost.
+	 * 
+	 * @return whether there is nothing left that the user is able to write
+	 */
+	boolean writeDone() {
+		writeScheduled.set(false);
+		
+		if(hasPendingWrites() == false) {
+			return true;
+		}
+		
+		writeScheduled.set(true);
+		return false;
+	}
+
+	/**
+	 * @return whether {@link #write()} has anything to send in the current status
+	 */
+	private boolean hasPendingWrites() {
+		if(secure != null && secure.hasPendingOutput()) {
+			return true;
+		}
+		
+		switch(status) {
+		case RESPONDING:
+			return out != null;
+		case OPEN:
+		case CLOSING:
+			return gatherLength > 0 || outgoingFrames.isEmpty() == false;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Attempt to write outgoing data across the socket. Writes header and
+	 * frame data.
+	 * 
+	 * @throws IOException 
+	 */
+	void write() throws IOException {
+		
+		// ciphertext already wrapped, and the TLS handshake, go first
+		if(secure != null && secure.flush() == false) {
+			return;
+		}
+		
+		if(status == Status.RESPONDING) {
+			
+			writeOut();
+			
+			if(out != null) {
+				return;
+			}
+			status = Status.OPEN;
+		}
+		
+		// the close frame, and whatever was queued before it, still goes out
+		if (status == Status.OPEN || status == Status.CLOSING) {
+			writeFrames();
+		}
+	}
+	
+	/**
+	 * Intentionally package private.
+	 * 
+	 * @return whether the close frame the connection was waiting to write has gone
+	 * out, so it can be closed
+	 */
+	boolean isCloseWritten() {
+		return closeAfterWrite && hasPendingWrites() == false;
+	}
+
+	/**
+	 * Hand as many queued frames as fit under maxBytesPerFlush to the socket in a
+	 * single gathering write, then drop the ones that went out completely.  A frame
+	 * the socket only took part of stays at the front for the next call.
+	 * 
+	 * @throws IOException
+	 */
+	private void writeFrames() throws IOException {
+		fillGather();
+		
+		if(gatherLength == 0) {
+			return;
+		}
+		
+		long bytes;
+		if(secure == null) {
+			bytes = socketChannel.write(gather, gatherOffset, gatherLength);
+		} else {
+			bytes = secure.write(gather, gatherOffset, gatherLength);
+		}
+		gatherBytes -= bytes;
+		
+		while(gatherLength > 0 && gather[gatherOffset].hasRemaining() == false) {
+			gather[gatherOffset] = null;
+			gatherFrames[gatherOffset].release();
+			gatherFrames[gatherOffset] = null;
+			++gatherOffset;
+			--gatherLength;
+		}
+		
+		if(gatherLength == 0) {
+			gatherOffset = 0;
+		}
+		
+		written(bytes);
+	}
+
+	/**
+	 * Top up the gather array from the queue in one batch.  At least one frame is
+	 * always taken so a frame larger than the cap still goes out.
+	 */
+	private void fillGather() {
+		if(gatherLength > 0 && gatherBytes >= maxBytesPerFlush) {
+			return;
+		}
+		compactGather();
+		
+		int end = gatherOffset + gatherLength;
+		int count = outgoingFrames.drain(gatherFrames, end, MAX_GATHER - end, maxBytesPerFlush - gatherBytes);
+		
+		for(int i = end;i<end + count;++i) {
+			ByteBuffer buffer = gatherFrames[i].getBuffer();
+			gather[i] = buffer;
+			gatherBytes += buffer.remaining();
+		}
+		gatherLength += count;
+	}
+
+	/**
+	 * Move the frame at the front of the queue to the end of the gather array.
+	 * 
+	 * @return false if the queue is empty or the gather array is full
+	 */
+	private boolean appendGather() {
+		compactGather();
+		
+		int end = gatherOffset + gatherLength;
+		FrameBuffer frameBuffer;
+		
+		if(end == MAX_GATHER || (frameBuffer = outgoingFrames.poll()) == null) {
+			return false;
+		}
+		
+		ByteBuffer buffer = frameBuffer.getBuffer();
+		gather[end] = buffer;
+		gatherFrames[end] = frameBuffer;
+		gatherBytes += buffer.remaining();
+		++gatherLength;
+		return true;
+	}
+
+	/**
+	 * Shift the live entries to the front once the gather array's end is reached.
+	 */
+	private void compactGather() {
+		if(gatherOffset + gatherLength == MAX_GATHER && gatherOffset > 0) {
+			System.arraycopy(gather, gatherOffset, gather, 0, gatherLength);
+			System.arraycopy(gatherFrames, gatherOffset, gatherFrames, 0, gatherLength);
+			Arrays.fill(gather, gatherLength, MAX_GATHER, null);
+			Arrays.fill(gatherFrames, gatherLength, MAX_GATHER, null);
+			gatherOffset = 0;
+		}
+	}
+
+	/**
+	 * @throws IOException 
+	 * 
+	 */
+	private void writeOut() throws IOException {
+		if(secure != null) {
+			secure.write(out);
+		} else if(socketChannel.write(out) == -1) {
+			throw new IOException("socket is no longer valid");
+		}
+		
+		if(out.position() == out.limit()) {
+			bufferPool.release(out);
+			out = null;
+		}
+	}
+
+	/**
+	 * Intentionally package private.
+	 * 
+	 * Read as many bytes as we can and handle the result.  The buffer belongs to the
+	 * event loop and is shared by all its users, so anything left unhandled is copied
+	 * out before returning and put back in front of the next read.
+	 * 
+	 * @param buffer the event loop's read buffer
+	 * @throws IOException 
+	 */
+	boolean read(ByteBuffer buffer) throws IOException {
+		if(status == Status.CLOSING) {
+			return false;
+		}
+		
+		// the key may have been selected before the user stalled
+		if(stalled) {
+			return true;
+		}
+		
+		if (socketChannel.isConnected() == false) {
+			return false;
+		}
+		
+		if(secure != null) {
+			return readSecure(buffer);
+		}
+		
+		buffer.clear();
+		restoreLeftover(buffer);
+		
+		read = socketChannel.read(buffer);
+		buffer.flip();
+		
+		if(read == -1) {
+			return false; // connection reset by peer
+		}
+		
+		// we should never really read 0, but there may be leftover bytes to keep
+		if(read > 0) {
+			lastReadTime = System.currentTimeMillis();
+			handle(buffer);
+		}
+		
+		keepLeftover(buffer);
+		return true;
+
+	}
+
+	/**
+	 * Read ciphertext into the event loop's network buffer and unwrap it into the read
+	 * buffer.
+	 * 
+	 * @param buffer the event loop's read buffer
+	 * @return false once the socket or the TLS connection is closed
+	 * @throws IOException
+	 */
+	private boolean readSecure(ByteBuffer buffer) throws IOException {
+		ByteBuffer net = eventLoop.getNetBuffer();
+		read = secure.read(net);
+		
+		if(read == -1) {
+			return false;
+		}
+		
+		if(read > 0) {
+			lastReadTime = System.currentTimeMillis();
+		}
+		
+		unwrap(net, buffer);
+		return secure.isInboundDone() == false;
+	}
+
+	/**
+	 * Unwrap and handle a read buffer's worth at a time.  Whatever can't be unwrapped
+	 * or handled yet is copied out for next time, as both buffers are shared.
+	 * 
+	 * @param net the event loop's network buffer, ready to unwrap from
+	 * @param buffer the event loop's read buffer
+	 * @throws IOException
+	 */
+	private void unwrap(ByteBuffer net,ByteBuffer buffer) throws IOException {
+		buffer.clear();
+		restoreLeftover(buffer);
+		
+		while(true) {
+			boolean more = secure.unwrap(net, buffer);
+			buffer.flip();
+			handle(buffer);
+			
+			// stalled, or closing
+			if(more == false || buffer.hasRemaining()) {
+				break;
+			}
+			buffer.clear();
+		}
+		
+		keepLeftover(buffer);
+		secure.keep(net);
+		
+		if(secure.isTasksRunning()) {
+			eventLoop.setReading(this, false);
+		}
+		if(secure.hasPendingOutput()) {
+			scheduleWrite();
+		}
+	}
+
+	/**
+	 * Intentionally package private.
+	 * 
+	 * Called by the event loop once the TLS handshake's delegated tasks have run, to
+	 * carry on with it.
+	 * 
+	 * @param buffer the event loop's read buffer
+	 * @throws IOException
+	 */
+	void tasksDone(ByteBuffer buffer) throws IOException {
+		secure.tasksDone();
+		if(closed.get()) {
+			return;
+		}
+		
+		if(stalled == false && closeAfterWrite == false) {
+			eventLoop.setReading(this, true);
+			ByteBuffer net = eventLoop.getNetBuffer();
+			secure.restore(net);
+			net.flip();
+			unwrap(net, buffer);
+		}
+		scheduleWrite();
+	}
+
+	/**
+	 * Put the bytes kept from last time at the front of the buffer.
+	 * 
+	 * @param buffer cleared
+	 */
+	private void restoreLeftover(ByteBuffer buffer) {
+		if(leftover != null) {
+			leftover.flip();
+			buffer.put(leftover);
+			bufferPool.release(leftover);
+			leftover = null;
+		}
+	}
+
+	/**
+	 * @param buffer
+	 * @throws IOException
+	 */
+	private void handle(ByteBuffer buffer) throws IOException {
+		switch(status) {
+		case CONNECTING:
+			receiveClientHeader(buffer);
+			break;
+		case OPEN:
+			readIntoFrame(buffer);
+			break;
+		case RESPONDING:
+			readIntoFrame(buffer);
+			break;
+		default:
+			break;
+		
+		}
+	}
+
+	/**
+	 * Copy whatever wasn't handled out of the event loop's buffer.
+	 * 
+	 * @param buffer
+	 */
+	private void keepLeftover(ByteBuffer buffer) {
+		if(buffer.hasRemaining()) {
+			leftover = bufferPool.acquire(buffer.remaining());
+			leftover.put(buffer);
+		}
+	}
+
+	/**
+	 * Intentionally package private.
+	 * 
+	 * Called by the event loop once the user has registered.
+	 */
+	void opened() {
+		dispatch(Worker.NEW_USER, null, null);
+	}
+
+	@Override
+	void deliver(int type,String message,ByteBuffer payload) {
+		dispatch(type, message, payload);
+	}
+
+	/**
+	 * Make a listener callback, or hand it to the user's worker.  If the worker's ring
+	 * is full, or callbacks are already waiting for it, the callback waits too and the
+	 * user stops reading.
+	 * 
+	 * A payload handed to the worker is copied into a pooled buffer first, as the one
+	 * given is usually part of the event loop's read buffer.
+	 * 
+	 * @param type
+	 * @param message
+	 * @param payload
+	 */
+	private void dispatch(int type,String message,ByteBuffer payload) {
+		if(worker == null) {
+			Worker.deliver(getWebSocketListener(), this, type, message, payload);
+			return;
+		}
+		
+		if(payload != null) {
+			ByteBuffer copy = bufferPool.acquire(payload.remaining());
+			copy.put(payload);
+			copy.flip();
+			payload = copy;
+		}
+		
+		if(stalled == false && worker.dispatch(this, type, message, payload, eventLoop)) {
+			return;
+		}
+		
+		switch(type) {
+		case Worker.NEW_USER:
+			openPending = true;
+			break;
+		case Worker.MESSAGE_START:
+		case Worker.BINARY_START:
+			startPending = type;
+			break;
+		case Worker.FRAGMENT:
+		case Worker.LAST_FRAGMENT:
+		case Worker.BINARY_MESSAGE:
+			payloadPending = payload;
+			payloadType = type;
+			break;
+		case Worker.MESSAGE:
+			messagePending = message;
+			break;
+		default:
+			closePending = true;
+			break;
+		}
+		
+		if(stalled == false) {
+			stalled = true;
+			eventLoop.stall(this);
+		}
+	}
+
+	/**
+	 * Intentionally package private.
+	 * 
+	 * Called by the event loop once the worker has room.  Hands over the waiting
+	 * callbacks and, if that worked, carries on with bytes that were read but not yet
+	 * handled, as there may be no more coming to wake the selector.
+	 * 
+	 * @param buffer the event loop's read buffer
+	 * @throws IOException
+	 */
+	void resume(ByteBuffer buffer) throws IOException {
+		if(handOverPending() == false) {
+			eventLoop.stall(this);
+			return;
+		}
+		
+		stalled = false;
+		if(closed.get() || closeAfterWrite) {
+			return;
+		}
+		
+		if(secure != null) {
+			if(secure.isTasksRunning()) {
+				return;
+			}
+			eventLoop.setReading(this, true);
+			ByteBuffer net = eventLoop.getNetBuffer();
+			secure.restore(net);
+			net.flip();
+			unwrap(net, buffer);
+			return;
+		}
+		eventLoop.setReading(this, true);
+		
+		if(leftover != null) {
+			buffer.clear();
+			restoreLeftover(buffer);
+			buffer.flip();
+			
+			handle(buffer);
+			keepLeftover(buffer);
+		}
+	}
+
+	/**
+	 * @return false if the worker turned one down again
+	 */
+	private boolean handOverPending() {
+		if(openPending) {
+			if(worker.dispatch(this, Worker.NEW_USER, null, eventLoop) == false) {
+				return false;
+			}
+			openPending = false;
+		}
+		
+		if(startPending != 0) {
+			if(worker.dispatch(this, startPending, null, eventLoop) == false) {
+				return false;
+			}
+			startPending = 0;
+		}
+		
+		if(payloadPending != null) {
+			if(worker.dispatch(this, payloadType, null, payloadPending, eventLoop) == false) {
+				return false;
+			}
+			payloadPending = null;
+		}
+		
+		if(messagePending != null) {
+			if(worker.dispatch(this, Worker.MESSAGE, messagePending, eventLoop) == false) {
+				return false;
+			}
+			messagePending = null;
+		}
+		
+		if(closePending) {
+			if(worker.dispatch(this, Worker.CLOSE, null, eventLoop) == false) {
+				return false;
+			}
+			closePending = false;
+		}
+		return true;
+	}
+
+	/**
+	 * @throws IOException
+	 * 
+	 */
+	private void composeServerHeader() throws IOException {
+		if (logger.isDebugEnabled()) {
+			logger.debug("Sending server headers for user: " + getId());
+		}
+
+		out = bufferPool.acquire(getHandshakeResponse().maxLength());
+		acceptHandshake(handshake, out);
+		out.flip();
+		status = Status.RESPONDING;
+		scheduleWrite();
+	}
+
+	/**
+	 * Parse the handshake as it arrives and answer it once it is complete.  Frames the
+	 * client sent right behind it are read straight away.
+	 * 
+	 * @param in
+	 * @throws IOException 
+	 */
+	private void receiveClientHeader(ByteBuffer in) throws IOException {
+		if(handshake.parse(in) == false) {
+			return;
+		}
+		
+		composeServerHeader();
+		handshake = null;
+		readIntoFrame(in);
+	}
+	
+	/**
+	 * Intentionally package private.
+	 * 
+	 * Called by the worker once it has delivered a fragment copied for it.
+	 * 
+	 * @param payload
+	 */
+	void releaseFragment(ByteBuffer payload) {
+		bufferPool.release(payload);
+	}
+
+	/**
+	 * Use the incoming bytes to fill and construct frames.  Frames that are whole in
+	 * the buffer are handled as slices of it, only a frame cut off at the end of the
+	 * buffer is copied, by the decoder, to wait for the rest.  For a streaming listener
+	 * data frames are handed over a part at a time instead.
+	 * 
+	 * @param in
+	 * @throws IOException
+	 */
+	private void readIntoFrame(ByteBuffer in) throws IOException {
+		try {
+			readFrames(in);
+		} catch(MalformedInputException e) {
+			logger.debug("Invalid UTF-8 from user {}", getId());
+			closeAfterWrite(CLOSE_INVALID_DATA);
+		} catch(CloseException e) {
+			logger.debug("Closing user {}: {}", getId(), e.getMessage());
+			closeAfterWrite(e.getCode());
+		}
+	}
+	
+	private void readFrames(ByteBuffer in) throws IOException {
+		
+		while(in.hasRemaining() && stalled == false && status != Status.CLOSING) {
+			if(frame == null) {
+				frame = MaskedFrame.newFrame();
+			}
+			
+			if(isStreaming()) {
+				switch(decoder.stream(in, frame, frames.size() > 0)) {
+				case FrameDecoder.PART:
+					streamPart(frame, false);
+					break;
+				case FrameDecoder.LAST_PART:
+					streamPart(frame, true);
+					MaskedFrame.returnFrame(frame);
+					frame = null;
+					break;
+				case FrameDecoder.WHOLE:
+					handleFrame();
+					frame = null;
+					break;
+				default:
+					break;
+				}
+			} else if(decoder.decode(in, frame)) {
+				handleFrame();
+				frame = null;
+			}
+		}
+	}
+
+	/**
+	 * Assumes that the currently worked on frame is constructed and must be handled.
+	 * 
+	 * Control frames must be responded to even if they occur between fragmented frames, and
+	 * it is desirable that we respond to them right away, despite what we're trying to write on
+	 * the wire.
+	 * 
+	 * @param frame
+	 * @throws IOException 
+	 */
+	private void handleFrame() throws IOException {
+		
+		if(logger.isDebugEnabled()) { logger.debug(">>> Frame read by "+getId()); }
+		checkReservedBits(frame, frames.size() > 0);
+		
+		if(frame.getOpCode() == OpCode.CLOSE && status != Status.CLOSING) {
+			MaskedFrame.returnFrame(frame);
+			closeAfterWrite(CLOSE_NORMAL);
+			return;
+		}
+		
+		if(frame.getOpCode() == OpCode.PING) {
+			logger.debug(">>> Ping"); 
+			MaskedFrame.returnFrame(frame);
+			enqueueControl(FrameBuffer.createControlFrame(OpCode.PONG, bufferPool));
+			return;
+		}
+		
+		if(frame.getOpCode() == OpCode.PONG) {
+			logger.debug(">>> Pong");
+			MaskedFrame.returnFrame(frame);
+			pingSentTime = 0;
+			return;
+		}
+		
+		handleData(frames, frame);
+	}
+
+	@Override
+	void sendCloseFrame(int code) {
+		status = Status.CLOSING;
+		enqueueControl(FrameBuffer.createCloseFrame(code, bufferPool));
+	}
+	
+	/**
+	 * Answer the client's close frame, or fail the connection, and close it once the
+	 * close frame has gone out.
+	 * 
+	 * @param code
+	 */
+	private void closeAfterWrite(int code) {
+		sendCloseFrame(code);
+		closeAfterWrite = true;
+		eventLoop.setReading(this, false);
+	}
+	
+	void close() throws IOException {
+		if(secure != null && closed.get() == false) {
+			secure.close();
+		}
+		socketChannel.close();
+		
+		if(closed.compareAndSet(false, true) == false) {
+			return;
+		}
+		eventLoop.connectionClosed();
+		
+		releaseResources();
+		
+		try {
+			dispatch(Worker.CLOSE, null, null);
+		} catch(Exception e) {
+			logger.error(e.getMessage(),e);
+		}
+	}
+
+	/**
+	 * Intentionally package private.
+	 * 
+	 * Close a connection that failed before the listener was told of it, so it isn't
+	 * told of the close either.
+	 */
+	void abort() {
+		try {
+			socketChannel.close();
+		} catch(IOException e) {
+			logger.error(e.getMessage(),e);
+		}
+		
+		if(closed.compareAndSet(false, true) == false) {
+			return;
+		}
+		eventLoop.connectionClosed();
+		
+		releaseResources();
+	}
+
+	/**
+	 * Leave every topic, give back pooled buffers and frames and drop everything
+	 * queued, releasing shared frames.  Only called on the event loop's thread, after
+	 * closed is set so nothing subscribed or queued later is left behind.
+	 */
+	private void releaseResources() {
+		eventLoop.unsubscribeAll(this);
+		eventLoop.cancel(timer);
+		
+		bufferPool.release(leftover);
+		bufferPool.release(out);
+		leftover = null;
+		out = null;
+		handshake = null;
+		
+		for(int i = gatherOffset;i<gatherOffset + gatherLength;++i) {
+			outgoingFrames.written(gather[i].remaining());
+			gatherFrames[i].release();
+			gatherFrames[i] = null;
+			gather[i] = null;
+		}
+		gatherOffset = 0;
+		gatherLength = 0;
+		gatherBytes = 0;
+		releaseQueued();
+		wakeBlockedSenders();
+		
+		for(MaskedFrame mf : frames) {
+			MaskedFrame.returnFrame(mf);
+		}
+		frames.clear();
+		if(frame != null) {
+			MaskedFrame.returnFrame(frame);
+			frame = null;
+		}
+		
+		if(secure != null) {
+			secure.release();
+		}
+		
+		PerMessageDeflate deflate = getDeflate();
+		if(deflate != null) {
+			// a sender may be compressing with the connection's own deflater
+			synchronized(deflate) {
+				deflate.release();
+			}
+		}
+	}
+		
+	@Override
+	public void ping() {
+		enqueueControl(FrameBuffer.createControlFrame(OpCode.PING, bufferPool));
+		final long sent = System.currentTimeMillis();
+		pingSentTime = sent;
+		
+		if(eventLoop.inEventLoop()) {
+			expectPong(sent);
+			return;
+		}
+		
+		eventLoop.execute(new Runnable() {
+			public void run() {
+				expectPong(sent);
+			}
+		});
+	}
+
+	/**
+	 * Bring the timer forward to the pong deadline if it is set for later.
+	 * 
+	 * @param sent
+	 */
+	private void expectPong(long sent) {
+		long deadline = sent + PING_WAIT_TIME;
+		if(closed.get() == false && (timer.isScheduled() == false || timer.getDeadline() > deadline)) {
+			eventLoop.schedule(timer, deadline);
+		}
+	}
+
+	/**
+	 * Intentionally package private.
+	 * 
+	 * Called by the event loop once the user is registered.
+	 * 
+	 * @param now
+	 */
+	void startTimer(long now) {
+		lastReadTime = now;
+		if(pingInterval > 0) {
+			pingJitter = ThreadLocalRandom.current().nextLong(pingInterval);
+		}
+		checkDeadlines(now);
+	}
+
+	/**
+	 * Close the connection if a pong or the idle timeout is overdue, ping it if it has
+	 * been quiet for the ping interval, and set the timer for the next deadline.  Only
+	 * called on the event loop's thread.
+	 * 
+	 * @param now
+	 */
+	private void checkDeadlines(long now) {
+		if(closed.get()) {
+			return;
+		}
+		
+		long sent = pingSentTime;
+		if(sent != 0) {
+			if(lastReadTime >= sent) {
+				pingSentTime = sent = 0;
+			} else if(now - sent >= PING_WAIT_TIME) {
+				logger.debug("No pong from user {} in time, closing", getId());
+				closeQuietly();
+				return;
+			}
+		}
+		
+		if(idleTimeout > 0 && now - lastReadTime >= idleTimeout) {
+			logger.debug("User {} idle for {} ms, closing", getId(), now - lastReadTime);
+			closeQuietly();
+			return;
+		}
+		
+		long next = Long.MAX_VALUE;
+		if(sent != 0) {
+			next = sent + PING_WAIT_TIME;
+		} else if(pingInterval > 0) {
+			next = lastReadTime + pingInterval - pingJitter;
+			if(next <= now && status == Status.OPEN) {
+				pingJitter = 0;
+				ping();
+				next = now + PING_WAIT_TIME;
+			} else if(next <= now) {
+				next = now + pingInterval;
+			}
+		}
+		
+		if(idleTimeout > 0) {
+			next = Math.min(next, lastReadTime + idleTimeout);
+		}
+		
+		if(next != Long.MAX_VALUE) {
+			eventLoop.schedule(timer, next);
+		}
+	}
+
+	private void closeQuietly() {
+		try {
+			close();
+		} catch(IOException e) {
+			logger.error(e.getMessage(),e);
+		}
+	}
+	
+	@Override
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * Fails the connection, mostly due to a protocol error.  Safe to call from any
+	 * thread, the connection is torn down on the event loop's thread as
+	 * {@link #close()} does, and the listener hears of it.
+	 */
+	@Override
+	public void fail() {
+		if(closed.get()) {
+			return;
+		}
+		logger.debug("Failing the connection for user " + getId());
+		
+		if(eventLoop.inEventLoop()) {
+			failNow();
+			return;
+		}
+		
+		eventLoop.execute(new Runnable() {
+			public void run() {
+				failNow();
+			}
+		});
+	}
+
+	private void failNow() {
+		status = Status.CLOSING;
+		closeQuietly();
+	}
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A server frame encoded once and sent to any number of users.  The frame lives in a
+ * buffer borrowed from a {@link BufferPool}, and every user it is sent to queues its
+ * own read only view of it rather than a copy.
+ *
+ * The frame is reference counted.  Whoever creates it holds the first reference,
+ * {@link WebSocketUser#send(SharedFrame)} takes another for as long as the frame is
+ * queued, and the buffer goes back to the pool once the last one is released.  So the
+ * creator sends to everyone and then calls {@link #release()}:
+ *
+ * <pre>
+ * SharedFrame frame = SharedFrame.createTextFrame(message, pool);
+ * try {
+ *     for(WebSocketUser user : users) {
+ *         user.send(frame);
+ *     }
+ * } finally {
+ *     frame.release();
+ * }
+ * </pre>
+ *
+ * {@link WebSocketServer#broadcast(CharSequence, Iterable)} and
+ * {@link WebSocketServer#publish(String, CharSequence)} do just that.
+ *
+ * @author Austin Miller
+ * @see org.codefrags.websocket.FrameBuffer
+ */
+public class SharedFrame {
+
+	private final BufferPool pool;
+	private final ByteBuffer buffer;
+	private final ByteBuffer readOnly;
+	private final int dataLength;
+	private AtomicInteger references = new AtomicInteger(1);
+
+	/**
+	 * The same message compressed, made the first time a user with
+	 * {@link PerMessageDeflate} is sent the frame and shared by all of them.  This frame
+	 * itself if compressing wasn't worth it.
+	 */
+	private volatile SharedFrame deflated;
+
+	/**
+	 * @param text encoded as UTF-8 straight into the pooled buffer
+	 * @param pool where the frame's buffer comes from and goes back to
+	 * @return a text frame holding one reference for the caller
+	 */
+	public static SharedFrame createTextFrame(CharSequence text,BufferPool pool) {
+		int length = Utf8Encoder.length(text);
+		ByteBuffer buffer = pool.acquire(FrameBuffer.headerSize(length) + length);
+		FrameBuffer.putHeader(buffer, OpCode.TEXT, length);
+		Utf8Encoder.encode(text, length, buffer);
+		buffer.flip();
+
+		return new SharedFrame(pool, buffer, length);
+	}
+
+	/**
+	 * Intentionally package private.
+	 *
+	 * @param bytes the payload, its first length bytes
+	 * @param length
+	 * @param compressed whether to set RSV1
+	 * @param pool
+	 * @return a text frame holding one reference for the caller
+	 */
+	static SharedFrame createTextFrame(byte [] bytes,int length,boolean compressed,BufferPool pool) {
+		ByteBuffer buffer = pool.acquire(FrameBuffer.headerSize(length) + length);
+		FrameBuffer.putHeader(buffer, OpCode.TEXT, compressed, length);
+		buffer.put(bytes, 0, length);
+		buffer.flip();
+
+		return new SharedFrame(pool, buffer, length);
+	}
+
+	private SharedFrame(BufferPool pool,ByteBuffer buffer,int dataLength) {
+		this.pool = pool;
+		this.buffer = buffer;
+		this.readOnly = buffer.asReadOnlyBuffer();
+		this.dataLength = dataLength;
+	}
+
+	/**
+	 * Take another reference, to hand the frame to another thread for instance.
+	 *
+	 * @return this frame
+	 * @throws IllegalStateException if the frame was already released
+	 */
+	public SharedFrame retain() {
+		int count;
+		do {
+			count = references.get();
+			if(count == 0) {
+				throw new IllegalStateException("shared frame used after its last release");
+			}
+		} while(references.compareAndSet(count, count + 1) == false);
+
+		return this;
+	}
+
+	/**
+	 * Take another reference for a user that queues the frame.
+	 *
+	 * @return a view of the frame for the user to write
+	 */
+	FrameBuffer view() {
+		retain();
+		return FrameBuffer.createView(this, readOnly.duplicate(), dataLength);
+	}
+
+	/**
+	 * Take another reference for a user that compresses messages without context
+	 * takeover, so it can be sent the compressed frame every such user shares.
+	 *
+	 * @param deflate
+	 * @return a view of the compressed frame, or of this one if compressing didn't pay
+	 */
+	FrameBuffer view(PerMessageDeflate deflate) {
+		SharedFrame twin = deflated;
+		if(twin == null) {
+			synchronized(this) {
+				twin = deflated;
+				if(twin == null) {
+					twin = deflate.deflate(this, pool);
+					deflated = twin;
+				}
+			}
+		}
+		return twin == this ? view() : twin.view();
+	}
+
+	/**
+	 * Intentionally package private.
+	 *
+	 * @return a read only view of the payload
+	 */
+	ByteBuffer getPayload() {
+		ByteBuffer payload = readOnly.duplicate();
+		payload.position(payload.limit() - dataLength);
+		return payload;
+	}
+
+	/**
+	 * Drop a reference.  The last one hands the buffer back to the pool.
+	 */
+	public void release() {
+		int count = references.decrementAndGet();
+		if(count == 0) {
+			pool.release(buffer);
+			SharedFrame twin = deflated;
+			if(twin != null && twin != this) {
+				twin.release();
+			}
+		} else if(count < 0) {
+			throw new IllegalStateException("shared frame released too many times");
+		}
+	}
+
+	/**
+	 * @return the number of references not yet released
+	 */
+	public int getReferenceCount() {
+		return references.get();
+	}
+
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Implemented by a {@link WebSocketListener} that would rather take messages as they
+ * arrive than whole.  Each message, text or binary, is then one call to
+ * onMessageStart followed by onFragment calls up to the one marked last, instead of
+ * onMessage, so a large message is never reassembled or turned into a String.
+ * 
+ * Fragments are cut wherever frames and reads happen to end, so a UTF-8 character
+ * of a text message may be split between two of them.  The buffer is only good until the call returns:
+ * without workers it is a slice of the event loop's read buffer, with them a pooled
+ * copy given back once the call returns.  Compressed messages are inflated whole and
+ * arrive as a single last fragment.
+ * 
+ * Called on the same thread as the rest of the listener.
+ * 
+ * @author Austin Miller
+ * @see org.codefrags.websocket.WebSocketListener
+ */
+public interface StreamingListener {
+
+	public void onMessageStart(WebSocketUser webSocketUser,boolean binary);
+
+	public void onFragment(WebSocketUser webSocketUser,ByteBuffer fragment,boolean last);
+
+}
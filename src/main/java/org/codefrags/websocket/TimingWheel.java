@@ -0,0 +1,265 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timing wheel, owned by a single {@link EventLoop} and only touched by its
+ * thread.
+ *
+ * Time is cut into ticks and the wheel has a slot per tick, wrapping around.  A
+ * timeout goes in the slot of the tick it is due in, along with the number of times
+ * the wheel has to come around first, so scheduling and cancelling are constant time
+ * however many timeouts there are.  Timeouts are never early and at most a tick late.
+ *
+ * A timeout is linked into its slot directly and can be scheduled again and again,
+ * so a connection needs only the one.
+ *
+ * @author Austin Miller
+ * @see org.codefrags.websocket.EventLoop
+ */
+class TimingWheel {
+	protected static final Logger logger = LoggerFactory.getLogger(TimingWheel.class);
+
+	private static final int IDLE = -1;
+	private static final int EXPIRING = -2;
+
+	private final Timeout [] slots;
+	private final int mask;
+	private final long tickDuration;
+	private final long startTime;
+
+	/**
+	 * The next tick to expire.
+	 */
+	private long tick;
+	private int size;
+
+	/**
+	 * The first tick from tick on whose slot holds anything, or anything before tick
+	 * when it has to be looked for again.
+	 */
+	private long wakeTick = -1;
+
+	/**
+	 * @param tickDuration in milliseconds
+	 * @param slotCount rounded up to a power of two
+	 * @param now
+	 */
+	TimingWheel(long tickDuration,int slotCount,long now) {
+		int count = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+		this.slots = new Timeout[count];
+		this.mask = count - 1;
+		this.tickDuration = tickDuration;
+		this.startTime = now;
+	}
+
+	/**
+	 * Schedule the timeout, moving it if it is already scheduled.  A deadline that has
+	 * passed expires on the next tick.
+	 *
+	 * @param timeout
+	 * @param deadline in milliseconds
+	 */
+	void schedule(Timeout timeout,long deadline) {
+		cancel(timeout);
+
+		long due = (deadline - startTime + tickDuration - 1) / tickDuration;
+		if(due < tick) {
+			due = tick;
+		}
+
+		timeout.deadline = deadline;
+		timeout.rounds = (due - tick) / slots.length;
+		timeout.slot = (int) (due & mask);
+
+		if(wakeTick >= tick && due < wakeTick) {
+			wakeTick = due;
+		}
+
+		Timeout head = slots[timeout.slot];
+		timeout.next = head;
+		if(head != null) {
+			head.previous = timeout;
+		}
+		slots[timeout.slot] = timeout;
+		++size;
+	}
+
+	/**
+	 * Does nothing if the timeout isn't scheduled.
+	 *
+	 * @param timeout
+	 */
+	void cancel(Timeout timeout) {
+		if(timeout.slot < 0) {
+			timeout.slot = IDLE;
+			return;
+		}
+
+		if(timeout.previous == null) {
+			slots[timeout.slot] = timeout.next;
+		} else {
+			timeout.previous.next = timeout.next;
+		}
+		if(timeout.next != null) {
+			timeout.next.previous = timeout.previous;
+		}
+
+		if(slots[timeout.slot] == null && (wakeTick & mask) == timeout.slot) {
+			wakeTick = -1;
+		}
+
+		timeout.previous = null;
+		timeout.next = null;
+		timeout.slot = IDLE;
+		--size;
+	}
+
+	/**
+	 * Expire every tick up to now.  A slot's due timeouts are all unlinked before any
+	 * of them is expired, so they may schedule or cancel themselves and each other.
+	 *
+	 * @param now
+	 * @return the number of timeouts expired
+	 */
+	int advance(long now) {
+		long last = (now - startTime) / tickDuration;
+
+		if(size == 0) {
+			// nothing to walk past, just catch up
+			if(tick <= last) {
+				tick = last + 1;
+			}
+			return 0;
+		}
+
+		int expired = 0;
+		while(tick <= last) {
+			int slot = (int) (tick & mask);
+			++tick;
+
+			Timeout due = null;
+			Timeout timeout = slots[slot];
+			while(timeout != null) {
+				Timeout next = timeout.next;
+
+				if(timeout.rounds > 0) {
+					--timeout.rounds;
+				} else {
+					cancel(timeout);
+					timeout.slot = EXPIRING;
+					timeout.due = due;
+					due = timeout;
+				}
+				timeout = next;
+			}
+
+			while(due != null) {
+				timeout = due;
+				due = timeout.due;
+				timeout.due = null;
+
+				// cancelled or moved by an earlier one
+				if(timeout.slot != EXPIRING) {
+					continue;
+				}
+
+				timeout.slot = IDLE;
+				++expired;
+				try {
+					timeout.expire(now);
+				} catch(Exception e) {
+					logger.error(e.getMessage(), e);
+				}
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * How long the loop may sleep.  That is until the first tick with anything in its
+	 * slot, rather than the next tick, so an idle loop isn't woken every tick.  A slot
+	 * may only hold timeouts due on a later round, which costs one early wake up.
+	 *
+	 * @param now
+	 * @return milliseconds until that tick, or 0 if nothing is scheduled
+	 */
+	long timeUntilDue(long now) {
+		if(size == 0) {
+			return 0;
+		}
+
+		if(wakeTick < tick) {
+			wakeTick = nextOccupied();
+		}
+
+		long wait = startTime + wakeTick * tickDuration - now;
+		return wait > 0 ? wait : 1;
+	}
+
+	/**
+	 * Only called with something scheduled, so there is a slot to find.
+	 *
+	 * @return the first tick from tick on whose slot isn't empty
+	 */
+	private long nextOccupied() {
+		long end = tick + slots.length;
+		for(long t = tick;t<end;++t) {
+			if(slots[(int) (t & mask)] != null) {
+				return t;
+			}
+		}
+		return tick;
+	}
+
+	/**
+	 * @return the number of scheduled timeouts
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Something to do at a deadline.
+	 */
+	static abstract class Timeout {
+		private long deadline;
+		private long rounds;
+		private int slot = IDLE;
+		private Timeout previous;
+		private Timeout next;
+		private Timeout due;
+
+		/**
+		 * Called on the wheel's thread once the deadline has passed.
+		 *
+		 * @param now
+		 */
+		abstract void expire(long now);
+
+		boolean isScheduled() {
+			return slot >= 0;
+		}
+
+		long getDeadline() {
+			return deadline;
+		}
+	}
+
+}
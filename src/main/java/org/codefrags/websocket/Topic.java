@@ -0,0 +1,105 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.util.Arrays;
+
+/**
+ * The subscribers to a topic that live on one {@link EventLoop}.  A topic with
+ * subscribers on several loops has one of these on each, and each is only ever
+ * touched by its own loop's thread.
+ *
+ * Subscribers are kept in a plain array.  Every subscriber remembers its index in
+ * each of its topics, so leaving is a swap with the last subscriber rather than a
+ * search.
+ *
+ * @author Austin Miller
+ * @see org.codefrags.websocket.EventLoop
+ */
+class Topic {
+
+	private final String name;
+	private SelectorWebSocketUser [] subscribers = new SelectorWebSocketUser[4];
+	private int size;
+
+	Topic(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @param user
+	 * @return false if the user was already subscribed
+	 */
+	boolean add(SelectorWebSocketUser user) {
+		if(user.getSubscriptions().containsKey(this)) {
+			return false;
+		}
+
+		if(size == subscribers.length) {
+			subscribers = Arrays.copyOf(subscribers, size << 1);
+		}
+
+		user.getSubscriptions().put(this, size);
+		subscribers[size++] = user;
+		return true;
+	}
+
+	/**
+	 * @param user
+	 * @return false if the user wasn't subscribed
+	 */
+	boolean remove(SelectorWebSocketUser user) {
+		Integer index = user.getSubscriptions().remove(this);
+		if(index == null) {
+			return false;
+		}
+
+		SelectorWebSocketUser last = subscribers[--size];
+		subscribers[size] = null;
+
+		if(last != user) {
+			subscribers[index] = last;
+			last.getSubscriptions().put(this, index);
+		}
+		return true;
+	}
+
+	/**
+	 * Queue the frame on every subscriber.  Walks from the end, as a subscriber that
+	 * overflows is closed on the spot and leaves the topic, swapping in the last
+	 * subscriber, which has then already been sent the frame.
+	 *
+	 * @param frame
+	 */
+	void publish(SharedFrame frame) {
+		for(int i = size - 1;i>=0;--i) {
+			subscribers[i].send(frame);
+		}
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	String getName() {
+		return name;
+	}
+
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * XORs client payloads with their masking key, as dictated by
+ * <a href="http://tools.ietf.org/html/rfc6455#section-5.3">RFC 6455 #5.3</a>.
+ *
+ * The mask is passed as an int holding the four key bytes in the order they came
+ * off the wire.  maskOffset is how far into the payload the bytes start, so a
+ * payload can be unmasked in pieces as it arrives.
+ *
+ * The implementation is picked once with the system property
+ * org.codefrags.websocket.unmask:
+ * <ul>
+ *  <li>words - the default, eight bytes at a time against the mask widened to a long</li>
+ *  <li>vector - the jdk.incubator.vector API, when built with -Pvector on JDK 17 or later
+ *   and run with --add-modules jdk.incubator.vector; falls back to words otherwise.
+ *   Only heap arrays are vectorized.  The event loops read into direct buffers from
+ *   the {@link BufferPool}, so frames unmasked in place there, the common case, still
+ *   go through words; payloads gathered across reads into a frame's own array, and
+ *   everything the blocking engine reads, are vectorized</li>
+ *  <li>scalar - a byte at a time</li>
+ * </ul>
+ *
+ * @author Austin Miller
+ */
+abstract class Unmasker {
+	protected static final Logger logger = LoggerFactory.getLogger(Unmasker.class);
+
+	private static final String PROPERTY = "org.codefrags.websocket.unmask";
+	private static final String VECTOR_CLASS = "org.codefrags.websocket.VectorUnmasker";
+
+	private static final Unmasker INSTANCE = create(System.getProperty(PROPERTY, "words"));
+
+	static Unmasker get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @param name words, vector or scalar
+	 * @return the implementation, or words if the one asked for isn't available
+	 */
+	static Unmasker create(String name) {
+		if("scalar".equals(name)) {
+			return new Scalar();
+		}
+
+		if("vector".equals(name)) {
+			try {
+				return (Unmasker) Class.forName(VECTOR_CLASS).getDeclaredConstructor().newInstance();
+			} catch(Throwable t) {
+				logger.warn("vector unmasking unavailable, using words: " + t);
+			}
+		}
+
+		return new Words();
+	}
+
+	/**
+	 * Unmask in place.  The buffer's position and limit are left alone.
+	 *
+	 * @param buffer
+	 * @param offset the index of the first byte
+	 * @param length
+	 * @param mask
+	 * @param maskOffset
+	 */
+	abstract void unmask(ByteBuffer buffer,int offset,int length,int mask,int maskOffset);
+
+	/**
+	 * Unmask while copying, so the payload is only touched once.  Reads length bytes
+	 * from the source's position, advancing it.
+	 *
+	 * @param src
+	 * @param dst
+	 * @param dstOffset
+	 * @param length
+	 * @param mask
+	 * @param maskOffset
+	 */
+	abstract void unmask(ByteBuffer src,byte [] dst,int dstOffset,int length,int mask,int maskOffset);
+
+	/**
+	 * @param mask
+	 * @param maskOffset
+	 * @return the mask rotated so its first byte lines up with maskOffset
+	 */
+	static int rotate(int mask,int maskOffset) {
+		return Integer.rotateLeft(mask, (maskOffset & 3) << 3);
+	}
+
+	/**
+	 * @param rotated
+	 * @param i
+	 * @return the mask byte for the i'th byte after the one rotated lines up with
+	 */
+	static byte maskByte(int rotated,int i) {
+		return (byte) (rotated >>> (24 - ((i & 3) << 3)));
+	}
+
+	/**
+	 * A byte at a time.
+	 */
+	static class Scalar extends Unmasker {
+
+		void unmask(ByteBuffer buffer,int offset,int length,int mask,int maskOffset) {
+			int rotated = rotate(mask, maskOffset);
+			for(int i = 0;i<length;++i) {
+				buffer.put(offset + i, (byte) (buffer.get(offset + i) ^ maskByte(rotated, i)));
+			}
+		}
+
+		void unmask(ByteBuffer src,byte [] dst,int dstOffset,int length,int mask,int maskOffset) {
+			int rotated = rotate(mask, maskOffset);
+			for(int i = 0;i<length;++i) {
+				dst[dstOffset + i] = (byte) (src.get() ^ maskByte(rotated, i));
+			}
+		}
+	}
+
+	/**
+	 * Eight bytes at a time.  Eight is a multiple of four, so the widened mask lines up
+	 * with every step and only the tail needs byte at a time treatment.
+	 */
+	static class Words extends Unmasker {
+
+		/**
+		 * @param rotated
+		 * @param order the byte order the longs will be read in
+		 * @return the mask repeated twice in a long
+		 */
+		static long widen(int rotated,ByteOrder order) {
+			long wide = ((long) rotated << 32) | (rotated & 0xFFFFFFFFL);
+			return order == ByteOrder.BIG_ENDIAN ? wide : Long.reverseBytes(wide);
+		}
+
+		void unmask(ByteBuffer buffer,int offset,int length,int mask,int maskOffset) {
+			int rotated = rotate(mask, maskOffset);
+			long wide = widen(rotated, buffer.order());
+
+			int i = 0;
+			for(int end = length - 7;i<end;i+=8) {
+				buffer.putLong(offset + i, buffer.getLong(offset + i) ^ wide);
+			}
+
+			for(;i<length;++i) {
+				buffer.put(offset + i, (byte) (buffer.get(offset + i) ^ maskByte(rotated, i)));
+			}
+		}
+
+		/**
+		 * Heap sources are walked as arrays.  Anything else is read a long at a time and
+		 * the long is stored a byte at a time, so no view of dst is made per call.
+		 */
+		void unmask(ByteBuffer src,byte [] dst,int dstOffset,int length,int mask,int maskOffset) {
+			int rotated = rotate(mask, maskOffset);
+
+			if(src.hasArray()) {
+				int position = src.position();
+				unmask(src.array(), src.arrayOffset() + position, dst, dstOffset, length, rotated);
+				src.position(position + length);
+				return;
+			}
+
+			boolean bigEndian = src.order() == ByteOrder.BIG_ENDIAN;
+			long wide = widen(rotated, src.order());
+
+			int i = 0;
+			for(int end = length - 7;i<end;i+=8) {
+				long word = src.getLong() ^ wide;
+				if(bigEndian == false) {
+					word = Long.reverseBytes(word);
+				}
+				for(int j = 0;j<8;++j) {
+					dst[dstOffset + i + j] = (byte) (word >>> (56 - (j << 3)));
+				}
+			}
+
+			for(;i<length;++i) {
+				dst[dstOffset + i] = (byte) (src.get() ^ maskByte(rotated, i));
+			}
+		}
+
+		private static void unmask(byte [] src,int srcOffset,byte [] dst,int dstOffset,int length,int rotated) {
+			byte m0 = maskByte(rotated, 0);
+			byte m1 = maskByte(rotated, 1);
+			byte m2 = maskByte(rotated, 2);
+			byte m3 = maskByte(rotated, 3);
+
+			int i = 0;
+			for(int end = length - 3;i<end;i+=4) {
+				dst[dstOffset + i] = (byte) (src[srcOffset + i] ^ m0);
+				dst[dstOffset + i + 1] = (byte) (src[srcOffset + i + 1] ^ m1);
+				dst[dstOffset + i + 2] = (byte) (src[srcOffset + i + 2] ^ m2);
+				dst[dstOffset + i + 3] = (byte) (src[srcOffset + i + 3] ^ m3);
+			}
+
+			for(;i<length;++i) {
+				dst[dstOffset + i] = (byte) (src[srcOffset + i] ^ maskByte(rotated, i));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.MalformedInputException;
+
+/**
+ * Validates and decodes UTF-8 text in a single pass, a fragment at a time.  A
+ * character split between fragments is carried over to the next, so a message is
+ * checked as it arrives and fails at the first byte that can't be UTF-8, without
+ * waiting for the rest.
+ *
+ * Runs of ASCII, the common case, are checked eight bytes at a time with a single
+ * read of a long.  Everything else goes through a byte at a time state machine that
+ * turns away what RFC 3629 does: overlong forms, surrogates, code points past
+ * U+10FFFF and truncated sequences.
+ *
+ * The characters are decoded into an array kept between messages, trimmed back once
+ * a large message is done with it.  One per connection, used by one thread at a
+ * time.
+ *
+ * @author Austin Miller
+ * @see <a href="http://tools.ietf.org/html/rfc3629#section-4">RFC 3629 #4</a>
+ */
+class Utf8Decoder {
+
+	private static final long NON_ASCII = 0x8080808080808080L;
+
+	/**
+	 * The most characters kept between messages.
+	 */
+	private static final int MAX_KEPT = 1<<13;
+
+	private char [] chars = new char[0];
+	private int length;
+
+	/**
+	 * The character being decoded, how many bytes of it are still to come and the
+	 * range the next of them has to be in.
+	 */
+	private int codePoint;
+	private int needed;
+	private int lower = 0x80;
+	private int upper = 0xBF;
+
+	/**
+	 * Decode the bytes from position to limit, after whatever was decoded before.
+	 * The buffer is left as it was.
+	 *
+	 * @param src
+	 * @throws MalformedInputException at the first byte that isn't UTF-8
+	 */
+	void decode(ByteBuffer src) throws MalformedInputException {
+		// never more characters than bytes, even for a pair of surrogates
+		int room = length + src.remaining();
+		if(room > chars.length) {
+			char [] grown = new char[Math.max(room, chars.length * 2)];
+			System.arraycopy(chars, 0, grown, 0, length);
+			chars = grown;
+		}
+		run(src, true);
+	}
+
+	/**
+	 * Check the bytes from position to limit without decoding them.  The buffer is
+	 * left as it was.
+	 *
+	 * @param src
+	 * @throws MalformedInputException at the first byte that isn't UTF-8
+	 */
+	void validate(ByteBuffer src) throws MalformedInputException {
+		run(src, false);
+	}
+
+	/**
+	 * End the message.
+	 *
+	 * @return the text decoded since the last message ended, empty if only validating
+	 * @throws MalformedInputException if the message ended partway through a character
+	 */
+	String finish() throws MalformedInputException {
+		boolean truncated = needed != 0;
+		String text = new String(chars, 0, length);
+		reset();
+		if(truncated) {
+			throw new MalformedInputException(1);
+		}
+		return text;
+	}
+
+	/**
+	 * Drop whatever is partly decoded.
+	 */
+	void reset() {
+		length = 0;
+		needed = 0;
+		lower = 0x80;
+		upper = 0xBF;
+		if(chars.length > MAX_KEPT) {
+			chars = new char[0];
+		}
+	}
+
+	private void run(ByteBuffer src,boolean decode) throws MalformedInputException {
+		boolean bigEndian = src.order() == ByteOrder.BIG_ENDIAN;
+		char [] out = chars;
+		int n = length;
+		int i = src.position();
+		int limit = src.limit();
+
+		try {
+			while(i < limit) {
+				if(needed == 0) {
+					while(i <= limit - 8) {
+						long word = src.getLong(i);
+						if((word & NON_ASCII) != 0) {
+							break;
+						}
+						if(decode) {
+							for(int shift = 0;shift<64;shift += 8) {
+								out[n++] = (char) ((word >>> (bigEndian ? 56 - shift : shift)) & 0x7F);
+							}
+						}
+						i += 8;
+					}
+					if(i == limit) {
+						break;
+					}
+
+					int b = src.get(i++);
+					if(b >= 0) {
+						if(decode) {
+							out[n++] = (char) b;
+						}
+						continue;
+					}
+					lead(b & 0xFF);
+					continue;
+				}
+
+				int b = src.get(i++) & 0xFF;
+				if(b < lower || b > upper) {
+					throw new MalformedInputException(1);
+				}
+				lower = 0x80;
+				upper = 0xBF;
+				codePoint = (codePoint << 6) | (b & 0x3F);
+
+				if(--needed == 0 && decode) {
+					if(codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+						out[n++] = (char) codePoint;
+					} else {
+						out[n++] = Character.highSurrogate(codePoint);
+						out[n++] = Character.lowSurrogate(codePoint);
+					}
+				}
+			}
+		} finally {
+			length = n;
+		}
+	}
+
+	/**
+	 * Start a multi-byte character.
+	 *
+	 * @param b its first byte
+	 * @throws MalformedInputException if no character starts with it
+	 */
+	private void lead(int b) throws MalformedInputException {
+		if(b >= 0xC2 && b <= 0xDF) {
+			needed = 1;
+			codePoint = b & 0x1F;
+		} else if(b >= 0xE0 && b <= 0xEF) {
+			needed = 2;
+			codePoint = b & 0x0F;
+			// no overlong forms, and no surrogates
+			lower = b == 0xE0 ? 0xA0 : 0x80;
+			upper = b == 0xED ? 0x9F : 0xBF;
+		} else if(b >= 0xF0 && b <= 0xF4) {
+			needed = 3;
+			codePoint = b & 0x07;
+			// no overlong forms, and nothing past U+10FFFF
+			lower = b == 0xF0 ? 0x90 : 0x80;
+			upper = b == 0xF4 ? 0x8F : 0xBF;
+		} else {
+			throw new MalformedInputException(1);
+		}
+	}
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes text as UTF-8 straight into a frame's buffer.  The exact length is worked
+ * out first, so the header can go in ahead of the payload and the buffer be sized to
+ * fit, then the characters are encoded in a single pass with no byte array in
+ * between.  Any CharSequence will do, a StringBuilder needn't be turned into a String
+ * first.
+ *
+ * Working out the length also tells whether the text is all ASCII, the common case,
+ * which is then a byte a char; a String is copied with the JDK's own bulk copy of its
+ * low bytes.  A surrogate without its other half is encoded as U+FFFD, which keeps
+ * the length of text that isn't ASCII longer than its number of chars.
+ *
+ * A direct buffer, such as a pooled frame's, is written in chunks encoded into a
+ * scratch array of the thread's own and bulk copied in, rather than a put a byte.
+ *
+ * @author Austin Miller
+ * @see <a href="http://tools.ietf.org/html/rfc3629#section-3">RFC 3629 #3</a>
+ */
+final class Utf8Encoder {
+
+	/**
+	 * U+FFFD, for a lone surrogate.
+	 */
+	private static final byte [] REPLACEMENT = {(byte) 0xEF, (byte) 0xBF, (byte) 0xBD};
+
+	private static final int SCRATCH_SIZE = 1<<13;
+
+	/**
+	 * The most chars in a chunk, three bytes each at worst, so a chunk always fits.
+	 */
+	private static final int CHUNK = SCRATCH_SIZE / 3;
+
+	private static final ThreadLocal<byte []> SCRATCH = new ThreadLocal<byte []>() {
+		@Override
+		protected byte [] initialValue() {
+			return new byte[SCRATCH_SIZE];
+		}
+	};
+
+	private Utf8Encoder() {
+
+	}
+
+	/**
+	 * A single pass without a branch a char, beyond the one for surrogates.  Every char
+	 * from U+0080 takes a byte more and every one from U+0800 another, which leaves a
+	 * pair of surrogates two over its four bytes and a lone one at the three of U+FFFD.
+	 *
+	 * @param text
+	 * @return the number of bytes text takes as UTF-8, its number of chars exactly when
+	 * it is all ASCII
+	 */
+	static int length(CharSequence text) {
+		int length = text.length();
+		int bytes = length;
+
+		for(int i = 0;i<length;++i) {
+			char c = text.charAt(i);
+			bytes += (0x7F - c) >>> 31;
+			bytes += (0x7FF - c) >>> 31;
+			if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+				bytes -= 2;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Encode the whole of text at the buffer's position and advance it past the bytes.
+	 *
+	 * @param text
+	 * @param length the bytes it takes, from {@link #length(CharSequence)}, which the
+	 * buffer must have room for
+	 * @param dst
+	 */
+	static void encode(CharSequence text,int length,ByteBuffer dst) {
+		if(dst.hasArray()) {
+			int offset = dst.arrayOffset() + dst.position();
+			encode(text, length, dst.array(), offset);
+			dst.position(dst.position() + length);
+			return;
+		}
+
+		// a pair of surrogates is never split between chunks
+		byte [] scratch = SCRATCH.get();
+		int chars = text.length();
+		boolean ascii = length == chars;
+		for(int start = 0;start<chars;) {
+			int end = Math.min(chars, start + CHUNK);
+			if(end < chars && Character.isHighSurrogate(text.charAt(end - 1))) {
+				--end;
+			}
+			dst.put(scratch, 0, encode(text, start, end, ascii, scratch, 0));
+			start = end;
+		}
+	}
+
+	/**
+	 * The same as {@link #encode(CharSequence, int, ByteBuffer)} for an array, which
+	 * heap buffers write to without a bounds check and a position update a byte.
+	 *
+	 * @param text
+	 * @param length the bytes it takes, from {@link #length(CharSequence)}
+	 * @param dst
+	 * @param offset
+	 * @return the offset after the last byte
+	 */
+	static int encode(CharSequence text,int length,byte [] dst,int offset) {
+		return encode(text, 0, text.length(), length == text.length(), dst, offset);
+	}
+
+	/**
+	 * @param text
+	 * @param start the first char to encode
+	 * @param end after the last, which mustn't split a pair of surrogates
+	 * @param ascii whether every char is ASCII
+	 * @param dst
+	 * @param offset
+	 * @return the offset after the last byte
+	 */
+	@SuppressWarnings("deprecation")
+	private static int encode(CharSequence text,int start,int end,boolean ascii,byte [] dst,int offset) {
+		if(ascii) {
+			if(text instanceof String) {
+				// every char is ASCII, so its low byte is all there is to it
+				((String) text).getBytes(start, end, dst, offset);
+			} else {
+				for(int i = start;i<end;++i) {
+					dst[offset + i - start] = (byte) text.charAt(i);
+				}
+			}
+			return offset + end - start;
+		}
+
+		for(int i = start;i<end;++i) {
+			char c = text.charAt(i);
+			if(c < 0x80) {
+				dst[offset++] = (byte) c;
+			} else if(c < 0x800) {
+				// Latin-1 and the rest of the two byte range
+				dst[offset++] = (byte) (0xC0 | c >> 6);
+				dst[offset++] = (byte) (0x80 | c & 0x3F);
+			} else if(Character.isSurrogate(c) == false) {
+				dst[offset++] = (byte) (0xE0 | c >> 12);
+				dst[offset++] = (byte) (0x80 | c >> 6 & 0x3F);
+				dst[offset++] = (byte) (0x80 | c & 0x3F);
+			} else if(isPair(text, i, end)) {
+				int codePoint = Character.toCodePoint(c, text.charAt(++i));
+				dst[offset++] = (byte) (0xF0 | codePoint >> 18);
+				dst[offset++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+				dst[offset++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+				dst[offset++] = (byte) (0x80 | codePoint & 0x3F);
+			} else {
+				System.arraycopy(REPLACEMENT, 0, dst, offset, REPLACEMENT.length);
+				offset += REPLACEMENT.length;
+			}
+		}
+		return offset;
+	}
+
+	/**
+	 * @param text
+	 * @param i the index of a surrogate
+	 * @param length
+	 * @return whether it is a high surrogate followed by a low one
+	 */
+	private static boolean isPair(CharSequence text,int i,int length) {
+		return Character.isHighSurrogate(text.charAt(i)) && i + 1 < length
+				&& Character.isLowSurrogate(text.charAt(i + 1));
+	}
+
+}
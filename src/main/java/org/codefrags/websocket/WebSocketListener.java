@@ -17,8 +17,10 @@ package org.codefrags.websocket;
 
 /**
  * 
- * All of these are going to be called by the WebSocketServer thread and so whatever
- * they do may be in a race condition with the thread(s) that started the server.
+ * All of these are going to be called by the WebSocketServer event loop threads and so
+ * whatever they do may be in a race condition with the thread(s) that started the server.
+ * Calls for one user always come from the same thread, but with more than one event loop
+ * calls for different users can arrive concurrently.
  * 
  * @author Austin Miller
  *
@@ -26,8 +26,14 @@ import java.nio.channels.SocketChannel;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 
-import org.codefrags.websocket.WebSocketUser.Status;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,24 +46,128 @@ public class WebSocketServer implements Runnable {
 
 	protected static final Logger logger = LoggerFactory.getLogger(WebSocketServer.class);
 
-	static private Selector selector;
-	
-	private enum Command {
+	enum Command {
 		RUN,
 		SHUTDOWN,
 		SHUTDOWN_NOW;
 	}
 	
+	/**
+	 * How the server runs its connections.
+	 */
+	public enum Engine {
+		/**
+		 * Event loops multiplex the connections over a few threads with selectors.
+		 * Everything below applies to this engine.
+		 */
+		SELECTOR,
+		/**
+		 * Every connection gets a thread of its own that does blocking reads and makes
+		 * its listener callbacks, a virtual thread on Java 21 and up and a platform
+		 * thread otherwise.  Sends write straight to the socket and wait for it, so
+		 * nothing is queued.  Only the port, protocol, listener, ping interval, idle
+		 * timeout, buffer pool and TLS settings but for the TLS threads apply.
+		 */
+		BLOCKING;
+	}
+	
+	/**
+	 * How each event loop waits for work.
+	 */
+	public enum LoopMode {
+		/**
+		 * Poll the selector and sleep out the remainder of the sleep time each tick.
+		 * Queued data is flushed once per tick, so latency is bounded by the tick.
+		 */
+		TICK,
+		/**
+		 * Block in the selector until a socket is ready, a timer is due, or another
+		 * thread queues outgoing data and wakes the selector.
+		 */
+		EVENT;
+	}
+	
+	/**
+	 * How the acceptor picks the event loop for a new connection.
+	 */
+	public enum Balancing {
+		/**
+		 * Take turns, one loop after the other.
+		 */
+		ROUND_ROBIN,
+		/**
+		 * Pick the loop with the fewest open connections.
+		 */
+		LEAST_LOADED;
+	}
+	
+	/**
+	 * What a user does with a frame that would take its outgoing queue past
+	 * {@link WebSocketServer#setMaxQueuedBytes(long)}.  Control frames are always queued.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * Make the sending thread wait until there is room and the user is
+		 * {@link WebSocketUser#isWritable() writable} again.  A sender on an event loop
+		 * thread can't wait for the loops to write, so there the connection is failed
+		 * instead.
+		 */
+		BLOCK,
+		/**
+		 * Drop the frame being sent.
+		 */
+		DROP_NEWEST,
+		/**
+		 * Queue the frame and drop the oldest frames not yet being written until the
+		 * queue is back under the limit.
+		 */
+		DROP_OLDEST,
+		/**
+		 * Fail the connection.
+		 */
+		FAIL;
+	}
+	
 	private int port = 8090;
+	private Selector selector;
     private ServerSocketChannel server;
     private InetSocketAddress address;
     private volatile boolean running = false;
 	private WebSocketListener webSocketListener;
 	private long sleepTime = 50;
-	private Command command = Command.RUN;
+	private volatile Command command = Command.RUN;
+	private LoopMode loopMode = LoopMode.EVENT;
 	private String protocol = "chat";
+	private HandshakeResponse handshakeResponse;
+	private boolean perMessageDeflate = false;
+	private int deflateThreshold = 256;
+	private boolean contextTakeover = false;
+	private CompressionStats compressionStats = new CompressionStats();
+	private SSLContext sslContext;
+	private int sessionCacheSize = 20480;
+	private int sessionTimeout = 3600;
+	private int tlsThreadCount = Runtime.getRuntime().availableProcessors();
+	private ExecutorService tlsExecutor;
 	private long pingInterval = 0;
+	private long idleTimeout = 0;
+	private long writeTimeout = 10*1000;
 	private Thread thread = null;
+	private Engine engine = Engine.SELECTOR;
+	private volatile BlockingEngine blockingEngine;
+	private int eventLoopCount = 1;
+	private Balancing balancing = Balancing.ROUND_ROBIN;
+	private EventLoopGroup eventLoopGroup;
+	private int workerCount = 0;
+	private int workerRingSize = 1024;
+	private WorkerGroup workerGroup;
+	private int maxBytesPerFlush = 1<<18;
+	private int maxFrameLength = FrameDecoder.DEFAULT_MAX_FRAME_LENGTH;
+	private int maxMessageLength = FrameDecoder.DEFAULT_MAX_MESSAGE_LENGTH;
+	private int highWaterMark = 1<<16;
+	private int lowWaterMark = 1<<15;
+	private long maxQueuedBytes = 1L<<24;
+	private OverflowPolicy overflowPolicy = OverflowPolicy.FAIL;
+	private BufferPool bufferPool = new BufferPool();
 	
 	/* (non-Javadoc)
 	 * @see java.lang.Runnable#run()
@@ -70,96 +180,61 @@ public class WebSocketServer implements Runnable {
 			
 			runServer();
 			
-			if(command == Command.SHUTDOWN) {
-				closeAll();
-			}
-			
-			if(command == Command.SHUTDOWN_NOW) {
-				closeAllNow();
-			}
+			shutdownConnections(command);
+			shutdownWorkers();
 			
 			running = false;
 			
+			if(perMessageDeflate) {
+				logger.info("{}", compressionStats);
+			}
+			
 		} catch (Exception e) {
-			//TODO handle cleaning up connections
 			logger.error(e.getMessage(), e);
+			shutdownConnections(Command.SHUTDOWN_NOW);
+			shutdownWorkers();
 			running = false;
-		} 
-
-	}
-
-	/**
-	 * Gracefully close all connected clients by following the protocol of sending
-	 * a close frame and waiting for a response
-	 * @throws IOException 
-	 */
-	private void closeAll() throws IOException {
-		//TODO actually wait for them to respond and wrap this in the proper NIO
-		// select calls;
-		for(SelectionKey sk : selector.keys()) {
-			WebSocketUser user = (WebSocketUser) sk.attachment();
-			user.sendCloseFrame();
+		} finally {
+			closeQuietly();
 		}
-		
-	}
 
-	/**
-	 * This aggressively closes all sockets without following the protocol of
-	 * sending a close frame and waiting for a resulting close frame.
-	 * @throws IOException 
-	 */
-	private void closeAllNow() throws IOException {
-		logger.debug("closing all keys {} aggressively",selector.keys());
-		
-		for(SelectionKey sk : selector.keys()) {
-			sk.channel().close();
-		}
 	}
 
 	/**
+	 * The acceptor loop.  All it does is hand accepted channels to the event loops.
+	 * 
 	 * @throws IOException
-	 * @throws InterruptedException
 	 */
-	private void runServer() throws IOException, InterruptedException {
-		long time;
-		long lastPingTime = System.currentTimeMillis();
+	private void runServer() throws IOException {
+		if(blockingEngine != null) {
+			logger.info("Running server with a thread per connection");
+			if(command == Command.RUN) {
+				blockingEngine.acceptAll();
+			}
+			logger.info("shutting down");
+			return;
+		}
 		
-		logger.info("Running server");
+		logger.info("Running server with {} event loops", eventLoopGroup.size());
 		
 		while(command == Command.RUN) {
-			time = System.currentTimeMillis();
-			
-			select();
-			
-			if(pingInterval != 0 && pingInterval > System.currentTimeMillis() - lastPingTime) {
-				pingAll();
-				lastPingTime = System.currentTimeMillis();
-			}
-			
-
-			time = sleepTime - (System.currentTimeMillis() - time);
+			selector.select();
 			
-			// We don't want to force the thread to sleep if the connection is really busy
-			if(time > 0) {
-				Thread.sleep(time);
+	        Set<SelectionKey> readyKeys = selector.selectedKeys();
+	        Iterator<SelectionKey> i = readyKeys.iterator();
+	        
+			while(i.hasNext()) {
+				SelectionKey sk = i.next();
+				i.remove();
+				
+				if (sk.isValid() && sk.isAcceptable()) {
+					accept();
+				}
 			}
 		}
 		logger.info("shutting down");
 	}
 
-	/**
-	 * 
-	 */
-	private void pingAll() {
-		for(SelectionKey sk : selector.keys()) {
-			WebSocketUser user = (WebSocketUser) sk.attachment();
-			if(user != null && user.getStatus() == Status.OPEN) {
-				user.ping();
-			}
-		}
-		
-	}
-
 	/**
 	 * Send a command to the server to shutdown.  If gracefully is selected the
 	 * websocket protocol will be followed where a close frame is sent to each connection and we
@@ -183,6 +258,15 @@ public class WebSocketServer implements Runnable {
 			command = Command.SHUTDOWN_NOW;
 		}
 		
+		if(selector != null) {
+			selector.wakeup();
+		}
+		
+		BlockingEngine blocking = blockingEngine;
+		if(blocking != null) {
+			blocking.stopAccepting();
+		}
+		
 		try {
 			logger.info("blocking until server is shutdown");
 			thread.join();
@@ -197,6 +281,29 @@ public class WebSocketServer implements Runnable {
 	 * @throws ClosedChannelException
 	 */
 	private void startServer() throws IOException, UnknownHostException, ClosedChannelException {
+		handshakeResponse = new HandshakeResponse(this);
+		
+		if(sslContext != null) {
+			SSLSessionContext sessions = sslContext.getServerSessionContext();
+			sessions.setSessionCacheSize(sessionCacheSize);
+			sessions.setSessionTimeout(sessionTimeout);
+		}
+		
+		if(engine == Engine.BLOCKING) {
+			blockingEngine = new BlockingEngine(this);
+			blockingEngine.start(port);
+			running = true;
+			return;
+		}
+		
+		if(workerCount > 0) {
+			workerGroup = new WorkerGroup(webSocketListener, workerCount, workerRingSize);
+			workerGroup.start();
+		}
+		if(sslContext != null) {
+			tlsExecutor = newTlsExecutor();
+		}
+		eventLoopGroup = new EventLoopGroup(this, eventLoopCount, balancing);
 		server = ServerSocketChannel.open();
 		selector = Selector.open();
 		address = new InetSocketAddress(port);
@@ -205,55 +312,119 @@ public class WebSocketServer implements Runnable {
 		server.register(selector, SelectionKey.OP_ACCEPT);
 
 		running = true;
+		eventLoopGroup.start();
 	}
 
-	private void select() throws IOException {
-		selector.selectNow();
-		
-		
-        Set<SelectionKey> readyKeys = selector.selectedKeys();
-        Iterator<SelectionKey> i = readyKeys.iterator();
-        
-		while(i.hasNext()) {
-			SelectionKey sk = i.next();
-			i.remove();
-			
-			if (sk.isAcceptable()) {
-				accept();
-				continue;
-			}
+	/**
+	 * @param command
+	 */
+	private void shutdownConnections(Command command) {
+		if(eventLoopGroup != null) {
+			eventLoopGroup.shutdown(command);
+		}
+		if(blockingEngine != null) {
+			blockingEngine.shutdown(command);
+		}
+	}
 
-			WebSocketUser user = (WebSocketUser) sk.attachment();
+	/**
+	 * Once the event loops are done, so the workers see everything they will get.
+	 */
+	private void shutdownWorkers() {
+		if(workerGroup != null) {
+			workerGroup.shutdown();
+		}
+		if(tlsExecutor != null) {
+			tlsExecutor.shutdown();
+		}
+	}
 
-			try {
-				if (sk.isWritable()) {
-					user.write();
-				}
-	
-				if (sk.isValid() && sk.isReadable()) {
-					if(user.read() == false) {
-						user.close();
-					}
-				}
-			} catch(Exception e) {
-				logger.error(e.getMessage(),e);
+	private ExecutorService newTlsExecutor() {
+		final AtomicInteger count = new AtomicInteger(0);
+		return Executors.newFixedThreadPool(tlsThreadCount, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "websocket-tls-" + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
 			}
-		}
+		});
 	}
 
+	private void closeQuietly() {
+		try {
+			if(server != null) {
+				server.close();
+			}
+			if(selector != null) {
+				selector.close();
+			}
+		} catch (IOException e) {
+			logger.error(e.getMessage(),e);
+		}
+	}
 
 	private void accept() {
 		try {
 			SocketChannel sc = server.accept();
+			if(sc == null) {
+				return;
+			}
 			sc.configureBlocking(false);
-			WebSocketUser user = new WebSocketUser(sc,webSocketListener,getProtocol());
-			sc.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE , user);
-			webSocketListener.onNewUser(user);
+			eventLoopGroup.register(sc);
 		} catch(Exception e) {
 			logger.error(e.getMessage(),e);
 		}
 	}
 
+	/**
+	 * Send the same text to many users, encoding it once.  Every user queues a view of
+	 * one shared buffer instead of its own copy, and the buffer goes back to the pool
+	 * when the last of them has written it.  Safe to call from any thread.
+	 * 
+	 * @param message
+	 * @param users
+	 */
+	public void broadcast(CharSequence message,Iterable<? extends WebSocketUser> users) {
+		SharedFrame frame = SharedFrame.createTextFrame(message, bufferPool);
+		try {
+			for(WebSocketUser user : users) {
+				user.send(frame);
+			}
+		} finally {
+			frame.release();
+		}
+	}
+
+	/**
+	 * Send text to every user subscribed to a topic with
+	 * {@link WebSocketUser#subscribe(String)}, encoding it once.  Each event loop
+	 * queues the frame on its own subscribers, so publishing takes no locks and costs
+	 * nothing for loops without any.  With the {@link Engine#BLOCKING} engine the
+	 * calling thread writes to each subscriber in turn.  Safe to call from any thread.
+	 * 
+	 * @param topic
+	 * @param message
+	 */
+	public void publish(String topic,CharSequence message) {
+		BlockingEngine blocking = blockingEngine;
+		if(blocking != null) {
+			blocking.publish(topic, message);
+			return;
+		}
+		
+		EventLoopGroup group = eventLoopGroup;
+		if(group == null || group.hasTopic(topic) == false) {
+			return;
+		}
+		
+		SharedFrame frame = SharedFrame.createTextFrame(message, bufferPool);
+		try {
+			group.publish(topic, frame);
+		} finally {
+			frame.release();
+		}
+	}
+
 	/**
 	 * If the server is still processing events, returns true;
 	 * @return
@@ -287,10 +458,10 @@ public class WebSocketServer implements Runnable {
 
 
 	/**
-	 * The "tick rate" of the server.  The server WILL eat all cycles it can if the
-	 * processing time of the tick is longer than this time, as it will not sleep
-	 * at all.  It sleeps the difference between the sleepTime and tick processing
-	 * time, if the difference is positive.
+	 * The "tick rate" of the server in {@link LoopMode#TICK} mode.  The server WILL eat
+	 * all cycles it can if the processing time of the tick is longer than this time, as
+	 * it will not sleep at all.  It sleeps the difference between the sleepTime and tick
+	 * processing time, if the difference is positive.  Ignored in {@link LoopMode#EVENT} mode.
 	 * 
 	 * This value is in milliseconds.
 	 * 
@@ -303,6 +474,39 @@ public class WebSocketServer implements Runnable {
 		this.sleepTime = sleepTime;
 	}
 
+	public Engine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Event loops, the default, or a thread per connection.
+	 * 
+	 * @param engine
+	 */
+	public void setEngine(Engine engine) {
+		if(running == true) {
+			throw new ConcurrentModificationException(CONCURRENT_EXCEPTION_MESSAGE);
+		}
+		this.engine = engine;
+	}
+
+	public LoopMode getLoopMode() {
+		return loopMode;
+	}
+
+	/**
+	 * Whether the server blocks until there is work, the default, or polls on a fixed
+	 * tick set by {@link #setSleepTime(long)}.
+	 * 
+	 * @param loopMode
+	 */
+	public void setLoopMode(LoopMode loopMode) {
+		if(running == true) {
+			throw new ConcurrentModificationException(CONCURRENT_EXCEPTION_MESSAGE);
+		}
+		this.loopMode = loopMode;
+	}
+
 	public String getProtocol() {
 		return protocol;
 	}
@@ -318,9 +522,25 @@ public class WebSocketServer implements Runnable {
 		if(running == true) {
 			throw new ConcurrentModificationException(CONCURRENT_EXCEPTION_MESSAGE);
 		}
+		if(protocol == null) {
+			throw new IllegalArgumentException("protocol is required");
+		}
 		this.protocol = protocol;
 	}
 
+	/**
+	 * Intentionally package private.
+	 * 
+	 * @return the response every accepted handshake gets, but for its key and
+	 * extensions, made from the settings when the server starts
+	 */
+	HandshakeResponse getHandshakeResponse() {
+		if(handshakeResponse == null) {
+			handshakeResponse = new HandshakeResponse(this);
+		}
+		return handshakeResponse;
+	}
+
 	public int getPort() {
 		return port;
 	}
@@ -336,13 +556,263 @@ public class WebSocketServer implements Runnable {
 		this.port = port;
 	}
 
+	public int getEventLoopCount() {
+		return eventLoopCount;
+	}
+
+	/**
+	 * The number of event loops, each a thread with its own selector, that share the
+	 * connections.  The default is 1.  A connection stays on the same loop for its whole
+	 * life, but with more than one loop the listener is called from several threads at once.
+	 * 
+	 * @param eventLoopCount
+	 */
+	public void setEventLoopCount(int eventLoopCount) {
+		if(running == true) {
+			throw new ConcurrentModificationException(CONCURRENT_EXCEPTION_MESSAGE);
+		}
+		if(eventLoopCount < 1) {
+			throw new IllegalArgumentException("eventLoopCount must be at least 1");
+		}
+		this.eventLoopCount = eventLoopCount;
+	}
+
+	public Balancing getBalancing() {
+		return balancing;
+	}
+
+	/**
+	 * How new connections are spread across the event loops.  Default is round robin.
+	 * 
+	 * @param balancing
+	 */
+	public void setBalancing(Balancing balancing) {
+		if(running == true) {
+			throw new ConcurrentModificationException(CONCURRENT_EXCEPTION_MESSAGE);
+		}
+		this.balancing = balancing;
+	}
+
+	public int getWorkerCount() {
+		return workerCount;
+	}
+
+	/**
+	 * The number of worker threads that call the listener.  With the default of 0 the
+	 * event loops call it themselves, which is fastest as long as every callback is
+	 * quick.  Otherwise the loops hand the callbacks to the workers, so a slow one
+	 * only holds up the users on its worker rather than every connection on its loop.
+	 * Either way the callbacks for one user are made one at a time and in order.
+	 * 
+	 * {@link WritabilityListener} callbacks are always made by the event loops.
+	 * 
+	 * @param workerCount
+	 */
+	public void setWorkerCount(int workerCount) {
+		if(running == true) {
+			throw new ConcurrentModificationException(CONCURRENT_EXCEPTION_MESSAGE);
+		}
+		if(workerCount < 0) {
+			throw new IllegalArgumentException("workerCount must not be negative");
+		}
+		this.workerCount = workerCount;
+	}
+
+	public int getWorkerRingSize() {
+		return workerRingSize;
+	}
+
+	/**
+	 * The most callbacks waiting for each worker, rounded up to a power of two.  When
+	 * a worker's ring is full the event loops stop reading from its users until it
+	 * catches up.  Default is 1024.
+	 * 
+	 * @param workerRingSize
+	 */
+	public void setWorkerRingSize(int workerRingSize) {
+		if(running == true) {
+			throw new ConcurrentModificationException(CONCURRENT_EXCEPTION_MESSAGE);
+		}
+		if(workerRingSize < 1) {
+			throw new IllegalArgumentException("workerRingSize must be positive");
+		}
+		this.workerRingSize = workerRingSize;
+	}
+
+	/**
+	 * Intentionally package private.
+	 * 
+	 * @return the workers, or null if the event loops call the listener themselves
+	 */
+	WorkerGroup getWorkerGroup() {
+		return workerGroup;
+	}
+
+	public int getMaxBytesPerFlush() {
+		return maxBytesPerFlush;
+	}
+
+	/**
+	 * The most bytes of queued frames handed to the socket in one gathering write.  A
+	 * single frame larger than this is still written whole.  Smaller values share the
+	 * event loop more fairly between busy connections.  Default is 256 kilobytes.
+	 * 
+	 * @param maxBytesPerFlush
+	 */
+	public void setMaxBytesPerFlush(int maxBytesPerFlush) {
+		if(running == true) {
+			throw new ConcurrentModificationException(CONCURRENT_EXCEPTION_MESSAGE);
+		}
+		if(maxBytesPerFlush < 1) {
+			throw new IllegalArgumentException("maxBytesPerFlush must be positive");
+		}
+		this.maxBytesPerFlush = maxBytesPerFlush;
+	}
+
+	public int getMaxFrameLength() {
+		return maxFrameLength;
+	}
+
+	/**
+	 * The longest frame from a client that is gathered whole before the listener sees
+	 * it.  A longer one closes the connection with 1009, message too big.  Frames a
+	 * {@link StreamingListener} is handed a part at a time aren't held to it.  Default
+	 * is 256 kilobytes.
+	 * 
+	 * @param maxFrameLength
+	 */
+	public void setMaxFrameLength(int maxFrameLength) {
+		if(running == true) {
+			throw new ConcurrentModificationException(CONCURRENT_EXCEPTION_MESSAGE);
+		}
+		if(maxFrameLength < 1) {
+			throw new IllegalArgumentException("maxFrameLength must be positive");
+		}
+		this.maxFrameLength = maxFrameLength;
+	}
+
+	public int getMaxMessageLength() {
+		return maxMessageLength;
+	}
+
+	/**
+	 * The longest message from a client that is gathered whole, all its fragments
+	 * together, and the most a compressed message may inflate to.  A longer one closes
+	 * the connection with 1009, message too big.  Messages a {@link StreamingListener}
+	 * is handed a part at a time aren't held to it.  Default is a megabyte.
+	 * 
+	 * @param maxMessageLength
+	 */
+	public void setMaxMessageLength(int maxMessageLength) {
+		if(running == true) {
+			throw new ConcurrentModificationException(CONCURRENT_EXCEPTION_MESSAGE);
+		}
+		if(maxMessageLength < 1) {
+			throw new IllegalArgumentException("maxMessageLength must be positive");
+		}
+		this.maxMessageLength = maxMessageLength;
+	}
+
+	public int getHighWaterMark() {
+		return highWaterMark;
+	}
+
+	public int getLowWaterMark() {
+		return lowWaterMark;
+	}
+
+	/**
+	 * A user stops being {@link WebSocketUser#isWritable() writable} once more than high
+	 * bytes are queued for it, and becomes writable again once that falls to low.  A
+	 * listener that implements {@link WritabilityListener} is told of both.  Defaults
+	 * are 64 and 32 kilobytes.
+	 * 
+	 * @param low
+	 * @param high
+	 */
+	public void setWaterMarks(int low,int high) {
+		if(running == true) {
+			throw new ConcurrentModificationException(CONCURRENT_EXCEPTION_MESSAGE);
+		}
+		if(low < 0 || high < low) {
+			throw new IllegalArgumentException("water marks must satisfy 0 <= low <= high");
+		}
+		this.lowWaterMark = low;
+		this.highWaterMark = high;
+	}
+
+	public long getMaxQueuedBytes() {
+		return maxQueuedBytes;
+	}
+
+	/**
+	 * The most bytes queued for one user before the overflow policy applies.  Default
+	 * is 16 megabytes.
+	 * 
+	 * @param maxQueuedBytes
+	 */
+	public void setMaxQueuedBytes(long maxQueuedBytes) {
+		if(running == true) {
+			throw new ConcurrentModificationException(CONCURRENT_EXCEPTION_MESSAGE);
+		}
+		if(maxQueuedBytes < 1) {
+			throw new IllegalArgumentException("maxQueuedBytes must be positive");
+		}
+		this.maxQueuedBytes = maxQueuedBytes;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * Default is {@link OverflowPolicy#FAIL}, so one slow reader can't run the server
+	 * out of memory.
+	 * 
+	 * @param overflowPolicy
+	 */
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		if(running == true) {
+			throw new ConcurrentModificationException(CONCURRENT_EXCEPTION_MESSAGE);
+		}
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * The pool connections borrow their read buffers and handshake responses from.
+	 * Useful for its statistics.
+	 * 
+	 * @return
+	 */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Replace the default pool, for instance to raise the ceiling on direct memory
+	 * or to share one pool between several servers.
+	 * 
+	 * @param bufferPool
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		if(running == true) {
+			throw new ConcurrentModificationException(CONCURRENT_EXCEPTION_MESSAGE);
+		}
+		this.bufferPool = bufferPool;
+	}
+
 	public long getPingInterval() {
 		return pingInterval;
 	}
 
 	/**
 	 * If this is set to 0, the default, the server won't ping.  Otherwise, set the value
-	 * to some reasonable frequency in milliseconds, like 30.
+	 * to some reasonable frequency in milliseconds, like 30000.
+	 * 
+	 * A connection is only pinged once it has been quiet for the interval, anything it
+	 * sends puts the ping off.  Each connection is pinged on its own schedule, so pings
+	 * are spread out rather than sent to everyone at once.  A connection that sends
+	 * nothing for {@link WebSocketUser#PING_WAIT_TIME} after a ping is closed.
 	 * 
 	 * @param The frequency, in milliseconds, with which to send pings to connected sockets
 	 */
@@ -353,4 +823,207 @@ public class WebSocketServer implements Runnable {
 		this.pingInterval = pingInterval;
 	}
 
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * Close connections that send nothing at all, pongs included, for this long.  If
+	 * this is set to 0, the default, quiet connections are left open.
+	 * 
+	 * @param idleTimeout in milliseconds
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		if(running == true) {
+			throw new ConcurrentModificationException(CONCURRENT_EXCEPTION_MESSAGE);
+		}
+		this.idleTimeout = idleTimeout;
+	}
+
+	public long getWriteTimeout() {
+		return writeTimeout;
+	}
+
+	/**
+	 * With the {@link Engine#BLOCKING} engine, fail a connection whose socket hasn't
+	 * taken a write for this long, so a client that stops reading can't hold up its
+	 * senders, a publish to its topic included, for good.  Default is 10 seconds, 0
+	 * waits as long as the socket does.  The selector engine queues instead, see
+	 * {@link #setMaxQueuedBytes(long)}.
+	 * 
+	 * @param writeTimeout in milliseconds
+	 */
+	public void setWriteTimeout(long writeTimeout) {
+		if(running == true) {
+			throw new ConcurrentModificationException(CONCURRENT_EXCEPTION_MESSAGE);
+		}
+		if(writeTimeout < 0) {
+			throw new IllegalArgumentException("writeTimeout must not be negative");
+		}
+		this.writeTimeout = writeTimeout;
+	}
+
+	public boolean isPerMessageDeflate() {
+		return perMessageDeflate;
+	}
+
+	/**
+	 * Compress messages with the permessage-deflate extension (RFC 7692) for clients
+	 * that offer it.  Off by default.  Worth it for text that compresses well, JSON for
+	 * instance, when bandwidth costs more than CPU.
+	 * 
+	 * @param perMessageDeflate
+	 * @see #getCompressionStats()
+	 */
+	public void setPerMessageDeflate(boolean perMessageDeflate) {
+		if(running == true) {
+			throw new ConcurrentModificationException(CONCURRENT_EXCEPTION_MESSAGE);
+		}
+		this.perMessageDeflate = perMessageDeflate;
+	}
+
+	public int getDeflateThreshold() {
+		return deflateThreshold;
+	}
+
+	/**
+	 * Messages shorter than this are sent uncompressed, as compressing them costs more
+	 * than it saves.  Default is 256 bytes.
+	 * 
+	 * @param deflateThreshold in bytes
+	 */
+	public void setDeflateThreshold(int deflateThreshold) {
+		if(running == true) {
+			throw new ConcurrentModificationException(CONCURRENT_EXCEPTION_MESSAGE);
+		}
+		if(deflateThreshold < 0) {
+			throw new IllegalArgumentException("deflateThreshold must not be negative");
+		}
+		this.deflateThreshold = deflateThreshold;
+	}
+
+	public boolean isContextTakeover() {
+		return contextTakeover;
+	}
+
+	/**
+	 * Whether compression contexts may be kept from one message to the next, in both
+	 * directions, when the client agrees.  Small, similar messages compress much better
+	 * that way, but every connection then holds a Deflater and an Inflater, a few hundred
+	 * kilobytes of native memory, for as long as it is open.  Without it, the default,
+	 * connections share their thread's and a published message is compressed once for
+	 * all its subscribers.
+	 * 
+	 * Ignored with the {@link OverflowPolicy#DROP_NEWEST} and
+	 * {@link OverflowPolicy#DROP_OLDEST} policies, as a dropped message would leave the
+	 * client's context out of step.
+	 * 
+	 * @param contextTakeover
+	 */
+	public void setContextTakeover(boolean contextTakeover) {
+		if(running == true) {
+			throw new ConcurrentModificationException(CONCURRENT_EXCEPTION_MESSAGE);
+		}
+		this.contextTakeover = contextTakeover;
+	}
+
+	/**
+	 * Compression ratios and time spent, across every connection since the server
+	 * was created.  Logged when the server shuts down.
+	 * 
+	 * @return
+	 */
+	public CompressionStats getCompressionStats() {
+		return compressionStats;
+	}
+
+	public SSLContext getSslContext() {
+		return sslContext;
+	}
+
+	/**
+	 * Serve wss:// with this context's key material, or plain ws://, the default,
+	 * with null.  The event loops run TLS with an SSLEngine per connection and the
+	 * {@link Engine#BLOCKING} engine with SSL sockets.
+	 * 
+	 * @param sslContext an initialized context
+	 * @see #setSessionCacheSize(int)
+	 */
+	public void setSslContext(SSLContext sslContext) {
+		if(running == true) {
+			throw new ConcurrentModificationException(CONCURRENT_EXCEPTION_MESSAGE);
+		}
+		this.sslContext = sslContext;
+	}
+
+	public int getSessionCacheSize() {
+		return sessionCacheSize;
+	}
+
+	/**
+	 * The most TLS sessions kept for clients to resume, which skips the expensive half
+	 * of a handshake when they reconnect.  Set on the context's server session cache
+	 * when the server starts.  Default is 20480, 0 for no limit.
+	 * 
+	 * @param sessionCacheSize
+	 */
+	public void setSessionCacheSize(int sessionCacheSize) {
+		if(running == true) {
+			throw new ConcurrentModificationException(CONCURRENT_EXCEPTION_MESSAGE);
+		}
+		if(sessionCacheSize < 0) {
+			throw new IllegalArgumentException("sessionCacheSize must not be negative");
+		}
+		this.sessionCacheSize = sessionCacheSize;
+	}
+
+	public int getSessionTimeout() {
+		return sessionTimeout;
+	}
+
+	/**
+	 * How long a TLS session can be resumed for.  Default is an hour.
+	 * 
+	 * @param sessionTimeout in seconds, 0 for no limit
+	 */
+	public void setSessionTimeout(int sessionTimeout) {
+		if(running == true) {
+			throw new ConcurrentModificationException(CONCURRENT_EXCEPTION_MESSAGE);
+		}
+		if(sessionTimeout < 0) {
+			throw new IllegalArgumentException("sessionTimeout must not be negative");
+		}
+		this.sessionTimeout = sessionTimeout;
+	}
+
+	public int getTlsThreadCount() {
+		return tlsThreadCount;
+	}
+
+	/**
+	 * The threads that run the CPU heavy steps of TLS handshakes, the key exchange and
+	 * signature, so the event loops go on reading and writing meanwhile.  Default is one
+	 * per processor.
+	 * 
+	 * @param tlsThreadCount
+	 */
+	public void setTlsThreadCount(int tlsThreadCount) {
+		if(running == true) {
+			throw new ConcurrentModificationException(CONCURRENT_EXCEPTION_MESSAGE);
+		}
+		if(tlsThreadCount < 1) {
+			throw new IllegalArgumentException("tlsThreadCount must be positive");
+		}
+		this.tlsThreadCount = tlsThreadCount;
+	}
+
+	/**
+	 * Intentionally package private.
+	 * 
+	 * @return the TLS threads, null before the server starts or without TLS
+	 */
+	ExecutorService getTlsExecutor() {
+		return tlsExecutor;
+	}
+
 }
@@ -17,48 +17,45 @@ package org.codefrags.websocket;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
-import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.codefrags.websocket.codec.Base64;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * This class is responsible for sending and receiving websocket frames in an NIO 
- * compatible way. It is also intended to negotiate the header acceptance and
- * all control frames, pings, pongs, and close.  Actual frame manipulation is
- * done by other classes.  This is effectively a "WebSocket" NIO wrapper, but
- * is semantically named to be thought of as a connected user. 
+ * A connected websocket user, as handed to the {@link WebSocketListener}.  Every
+ * engine has its own kind: a {@link SelectorWebSocketUser} shares an event loop with
+ * other connections and queues what is sent to it, a {@link BlockingWebSocketUser}
+ * has a thread of its own and writes straight to its socket.  What they have in
+ * common is here: the handshake, and turning whole frames into the messages the
+ * listener is given.
  * 
- * It is meant to be consumed by a thread, so all public interface methods need to
- * be thread safe or throw ConcurrentModificationException.
+ * All public methods are safe to call from any thread.
  *  
  * @author Austin Miller
  * @see org.codefrags.websocket.MaskedFrame
  * @see org.codefrags.websocket.FrameBuffer
  */
-public class WebSocketUser {
+public abstract class WebSocketUser {
 	/**
-	 * 
+	 * Close codes, see RFC 6455 #7.4.1.
 	 */
-	private static final int CAPACITY = 1<<16;
+	static final int CLOSE_NORMAL = 1000;
+	static final int CLOSE_PROTOCOL_ERROR = 1002;
+	static final int CLOSE_INVALID_DATA = 1007;
+	static final int CLOSE_TOO_BIG = 1009;
+	
 	protected static final Logger logger = LoggerFactory.getLogger(WebSocketUser.class);
-	private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
 	
 	/**
 	 * The amount of time to wait, in milliseconds, before deciding to close a
-	 * websocket for not responding to a ping with a pong frame. 
+	 * websocket for not responding to a ping with a pong frame.  Anything else it
+	 * sends in the meantime counts as a response.
 	 */
 	public static long PING_WAIT_TIME = 30*1000; // 30 seconds
-	private static int nextUserId=0;
+	private static AtomicInteger nextUserId = new AtomicInteger(0);
 	
 	public enum Status {
 		CONNECTING,
@@ -68,26 +65,65 @@ public class WebSocketUser {
 	}
 	
 	private int id;
-	private Map<String,String> headers = new HashMap<String,String>();
-	private SocketChannel socketChannel;
-	private Queue<FrameBuffer> outgoingFrames = new ConcurrentLinkedQueue<FrameBuffer>();
-	private List<MaskedFrame> frames = new ArrayList<MaskedFrame>();
-	private ByteBuffer in = ByteBuffer.allocate(CAPACITY);
-	private ByteBuffer out = ByteBuffer.allocate(CAPACITY);
-	private MaskedFrame frame;
 	private WebSocketListener webSocketListener;
-	private long pingSentTime = 0;
-	private int read;
-	private Status status = Status.CONNECTING;
-	private int written;
+	
+	/**
+	 * Whether the listener takes binary messages as they are.
+	 */
+	private boolean binary;
+	
+	/**
+	 * Whether the listener is a {@link StreamingListener}, and where a streamed
+	 * message is up to: started, and partway through one of its frames.
+	 */
+	private boolean streaming;
+	private boolean streamStarted;
+	private boolean streamText;
+	private boolean partStarted;
+	
+	/**
+	 * Text is validated, and decoded unless it is streamed, as its frames arrive.  Set
+	 * while a fragmented text message is in progress.
+	 */
+	private Utf8Decoder text = new Utf8Decoder();
+	private boolean textStarted;
+	
 	private String protocol;
+	private HandshakeResponse handshakeResponse;
+	
+	/**
+	 * Null unless the client asked for permessage-deflate and the server offers it.
+	 */
+	private PerMessageDeflate deflate;
+	
+	/**
+	 * The most a compressed message may inflate to.
+	 */
+	private int maxMessageLength;
 	
-	WebSocketUser(SocketChannel socketChannel,WebSocketListener webSocketListener,String protocol) throws IOException {
-		id = nextUserId;
-		++nextUserId;
-		this.socketChannel = socketChannel;
+	/**
+	 * @param server
+	 * @param webSocketListener
+	 * @param protocol the subprotocol the client has to ask for
+	 */
+	WebSocketUser(WebSocketServer server,WebSocketListener webSocketListener,String protocol) {
+		id = nextUserId.getAndIncrement();
 		this.webSocketListener = webSocketListener;
+		this.binary = webSocketListener instanceof BinaryListener;
+		this.streaming = webSocketListener instanceof StreamingListener;
 		this.protocol = protocol;
+		this.handshakeResponse = server.getHandshakeResponse();
+		this.maxMessageLength = server.getMaxMessageLength();
+	}
+	
+	/**
+	 * Intentionally package private.
+	 * 
+	 * @param server
+	 * @return a decoder for a client's frames, held to the server's limits
+	 */
+	static FrameDecoder newDecoder(WebSocketServer server) {
+		return new FrameDecoder(server.getMaxFrameLength(), server.getMaxMessageLength(), true);
 	}
 	
 	@Override
@@ -105,359 +141,397 @@ public class WebSocketUser {
 
 		return this.id == that.id;
 	}
-
+	
 	public int getId() {
 		return id;
 	}
-
-	Map<String,String> getHeaders() {
-		return headers;
+	
+	WebSocketListener getWebSocketListener() {
+		return webSocketListener;
 	}
 	
+	HandshakeResponse getHandshakeResponse() {
+		return handshakeResponse;
+	}
+	
+	/**
+	 * Intentionally package private.
+	 * 
+	 * @return whether the connection is closed and its resources given back
+	 */
+	abstract boolean isClosed();
+	
+	/**
+	 * Send a text message.  It is encoded as UTF-8 straight into the frame before this
+	 * returns, so a StringBuilder can be reused right away.
+	 * 
+	 * @param message
+	 */
+	public abstract void send(CharSequence message);
+	
+	/**
+	 * Send a text message.
+	 * 
+	 * @param message
+	 * @see #send(CharSequence)
+	 */
 	public void send(String message) {
-		outgoingFrames.add(FrameBuffer.createTextFrame(message));
+		send((CharSequence) message);
 	}
 
 	/**
-	 * Attempt to write outgoing data across the socket. Writes header and
-	 * frame data.
+	 * Send a binary message.  The bytes from position to limit are taken before this
+	 * returns, so the buffer is left as it was and can be reused.  Binary messages go
+	 * out uncompressed.
 	 * 
-	 * @throws IOException 
+	 * @param message
 	 */
-	void write() throws IOException {
-		
-		if(status == Status.RESPONDING) {
-			
-			writeOut();
-			
-			if(out == null) {
-				status = Status.OPEN;
-			}
-			
-		} else if (status == Status.OPEN) {
-			
-			if(out == null && outgoingFrames.size() == 0) {
-				return;
-			}
-			
-			if(out == null) {
-				out = outgoingFrames.poll().getBuffer();
-			}
-			
-			writeOut();
-		}
-	}
+	public abstract void send(ByteBuffer message);
+	
+	/**
+	 * Send a binary message.  See {@link #send(ByteBuffer)}.
+	 * 
+	 * @param message
+	 * @param offset
+	 * @param length
+	 */
+	public abstract void send(byte [] message,int offset,int length);
 
 	/**
-	 * @throws IOException 
+	 * Send a frame encoded once for many users.  The user holds a reference to the
+	 * frame for as long as it needs it, the caller keeps its own.
 	 * 
+	 * @param frame
 	 */
-	private void writeOut() throws IOException {
-		if(socketChannel.write(out) == -1) {
-			throw new IOException("socket is no longer valid");
-		}
-		
-		if(out.position() == out.limit()) {
-			out = null;
-		}
-	}
+	public abstract void send(SharedFrame frame);
+
+	/**
+	 * Subscribe to a topic, to receive whatever is published to it with
+	 * {@link WebSocketServer#publish(String, CharSequence)} until unsubscribing or closing.
+	 * 
+	 * @param topic
+	 */
+	public abstract void subscribe(String topic);
+
+	/**
+	 * @param topic
+	 */
+	public abstract void unsubscribe(String topic);
 
 	/**
 	 * Intentionally package private.
 	 * 
-	 * Read as many bytes as we can and handle the result.
+	 * Users without server context takeover share a compressed copy of the frame.  The
+	 * rest are sent it uncompressed, which leaves their context as it was.
 	 * 
-	 * @param webSocketListener
-	 * @throws IOException 
+	 * @param frame
+	 * @return the user's view of the frame
 	 */
-	boolean read() throws IOException {
-		if(status == Status.CLOSING) {
-			return false;
-		}
-		
-		if (socketChannel.isConnected() == false) {
-			return false;
-		}
-		
-		if(pingSentTime != 0) {
-			if(System.currentTimeMillis() - pingSentTime > PING_WAIT_TIME) {
-				socketChannel.close();
-				status = Status.CLOSING;
-				throw new IOException("Failed to receive pong in time, connection is now invalid.");
-			}
-		}
-		read = socketChannel.read(in);
-		
-		if(read == 0) {
-			return true; // we should never really read 0
+	FrameBuffer viewFor(SharedFrame frame) {
+		PerMessageDeflate deflate = this.deflate;
+		if(deflate != null && deflate.sharesFrames()) {
+			return frame.view(deflate);
 		}
-		
-		if(read == -1) {
-			return false; // connection reset by peer
-		}
-		
-		switch(status) {
-		case CONNECTING:
-			receiveClientHeader();
-			break;
-		case OPEN:
-			readIntoFrame();
-			break;
-		case RESPONDING:
-			break;
-		default:
-			break;
-		
-		}
-		
-		
-		return true;
-
+		return frame.view();
 	}
 
 	/**
-	 * @throws IOException
+	 * Whether the user is under the server's high water mark, or has since come back
+	 * down to the low one.  Senders that can wait should hold off while it isn't.
 	 * 
+	 * @return
 	 */
-	private void composeServerHeader() throws IOException {
-		if (logger.isDebugEnabled()) {
-			logger.debug("Sending server headers for user: " + id);
-		}
+	public abstract boolean isWritable();
 
-		if (headers.get("sec-websocket-version").equals("13") == false) {
-			throw new IOException("unsupported websocket version");
-		}
-		
-		if(headers.get("sec-websocket-protocol").contains(protocol) == false) {
-			throw new IOException("unsupported websocket subprotocol");
-		}
+	/**
+	 * @return bytes queued for the user and not yet written
+	 */
+	public abstract long getQueuedBytes();
 
-		String accept;
-		try {
-			accept = hashWebsocketKey();
-		} catch (NoSuchAlgorithmException e) {
-			logger.error(e.getMessage(), e);
-			throw new IOException("couldn't negotiate headers due to exception: " + e.getMessage());
-		}
+	/**
+	 * @return frames dropped by the overflow policy
+	 */
+	public abstract long getDroppedFrames();
 
-		String response = String.format(
-				"HTTP/1.1 101 Switching Protocols\r\n" 
-				+ "Upgrade: websocket\r\n"
-				+ "Connection: Upgrade\r\n"
-				+ "Sec-WebSocket-Accept: %s\r\n"
-				+ "Sec-WebSocket-Protocol: %s\r\n\r\n",
-				accept, protocol);
+	/**
+	 * The connection is closed if nothing comes back within {@link #PING_WAIT_TIME}.
+	 */
+	public abstract void ping();
 
-		out.clear();
-		out.put(response.getBytes());
-		out.flip();
-		logger.debug(response);
-		status = Status.RESPONDING;
-	}
+	public abstract Status getStatus();
 
 	/**
-	 * @throws IOException 
-	 * @returns whether the socket is still valid
+	 * Fails the connection, mostly due to a protocol error.  The listener hears of it
+	 * as of any other close.
 	 */
-	private void receiveClientHeader() throws IOException {
-		if(in.position() == in.limit()) {
-			throw new IOException("Probably malicious attempt to flood buffers.");
-		}
-		
-		byte[] bytes = in.array();
-        
-        int pos = in.position() - 4;
-        if(
-        		pos < 0 ||
-        		bytes[pos] != '\r' ||
-				bytes[pos+1] != '\n' ||
-				bytes[pos+2] != '\r' ||
-				bytes[pos+3] != '\n') {
-        	return ;
-        }
-        
-        
-        readHeaders();
-        composeServerHeader();
-	}
-	
+	public abstract void fail();
+
 	/**
-	 * @param in
-	 * @return
+	 * Intentionally package private.
+	 * 
+	 * Send a close control frame and change internal status.
+	 *  
 	 * @throws IOException
 	 */
-	private void readHeaders() throws IOException {
-		
-		String header = new String(in.array(),0,in.position()) ;
-		in.clear();
-		
-		logger.debug(header);
-		
-		headers = new HashMap<String, String>();
-        
-        for(String line : header.split("\r\n")) {
-        	String [] tokens = line.split(":");
-        	if(tokens.length == 2) {
-        		headers.put(tokens[0].trim().toLowerCase(), tokens[1].trim());
-        	}
-        	
-        }
+	void sendCloseFrame() {
+		sendCloseFrame(CLOSE_NORMAL);
 	}
 	
 	/**
-	 * Converts the web socket key to the proper hash accept key as dictacted by
-	 * <a href="http://tools.ietf.org/html/rfc6455#section-4.2.2">RFC 6455 #4.2.2</a>
+	 * Intentionally package private.
 	 * 
-	 * @param key
-	 * @return
-	 * @throws NoSuchAlgorithmException
+	 * @param code the status code to close with
 	 */
-	private String hashWebsocketKey() throws NoSuchAlgorithmException {
-        
-        String key = headers.get("sec-websocket-key")+ WEBSOCKET_GUID;
-        
-		if(logger.isDebugEnabled()) {
-			logger.debug(String.format("sec-websocket-key: %s from user: %d",headers.get("sec-websocket-key"),id));
-		}
-		
-		MessageDigest msg = MessageDigest.getInstance("SHA-1");
-        msg.reset();
-        msg.update(key.getBytes());
-        key = Base64.encodeBytes(msg.digest());
+	abstract void sendCloseFrame(int code);
 
-        if(logger.isDebugEnabled()) {
-			logger.debug(String.format("Sec-WebSocket-Accept: %s for user %d",key,id));
-		}
-        
-        
-		return key;
-	}
+	/**
+	 * Intentionally package private.
+	 * 
+	 * Make a listener callback the way this kind of user does.
+	 * 
+	 * @param type
+	 * @param message
+	 * @param payload a fragment, only good for the call
+	 */
+	abstract void deliver(int type,String message,ByteBuffer payload);
 
 	/**
-	 * Use the incoming bytes to fill and construct frames.
+	 * Intentionally package private.
 	 * 
-	 * @param webSocketListener
-	 * @param read
-	 * @throws IOException
+	 * Check a complete handshake and write the response that opens the connection.
+	 * 
+	 * @param handshake
+	 * @param out with at least {@link HandshakeResponse#maxLength()} remaining
+	 * @throws IOException if the client asked for something we don't speak
 	 */
-	private void readIntoFrame() throws IOException {
+	void acceptHandshake(HandshakeParser handshake,ByteBuffer out) throws IOException {
+		if(handshake.equalsIgnoreCase(HandshakeParser.UPGRADE, "websocket") == false
+				|| handshake.containsToken(HandshakeParser.CONNECTION, "upgrade", true) == false) {
+			throw new IOException("not a websocket upgrade");
+		}
 		
-		if(frame == null) {
-			frame = MaskedFrame.newFrame();
+		if (handshake.equalsIgnoreCase(HandshakeParser.SEC_WEBSOCKET_VERSION, "13") == false) {
+			throw new IOException("unsupported websocket version");
 		}
 		
-		in.flip();
+		if(handshake.has(HandshakeParser.SEC_WEBSOCKET_KEY) == false) {
+			throw new IOException("missing websocket key");
+		}
 		
-		written = frame.writeBytes(in.array(), in.position(), in.limit());
-
-		while(written != in.limit()) {
-			handleFrame();
-			frame = MaskedFrame.newFrame();
-			written += frame.writeBytes(in.array(), written, in.limit()-written);
+		if(handshake.containsToken(HandshakeParser.SEC_WEBSOCKET_PROTOCOL, protocol, false) == false) {
+			throw new IOException("unsupported websocket subprotocol");
 		}
 
-		if(frame.isConstructed()) {
-			handleFrame();
-			frame = null;
+		deflate = handshakeResponse.negotiate(handshake);
+		
+		int start = out.position();
+		handshakeResponse.write(handshake, deflate, out);
+
+		if(logger.isDebugEnabled()) {
+			logger.debug(String.format("sec-websocket-key: %s from user: %d",handshake.getValue(HandshakeParser.SEC_WEBSOCKET_KEY),id));
+			ByteBuffer response = out.duplicate();
+			response.flip();
+			response.position(start);
+			logger.debug(StandardCharsets.US_ASCII.decode(response).toString());
 		}
-		in.clear();
 	}
-
+	
 	/**
-	 * Assumes that the currently worked on frame is constructed and must be handled.
+	 * Intentionally package private.
 	 * 
-	 * Control frames must be responded to even if they occur between fragmented frames, and
-	 * it is desirable that we respond to them right away, despite what we're trying to write on
-	 * the wire.
+	 * @return the extension agreed in the handshake, or null
+	 */
+	PerMessageDeflate getDeflate() {
+		return deflate;
+	}
+	
+	/**
+	 * Intentionally package private.
+	 * 
+	 * The reserved bits must be clear but for RSV1, which marks the first frame of a
+	 * compressed message once permessage-deflate is agreed.
 	 * 
 	 * @param frame
-	 * @throws IOException 
+	 * @param continuation whether a fragmented message is in progress
+	 * @throws IOException if the bits are wrong
 	 */
-	private void handleFrame() throws IOException {
-		
-		if(logger.isDebugEnabled()) { logger.debug(">>> Frame read by "+id); }
-		
-		if(frame.getOpCode() == OpCode.CLOSE && status != Status.CLOSING) {
-			sendCloseFrame();
+	void checkReservedBits(MaskedFrame frame,boolean continuation) throws IOException {
+		int bits = frame.getReservedBits();
+		if(bits == 0) {
 			return;
 		}
 		
-		if(frame.getOpCode() == OpCode.PING) {
-			logger.debug(">>> Ping"); 
-			outgoingFrames.add(FrameBuffer.createControlFrame(OpCode.PONG));
-			return;
+		if(bits != 0x4 || deflate == null || frame.isControl() || continuation || streamStarted || textStarted) {
+			throw new CloseException(CLOSE_PROTOCOL_ERROR, "Unexpected reserved bits " + Integer.toBinaryString(bits) + " from user " + id);
+		}
+	}
+	
+	/**
+	 * @param frames every frame of a text message, or null if there was only one
+	 * @param frame the only frame when frames is null
+	 * @return its text, inflated if it was compressed
+	 * @throws IOException if it isn't UTF-8 or doesn't inflate
+	 */
+	private String getText(List<MaskedFrame> frames,MaskedFrame frame) throws IOException {
+		MaskedFrame first = frames == null ? frame : frames.get(0);
+		if(first.isCompressed()) {
+			deflate.inflate(frames, frame, maxMessageLength, text);
+		} else if(frames == null) {
+			text.decode(frame.getPayload());
+		} else {
+			for(MaskedFrame fragment : frames) {
+				text.decode(fragment.getPayload());
+			}
+		}
+		return text.finish();
+	}
+	
+	/**
+	 * Intentionally package private.
+	 * 
+	 * Handle a whole data frame.  Text that isn't compressed is decoded right away and
+	 * the frame let go; fragments of other messages are kept until the last one.
+	 * 
+	 * @param frames the user's fragments kept so far
+	 * @param frame
+	 * @throws IOException if the text isn't UTF-8, the message doesn't inflate or the
+	 * frame doesn't fit the message in progress
+	 */
+	void handleData(List<MaskedFrame> frames,MaskedFrame frame) throws IOException {
+		boolean started = textStarted || frames.isEmpty() == false;
+		if(frame.isContinuation() != started) {
+			throw new CloseException(CLOSE_PROTOCOL_ERROR, (started ? "Unfinished message" : "Continuation without a message") + " from user " + id);
 		}
 		
-		if(frame.getOpCode() == OpCode.PONG) {
-			logger.debug(">>> Pong");
-			pingSentTime = 0;
+		if(textStarted || (streaming == false && frames.isEmpty()
+				&& frame.getOpCode() == OpCode.TEXT && frame.isCompressed() == false)) {
+			text.decode(frame.getPayload());
+			textStarted = frame.isFinal() == false;
+			MaskedFrame.returnFrame(frame);
+			
+			if(textStarted == false) {
+				deliver(Worker.MESSAGE, text.finish(), null);
+			}
 			return;
 		}
 		
 		if(frame.isFinal() == false) {
-			logger.debug(">>> Continuation Frame");
+			frame.detach();
 			frames.add(frame);
 			return;
 		}
 		
-		if(frames.size() > 0) {
-			
-			frames.add(frame);
-			webSocketListener.onMessage(this, MaskedFrame.join(frames));
-			for(MaskedFrame mf : frames) {
-				MaskedFrame.returnFrame(mf);
-			}
-			
-			frames.clear();
-		} else {
-			webSocketListener.onMessage(this, frame.getText());
+		if(frames.isEmpty()) {
+			deliverMessage(null, frame);
 			MaskedFrame.returnFrame(frame);
+			return;
 		}
+		
+		frames.add(frame);
+		deliverMessage(frames, null);
+		for(MaskedFrame mf : frames) {
+			MaskedFrame.returnFrame(mf);
+		}
+		frames.clear();
 	}
-
+	
 	/**
 	 * Intentionally package private.
 	 * 
-	 * Send a close control frame and change internal status.
-	 *  
-	 * @throws IOException
+	 * @return whether data frames are handed to {@link #streamPart(MaskedFrame, boolean)}
+	 * as they arrive
 	 */
-	void sendCloseFrame() {
-		status = Status.CLOSING;
-		outgoingFrames.add(FrameBuffer.createControlFrame(OpCode.CLOSE));
+	boolean isStreaming() {
+		return streaming;
 	}
 	
-	void close() throws IOException {
-		socketChannel.close();
-		try {
-			webSocketListener.onCloseConnection(this);
-		} catch(Exception e) {
-			logger.error(e.getMessage(),e);
-		}
-	}
+	/**
+	 * Intentionally package private.
+	 * 
+	 * Hand a whole message over: its text, its bytes for a {@link BinaryListener} if it
+	 * is binary, or for a streaming listener the start of the message and all of it as
+	 * the last fragment.
+	 * 
+	 * @param frames every frame of the message, or null if there was only one
+	 * @param frame the only frame when frames is null
+	 * @throws IOException
+	 */
+	private void deliverMessage(List<MaskedFrame> frames,MaskedFrame frame) throws IOException {
+		MaskedFrame first = frames == null ? frame : frames.get(0);
+		boolean binaryMessage = first.getOpCode() == OpCode.BINARY;
 		
-
-	public void ping() {
-		outgoingFrames.add(FrameBuffer.createControlFrame(OpCode.PING));
-		pingSentTime = System.currentTimeMillis();
+		if(streaming) {
+			ByteBuffer payload = getPayload(frames, frame);
+			if(binaryMessage == false) {
+				text.validate(payload);
+				text.finish();
+			}
+			deliver(binaryMessage ? Worker.BINARY_START : Worker.MESSAGE_START, null, null);
+			deliver(Worker.LAST_FRAGMENT, null, payload);
+		} else if(binaryMessage && binary) {
+			deliver(Worker.BINARY_MESSAGE, null, getPayload(frames, frame));
+		} else if(binaryMessage) {
+			// as it always was for listeners that don't take bytes, though it needn't be UTF-8
+			deliver(Worker.MESSAGE, StandardCharsets.UTF_8.decode(getPayload(frames, frame)).toString(), null);
+		} else {
+			deliver(Worker.MESSAGE, getText(frames, frame), null);
+		}
 	}
 	
-	public Status getStatus() {
-		return status;
+	/**
+	 * @param frames every frame of the message, or null if there was only one
+	 * @param frame the only frame when frames is null
+	 * @return the message's bytes, inflated if it was compressed, and a slice of the
+	 * frame if it is all there is
+	 * @throws IOException
+	 */
+	private ByteBuffer getPayload(List<MaskedFrame> frames,MaskedFrame frame) throws IOException {
+		MaskedFrame first = frames == null ? frame : frames.get(0);
+		if(first.isCompressed()) {
+			return deflate.inflatePayload(frames, frame, maxMessageLength);
+		}
+		return frames == null ? frame.getPayload() : MaskedFrame.joinPayload(frames);
 	}
-
+	
 	/**
-	 * Fails the connection, mostly due to a protocol error.
+	 * Intentionally package private.
+	 * 
+	 * Hand over a part of a data frame the decoder streamed, starting the message with
+	 * its first.
+	 * 
+	 * @param frame with the part as its payload
+	 * @param complete whether the part completes the frame
+	 * @throws IOException if the frame doesn't fit the message in progress
 	 */
-	public void fail() {
-		status = Status.CLOSING;
-		try {
-			socketChannel.close();
-			logger.debug("Failed the connection for user " + getId());
-		} catch (IOException e) {
-			logger.error(e.getMessage(),e);
+	void streamPart(MaskedFrame frame,boolean complete) throws IOException {
+		if(partStarted == false) {
+			checkReservedBits(frame, false);
+			if(frame.isContinuation() != streamStarted) {
+				throw new CloseException(CLOSE_PROTOCOL_ERROR, (streamStarted ? "Unfinished message" : "Continuation without a message") + " from user " + id);
+			}
+			
+			if(streamStarted == false) {
+				streamStarted = true;
+				streamText = frame.getOpCode() != OpCode.BINARY;
+				deliver(streamText ? Worker.MESSAGE_START : Worker.BINARY_START, null, null);
+			}
+		}
+		partStarted = complete == false;
+		
+		boolean last = complete && frame.isFinal();
+		if(streamText) {
+			text.validate(frame.getPayload());
+			if(last) {
+				text.finish();
+			}
+		}
+		
+		if(last) {
+			streamStarted = false;
+			deliver(Worker.LAST_FRAGMENT, null, frame.getPayload());
+		} else if(frame.getPayload().hasRemaining()) {
+			deliver(Worker.FRAGMENT, null, frame.getPayload());
 		}
 	}
 
-
 }
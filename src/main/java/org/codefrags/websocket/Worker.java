@@ -0,0 +1,294 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A thread that calls the listener for the users sharded to it, in the order their
+ * event loops handed the events over.
+ *
+ * Events go through a ring of slots allocated up front.  Any event loop may publish
+ * into it: a loop claims the next slot by advancing the tail, fills it in and then
+ * marks it published with the slot's sequence.  The worker takes slots in order and
+ * gives each back by moving its sequence one lap ahead.  A full ring turns the
+ * publish down rather than waiting, and the loop is woken once the ring is down to
+ * half full.
+ *
+ * @author Austin Miller
+ * @see org.codefrags.websocket.WorkerGroup
+ */
+class Worker implements Runnable {
+	protected static final Logger logger = LoggerFactory.getLogger(Worker.class);
+
+	static final int NEW_USER = 0;
+	static final int MESSAGE = 1;
+	static final int CLOSE = 2;
+	static final int MESSAGE_START = 3;
+	static final int FRAGMENT = 4;
+	static final int LAST_FRAGMENT = 5;
+	static final int BINARY_START = 6;
+	static final int BINARY_MESSAGE = 7;
+
+	private final WebSocketListener webSocketListener;
+	private final Event [] ring;
+	private final int mask;
+
+	/**
+	 * The next sequence to claim, advanced by the event loops.
+	 */
+	private final AtomicLong tail = new AtomicLong(0);
+
+	/**
+	 * The next sequence to take, only touched by the worker.
+	 */
+	private long head;
+
+	/**
+	 * Event loops that found the ring full and want to hear once it isn't.  A set, so
+	 * a loop turned down again while being woken is just woken once more, later.
+	 */
+	private Set<EventLoop> blocked = Collections.newSetFromMap(new ConcurrentHashMap<EventLoop,Boolean>());
+
+	private volatile Thread thread;
+	private volatile boolean waiting;
+	private volatile boolean running = true;
+
+	/**
+	 * @param webSocketListener
+	 * @param size rounded up to a power of two
+	 */
+	Worker(WebSocketListener webSocketListener,int size) {
+		int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+		this.webSocketListener = webSocketListener;
+		this.ring = new Event[capacity];
+		this.mask = capacity - 1;
+
+		for(int i = 0;i<capacity;++i) {
+			ring[i] = new Event(i);
+		}
+	}
+
+	public void run() {
+		thread = Thread.currentThread();
+
+		while(true) {
+			if(take()) {
+				continue;
+			}
+
+			if(running == false) {
+				return;
+			}
+
+			waiting = true;
+			if(isEmpty() == false || running == false) {
+				waiting = false;
+				continue;
+			}
+			LockSupport.park(this);
+			waiting = false;
+		}
+	}
+
+	/**
+	 * Hand an event over from an event loop.  If the ring is full, the loop is woken
+	 * with {@link EventLoop#wakeStalled()} once there is room.
+	 *
+	 * @param user
+	 * @param type
+	 * @param message
+	 * @param eventLoop the loop publishing
+	 * @return false if the ring is full
+	 */
+	boolean dispatch(SelectorWebSocketUser user,int type,String message,EventLoop eventLoop) {
+		return dispatch(user, type, message, null, eventLoop);
+	}
+
+	/**
+	 * @param user
+	 * @param type
+	 * @param message
+	 * @param payload a pooled copy of a fragment or binary message, given back to the user's pool once
+	 * delivered
+	 * @param eventLoop the loop publishing
+	 * @return false if the ring is full
+	 */
+	boolean dispatch(SelectorWebSocketUser user,int type,String message,ByteBuffer payload,EventLoop eventLoop) {
+		if(offer(user, type, message, payload)) {
+			return true;
+		}
+
+		blocked.add(eventLoop);
+
+		// the worker may have made room before it could see the loop waiting
+		return offer(user, type, message, payload);
+	}
+
+	private boolean offer(SelectorWebSocketUser user,int type,String message,ByteBuffer payload) {
+		long position;
+		Event event;
+
+		while(true) {
+			position = tail.get();
+			event = ring[(int) position & mask];
+			long difference = event.sequence - position;
+
+			if(difference < 0) {
+				return false;
+			}
+			if(difference == 0 && tail.compareAndSet(position, position + 1)) {
+				break;
+			}
+		}
+
+		event.user = user;
+		event.type = type;
+		event.message = message;
+		event.payload = payload;
+		event.sequence = position + 1;
+
+		if(waiting) {
+			LockSupport.unpark(thread);
+		}
+		return true;
+	}
+
+	/**
+	 * Take the next event, give its slot back and call the listener.
+	 *
+	 * @return false if there was nothing to take
+	 */
+	private boolean take() {
+		Event event = ring[(int) head & mask];
+		if(event.sequence != head + 1) {
+			return false;
+		}
+
+		SelectorWebSocketUser user = event.user;
+		int type = event.type;
+		String message = event.message;
+		ByteBuffer payload = event.payload;
+		event.user = null;
+		event.message = null;
+		event.payload = null;
+		event.sequence = head + ring.length;
+		++head;
+
+		wakeBlocked();
+
+		try {
+			deliver(webSocketListener, user, type, message, payload);
+		} catch(Exception e) {
+			logger.error(e.getMessage(),e);
+		} finally {
+			if(payload != null) {
+				user.releaseFragment(payload);
+			}
+		}
+		return true;
+	}
+
+	private boolean isEmpty() {
+		return ring[(int) head & mask].sequence != head + 1;
+	}
+
+	private void wakeBlocked() {
+		if(blocked.isEmpty() || tail.get() - head > ring.length >> 1) {
+			return;
+		}
+
+		for(EventLoop eventLoop : blocked) {
+			if(blocked.remove(eventLoop)) {
+				eventLoop.wakeStalled();
+			}
+		}
+	}
+
+	/**
+	 * Finish the events already published and stop.
+	 */
+	void shutdown() {
+		running = false;
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Call the listener method for an event.
+	 *
+	 * @param webSocketListener
+	 * @param user
+	 * @param type
+	 * @param message
+	 * @param payload the fragment or binary message
+	 */
+	static void deliver(WebSocketListener webSocketListener,WebSocketUser user,int type,String message,ByteBuffer payload) {
+		switch(type) {
+		case NEW_USER:
+			webSocketListener.onNewUser(user);
+			break;
+		case MESSAGE:
+			webSocketListener.onMessage(user, message);
+			break;
+		case CLOSE:
+			webSocketListener.onCloseConnection(user);
+			break;
+		case MESSAGE_START:
+			((StreamingListener) webSocketListener).onMessageStart(user, false);
+			break;
+		case BINARY_START:
+			((StreamingListener) webSocketListener).onMessageStart(user, true);
+			break;
+		case FRAGMENT:
+			((StreamingListener) webSocketListener).onFragment(user, payload, false);
+			break;
+		case LAST_FRAGMENT:
+			((StreamingListener) webSocketListener).onFragment(user, payload, true);
+			break;
+		case BINARY_MESSAGE:
+			((BinaryListener) webSocketListener).onBinaryMessage(user, payload);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * A slot in the ring.  Its sequence is one past the position it was published
+	 * at while it holds an event, and the position it can next be claimed at
+	 * otherwise.
+	 */
+	private static class Event {
+		volatile long sequence;
+		SelectorWebSocketUser user;
+		int type;
+		String message;
+		ByteBuffer payload;
+
+		Event(long sequence) {
+			this.sequence = sequence;
+		}
+	}
+
+}
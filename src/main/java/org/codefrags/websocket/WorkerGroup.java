@@ -0,0 +1,83 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A fixed set of workers that take listener callbacks off the event loops.  Users
+ * are sharded across them by id, so every callback for one user is made by the same
+ * worker, in order.
+ *
+ * @author Austin Miller
+ * @see org.codefrags.websocket.Worker
+ */
+class WorkerGroup {
+	protected static final Logger logger = LoggerFactory.getLogger(WorkerGroup.class);
+
+	private final Worker [] workers;
+	private final Thread [] threads;
+
+	WorkerGroup(WebSocketListener webSocketListener,int size,int ringSize) {
+		workers = new Worker[size];
+		threads = new Thread[size];
+
+		for(int i = 0;i<size;++i) {
+			workers[i] = new Worker(webSocketListener, ringSize);
+		}
+	}
+
+	void start() {
+		for(int i = 0;i<workers.length;++i) {
+			threads[i] = new Thread(workers[i],"websocket-worker-"+i);
+			threads[i].start();
+		}
+	}
+
+	/**
+	 * @param user
+	 * @return the worker that makes every callback for the user
+	 */
+	Worker workerFor(SelectorWebSocketUser user) {
+		return workers[(user.getId() & Integer.MAX_VALUE) % workers.length];
+	}
+
+	/**
+	 * Let every worker finish what was handed to it and block until they have.
+	 */
+	void shutdown() {
+		for(Worker worker : workers) {
+			worker.shutdown();
+		}
+
+		for(Thread thread : threads) {
+			if(thread == null) {
+				continue;
+			}
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				logger.error(e.getMessage(),e);
+			}
+		}
+	}
+
+	int size() {
+		return workers.length;
+	}
+
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+/**
+ * Implemented by a {@link WebSocketListener} that wants to know when users cross the
+ * server's water marks, to stop sending to a slow reader and pick up again once it
+ * has caught up.
+ * 
+ * Called on the user's event loop thread, like the rest of the listener.  Changes
+ * that flip back and forth before the loop gets to them are coalesced, so writable
+ * is always the user's state at the time of the call and differs from the last one.
+ * 
+ * @author Austin Miller
+ * @see org.codefrags.websocket.WebSocketServer#setWaterMarks(int, int)
+ */
+public interface WritabilityListener {
+
+	public void onWritabilityChanged(WebSocketUser webSocketUser,boolean writable);
+
+}
@@ -15,8 +15,8 @@
  */
 package org.codefrags.websocket.example;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.codefrags.websocket.WebSocketListener;
 import org.codefrags.websocket.WebSocketServer;
@@ -29,6 +29,7 @@ import org.codefrags.websocket.WebSocketUser;
 public class ChatServer implements WebSocketListener {
 	
 	private static final String SERVER_NAME = "<server>";
+	private static final String LOBBY = "lobby";
 
 
 	public static void main(String args[]) {
@@ -52,7 +53,7 @@ public class ChatServer implements WebSocketListener {
 
 
 	private WebSocketServer webSocketServer;
-	private Map<WebSocketUser,String> users = new HashMap<WebSocketUser,String>();
+	private Map<WebSocketUser,String> users = new ConcurrentHashMap<WebSocketUser,String>();
 	
 	
 	public ChatServer() {
@@ -60,6 +61,7 @@ public class ChatServer implements WebSocketListener {
 		webSocketServer.setProtocol("chat");
 		webSocketServer.setWebSocketListener(this);
 		webSocketServer.setPort(8090);
+		webSocketServer.setEventLoopCount(Runtime.getRuntime().availableProcessors());
 		webSocketServer.setPingInterval(0); // ping never
 //		webSocketServer.setPingInterval(60*1000); // ping every minute
 	}
@@ -72,6 +74,7 @@ public class ChatServer implements WebSocketListener {
 	public void onNewUser(WebSocketUser webSocketUser) {
 		String name = "guest-"+webSocketUser.getId();
 		users.put(webSocketUser,name);
+		webSocketUser.subscribe(LOBBY);
 		System.out.println("New user "+name);
 		webSocketUser.send("echo:"+SERVER_NAME+": You are connected.");
 		webSocketUser.send("name:"+name);
@@ -99,9 +102,7 @@ public class ChatServer implements WebSocketListener {
 	private void broadcast(WebSocketUser webSocketUser,String name,String msg) {
 		String message = "echo:"+name + ": "+msg;
 		
-		for(WebSocketUser user : users.keySet()) {
-			user.send(message);
-		}
+		webSocketServer.publish(LOBBY, message);
 	}
 
 
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import static org.codefrags.websocket.TestClient.HANDSHAKE;
+import static org.codefrags.websocket.TestClient.readResponse;
+import static org.codefrags.websocket.TestClient.start;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author Austin Miller
+ *
+ */
+public class BufferPoolTest {
+
+	/**
+	 * Requests are rounded up to a power of two size class and released buffers are
+	 * handed out again.
+	 */
+	@Test
+	public void testSizeClasses() {
+		BufferPool pool = new BufferPool();
+
+		ByteBuffer small = pool.acquire(100);
+		assertTrue(small.isDirect());
+		assertEquals(1<<12, small.capacity());
+		ByteBuffer medium = pool.acquire(5000);
+		assertEquals(1<<13, medium.capacity());
+		assertEquals(2, pool.getBorrowed());
+		assertEquals(3<<12, pool.getAllocatedBytes());
+
+		small.put((byte) 1);
+		pool.release(small);
+		ByteBuffer again = pool.acquire(4096);
+		assertSame(small, again);
+		assertEquals(0, again.position());
+		assertEquals(1, pool.getHits());
+		assertEquals(2, pool.getMisses());
+
+		pool.release(again);
+		pool.release(medium);
+		assertEquals(0, pool.getBorrowed());
+		assertEquals(3<<12, pool.getAllocatedBytes());
+	}
+
+	/**
+	 * Past the ceiling, and above the largest size class, buffers come from the heap
+	 * and are dropped when released.
+	 */
+	@Test
+	public void testCeiling() {
+		BufferPool pool = new BufferPool(1<<13);
+
+		ByteBuffer direct = pool.acquire(1<<13);
+		assertTrue(direct.isDirect());
+		ByteBuffer heap = pool.acquire(1<<12);
+		assertFalse(heap.isDirect());
+		assertEquals(1<<13, pool.getAllocatedBytes());
+		assertEquals(1, pool.getHeapAllocations());
+
+		ByteBuffer large = pool.acquire((1<<20) + 1);
+		assertFalse(large.isDirect());
+		assertEquals(2, pool.getHeapAllocations());
+		assertEquals(2, pool.getBorrowed());
+
+		pool.release(heap);
+		pool.release(large);
+		pool.release(direct);
+		assertEquals(0, pool.getBorrowed());
+		assertSame(direct, pool.acquire(1<<13));
+		assertFalse(pool.acquire(1<<12).isDirect());
+	}
+
+	/**
+	 * Connections that are open but quiet hold no buffers, only the event loop's read
+	 * buffer is borrowed.
+	 */
+	@Test
+	public void testIdleConnections() throws Exception {
+		WebSocketServer server = new WebSocketServer();
+		server.setWebSocketListener(new WebSocketListener() {
+			public void onNewUser(WebSocketUser user) {
+			}
+
+			public void onMessage(WebSocketUser user,String message) {
+			}
+
+			public void onCloseConnection(WebSocketUser user) {
+			}
+		});
+		int port = start(server);
+
+		List<Socket> sockets = new ArrayList<Socket>();
+		try {
+			for(int i = 0;i<10;++i) {
+				Socket socket = new Socket("localhost", port);
+				socket.setSoTimeout(5000);
+				sockets.add(socket);
+				socket.getOutputStream().write(HANDSHAKE.getBytes("US-ASCII"));
+				readResponse(new DataInputStream(socket.getInputStream()));
+			}
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while(server.getBufferPool().getBorrowed() != server.getEventLoopCount()) {
+				assertTrue(System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+		} finally {
+			for(Socket socket : sockets) {
+				socket.close();
+			}
+		}
+
+		server.shutdown(false);
+		assertEquals(0, server.getBufferPool().getBorrowed());
+	}
+
+}
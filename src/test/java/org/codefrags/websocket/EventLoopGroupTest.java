@@ -0,0 +1,178 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import static org.codefrags.websocket.TestClient.HANDSHAKE;
+import static org.codefrags.websocket.TestClient.maskedFrame;
+import static org.codefrags.websocket.TestClient.readResponse;
+import static org.codefrags.websocket.TestClient.readText;
+import static org.codefrags.websocket.TestClient.start;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author Austin Miller
+ *
+ */
+public class EventLoopGroupTest {
+
+	private static final int CLIENTS = 4;
+
+	/**
+	 * Connections are handed to the loops in turn and stay on the loop they were
+	 * handed to.
+	 */
+	@Test
+	public void testRoundRobin() throws Exception {
+		final BlockingQueue<WebSocketUser> users = new LinkedBlockingQueue<WebSocketUser>();
+		WebSocketServer server = new WebSocketServer();
+		server.setEventLoopCount(2);
+		server.setBalancing(WebSocketServer.Balancing.ROUND_ROBIN);
+		server.setWebSocketListener(new Users(users, new CountDownLatch(CLIENTS)));
+		int port = start(server);
+
+		List<Socket> sockets = new ArrayList<Socket>();
+		try {
+			List<EventLoop> loops = new ArrayList<EventLoop>();
+			for(int i = 0;i<CLIENTS;++i) {
+				sockets.add(connect(port));
+				loops.add(((SelectorWebSocketUser) users.poll(5, TimeUnit.SECONDS)).getEventLoop());
+			}
+
+			assertNotSame(loops.get(0), loops.get(1));
+			assertSame(loops.get(0), loops.get(2));
+			assertSame(loops.get(1), loops.get(3));
+			assertEquals(CLIENTS / 2, loops.get(0).getConnectionCount());
+			assertEquals(CLIENTS / 2, loops.get(1).getConnectionCount());
+		} finally {
+			for(Socket socket : sockets) {
+				socket.close();
+			}
+		}
+
+		server.shutdown(false);
+	}
+
+	@Test
+	public void testShutdown() throws Exception {
+		shutdown(true);
+		shutdown(false);
+	}
+
+	/**
+	 * Shutting down closes every user through the listener and gives back every
+	 * buffer.  Gracefully, what was queued goes out first and each client gets a close
+	 * frame to answer.
+	 */
+	private static void shutdown(boolean gracefully) throws Exception {
+		final BlockingQueue<WebSocketUser> users = new LinkedBlockingQueue<WebSocketUser>();
+		CountDownLatch closed = new CountDownLatch(CLIENTS);
+		WebSocketServer server = new WebSocketServer();
+		server.setEventLoopCount(2);
+		server.setWebSocketListener(new Users(users, closed));
+		int port = start(server);
+
+		final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+		List<Thread> clients = new ArrayList<Thread>();
+		for(int i = 0;i<CLIENTS;++i) {
+			final Socket socket = connect(port);
+			users.poll(5, TimeUnit.SECONDS).send("last");
+
+			Thread client = new Thread(new Runnable() {
+				public void run() {
+					try {
+						DataInputStream in = new DataInputStream(socket.getInputStream());
+						received.add(readText(in));
+						String close = readText(in);
+						received.add(String.valueOf(close));
+						socket.getOutputStream().write(maskedFrame(OpCode.CLOSE, new byte[0]));
+						received.add(String.valueOf(in.read()));
+					} catch(EOFException e) {
+						received.add("eof");
+					} catch(Exception e) {
+						received.add(e.toString());
+					} finally {
+						try {
+							socket.close();
+						} catch(Exception e) {
+						}
+					}
+				}
+			});
+			client.start();
+			clients.add(client);
+		}
+
+		server.shutdown(gracefully);
+
+		assertTrue(closed.await(5, TimeUnit.SECONDS));
+		for(Thread client : clients) {
+			client.join(5000);
+		}
+
+		assertEquals(CLIENTS, Collections.frequency(received, "last"));
+		if(gracefully) {
+			assertEquals(CLIENTS, Collections.frequency(received, "null"));
+			assertEquals(CLIENTS, Collections.frequency(received, "-1"));
+		}
+		assertEquals(0, server.getBufferPool().getBorrowed());
+	}
+
+	private static Socket connect(int port) throws Exception {
+		Socket socket = new Socket("localhost", port);
+		socket.setSoTimeout(5000);
+		socket.getOutputStream().write(HANDSHAKE.getBytes("US-ASCII"));
+		readResponse(new DataInputStream(socket.getInputStream()));
+		return socket;
+	}
+
+	private static class Users implements WebSocketListener {
+		private final BlockingQueue<WebSocketUser> users;
+		private final CountDownLatch closed;
+
+		Users(BlockingQueue<WebSocketUser> users,CountDownLatch closed) {
+			this.users = users;
+			this.closed = closed;
+		}
+
+		public void onNewUser(WebSocketUser user) {
+			users.add(user);
+		}
+
+		public void onMessage(WebSocketUser user,String message) {
+		}
+
+		public void onCloseConnection(WebSocketUser user) {
+			closed.countDown();
+		}
+	}
+
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import static org.codefrags.websocket.TestClient.HANDSHAKE;
+import static org.codefrags.websocket.TestClient.maskedFrame;
+import static org.codefrags.websocket.TestClient.payload;
+import static org.codefrags.websocket.TestClient.readResponse;
+import static org.codefrags.websocket.TestClient.readText;
+import static org.codefrags.websocket.TestClient.start;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * @author Austin Miller
+ *
+ */
+public class EventLoopTest {
+
+	/**
+	 * A client that stops reading leaves the socket unable to take everything, which
+	 * turns OP_WRITE on.  Once the client catches up the rest goes out and OP_WRITE is
+	 * turned off again.
+	 */
+	@Test
+	public void testWriteInterest() throws Exception {
+		final BlockingQueue<WebSocketUser> users = new LinkedBlockingQueue<WebSocketUser>();
+		WebSocketListener listener = new WebSocketListener() {
+			public void onNewUser(WebSocketUser user) {
+				users.add(user);
+			}
+
+			public void onMessage(WebSocketUser user,String message) {
+			}
+
+			public void onCloseConnection(WebSocketUser user) {
+			}
+		};
+
+		WebSocketServer server = new WebSocketServer();
+		server.setWebSocketListener(listener);
+		int port = start(server);
+
+		Socket socket = new Socket();
+		socket.setReceiveBufferSize(1<<12);
+		socket.connect(new InetSocketAddress("localhost", port));
+		socket.setSoTimeout(5000);
+		try {
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			socket.getOutputStream().write(HANDSHAKE.getBytes("US-ASCII"));
+			readResponse(in);
+
+			SelectorWebSocketUser user = (SelectorWebSocketUser) users.poll(5, TimeUnit.SECONDS);
+			EventLoop loop = user.getEventLoop();
+			assertFalse(loop.isWaitingToWrite(user));
+
+			String message = new String(payload(1<<16), "US-ASCII");
+			int sent = 0;
+			long deadline = System.currentTimeMillis() + 5000;
+			while(loop.isWaitingToWrite(user) == false) {
+				assertTrue(System.currentTimeMillis() < deadline);
+				user.send(message);
+				++sent;
+				Thread.sleep(10);
+			}
+			assertTrue(user.getQueuedBytes() > 0);
+
+			for(int i = 0;i<sent;++i) {
+				assertEquals(message, readText(in));
+			}
+
+			while(loop.isWaitingToWrite(user) || user.getQueuedBytes() > 0) {
+				assertTrue(System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+
+			socket.getOutputStream().write(maskedFrame(OpCode.CLOSE, new byte[0]));
+			assertNull(readText(in));
+		} finally {
+			socket.close();
+		}
+
+		server.shutdown(false);
+		assertEquals(0, server.getBufferPool().getBorrowed());
+	}
+
+	/**
+	 * Only users with something queued are put on the dirty list, and only once no
+	 * matter how much they queue before the next flush pass.  The loop is held in a
+	 * task while the sends happen.
+	 */
+	@Test
+	public void testDirtyOnce() throws Exception {
+		final BlockingQueue<WebSocketUser> users = new LinkedBlockingQueue<WebSocketUser>();
+		WebSocketListener listener = new WebSocketListener() {
+			public void onNewUser(WebSocketUser user) {
+				users.add(user);
+			}
+
+			public void onMessage(WebSocketUser user,String message) {
+			}
+
+			public void onCloseConnection(WebSocketUser user) {
+			}
+		};
+
+		WebSocketServer server = new WebSocketServer();
+		server.setWebSocketListener(listener);
+		int port = start(server);
+
+		Socket busy = new Socket("localhost", port);
+		Socket idle = new Socket("localhost", port);
+		busy.setSoTimeout(5000);
+		idle.setSoTimeout(5000);
+		try {
+			DataInputStream in = new DataInputStream(busy.getInputStream());
+			busy.getOutputStream().write(HANDSHAKE.getBytes("US-ASCII"));
+			readResponse(in);
+			SelectorWebSocketUser user = (SelectorWebSocketUser) users.poll(5, TimeUnit.SECONDS);
+
+			idle.getOutputStream().write(HANDSHAKE.getBytes("US-ASCII"));
+			readResponse(new DataInputStream(idle.getInputStream()));
+			users.poll(5, TimeUnit.SECONDS);
+
+			final EventLoop loop = user.getEventLoop();
+			final CountDownLatch held = new CountDownLatch(1);
+			final CountDownLatch release = new CountDownLatch(1);
+			loop.execute(new Runnable() {
+				public void run() {
+					held.countDown();
+					try {
+						release.await(5, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			assertTrue(held.await(5, TimeUnit.SECONDS));
+			assertEquals(0, loop.getDirtyCount());
+
+			for(int i = 0;i<50;++i) {
+				user.send("message " + i);
+			}
+			assertEquals(1, loop.getDirtyCount());
+			release.countDown();
+
+			for(int i = 0;i<50;++i) {
+				assertEquals("message " + i, readText(in));
+			}
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while(loop.getDirtyCount() > 0 || user.getQueuedBytes() > 0) {
+				assertTrue(System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+			assertFalse(loop.isWaitingToWrite(user));
+		} finally {
+			busy.close();
+			idle.close();
+		}
+
+		server.shutdown(false);
+		assertEquals(0, server.getBufferPool().getBorrowed());
+	}
+
+	/**
+	 * A connection that fails while being set up is closed and counted out, and the
+	 * listener hears of the close only if it heard of the user.
+	 */
+	@Test
+	public void testAcceptFailure() throws Exception {
+		final BlockingQueue<WebSocketUser> users = new LinkedBlockingQueue<WebSocketUser>();
+		final BlockingQueue<WebSocketUser> closed = new LinkedBlockingQueue<WebSocketUser>();
+		final AtomicBoolean failing = new AtomicBoolean(true);
+		WebSocketListener listener = new WebSocketListener() {
+			public void onNewUser(WebSocketUser user) {
+				users.add(user);
+				if(failing.get()) {
+					throw new IllegalStateException("failing the first user");
+				}
+			}
+
+			public void onMessage(WebSocketUser user,String message) {
+			}
+
+			public void onCloseConnection(WebSocketUser user) {
+				closed.add(user);
+			}
+		};
+
+		WebSocketServer server = new WebSocketServer();
+		server.setWebSocketListener(listener);
+		int port = start(server);
+
+		Socket socket = new Socket("localhost", port);
+		socket.setSoTimeout(5000);
+		try {
+			assertEquals(-1, socket.getInputStream().read());
+		} finally {
+			socket.close();
+		}
+		SelectorWebSocketUser user = (SelectorWebSocketUser) users.poll(5, TimeUnit.SECONDS);
+		assertSame(user, closed.poll(5, TimeUnit.SECONDS));
+		EventLoop loop = user.getEventLoop();
+		assertEquals(0, loop.getConnectionCount());
+
+		// a channel the loop can't register never reaches the listener
+		SocketChannel channel = SocketChannel.open();
+		channel.close();
+		loop.register(channel);
+		long deadline = System.currentTimeMillis() + 5000;
+		while(loop.getConnectionCount() > 0) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		assertTrue(users.isEmpty());
+
+		failing.set(false);
+		socket = new Socket("localhost", port);
+		socket.setSoTimeout(5000);
+		try {
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			socket.getOutputStream().write(HANDSHAKE.getBytes("US-ASCII"));
+			readResponse(in);
+			socket.getOutputStream().write(maskedFrame(OpCode.CLOSE, new byte[0]));
+			assertNull(readText(in));
+		} finally {
+			socket.close();
+		}
+
+		assertTrue(closed.poll(5, TimeUnit.SECONDS) != null);
+		assertTrue(closed.isEmpty());
+		server.shutdown(false);
+		assertEquals(0, server.getBufferPool().getBorrowed());
+	}
+
+}
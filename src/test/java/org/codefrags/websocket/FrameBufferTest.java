@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import static org.codefrags.websocket.TestClient.payload;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * @author Austin Miller
+ *
+ */
+public class FrameBufferTest {
+
+	/**
+	 * Frames made for a user are direct and go back to the pool once released, those
+	 * made by the public factories are heap buffers of their own.
+	 */
+	@Test
+	public void testPooledFrames() {
+		BufferPool pool = new BufferPool();
+		byte [] bytes = payload(300);
+
+		FrameBuffer [] frames = {
+				FrameBuffer.createBinaryFrame(ByteBuffer.wrap(bytes), pool),
+				FrameBuffer.createBinaryFrame(bytes, 0, bytes.length, pool),
+				FrameBuffer.createTextFrame(bytes, bytes.length, true, pool),
+				FrameBuffer.createControlFrame(OpCode.PING, pool),
+				FrameBuffer.createCloseFrame(WebSocketUser.CLOSE_NORMAL, pool)};
+		assertEquals(frames.length, pool.getBorrowed());
+
+		for(int i = 0;i<3;++i) {
+			ByteBuffer buffer = frames[i].getBuffer();
+			assertTrue(buffer.isDirect());
+			assertEquals(i < 2 ? 0x82 : 0xC1, buffer.get() & 0xFF);
+			assertEquals(126, buffer.get());
+			assertEquals(bytes.length, buffer.getShort());
+
+			byte [] payload = new byte[buffer.remaining()];
+			buffer.get(payload);
+			assertTrue(Arrays.equals(bytes, payload));
+		}
+		assertEquals(0x89, frames[3].getBuffer().get(0) & 0xFF);
+		assertEquals(5, frames[3].size());
+		assertEquals(WebSocketUser.CLOSE_NORMAL, frames[4].getBuffer().getShort(2));
+		assertTrue(frames[4].isControl());
+
+		for(FrameBuffer frame : frames) {
+			frame.release();
+			frame.release();
+		}
+		assertEquals(0, pool.getBorrowed());
+
+		FrameBuffer heap = FrameBuffer.createBinaryFrame(bytes, 0, bytes.length);
+		assertFalse(heap.getBuffer().isDirect());
+		heap.release();
+		assertEquals(0, pool.getBorrowed());
+	}
+
+}
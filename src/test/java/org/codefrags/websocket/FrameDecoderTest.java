@@ -0,0 +1,250 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import static org.codefrags.websocket.TestClient.maskedFrame;
+import static org.codefrags.websocket.TestClient.payload;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * @author Austin Miller
+ *
+ */
+public class FrameDecoderTest {
+
+	/**
+	 * Test method for {@link org.codefrags.websocket.FrameDecoder#decode(ByteBuffer, MaskedFrame)}
+	 * with the header split at every possible point.
+	 * @throws IOException 
+	 */
+	@Test
+	public void testSplitHeader() throws IOException {
+		byte [] payload = payload(300);
+		
+		for(int split = 1;split<=8;++split) {
+			// payloads are unmasked in place, so every pass needs fresh bytes
+			byte [] bytes = maskedFrame(OpCode.TEXT, payload);
+			FrameDecoder decoder = new FrameDecoder();
+			MaskedFrame frame = MaskedFrame.newFrame();
+			
+			assertFalse(decoder.decode(ByteBuffer.wrap(bytes, 0, split), frame));
+			assertTrue(decoder.decode(ByteBuffer.wrap(bytes, split, bytes.length - split), frame));
+			assertPayload(payload, frame);
+		}
+	}
+
+	/**
+	 * Frames that are whole in the buffer come back as slices of it, and a frame
+	 * cut off at the end picks up with the next buffer.
+	 * @throws IOException 
+	 */
+	@Test
+	public void testSlicesAndSplitPayload() throws IOException {
+		byte [] first = maskedFrame(OpCode.TEXT, "first".getBytes());
+		byte [] empty = maskedFrame(OpCode.PING, new byte[0]);
+		byte [] last = maskedFrame(OpCode.TEXT, payload(1000));
+		
+		ByteBuffer in = ByteBuffer.allocate(first.length + empty.length + 500);
+		in.put(first).put(empty).put(last, 0, 500 - first.length);
+		in.flip();
+		
+		FrameDecoder decoder = new FrameDecoder();
+		
+		MaskedFrame frame = MaskedFrame.newFrame();
+		assertTrue(decoder.decode(in, frame));
+		assertEquals("first", frame.getText());
+		assertSame(in.array(), frame.getPayload().array());
+		
+		frame = MaskedFrame.newFrame();
+		assertTrue(decoder.decode(in, frame));
+		assertEquals(OpCode.PING, frame.getOpCode());
+		assertEquals(0, frame.getLength());
+		
+		frame = MaskedFrame.newFrame();
+		assertFalse(decoder.decode(in, frame));
+		assertFalse(in.hasRemaining());
+		
+		ByteBuffer rest = ByteBuffer.wrap(last, 500 - first.length, last.length - 500 + first.length);
+		assertTrue(decoder.decode(rest, frame));
+		assertPayload(payload(1000), frame);
+	}
+
+	@Test
+	public void testStreaming() throws Exception {
+		byte [] first = maskedFrame(OpCode.TEXT.getValue(), payload(1000));
+		ByteBuffer in = ByteBuffer.wrap(first, 0, 600);
+		FrameDecoder decoder = new FrameDecoder();
+		MaskedFrame frame = MaskedFrame.newFrame();
+
+		// the part in the buffer is handed out in place, the rest once it arrives
+		assertEquals(FrameDecoder.PART, decoder.stream(in, frame, false));
+		assertSame(first, frame.getPayload().array());
+		assertEquals(600 - 8, frame.getPayload().remaining());
+		ByteBuffer rest = ByteBuffer.wrap(first, 600, first.length - 600);
+		assertEquals(FrameDecoder.LAST_PART, decoder.stream(rest, frame, false));
+		assertEquals(first.length - 600, frame.getPayload().remaining());
+		assertFalse(frame.isFinal());
+
+		// control frames are gathered
+		byte [] ping = maskedFrame(OpCode.PING, new byte[0]);
+		frame = MaskedFrame.newFrame();
+		assertEquals(FrameDecoder.WHOLE, decoder.stream(ByteBuffer.wrap(ping), frame, false));
+	}
+
+	/**
+	 * Only frames gathered whole are held to the maximum length, a streamed one can be
+	 * longer than an int.
+	 */
+	@Test
+	public void testStreamedLength() throws Exception {
+		byte [] payload = payload(1000);
+		ByteBuffer bytes = ByteBuffer.allocate(14 + payload.length);
+		bytes.put((byte) 0x82).put((byte) (0x80 | 127)).putLong(1L<<33).putInt(0).put(payload);
+
+		bytes.flip();
+		MaskedFrame frame = MaskedFrame.newFrame();
+		assertEquals(FrameDecoder.PART, new FrameDecoder().stream(bytes, frame, false));
+		assertPayload(payload, frame);
+
+		bytes.rewind();
+		try {
+			new FrameDecoder().stream(bytes, MaskedFrame.newFrame(), true);
+			fail("gathered a frame over the maximum");
+		} catch(IOException e) {
+		}
+
+		bytes.rewind();
+		try {
+			new FrameDecoder().decode(bytes, MaskedFrame.newFrame());
+			fail("decoded a frame over the maximum");
+		} catch(IOException e) {
+		}
+	}
+
+	/**
+	 * Reserved op codes, fragmented control frames and, from a client, unmasked frames
+	 * are protocol errors.
+	 */
+	@Test
+	public void testProtocolErrors() throws Exception {
+		byte [] unmasked = {(byte) 0x81, 2, 'h', 'i'};
+		MaskedFrame frame = MaskedFrame.newFrame();
+		assertTrue(new FrameDecoder().decode(ByteBuffer.wrap(unmasked), frame));
+		assertEquals("hi", frame.getText());
+
+		assertClose(WebSocketUser.CLOSE_PROTOCOL_ERROR, unmasked);
+		assertClose(WebSocketUser.CLOSE_PROTOCOL_ERROR, maskedFrame(0x83, new byte[0]));
+		assertClose(WebSocketUser.CLOSE_PROTOCOL_ERROR, maskedFrame(0x8F, new byte[0]));
+		assertClose(WebSocketUser.CLOSE_PROTOCOL_ERROR, maskedFrame(OpCode.PING.getValue(), new byte[0]));
+		assertClose(WebSocketUser.CLOSE_PROTOCOL_ERROR, maskedFrame(OpCode.PING, payload(126)));
+	}
+
+	/**
+	 * A frame gathered whole is held to the maximum frame length, and a message's
+	 * fragments together to the maximum message length.
+	 */
+	@Test
+	public void testLimits() throws Exception {
+		assertClose(WebSocketUser.CLOSE_TOO_BIG, maskedFrame(OpCode.BINARY, payload(1001)));
+
+		ByteBuffer fragments = ByteBuffer.allocate(3000);
+		fragments.put(maskedFrame(OpCode.TEXT.getValue(), payload(900)));
+		fragments.put(maskedFrame(OpCode.PING, new byte[0]));
+		fragments.put(maskedFrame(0, payload(900)));
+		fragments.put(maskedFrame(0x80, payload(900)));
+		fragments.flip();
+		FrameDecoder decoder = new FrameDecoder(1000, 2000, true);
+		assertTrue(decoder.decode(fragments, MaskedFrame.newFrame()));
+		assertTrue(decoder.decode(fragments, MaskedFrame.newFrame()));
+		assertTrue(decoder.decode(fragments, MaskedFrame.newFrame()));
+		try {
+			decoder.decode(fragments, MaskedFrame.newFrame());
+			fail("gathered a message over the maximum");
+		} catch(CloseException e) {
+			assertEquals(WebSocketUser.CLOSE_TOO_BIG, e.getCode());
+		}
+
+		// a new message starts the count again
+		decoder = new FrameDecoder(1000, 2000, true);
+		for(int i = 0;i<10;++i) {
+			assertTrue(decoder.decode(ByteBuffer.wrap(maskedFrame(OpCode.TEXT, payload(900))), MaskedFrame.newFrame()));
+		}
+
+		// empty fragments still count
+		decoder = new FrameDecoder(1000, 2000, true);
+		assertTrue(decoder.decode(ByteBuffer.wrap(maskedFrame(OpCode.TEXT.getValue(), new byte[0])), MaskedFrame.newFrame()));
+		try {
+			for(int i = 0;i<1<<10;++i) {
+				decoder.decode(ByteBuffer.wrap(maskedFrame(0, new byte[0])), MaskedFrame.newFrame());
+			}
+			fail("gathered a message in too many fragments");
+		} catch(CloseException e) {
+			assertEquals(WebSocketUser.CLOSE_TOO_BIG, e.getCode());
+		}
+	}
+
+	/**
+	 * A payload gathered across reads is only given room for what has arrived, not
+	 * for the length its header claims.
+	 */
+	@Test
+	public void testStorageGrows() throws Exception {
+		byte [] payload = payload(200000);
+		byte [] bytes = maskedFrame(OpCode.BINARY, payload);
+		FrameDecoder decoder = new FrameDecoder();
+		MaskedFrame frame = MaskedFrame.newFrame();
+
+		assertFalse(decoder.decode(ByteBuffer.wrap(bytes, 0, 114), frame));
+		assertTrue(frame.storage(0).length < 1<<10);
+
+		int position = 114;
+		while(position < bytes.length) {
+			int read = Math.min(1<<13, bytes.length - position);
+			boolean done = decoder.decode(ByteBuffer.wrap(bytes, position, read), frame);
+			position += read;
+			assertEquals(position == bytes.length, done);
+			assertTrue(frame.storage(0).length <= 2 * (position - 14));
+		}
+		assertPayload(payload, frame);
+	}
+
+	private static void assertClose(int code,byte [] bytes) throws IOException {
+		try {
+			new FrameDecoder(1000, 2000, true).decode(ByteBuffer.wrap(bytes), MaskedFrame.newFrame());
+			fail("decoded a frame that should close the connection");
+		} catch(CloseException e) {
+			assertEquals(code, e.getCode());
+		}
+	}
+
+	private void assertPayload(byte [] expected,MaskedFrame frame) {
+		ByteBuffer payload = frame.getPayload().duplicate();
+		byte [] actual = new byte[payload.remaining()];
+		payload.get(actual);
+		assertTrue(Arrays.equals(expected, actual));
+	}
+
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author Austin Miller
+ *
+ */
+public class FramePoolTest {
+
+	/**
+	 * Threads other than the loops keep no cache, an array released on one is handed
+	 * to the next from the shared stacks and frames are simply allocated.
+	 */
+	@Test
+	public void testSharedOffLoop() throws Exception {
+		final FramePool pool = new FramePool();
+		final byte [] array = pool.acquire(100);
+
+		Thread thread = new Thread() {
+			public void run() {
+				pool.release(array);
+			}
+		};
+		thread.start();
+		thread.join();
+
+		assertEquals(128, pool.getIdleBytes());
+		assertSame(array, pool.acquire(100));
+		assertEquals(0, pool.getIdleBytes());
+
+		MaskedFrame frame = pool.acquireFrame();
+		pool.releaseFrame(frame);
+		assertNotSame(frame, pool.acquireFrame());
+		pool.acquire(1<<21);
+
+		assertEquals(1, pool.getHits());
+		assertEquals(4, pool.getMisses());
+	}
+
+	/**
+	 * An event loop keeps what it releases in its own cache, out of the shared stacks.
+	 */
+	@Test
+	public void testLoopCache() throws Exception {
+		final FramePool pool = new FramePool();
+		final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+		final CountDownLatch done = new CountDownLatch(1);
+		EventLoop loop = new EventLoop(new WebSocketServer(), "test-loop");
+		Thread thread = new Thread(loop, loop.getName());
+		thread.start();
+
+		try {
+			loop.execute(new Runnable() {
+				public void run() {
+					MaskedFrame frame = pool.acquireFrame();
+					pool.releaseFrame(frame);
+					results.add(Boolean.valueOf(frame == pool.acquireFrame()));
+
+					byte [] array = pool.acquire(100);
+					pool.release(array);
+					results.add(Long.valueOf(pool.getIdleBytes()));
+					results.add(Boolean.valueOf(array == pool.acquire(100)));
+					done.countDown();
+				}
+			});
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+		} finally {
+			loop.shutdown(WebSocketServer.Command.SHUTDOWN_NOW);
+			thread.join(5000);
+		}
+
+		assertEquals(Arrays.<Object>asList(Boolean.TRUE, Long.valueOf(0), Boolean.TRUE), results);
+		assertEquals(2, pool.getHits());
+		assertEquals(2, pool.getMisses());
+	}
+
+	@Test
+	public void testPoolSizeClasses() {
+		FramePool pool = new FramePool(1<<20);
+		
+		assertEquals(64, pool.acquire(3).length);
+		assertEquals(1<<18, pool.acquire((1<<17) + 1).length);
+		assertEquals((1<<20) + 1, pool.acquire((1<<20) + 1).length);
+		
+		byte [] array = pool.acquire(100);
+		pool.release(array);
+		assertSame(array, pool.acquire(128));
+		
+		// off a loop every array goes to the shared stack
+		array = pool.acquire(1<<18);
+		pool.release(array);
+		assertEquals(1<<18, pool.getIdleBytes());
+		assertSame(array, pool.acquire(1<<18));
+		assertEquals(0, pool.getIdleBytes());
+	}
+	
+	@Test
+	public void testPoolBudget() {
+		FramePool pool = new FramePool(1<<20);
+		
+		for(int i = 0;i<4;++i) {
+			pool.release(new byte[1<<18]);
+		}
+		assertEquals(1<<20, pool.getIdleBytes());
+		
+		// a larger array evicts smaller ones only if it is larger
+		pool.release(new byte[1<<19]);
+		assertEquals(1<<20, pool.getIdleBytes());
+		assertEquals(0, pool.getEvictions());
+		
+		pool.release(new byte[1<<17]);
+		pool.release(new byte[1<<17]);
+		assertEquals(1, pool.getEvictions());
+		assertTrue(pool.getIdleBytes() <= pool.getMaxBytes());
+	}
+	
+	@Test
+	public void testPoolAcrossThreads() throws Exception {
+		final FramePool pool = new FramePool();
+		final int [] sizes = { 3, 100, 5000, 70000, 300000 };
+		Thread [] threads = new Thread[4];
+		final Exception [] failure = new Exception[1];
+		
+		for(int t = 0;t<threads.length;++t) {
+			threads[t] = new Thread() {
+				public void run() {
+					byte [][] held = new byte[sizes.length][];
+					for(int i = 0;i<5000;++i) {
+						int s = i % sizes.length;
+						held[s] = pool.acquire(sizes[s]);
+						// whoever holds the array owns every byte of it
+						Arrays.fill(held[s], (byte) getId());
+						for(byte b : held[s]) {
+							if(b != (byte) getId()) {
+								failure[0] = new IllegalStateException("array shared between threads");
+								return;
+							}
+						}
+						pool.release(held[s]);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		
+		if(failure[0] != null) {
+			throw failure[0];
+		}
+		assertTrue(pool.getHits() > pool.getMisses());
+	}
+
+}
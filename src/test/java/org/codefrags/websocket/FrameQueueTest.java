@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import static org.codefrags.websocket.TestClient.payload;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * @author Austin Miller
+ *
+ */
+public class FrameQueueTest {
+
+	@Test
+	public void testFrameQueue() throws Exception {
+		final FrameQueue queue = new FrameQueue();
+		final int count = 20000;
+		final FrameBuffer [][] sent = new FrameBuffer[4][count];
+		final Map<FrameBuffer,Integer> producers = new IdentityHashMap<FrameBuffer,Integer>();
+		long total = 0;
+
+		for(int p = 0;p<sent.length;++p) {
+			for(int i = 0;i<count;++i) {
+				sent[p][i] = FrameBuffer.createTextFrame(p + ":" + i);
+				producers.put(sent[p][i], p);
+				total += sent[p][i].size();
+			}
+		}
+		assertTrue(queue.isEmpty());
+		assertNull(queue.poll());
+
+		Thread [] threads = new Thread[sent.length];
+		for(int p = 0;p<threads.length;++p) {
+			final FrameBuffer [] frames = sent[p];
+			threads[p] = new Thread() {
+				public void run() {
+					for(FrameBuffer frame : frames) {
+						queue.offer(frame);
+					}
+				}
+			};
+			threads[p].start();
+		}
+
+		// batches small enough to keep racing the producers, each one in order
+		int [] next = new int[sent.length];
+		FrameBuffer [] batch = new FrameBuffer[16];
+		int received = 0;
+		while(received < sent.length * count) {
+			int taken = queue.drain(batch, 0, batch.length, 64);
+			for(int i = 0;i<taken;++i) {
+				int p = producers.get(batch[i]);
+				assertSame(sent[p][next[p]++], batch[i]);
+				queue.written(batch[i].size());
+			}
+			received += taken;
+		}
+
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(queue.isEmpty());
+		assertEquals(0, queue.getBytes());
+
+		// the first frame is taken whatever the byte cap, pending bytes last until written
+		FrameBuffer large = FrameBuffer.createTextFrame(new String(payload(1000)));
+		FrameBuffer small = FrameBuffer.createTextFrame("small");
+		assertEquals(large.size(), queue.offer(large));
+		assertEquals(total = large.size() + small.size(), queue.offer(small));
+		assertSame(large, queue.peek());
+		assertEquals(1, queue.drain(batch, 3, batch.length - 3, 10));
+		assertSame(large, batch[3]);
+		assertSame(small, queue.poll());
+		assertTrue(queue.isEmpty());
+		assertEquals(total, queue.getBytes());
+		assertEquals(small.size(), queue.written(large.size()));
+	}
+
+}
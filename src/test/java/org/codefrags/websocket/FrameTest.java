@@ -15,9 +15,14 @@
  */
 package org.codefrags.websocket;
 
+import static org.codefrags.websocket.TestClient.maskedFrame;
+import static org.codefrags.websocket.TestClient.payload;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Random;
 
 import org.junit.Test;
@@ -62,4 +67,48 @@ public class FrameTest {
 		assertEquals("woo", frame.getText());
 	}
 
+	/**
+	 * A 16 bit length with the high bit set must not be sign extended.
+	 * @throws IOException 
+	 */
+	@Test
+	public void testExtendedLength() throws IOException {
+		byte [] payload = payload(40000);
+		MaskedFrame frame = decode(maskedFrame(OpCode.TEXT, payload));
+		
+		assertEquals(40000, frame.getLength());
+		assertPayload(payload, frame);
+	}
+
+	/**
+	 * A 64 bit length with bytes that have the high bit set.
+	 * @throws IOException 
+	 */
+	@Test
+	public void testExtendedLength64() throws IOException {
+		byte [] payload = payload((1<<16) + 0xC8);
+		byte [] bytes = maskedFrame(OpCode.BINARY, payload);
+		assertEquals(127, bytes[1] & 0x7F);
+		
+		MaskedFrame frame = decode(bytes);
+		
+		assertEquals(OpCode.BINARY, frame.getOpCode());
+		assertEquals(payload.length, frame.getLength());
+		assertPayload(payload, frame);
+	}
+
+	private MaskedFrame decode(byte [] bytes) throws IOException {
+		MaskedFrame frame = MaskedFrame.newFrame();
+		assertEquals(bytes.length, frame.writeBytes(bytes, 0, bytes.length));
+		assertTrue(frame.isConstructed());
+		return frame;
+	}
+
+	private void assertPayload(byte [] expected,MaskedFrame frame) {
+		ByteBuffer payload = frame.getPayload().duplicate();
+		byte [] actual = new byte[payload.remaining()];
+		payload.get(actual);
+		assertTrue(Arrays.equals(expected, actual));
+	}
+
 }
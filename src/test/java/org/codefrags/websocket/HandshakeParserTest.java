@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import static org.codefrags.websocket.TestClient.maskedFrame;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * @author Austin Miller
+ *
+ */
+public class HandshakeParserTest {
+
+	@Test
+	public void testHandshakeParser() throws IOException {
+		byte [] request = ("GET /chat HTTP/1.1\r\n"
+				+ "Host: server.example.com:8090\r\n"
+				+ "upgrade: WebSocket\r\n"
+				+ "Connection: keep-alive, Upgrade\r\n"
+				+ "Sec-WebSocket-Key:dGhlIHNhbXBsZSBub25jZQ==  \r\n"
+				+ "Origin: http://example.com\r\n"
+				+ "Sec-WebSocket-Protocol: superchat\r\n"
+				+ "Sec-WebSocket-Protocol: chat\r\n"
+				+ "Sec-WebSocket-Version: 13\r\n\r\n").getBytes("US-ASCII");
+		byte [] frame = maskedFrame(OpCode.TEXT, "hi".getBytes("US-ASCII"));
+		ByteBuffer bytes = ByteBuffer.allocate(request.length + frame.length);
+		bytes.put(request).put(frame).flip();
+
+		HandshakeParser parser = new HandshakeParser();
+
+		// split at every point, the frame behind it left in place
+		for(int split = 0;split<=request.length;++split) {
+			parser.reset();
+			ByteBuffer first = bytes.duplicate();
+			first.limit(split);
+			assertEquals(split == request.length, parser.parse(first));
+			assertFalse(first.hasRemaining());
+
+			ByteBuffer rest = bytes.duplicate();
+			rest.position(split);
+			assertTrue(parser.parse(rest));
+			assertEquals(request.length, rest.position());
+
+			assertTrue(parser.equalsIgnoreCase(HandshakeParser.UPGRADE, "websocket"));
+			assertTrue(parser.containsToken(HandshakeParser.CONNECTION, "upgrade", true));
+			assertEquals("dGhlIHNhbXBsZSBub25jZQ==", parser.getValue(HandshakeParser.SEC_WEBSOCKET_KEY));
+			assertEquals("superchat,chat", parser.getValue(HandshakeParser.SEC_WEBSOCKET_PROTOCOL));
+			assertTrue(parser.containsToken(HandshakeParser.SEC_WEBSOCKET_PROTOCOL, "chat", false));
+			assertFalse(parser.containsToken(HandshakeParser.SEC_WEBSOCKET_PROTOCOL, "Chat", false));
+			assertEquals("13", parser.getValue(HandshakeParser.SEC_WEBSOCKET_VERSION));
+		}
+
+		parser.reset();
+		assertTrue(parser.parse(ByteBuffer.wrap("GET / HTTP/1.1\n\n".getBytes("US-ASCII"))));
+		assertFalse(parser.has(HandshakeParser.SEC_WEBSOCKET_KEY));
+		assertNull(parser.getValue(HandshakeParser.SEC_WEBSOCKET_KEY));
+
+		assertRejected(parser, "POST / HTTP/1.1\r\n\r\n");
+		assertRejected(parser, "GET / HTTP/1.1\r\nno colon\r\n\r\n");
+
+		StringBuilder many = new StringBuilder("GET / HTTP/1.1\r\n");
+		for(int i = 0;i<=HandshakeParser.MAX_HEADERS;++i) {
+			many.append("X-").append(i).append(": x\r\n");
+		}
+		assertRejected(parser, many.toString());
+
+		StringBuilder large = new StringBuilder("GET / HTTP/1.1\r\nX-Large: ");
+		while(large.length() <= HandshakeParser.MAX_HEADER_SIZE) {
+			large.append('x');
+		}
+		assertRejected(parser, large.toString());
+
+		StringBuilder key = new StringBuilder("GET / HTTP/1.1\r\nSec-WebSocket-Key: ");
+		for(int i = 0;i<=HandshakeParser.MAX_VALUE_SIZE;++i) {
+			key.append('k');
+		}
+		assertRejected(parser, key.toString());
+	}
+
+	private static void assertRejected(HandshakeParser parser,String request) throws IOException {
+		parser.reset();
+		try {
+			parser.parse(ByteBuffer.wrap(request.getBytes("US-ASCII")));
+		} catch(IOException e) {
+			return;
+		}
+		throw new AssertionError("accepted " + request);
+	}
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.codefrags.websocket.codec.Base64;
+import org.junit.Test;
+
+/**
+ * @author Austin Miller
+ *
+ */
+public class HandshakeResponseTest {
+
+	@Test
+	public void testHandshakeResponse() throws Exception {
+		HandshakeParser parser = new HandshakeParser();
+		parser.parse(ByteBuffer.wrap("GET /chat HTTP/1.1\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n".getBytes("US-ASCII")));
+
+		HandshakeResponse response = new HandshakeResponse("chat");
+		ByteBuffer out = ByteBuffer.allocate(response.maxLength());
+		response.write(parser, null, out);
+		assertEquals("HTTP/1.1 101 Switching Protocols\r\n"
+				+ "Upgrade: websocket\r\n"
+				+ "Connection: Upgrade\r\n"
+				+ "Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"
+				+ "Sec-WebSocket-Protocol: chat\r\n\r\n", new String(out.array(), 0, out.position(), "US-ASCII"));
+
+		// against the general purpose codec, for random keys
+		Random r = new Random();
+		MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+		for(int i = 0;i<100;++i) {
+			byte [] nonce = new byte[16];
+			r.nextBytes(nonce);
+			String key = Base64.encodeBytes(nonce);
+
+			parser.reset();
+			parser.parse(ByteBuffer.wrap(("GET / HTTP/1.1\r\nSec-WebSocket-Key: " + key + "\r\n\r\n").getBytes("US-ASCII")));
+			ByteBuffer accept = ByteBuffer.allocate(HandshakeResponse.ACCEPT_SIZE);
+			HandshakeResponse.writeAccept(parser, accept);
+
+			String expected = Base64.encodeBytes(sha1.digest((key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes("US-ASCII")));
+			assertEquals(expected, new String(accept.array(), "US-ASCII"));
+		}
+	}
+
+}
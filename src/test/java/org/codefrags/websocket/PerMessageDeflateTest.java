@@ -0,0 +1,244 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import static org.codefrags.websocket.TestClient.deflate;
+import static org.codefrags.websocket.TestClient.handshake;
+import static org.codefrags.websocket.TestClient.maskedFrame;
+import static org.codefrags.websocket.TestClient.payload;
+import static org.codefrags.websocket.TestClient.readResponse;
+import static org.codefrags.websocket.TestClient.start;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+/**
+ * @author Austin Miller
+ *
+ */
+public class PerMessageDeflateTest {
+
+	@Test
+	public void testPerMessageDeflate() throws Exception {
+		HandshakeParser parser = new HandshakeParser();
+		CompressionStats stats = new CompressionStats();
+
+		assertNull(negotiate(parser, "x-webkit-deflate-frame", false, stats));
+		assertNull(negotiate(parser, "permessage-deflate; server_max_window_bits=10", false, stats));
+		assertNull(negotiate(parser, "permessage-deflate; mystery", false, stats));
+		assertNull(negotiate(parser, "permessage-deflate; server_no_context_takeover; server_no_context_takeover", false, stats));
+		assertExtension("permessage-deflate; server_no_context_takeover; client_no_context_takeover",
+				negotiate(parser, "permessage-deflate; client_max_window_bits", false, stats));
+		assertExtension("permessage-deflate; server_max_window_bits=15",
+				negotiate(parser, "permessage-deflate; server_max_window_bits=10, permessage-deflate; server_max_window_bits=\"15\"", true, stats));
+		assertExtension("permessage-deflate; server_no_context_takeover",
+				negotiate(parser, "permessage-deflate; server_no_context_takeover; client_max_window_bits=12", true, stats));
+
+		// with context takeover the client's inflater carries on from one message to the next
+		StringBuilder json = new StringBuilder("[");
+		for(int i = 0;i<20;++i) {
+			json.append("{\"id\":").append(i).append(",\"name\":\"user\",\"online\":true},");
+		}
+		String message = json.append("{}]").toString();
+
+		PerMessageDeflate deflate = negotiate(parser, "permessage-deflate", true, stats);
+		assertTrue(deflate.isServerContextTakeover());
+		BufferPool pool = new BufferPool();
+		Inflater client = new Inflater(true);
+		int previous = Integer.MAX_VALUE;
+		for(int i = 0;i<3;++i) {
+			FrameBuffer frameBuffer = deflate.createTextFrame(message, pool);
+			ByteBuffer frame = frameBuffer.getBuffer();
+			assertEquals(0xC1, frame.get(0) & 0xFF);
+			int length = frame.get(1);
+			assertTrue(length < previous);
+			previous = length;
+
+			byte [] payload = new byte[length];
+			frame.position(2);
+			frame.get(payload);
+			assertEquals(message, inflate(client, payload));
+			frameBuffer.release();
+		}
+		assertEquals(0, pool.getBorrowed());
+		deflate.release();
+
+		// without it a shared frame is compressed once, and short messages not at all
+		deflate = negotiate(parser, "permessage-deflate", false, stats);
+		SharedFrame shared = SharedFrame.createTextFrame(message, pool);
+		FrameBuffer first = shared.view(deflate);
+		FrameBuffer second = shared.view(deflate);
+		assertEquals(0xC1, first.getBuffer().get(0) & 0xFF);
+		assertEquals(first.size(), second.size());
+		assertTrue(first.size() < message.length());
+		FrameBuffer uncompressed = deflate.createTextFrame("short", pool);
+		assertEquals(0x81, uncompressed.getBuffer().get(0) & 0xFF);
+		assertTrue(uncompressed.getBuffer().isDirect());
+		uncompressed.release();
+		first.release();
+		second.release();
+		shared.release();
+		assertEquals(0, pool.getBorrowed());
+
+		for(WebSocketServer.Engine engine : WebSocketServer.Engine.values()) {
+			echoCompressed(engine, message);
+		}
+	}
+
+	/**
+	 * Codecs are checked back in after large messages, and no more than the most idle
+	 * are kept however many threads compress at once.
+	 */
+	@Test
+	public void testCodecPool() throws Exception {
+		HandshakeParser parser = new HandshakeParser();
+		final CompressionStats stats = new CompressionStats();
+		final PerMessageDeflate deflate = negotiate(parser, "permessage-deflate", false, stats);
+		final BufferPool pool = new BufferPool();
+
+		StringBuilder text = new StringBuilder();
+		while(text.length() < 1<<17) {
+			text.append("{\"id\":").append(text.length()).append(",\"name\":\"user\"},");
+		}
+		final String message = text.toString();
+
+		final AtomicInteger failures = new AtomicInteger();
+		Thread [] threads = new Thread[PerMessageDeflate.MAX_IDLE_CODECS + 4];
+		for(int i = 0;i<threads.length;++i) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j = 0;j<10;++j) {
+						FrameBuffer frame = deflate.createTextFrame(message, pool);
+						if(frame.size() >= message.length()) {
+							failures.incrementAndGet();
+						}
+						frame.release();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(0, failures.get());
+		assertEquals(threads.length * 10, stats.getDeflatedMessages());
+		assertTrue(PerMessageDeflate.getIdleCodecs() > 0);
+		assertTrue(PerMessageDeflate.getIdleCodecs() <= PerMessageDeflate.MAX_IDLE_CODECS);
+		assertEquals(0, pool.getBorrowed());
+	}
+
+	/**
+	 * A compressed message, fragmented, is inflated for the listener and the echo
+	 * comes back compressed.
+	 */
+	private static void echoCompressed(WebSocketServer.Engine engine,String message) throws Exception {
+		WebSocketListener listener = new WebSocketListener() {
+			public void onNewUser(WebSocketUser user) {
+			}
+
+			public void onMessage(WebSocketUser user,String message) {
+				user.send(message);
+			}
+
+			public void onCloseConnection(WebSocketUser user) {
+			}
+		};
+
+		WebSocketServer server = new WebSocketServer();
+		server.setEngine(engine);
+		server.setWebSocketListener(listener);
+		server.setPerMessageDeflate(true);
+		int port = start(server);
+
+		Socket socket = new Socket("localhost", port);
+		socket.setSoTimeout(5000);
+		try {
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			out.write(handshake("permessage-deflate; client_max_window_bits").getBytes("US-ASCII"));
+
+			String response = readResponse(in);
+			assertTrue(response.contains("Sec-WebSocket-Extensions: permessage-deflate; "
+					+ "server_no_context_takeover; client_no_context_takeover\r\n"));
+
+			Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			byte [] compressed = deflate(deflater, message.getBytes("US-ASCII"));
+			int half = compressed.length / 2;
+			out.write(maskedFrame(0x40 | OpCode.TEXT.getValue(), Arrays.copyOfRange(compressed, 0, half)));
+			out.write(maskedFrame(0x80, Arrays.copyOfRange(compressed, half, compressed.length)));
+
+			assertEquals(0xC1, in.readUnsignedByte());
+			byte [] echo = new byte[in.readUnsignedByte()];
+			in.readFully(echo);
+			assertEquals(message, inflate(new Inflater(true), echo));
+
+			// RSV1 on a continuation frame is a protocol error
+			out.write(maskedFrame(0x40 | OpCode.TEXT.getValue(), compressed));
+			out.write(maskedFrame(0x40, new byte[0]));
+			assertEquals(0x88, in.readUnsignedByte());
+			assertEquals(2, in.readUnsignedByte());
+			assertEquals(WebSocketUser.CLOSE_PROTOCOL_ERROR, in.readUnsignedShort());
+			assertEquals(-1, in.read());
+		} finally {
+			socket.close();
+		}
+
+		server.shutdown(false);
+		CompressionStats stats = server.getCompressionStats();
+		assertEquals(1, stats.getDeflatedMessages());
+		assertEquals(1, stats.getInflatedMessages());
+		assertEquals(message.length(), stats.getInflatedBytesOut());
+		assertTrue(stats.getDeflateRatio() < 0.5);
+	}
+
+	private static PerMessageDeflate negotiate(HandshakeParser parser,String extensions,boolean contextTakeover,CompressionStats stats) throws IOException {
+		parser.reset();
+		parser.parse(ByteBuffer.wrap(("GET / HTTP/1.1\r\nSec-WebSocket-Extensions: " + extensions + "\r\n\r\n").getBytes("US-ASCII")));
+		return PerMessageDeflate.negotiate(parser, contextTakeover, 64, stats);
+	}
+
+	private static void assertExtension(String expected,PerMessageDeflate deflate) throws IOException {
+		assertEquals("Sec-WebSocket-Extensions: " + expected + "\r\n", new String(deflate.getResponseHeader(), "US-ASCII"));
+	}
+
+	private static String inflate(Inflater inflater,byte [] payload) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bytes.write(payload);
+		bytes.write(new byte[] {0, 0, (byte) 0xff, (byte) 0xff});
+		inflater.setInput(bytes.toByteArray());
+
+		byte [] out = new byte[1<<16];
+		int length = inflater.inflate(out);
+		return new String(out, 0, length, "US-ASCII");
+	}
+
+}
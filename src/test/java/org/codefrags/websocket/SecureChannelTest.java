@@ -0,0 +1,162 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import static org.codefrags.websocket.TestClient.HANDSHAKE;
+import static org.codefrags.websocket.TestClient.maskedFrame;
+import static org.codefrags.websocket.TestClient.payload;
+import static org.codefrags.websocket.TestClient.readResponse;
+import static org.codefrags.websocket.TestClient.start;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyStore;
+import java.util.Arrays;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.Test;
+
+/**
+ * @author Austin Miller
+ *
+ */
+public class SecureChannelTest {
+
+	@Test
+	public void testTls() throws Exception {
+		// a self signed certificate, trusted as it is by the client
+		File keyStore = File.createTempFile("websocket", ".p12");
+		keyStore.delete();
+		try {
+			Process keytool = new ProcessBuilder(System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool",
+					"-genkeypair", "-alias", "websocket", "-keyalg", "EC", "-keysize", "256", "-validity", "1",
+					"-dname", "CN=localhost", "-storetype", "PKCS12", "-keystore", keyStore.getPath(),
+					"-storepass", "changeit", "-keypass", "changeit").redirectErrorStream(true).start();
+			assertEquals(0, keytool.waitFor());
+
+			KeyStore keys = KeyStore.getInstance("PKCS12");
+			InputStream in = new FileInputStream(keyStore);
+			try {
+				keys.load(in, "changeit".toCharArray());
+			} finally {
+				in.close();
+			}
+
+			KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keyManagers.init(keys, "changeit".toCharArray());
+			SSLContext server = SSLContext.getInstance("TLS");
+			server.init(keyManagers.getKeyManagers(), null, null);
+
+			TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			trustManagers.init(keys);
+			SSLContext client = SSLContext.getInstance("TLS");
+			client.init(null, trustManagers.getTrustManagers(), null);
+
+			for(WebSocketServer.Engine engine : WebSocketServer.Engine.values()) {
+				echoSecure(engine, server, client);
+			}
+		} finally {
+			keyStore.delete();
+		}
+	}
+
+	/**
+	 * Echo a short message and one spanning several TLS records, then reconnect with
+	 * the same client and expect the session to be resumed.
+	 */
+	private static void echoSecure(WebSocketServer.Engine engine,SSLContext serverContext,SSLContext clientContext) throws Exception {
+		WebSocketListener listener = new WebSocketListener() {
+			public void onNewUser(WebSocketUser user) {
+			}
+
+			public void onMessage(WebSocketUser user,String message) {
+				user.send(message);
+			}
+
+			public void onCloseConnection(WebSocketUser user) {
+			}
+		};
+
+		WebSocketServer server = new WebSocketServer();
+		server.setEngine(engine);
+		server.setWebSocketListener(listener);
+		server.setSslContext(serverContext);
+		server.setTlsThreadCount(2);
+		int port = start(server);
+
+		String large = new String(payload(100000), "US-ASCII");
+		byte [] sessionId = null;
+		String [][] protocols = { null, {"TLSv1.2"}, {"TLSv1.2"} };
+
+		for(String [] enabled : protocols) {
+			SSLSocket socket = (SSLSocket) clientContext.getSocketFactory().createSocket("localhost", port);
+			socket.setSoTimeout(5000);
+			if(enabled != null) {
+				socket.setEnabledProtocols(enabled);
+			}
+
+			try {
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				OutputStream out = socket.getOutputStream();
+				out.write(HANDSHAKE.getBytes("US-ASCII"));
+
+				String response = readResponse(in);
+				assertTrue(response.contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"));
+
+				out.write(maskedFrame(OpCode.TEXT, "hello".getBytes("US-ASCII")));
+				assertEquals(0x81, in.readUnsignedByte());
+				byte [] echo = new byte[in.readUnsignedByte()];
+				in.readFully(echo);
+				assertEquals("hello", new String(echo, "US-ASCII"));
+
+				out.write(maskedFrame(OpCode.TEXT, large.getBytes("US-ASCII")));
+				assertEquals(0x81, in.readUnsignedByte());
+				assertEquals(127, in.readUnsignedByte());
+				echo = new byte[(int) in.readLong()];
+				in.readFully(echo);
+				assertEquals(large, new String(echo, "US-ASCII"));
+
+				if(enabled != null && sessionId != null) {
+					assertTrue(Arrays.equals(sessionId, socket.getSession().getId()));
+				}
+				if(enabled != null) {
+					sessionId = socket.getSession().getId();
+				}
+			} finally {
+				socket.close();
+			}
+		}
+
+		server.shutdown(false);
+		assertFalse(server.isRunning());
+		assertEquals(0, server.getBufferPool().getBorrowed());
+	}
+
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import static org.codefrags.websocket.TestClient.HANDSHAKE;
+import static org.codefrags.websocket.TestClient.maskedFrame;
+import static org.codefrags.websocket.TestClient.payload;
+import static org.codefrags.websocket.TestClient.readResponse;
+import static org.codefrags.websocket.TestClient.readText;
+import static org.codefrags.websocket.TestClient.start;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * @author Austin Miller
+ *
+ */
+public class SharedFrameTest {
+
+	@Test
+	public void testSharedFrame() {
+		BufferPool pool = new BufferPool();
+		SharedFrame shared = SharedFrame.createTextFrame("hello", pool);
+		assertEquals(1, pool.getBorrowed());
+		
+		FrameBuffer first = shared.view();
+		FrameBuffer second = shared.view();
+		shared.release();
+		assertEquals(2, shared.getReferenceCount());
+		
+		// each view has its own position over the same bytes
+		ByteBuffer view = first.getBuffer();
+		assertTrue(view.isReadOnly());
+		assertEquals(7, view.remaining());
+		assertEquals((byte) 0x81, view.get());
+		assertEquals(5, view.get());
+		assertEquals(7, second.getBuffer().remaining());
+		
+		first.release();
+		first.release();
+		assertEquals(1, pool.getBorrowed());
+		second.release();
+		assertEquals(0, shared.getReferenceCount());
+		assertEquals(0, pool.getBorrowed());
+	}
+
+	/**
+	 * Views taken and released on several threads at once leave exactly the creator's
+	 * reference, and the buffer goes back once that is released too.
+	 */
+	@Test
+	public void testConcurrentRelease() throws Exception {
+		BufferPool pool = new BufferPool();
+		final SharedFrame shared = SharedFrame.createTextFrame("hello", pool);
+		Thread [] threads = new Thread[4];
+
+		for(int t = 0;t<threads.length;++t) {
+			threads[t] = new Thread() {
+				public void run() {
+					FrameBuffer [] views = new FrameBuffer[16];
+					for(int i = 0;i<10000;++i) {
+						views[i % views.length] = shared.view();
+						if(i % views.length == views.length - 1) {
+							for(FrameBuffer view : views) {
+								view.release();
+							}
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(1, shared.getReferenceCount());
+		assertEquals(1, pool.getBorrowed());
+
+		shared.release();
+		assertEquals(0, pool.getBorrowed());
+		try {
+			shared.retain();
+			fail();
+		} catch(IllegalStateException e) {
+		}
+	}
+
+	/**
+	 * Publish to a topic on two event loops while other users keep subscribing and
+	 * unsubscribing.  The users subscribed throughout get every message in order, the
+	 * others some of them in order, and every frame goes back to the pool.
+	 */
+	@Test
+	public void testTopicFanOut() throws Exception {
+		final List<WebSocketUser> churners = new CopyOnWriteArrayList<WebSocketUser>();
+		final CountDownLatch closed = new CountDownLatch(6);
+		WebSocketListener listener = new WebSocketListener() {
+			public void onNewUser(WebSocketUser user) {
+			}
+
+			public void onMessage(WebSocketUser user,String message) {
+				if(message.equals("steady")) {
+					user.subscribe("news");
+				} else {
+					churners.add(user);
+				}
+				user.send("ready");
+			}
+
+			public void onCloseConnection(WebSocketUser user) {
+				closed.countDown();
+			}
+		};
+
+		WebSocketServer server = new WebSocketServer();
+		server.setEventLoopCount(2);
+		server.setWebSocketListener(listener);
+		int port = start(server);
+
+		Socket [] sockets = new Socket[6];
+		DataInputStream [] ins = new DataInputStream[sockets.length];
+		try {
+			for(int i = 0;i<sockets.length;++i) {
+				sockets[i] = new Socket("localhost", port);
+				sockets[i].setSoTimeout(5000);
+				ins[i] = new DataInputStream(sockets[i].getInputStream());
+				sockets[i].getOutputStream().write(HANDSHAKE.getBytes("US-ASCII"));
+				readResponse(ins[i]);
+				sockets[i].getOutputStream().write(maskedFrame(OpCode.TEXT, (i % 2 == 0 ? "steady" : "churn").getBytes("US-ASCII")));
+				assertEquals("ready", readText(ins[i]));
+			}
+
+			final AtomicBoolean churning = new AtomicBoolean(true);
+			Thread churn = new Thread() {
+				public void run() {
+					while(churning.get()) {
+						for(WebSocketUser user : churners) {
+							user.subscribe("news");
+							user.unsubscribe("news");
+						}
+					}
+				}
+			};
+			churn.start();
+
+			for(int i = 0;i<500;++i) {
+				server.publish("news", "m" + i);
+			}
+			churning.set(false);
+			churn.join();
+			server.publish("news", "end");
+
+			for(int i = 0;i<sockets.length;i += 2) {
+				for(int m = 0;m<500;++m) {
+					assertEquals("m" + m, readText(ins[i]));
+				}
+				assertEquals("end", readText(ins[i]));
+			}
+
+			for(int i = 0;i<sockets.length;++i) {
+				sockets[i].getOutputStream().write(maskedFrame(OpCode.CLOSE, new byte[0]));
+				if(i % 2 == 0) {
+					assertNull(readText(ins[i]));
+					continue;
+				}
+
+				int last = -1;
+				String text;
+				while((text = readText(ins[i])) != null) {
+					int m = Integer.parseInt(text.substring(1));
+					assertTrue(m > last);
+					last = m;
+				}
+			}
+		} finally {
+			for(Socket socket : sockets) {
+				if(socket != null) {
+					socket.close();
+				}
+			}
+		}
+
+		assertTrue(closed.await(5, TimeUnit.SECONDS));
+		server.shutdown(false);
+		assertEquals(0, server.getBufferPool().getBorrowed());
+	}
+
+	/**
+	 * A subscriber that overflows partway through a publish is closed and leaves the
+	 * topic there and then, the subscribers after it still get every message.
+	 */
+	@Test
+	public void testTopicOverflow() throws Exception {
+		WebSocketServer server = new WebSocketServer();
+		server.setMaxQueuedBytes(1<<16);
+		server.setOverflowPolicy(WebSocketServer.OverflowPolicy.FAIL);
+		slowSubscriber(server);
+	}
+
+	/**
+	 * With the blocking engine a publish writes to each subscriber in turn.  One that
+	 * stops reading is failed once the write timeout is up, and the rest still get
+	 * every message.
+	 */
+	@Test
+	public void testBlockingWriteTimeout() throws Exception {
+		WebSocketServer server = new WebSocketServer();
+		server.setEngine(WebSocketServer.Engine.BLOCKING);
+		server.setWriteTimeout(500);
+		slowSubscriber(server);
+	}
+
+	private static void slowSubscriber(WebSocketServer server) throws Exception {
+		final BlockingQueue<WebSocketUser> closed = new LinkedBlockingQueue<WebSocketUser>();
+		server.setWebSocketListener(new WebSocketListener() {
+			public void onNewUser(WebSocketUser user) {
+			}
+
+			public void onMessage(WebSocketUser user,String message) {
+				user.subscribe("news");
+				user.send("ready");
+			}
+
+			public void onCloseConnection(WebSocketUser user) {
+				closed.add(user);
+			}
+		});
+		int port = start(server);
+
+		// the first to subscribe, and so the first in a loop's topic, never reads
+		Socket [] sockets = new Socket[4];
+		DataInputStream [] ins = new DataInputStream[sockets.length];
+		try {
+			for(int i = 0;i<sockets.length;++i) {
+				sockets[i] = new Socket();
+				sockets[i].setReceiveBufferSize(1<<12);
+				sockets[i].connect(new InetSocketAddress("localhost", port));
+				sockets[i].setSoTimeout(5000);
+				ins[i] = new DataInputStream(sockets[i].getInputStream());
+				sockets[i].getOutputStream().write(HANDSHAKE.getBytes("US-ASCII"));
+				readResponse(ins[i]);
+				sockets[i].getOutputStream().write(maskedFrame(OpCode.TEXT, "subscribe".getBytes("US-ASCII")));
+				assertEquals("ready", readText(ins[i]));
+			}
+
+			String padding = new String(payload(1<<13), "US-ASCII");
+			long deadline = System.currentTimeMillis() + 10000;
+			for(int m = 0;closed.isEmpty();++m) {
+				assertTrue(System.currentTimeMillis() < deadline);
+				server.publish("news", m + padding);
+				for(int i = 1;i<sockets.length;++i) {
+					assertEquals(m + padding, readText(ins[i]));
+				}
+			}
+
+			server.publish("news", "end");
+			for(int i = 1;i<sockets.length;++i) {
+				assertEquals("end", readText(ins[i]));
+			}
+			assertEquals(1, closed.size());
+		} finally {
+			for(Socket socket : sockets) {
+				if(socket != null) {
+					socket.close();
+				}
+			}
+		}
+
+		server.shutdown(false);
+		assertEquals(0, server.getBufferPool().getBorrowed());
+	}
+
+}
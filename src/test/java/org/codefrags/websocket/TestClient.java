@@ -0,0 +1,167 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * What the tests need to play the client: masked frames, a server started on a free
+ * port and the opening handshake.
+ *
+ * @author Austin Miller
+ *
+ */
+final class TestClient {
+
+	/**
+	 * The handshake from RFC 6455, whose accept key is s3pPLMBiTxaQ9kYGzzhZRbK+xOo=.
+	 */
+	static final String HANDSHAKE = "GET /chat HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\n"
+			+ "Connection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+			+ "Sec-WebSocket-Protocol: chat\r\nSec-WebSocket-Version: 13\r\n\r\n";
+
+	private TestClient() {
+
+	}
+
+	/**
+	 * @param extensions
+	 * @return {@link #HANDSHAKE} asking for extensions
+	 */
+	static String handshake(String extensions) {
+		return HANDSHAKE.replace("\r\n\r\n", "\r\nSec-WebSocket-Extensions: " + extensions + "\r\n\r\n");
+	}
+
+	/**
+	 * Start the server on a free port and wait for it to run.
+	 *
+	 * @param server
+	 * @return the port
+	 */
+	static int start(WebSocketServer server) throws Exception {
+		ServerSocket free = new ServerSocket(0);
+		int port = free.getLocalPort();
+		free.close();
+
+		server.setPort(port);
+		new Thread(server).start();
+		while(server.isRunning() == false) {
+			Thread.sleep(10);
+		}
+		return port;
+	}
+
+	/**
+	 * @param in
+	 * @return the server's handshake response, up to and including the empty line
+	 */
+	static String readResponse(DataInputStream in) throws IOException {
+		StringBuilder response = new StringBuilder();
+		while(response.toString().endsWith("\r\n\r\n") == false) {
+			response.append((char) in.readUnsignedByte());
+		}
+		return response.toString();
+	}
+
+	/**
+	 * Read the server's next frame, which isn't masked.
+	 *
+	 * @param in
+	 * @return the text of a text frame, or null for a close frame
+	 */
+	static String readText(DataInputStream in) throws IOException {
+		int b0 = in.readUnsignedByte();
+		long length = in.readUnsignedByte();
+		if(length == 126) {
+			length = in.readUnsignedShort();
+		} else if(length == 127) {
+			length = in.readLong();
+		}
+
+		byte [] payload = new byte[(int) length];
+		in.readFully(payload);
+		if(b0 == 0x88) {
+			return null;
+		}
+		if(b0 != 0x81) {
+			throw new IOException("not a text frame " + Integer.toHexString(b0));
+		}
+		return new String(payload, "UTF-8");
+	}
+
+	/**
+	 * What a client sends: sync flushed, without the trailing empty block.
+	 */
+	static byte [] deflate(Deflater deflater,byte [] bytes) {
+		deflater.setInput(bytes);
+		byte [] out = new byte[bytes.length + 64];
+		int length = deflater.deflate(out, 0, out.length, Deflater.SYNC_FLUSH);
+		return Arrays.copyOf(out, length - 4);
+	}
+
+	static byte [] payload(int length) {
+		byte [] payload = new byte[length];
+		for(int i = 0;i<length;++i) {
+			payload[i] = (byte) ('a' + i % 26);
+		}
+		return payload;
+	}
+
+	/**
+	 * Builds a final, masked client frame.
+	 */
+	static byte [] maskedFrame(OpCode opCode,byte [] payload) {
+		return maskedFrame(0x80 | opCode.getValue(), payload);
+	}
+
+	/**
+	 * @param b0 the first byte of the header, with the final bit, reserved bits and op code
+	 * @param payload
+	 * @return
+	 */
+	static byte [] maskedFrame(int b0,byte [] payload) {
+		int length = payload.length;
+		int headerSize = length < 126 ? 2 : length < 1<<16 ? 4 : 10;
+		ByteBuffer buffer = ByteBuffer.allocate(headerSize + 4 + length);
+
+		buffer.put((byte) b0);
+		if(length < 126) {
+			buffer.put((byte) (0x80 | length));
+		} else if(length < 1<<16) {
+			buffer.put((byte) (0x80 | 126));
+			buffer.putShort((short) length);
+		} else {
+			buffer.put((byte) (0x80 | 127));
+			buffer.putLong(length);
+		}
+
+		byte [] mask = new byte[4];
+		new Random().nextBytes(mask);
+		buffer.put(mask);
+
+		for(int i = 0;i<length;++i) {
+			buffer.put((byte) (payload[i] ^ mask[i % 4]));
+		}
+		return buffer.array();
+	}
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author Austin Miller
+ *
+ */
+public class TimingWheelTest {
+
+	@Test
+	public void testTimingWheel() {
+		TimingWheel wheel = new TimingWheel(10, 8, 1000);
+		final List<String> expired = new ArrayList<String>();
+
+		TimingWheel.Timeout soon = new Recorder("soon", expired);
+		TimingWheel.Timeout late = new Recorder("late", expired);
+		TimingWheel.Timeout cancelled = new Recorder("cancelled", expired);
+
+		assertEquals(0, wheel.timeUntilDue(1000));
+		wheel.schedule(soon, 1005);
+		// several times around the wheel, landing in the same slot as soon
+		wheel.schedule(late, 1165);
+		wheel.schedule(cancelled, 1030);
+		wheel.cancel(cancelled);
+		assertEquals(2, wheel.size());
+		assertEquals(0, wheel.advance(1000));
+		assertEquals(10, wheel.timeUntilDue(1000));
+
+		// never early
+		assertEquals(0, wheel.advance(1009));
+		assertEquals(1, wheel.advance(1010));
+		assertEquals(Arrays.asList("soon"), expired);
+		assertFalse(soon.isScheduled());
+
+		// late's slot comes around with a round to go, one wake up early
+		assertEquals(80, wheel.timeUntilDue(1010));
+
+		assertEquals(0, wheel.advance(1169));
+		assertEquals(1, wheel.advance(1170));
+		assertEquals(Arrays.asList("soon", "late"), expired);
+		assertEquals(0, wheel.size());
+
+		// moving a scheduled timeout, and a deadline that already passed
+		wheel.schedule(soon, 2000);
+		wheel.schedule(soon, 1180);
+		wheel.schedule(late, 0);
+		assertEquals(2, wheel.size());
+		assertEquals(2, wheel.advance(1180));
+		assertEquals(4, expired.size());
+		assertTrue(expired.subList(2, 4).containsAll(Arrays.asList("soon", "late")));
+
+		// a timeout that cancels another due in the same tick and expired first, and reschedules itself
+		final TimingWheel timers = wheel;
+		final TimingWheel.Timeout victim = new Recorder("victim", expired);
+		TimingWheel.Timeout killer = new Recorder("killer", expired) {
+			void expire(long now) {
+				super.expire(now);
+				timers.cancel(victim);
+				timers.schedule(this, now + 20);
+			}
+		};
+		expired.clear();
+		wheel.schedule(killer, 1200);
+		wheel.schedule(victim, 1200);
+		assertEquals(1, wheel.advance(1200));
+		assertEquals(Arrays.asList("killer"), expired);
+		assertEquals(1, wheel.size());
+		assertEquals(1220, killer.getDeadline());
+		assertEquals(1, wheel.advance(1225));
+		wheel.cancel(killer);
+		assertEquals(0, wheel.size());
+	}
+
+	/**
+	 * An idle loop sleeps until the first occupied slot, not just the next tick.
+	 */
+	@Test
+	public void testTimeUntilDue() {
+		TimingWheel wheel = new TimingWheel(100, 512, 0);
+		List<String> expired = new ArrayList<String>();
+		TimingWheel.Timeout idle = new Recorder("idle", expired);
+		TimingWheel.Timeout ping = new Recorder("ping", expired);
+
+		wheel.schedule(idle, 30000);
+		assertEquals(30000, wheel.timeUntilDue(0));
+		assertEquals(29950, wheel.timeUntilDue(50));
+
+		// an earlier one brings it forward, cancelling it puts it back
+		wheel.schedule(ping, 5000);
+		assertEquals(4950, wheel.timeUntilDue(50));
+		wheel.cancel(ping);
+		assertEquals(29950, wheel.timeUntilDue(50));
+
+		// past the end of the wheel, the slot comes around a round early
+		wheel.schedule(idle, 60000);
+		assertEquals(8800, wheel.timeUntilDue(0));
+		assertEquals(0, wheel.advance(8800));
+		assertEquals(51200, wheel.timeUntilDue(8800));
+		assertEquals(0, wheel.advance(59999));
+		assertEquals(1, wheel.advance(60000));
+		assertEquals(Arrays.asList("idle"), expired);
+		assertEquals(0, wheel.timeUntilDue(60000));
+	}
+
+	private static class Recorder extends TimingWheel.Timeout {
+		private final String name;
+		private final List<String> expired;
+
+		Recorder(String name,List<String> expired) {
+			this.name = name;
+			this.expired = expired;
+		}
+
+		void expire(long now) {
+			expired.add(name);
+		}
+	}
+
+}
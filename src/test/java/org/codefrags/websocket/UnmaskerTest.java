@@ -0,0 +1,78 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import static org.codefrags.websocket.TestClient.payload;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * @author Austin Miller
+ *
+ */
+public class UnmaskerTest {
+
+	@Test
+	public void testUnmaskersAgree() {
+		Unmasker scalar = Unmasker.create("scalar");
+		Unmasker words = Unmasker.create("words");
+		Unmasker vector = Unmasker.create("vector");
+		int mask = 0x37FA213D;
+
+		for(int length = 0;length<70;++length) {
+			for(int maskOffset = 0;maskOffset<4;++maskOffset) {
+				byte [] expected = payload(length + 3);
+				scalar.unmask(ByteBuffer.wrap(expected), 3, length, mask, maskOffset);
+
+				ByteBuffer heap = ByteBuffer.wrap(payload(length + 3));
+				words.unmask(heap, 3, length, mask, maskOffset);
+				assertTrue(Arrays.equals(expected, heap.array()));
+
+				ByteBuffer direct = ByteBuffer.allocateDirect(length + 3);
+				direct.put(payload(length + 3)).clear();
+				words.unmask(direct, 3, length, mask, maskOffset);
+				byte [] unmasked = new byte[length + 3];
+				direct.get(unmasked);
+				assertTrue(Arrays.equals(expected, unmasked));
+
+				heap = ByteBuffer.wrap(payload(length + 3));
+				vector.unmask(heap, 3, length, mask, maskOffset);
+				assertTrue(Arrays.equals(expected, heap.array()));
+
+				byte [] copy = payload(length + 3);
+				ByteBuffer src = ByteBuffer.wrap(payload(length + 3));
+				src.position(3);
+				words.unmask(src, copy, 3, length, mask, maskOffset);
+				assertTrue(Arrays.equals(expected, copy));
+				assertEquals(length + 3, src.position());
+
+				copy = payload(length + 3);
+				src = ByteBuffer.allocateDirect(length + 3).order(ByteOrder.LITTLE_ENDIAN);
+				src.put(payload(length + 3)).position(3);
+				words.unmask(src, copy, 3, length, mask, maskOffset);
+				assertTrue(Arrays.equals(expected, copy));
+				assertEquals(length + 3, src.position());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import static org.codefrags.websocket.TestClient.HANDSHAKE;
+import static org.codefrags.websocket.TestClient.maskedFrame;
+import static org.codefrags.websocket.TestClient.readResponse;
+import static org.codefrags.websocket.TestClient.start;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.MalformedInputException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author Austin Miller
+ *
+ */
+public class Utf8DecoderTest {
+
+	@Test
+	public void testUtf8() throws Exception {
+		Utf8Decoder decoder = new Utf8Decoder();
+		String text = "plain ascii, longer than a long, caf\u00e9 \u20ac \ud83d\ude00 \u4e2d\u6587";
+		byte [] bytes = text.getBytes("UTF-8");
+
+		// every split, including inside a character
+		for(int split = 0;split<=bytes.length;++split) {
+			decoder.decode(ByteBuffer.wrap(bytes, 0, split));
+			decoder.decode(ByteBuffer.wrap(bytes, split, bytes.length - split));
+			assertEquals(text, decoder.finish());
+		}
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+		direct.put(bytes).flip();
+		decoder.decode(direct);
+		assertEquals(0, direct.position());
+		assertEquals(text, decoder.finish());
+
+		byte [][] invalid = {
+				{(byte) 0xC0, (byte) 0xAF},
+				{(byte) 0xE0, (byte) 0x80, (byte) 0xAF},
+				{(byte) 0xED, (byte) 0xA0, (byte) 0x80},
+				{(byte) 0xF4, (byte) 0x90, (byte) 0x80, (byte) 0x80},
+				{(byte) 0xF5},
+				{'a', 'b', 'c', 'd', 'e', 'f', 'g', (byte) 0x80, 'h'},
+				{(byte) 0xE2, (byte) 0x82, 'a'}};
+		for(byte [] bad : invalid) {
+			try {
+				decoder.validate(ByteBuffer.wrap(bad));
+				fail(Arrays.toString(bad));
+			} catch(MalformedInputException e) {
+				decoder.reset();
+			}
+		}
+
+		// a truncated character only fails once the message ends
+		decoder.validate(ByteBuffer.wrap(new byte [] {(byte) 0xE2, (byte) 0x82}));
+		try {
+			decoder.finish();
+			fail();
+		} catch(MalformedInputException e) {
+		}
+		assertEquals("", decoder.finish());
+
+		invalidText(WebSocketServer.Engine.SELECTOR, 0);
+		invalidText(WebSocketServer.Engine.SELECTOR, 2);
+		invalidText(WebSocketServer.Engine.BLOCKING, 0);
+	}
+
+	/**
+	 * Send text that turns invalid in its second fragment and expect the connection to
+	 * be closed with 1007, without the listener ever seeing it.
+	 */
+	private static void invalidText(WebSocketServer.Engine engine,int workers) throws Exception {
+		final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch closed = new CountDownLatch(1);
+		WebSocketListener listener = new WebSocketListener() {
+			public void onNewUser(WebSocketUser user) {
+			}
+
+			public void onMessage(WebSocketUser user,String message) {
+				events.add(message);
+			}
+
+			public void onCloseConnection(WebSocketUser user) {
+				closed.countDown();
+			}
+		};
+
+		WebSocketServer server = new WebSocketServer();
+		server.setEngine(engine);
+		server.setWorkerCount(workers);
+		server.setWebSocketListener(listener);
+		int port = start(server);
+
+		Socket socket = new Socket("localhost", port);
+		socket.setSoTimeout(5000);
+		try {
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			out.write(HANDSHAKE.getBytes("US-ASCII"));
+
+			String response = readResponse(in);
+			assertTrue(response.startsWith("HTTP/1.1 101"));
+
+			byte [] euro = "\u20ac".getBytes("UTF-8");
+			out.write(maskedFrame(OpCode.TEXT, "caf\u00e9".getBytes("UTF-8")));
+			out.write(maskedFrame(OpCode.TEXT.getValue(), new byte [] {'a', euro[0], euro[1]}));
+			out.write(maskedFrame(0x80, new byte [] {euro[2], (byte) 0xC0, (byte) 0xAF}));
+			out.flush();
+
+			assertEquals(0x88, in.readUnsignedByte());
+			assertEquals(2, in.readUnsignedByte());
+			assertEquals(1007, in.readUnsignedShort());
+			assertEquals(-1, in.read());
+		} finally {
+			socket.close();
+		}
+
+		assertTrue(closed.await(5, TimeUnit.SECONDS));
+		server.shutdown(false);
+		assertEquals(Arrays.asList("caf\u00e9"), events);
+		assertEquals(0, server.getBufferPool().getBorrowed());
+	}
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import static org.codefrags.websocket.TestClient.payload;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * @author Austin Miller
+ *
+ */
+public class Utf8EncoderTest {
+
+	@Test
+	public void testTextFrame() throws Exception {
+		BufferPool pool = new BufferPool();
+		StringBuilder mixed = new StringBuilder();
+		while(mixed.length() < 70000) {
+			mixed.append("caf\u00e9 \u20ac \ud83d\ude00 ");
+		}
+		String [] texts = {"", "hello", "caf\u00e9", "\u4e2d\u6587", "\ud83d\ude00", "lone \ud83d high",
+				"lone \ude00 low", "ends high \ud83d", new String(payload(125)), new String(payload(126)),
+				"\u00e9" + new String(payload(200)), mixed.toString(), new String(payload(20000)),
+				// a pair, and a lone high surrogate, where a direct buffer's chunks meet
+				new String(payload(2729)) + "\ud83d\ude00 after", new String(payload(2729)) + "\ud83d" + new String(payload(3000))};
+		for(String text : texts) {
+			// lone surrogates become U+FFFD, where String.getBytes would have them '?'
+			byte [] expected = text.replaceAll("[\\ud800-\\udfff]", "\ufffd").getBytes("UTF-8");
+			assertEquals(expected.length, Utf8Encoder.length(text));
+
+			assertTextFrame(expected, FrameBuffer.createTextFrame(text).getBuffer());
+			assertTextFrame(expected, FrameBuffer.createTextFrame(new StringBuilder(text)).getBuffer());
+
+			FrameBuffer pooled = FrameBuffer.createTextFrame(new StringBuilder(text), pool);
+			assertTextFrame(expected, pooled.getBuffer());
+			pooled.release();
+
+			SharedFrame shared = SharedFrame.createTextFrame(new StringBuilder(text), pool);
+			assertTextFrame(expected, shared.view().getBuffer());
+			shared.release();
+			shared.release();
+		}
+		assertEquals(0, pool.getBorrowed());
+	}
+
+	/**
+	 * Check a text frame's header, then its payload, from position to limit.
+	 */
+	private static void assertTextFrame(byte [] expected,ByteBuffer frame) {
+		frame = frame.duplicate();
+		assertEquals(0x81, frame.get() & 0xFF);
+		int length = frame.get();
+		if(length == 126) {
+			length = frame.getShort() & 0xFFFF;
+		} else if(length == 127) {
+			length = (int) frame.getLong();
+		}
+		assertEquals(expected.length, length);
+		assertEquals(expected.length, frame.remaining());
+
+		byte [] payload = new byte[length];
+		frame.get(payload);
+		assertTrue(Arrays.equals(expected, payload));
+	}
+
+}
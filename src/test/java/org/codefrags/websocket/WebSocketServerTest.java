@@ -0,0 +1,381 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import static org.codefrags.websocket.TestClient.HANDSHAKE;
+import static org.codefrags.websocket.TestClient.deflate;
+import static org.codefrags.websocket.TestClient.handshake;
+import static org.codefrags.websocket.TestClient.maskedFrame;
+import static org.codefrags.websocket.TestClient.payload;
+import static org.codefrags.websocket.TestClient.readResponse;
+import static org.codefrags.websocket.TestClient.start;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+/**
+ * @author Austin Miller
+ *
+ */
+public class WebSocketServerTest {
+
+	@Test
+	public void testEngines() throws Exception {
+		for(WebSocketServer.Engine engine : WebSocketServer.Engine.values()) {
+			echo(engine);
+		}
+	}
+
+	/**
+	 * Open a connection with a frame right behind the handshake, have it echoed and
+	 * close it.
+	 */
+	private static void echo(WebSocketServer.Engine engine) throws Exception {
+		final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch closed = new CountDownLatch(1);
+		WebSocketListener listener = new WebSocketListener() {
+			public void onNewUser(WebSocketUser user) {
+				events.add("new");
+			}
+
+			public void onMessage(WebSocketUser user,String message) {
+				events.add(message);
+				user.send(message);
+			}
+
+			public void onCloseConnection(WebSocketUser user) {
+				events.add("close");
+				closed.countDown();
+			}
+		};
+
+		WebSocketServer server = new WebSocketServer();
+		server.setEngine(engine);
+		server.setWebSocketListener(listener);
+		int port = start(server);
+
+		Socket socket = new Socket("localhost", port);
+		socket.setSoTimeout(5000);
+		try {
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+
+			// the first frame rides in right behind the handshake
+			ByteArrayOutputStream request = new ByteArrayOutputStream();
+			request.write(HANDSHAKE.getBytes("US-ASCII"));
+			request.write(maskedFrame(OpCode.TEXT, "hello".getBytes("US-ASCII")));
+			out.write(request.toByteArray());
+
+			String response = readResponse(in);
+			assertTrue(response.startsWith("HTTP/1.1 101"));
+			assertTrue(response.contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"));
+
+			assertEquals(0x81, in.readUnsignedByte());
+			byte [] echo = new byte[in.readUnsignedByte()];
+			in.readFully(echo);
+			assertEquals("hello", new String(echo, "US-ASCII"));
+
+			out.write(maskedFrame(OpCode.CLOSE, new byte[0]));
+			assertEquals(0x88, in.readUnsignedByte());
+			in.skipBytes(in.readUnsignedByte());
+			assertEquals(-1, in.read());
+		} finally {
+			socket.close();
+		}
+
+		assertTrue(closed.await(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("new", "hello", "close"), events);
+		server.shutdown(false);
+		assertFalse(server.isRunning());
+	}
+
+	@Test
+	public void testStreaming() throws Exception {
+		stream(WebSocketServer.Engine.SELECTOR, 0);
+		stream(WebSocketServer.Engine.SELECTOR, 2);
+		stream(WebSocketServer.Engine.BLOCKING, 0);
+	}
+
+	/**
+	 * Send a large message in fragments with a ping between them, then a small
+	 * compressed one, and check the listener got the first as it arrived and the
+	 * second inflated.
+	 */
+	private static void stream(WebSocketServer.Engine engine,int workers) throws Exception {
+		final ByteArrayOutputStream received = new ByteArrayOutputStream();
+		final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch closed = new CountDownLatch(1);
+		class Streaming implements WebSocketListener, StreamingListener {
+			int fragments;
+
+			public void onNewUser(WebSocketUser user) {
+				events.add("new");
+			}
+
+			public void onMessage(WebSocketUser user,String message) {
+				events.add("message");
+			}
+
+			public void onCloseConnection(WebSocketUser user) {
+				events.add("close");
+				closed.countDown();
+			}
+
+			public void onMessageStart(WebSocketUser user,boolean binary) {
+				events.add(binary ? "binary" : "start");
+			}
+
+			public void onFragment(WebSocketUser user,ByteBuffer fragment,boolean last) {
+				++fragments;
+				while(fragment.hasRemaining()) {
+					received.write(fragment.get());
+				}
+				if(last) {
+					events.add("end");
+					user.send("streamed " + received.size());
+				}
+			}
+		}
+		Streaming listener = new Streaming();
+
+		WebSocketServer server = new WebSocketServer();
+		server.setEngine(engine);
+		server.setWorkerCount(workers);
+		server.setWebSocketListener(listener);
+		server.setPerMessageDeflate(true);
+		int port = start(server);
+
+		byte [] start = payload(100000);
+		byte [] end = payload(200000);
+		Socket socket = new Socket("localhost", port);
+		socket.setSoTimeout(5000);
+		try {
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			out.write(handshake("permessage-deflate").getBytes("US-ASCII"));
+
+			String response = readResponse(in);
+			assertTrue(response.startsWith("HTTP/1.1 101"));
+			assertTrue(response.contains("permessage-deflate"));
+
+			out.write(maskedFrame(OpCode.TEXT.getValue(), start));
+			out.write(maskedFrame(OpCode.PING, new byte[0]));
+			out.write(maskedFrame(0, new byte[0]));
+			out.write(maskedFrame(0x80, end));
+			out.flush();
+
+			assertEquals(0x8A, in.readUnsignedByte());
+			in.skipBytes(in.readUnsignedByte());
+			assertEquals(0x81, in.readUnsignedByte());
+			byte [] reply = new byte[in.readUnsignedByte()];
+			in.readFully(reply);
+			assertEquals("streamed 300000", new String(reply, "US-ASCII"));
+
+			byte [] compressed = deflate(new Deflater(Deflater.DEFAULT_COMPRESSION, true), "hi".getBytes("US-ASCII"));
+			out.write(maskedFrame(0x40 | OpCode.TEXT.getValue(), Arrays.copyOfRange(compressed, 0, 1)));
+			out.write(maskedFrame(0x80, Arrays.copyOfRange(compressed, 1, compressed.length)));
+			assertEquals(0x81, in.readUnsignedByte());
+			reply = new byte[in.readUnsignedByte()];
+			in.readFully(reply);
+			assertEquals("streamed 300002", new String(reply, "US-ASCII"));
+
+			out.write(maskedFrame(OpCode.CLOSE, new byte[0]));
+		} finally {
+			socket.close();
+		}
+
+		assertTrue(closed.await(5, TimeUnit.SECONDS));
+		server.shutdown(false);
+
+		assertEquals(Arrays.asList("new", "start", "end", "start", "end", "close"), events);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		expected.write(start);
+		expected.write(end);
+		expected.write("hi".getBytes("US-ASCII"));
+		assertTrue(Arrays.equals(expected.toByteArray(), received.toByteArray()));
+		assertTrue(listener.fragments > 3);
+		assertEquals(0, server.getBufferPool().getBorrowed());
+	}
+
+	@Test
+	public void testBinary() throws Exception {
+		binary(WebSocketServer.Engine.SELECTOR, 0);
+		binary(WebSocketServer.Engine.SELECTOR, 2);
+		binary(WebSocketServer.Engine.BLOCKING, 0);
+	}
+
+	/**
+	 * Have bytes that aren't UTF-8 echoed, whole and fragmented, back from a buffer and
+	 * from an array.
+	 */
+	private static void binary(WebSocketServer.Engine engine,int workers) throws Exception {
+		final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch closed = new CountDownLatch(1);
+		class Binary implements WebSocketListener, BinaryListener {
+			public void onNewUser(WebSocketUser user) {
+			}
+
+			public void onMessage(WebSocketUser user,String message) {
+				events.add(message);
+			}
+
+			public void onCloseConnection(WebSocketUser user) {
+				closed.countDown();
+			}
+
+			public void onBinaryMessage(WebSocketUser user,ByteBuffer message) {
+				events.add("binary " + message.remaining());
+				if(message.hasArray() && message.remaining() > 1000) {
+					user.send(message.array(), message.arrayOffset() + message.position(), message.remaining());
+				} else {
+					user.send(message);
+				}
+			}
+		}
+
+		WebSocketServer server = new WebSocketServer();
+		server.setEngine(engine);
+		server.setWorkerCount(workers);
+		server.setWebSocketListener(new Binary());
+		int port = start(server);
+
+		byte [] small = new byte[256];
+		for(int i = 0;i<small.length;++i) {
+			small[i] = (byte) i;
+		}
+		byte [] large = new byte[70000];
+		new Random().nextBytes(large);
+
+		Socket socket = new Socket("localhost", port);
+		socket.setSoTimeout(5000);
+		try {
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			out.write(HANDSHAKE.getBytes("US-ASCII"));
+
+			String response = readResponse(in);
+			assertTrue(response.startsWith("HTTP/1.1 101"));
+
+			out.write(maskedFrame(OpCode.BINARY, small));
+			assertEquals(0x82, in.readUnsignedByte());
+			assertEquals(126, in.readUnsignedByte());
+			byte [] echo = new byte[in.readUnsignedShort()];
+			in.readFully(echo);
+			assertTrue(Arrays.equals(small, echo));
+
+			out.write(maskedFrame(OpCode.BINARY.getValue(), Arrays.copyOfRange(large, 0, 30000)));
+			out.write(maskedFrame(0x80, Arrays.copyOfRange(large, 30000, large.length)));
+			assertEquals(0x82, in.readUnsignedByte());
+			assertEquals(127, in.readUnsignedByte());
+			echo = new byte[(int) in.readLong()];
+			in.readFully(echo);
+			assertTrue(Arrays.equals(large, echo));
+
+			out.write(maskedFrame(OpCode.TEXT, "text".getBytes("US-ASCII")));
+			out.write(maskedFrame(OpCode.CLOSE, new byte[0]));
+		} finally {
+			socket.close();
+		}
+
+		assertTrue(closed.await(5, TimeUnit.SECONDS));
+		server.shutdown(false);
+		assertEquals(Arrays.asList("binary 256", "binary 70000", "text"), events);
+		assertEquals(0, server.getBufferPool().getBorrowed());
+	}
+
+	@Test
+	public void testCloseCodes() throws Exception {
+		for(WebSocketServer.Engine engine : WebSocketServer.Engine.values()) {
+			closeCodes(engine);
+		}
+	}
+
+	/**
+	 * Frames and messages too long to gather, and frames that break the protocol, are
+	 * answered with a close frame saying so.
+	 */
+	private static void closeCodes(WebSocketServer.Engine engine) throws Exception {
+		final CountDownLatch closed = new CountDownLatch(3);
+		WebSocketListener listener = new WebSocketListener() {
+			public void onNewUser(WebSocketUser user) {
+			}
+
+			public void onMessage(WebSocketUser user,String message) {
+			}
+
+			public void onCloseConnection(WebSocketUser user) {
+				closed.countDown();
+			}
+		};
+
+		WebSocketServer server = new WebSocketServer();
+		server.setEngine(engine);
+		server.setWebSocketListener(listener);
+		server.setMaxFrameLength(1000);
+		server.setMaxMessageLength(2000);
+		int port = start(server);
+
+		assertClosedWith(port, WebSocketUser.CLOSE_TOO_BIG, maskedFrame(OpCode.BINARY, payload(1001)));
+
+		ByteArrayOutputStream fragments = new ByteArrayOutputStream();
+		fragments.write(maskedFrame(OpCode.TEXT.getValue(), payload(1000)));
+		fragments.write(maskedFrame(0, payload(1000)));
+		fragments.write(maskedFrame(0x80, payload(1)));
+		assertClosedWith(port, WebSocketUser.CLOSE_TOO_BIG, fragments.toByteArray());
+
+		assertClosedWith(port, WebSocketUser.CLOSE_PROTOCOL_ERROR, new byte[] {(byte) 0x81, 2, 'h', 'i'});
+
+		assertTrue(closed.await(5, TimeUnit.SECONDS));
+		server.shutdown(false);
+		assertEquals(0, server.getBufferPool().getBorrowed());
+	}
+
+	private static void assertClosedWith(int port,int code,byte [] bytes) throws Exception {
+		Socket socket = new Socket("localhost", port);
+		socket.setSoTimeout(5000);
+		try {
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			out.write(HANDSHAKE.getBytes("US-ASCII"));
+			readResponse(in);
+
+			out.write(bytes);
+			assertEquals(0x88, in.readUnsignedByte());
+			assertEquals(2, in.readUnsignedByte());
+			assertEquals(code, in.readUnsignedShort());
+			assertEquals(-1, in.read());
+		} finally {
+			socket.close();
+		}
+	}
+
+}
@@ -0,0 +1,513 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import static org.codefrags.websocket.TestClient.HANDSHAKE;
+import static org.codefrags.websocket.TestClient.maskedFrame;
+import static org.codefrags.websocket.TestClient.payload;
+import static org.codefrags.websocket.TestClient.readResponse;
+import static org.codefrags.websocket.TestClient.readText;
+import static org.codefrags.websocket.TestClient.start;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codefrags.websocket.WebSocketServer.OverflowPolicy;
+import org.junit.Test;
+
+/**
+ * @author Austin Miller
+ *
+ */
+public class WebSocketUserTest {
+
+	/**
+	 * Far more frames than fit in one gathering write, queued in one go, of sizes that
+	 * leave writes ending part way through a frame for a client reading slowly.
+	 */
+	@Test
+	public void testGatheringWrite() throws Exception {
+		WebSocketListener listener = new WebSocketListener() {
+			public void onNewUser(WebSocketUser user) {
+			}
+
+			public void onMessage(WebSocketUser user,String message) {
+				// on the loop's thread, so all of them are queued before the first write
+				for(int i = 0;i<300;++i) {
+					user.send(message(i));
+				}
+			}
+
+			public void onCloseConnection(WebSocketUser user) {
+			}
+		};
+
+		WebSocketServer server = new WebSocketServer();
+		server.setWebSocketListener(listener);
+		int port = start(server);
+
+		Socket socket = new Socket();
+		socket.setReceiveBufferSize(1<<12);
+		socket.connect(new InetSocketAddress("localhost", port));
+		socket.setSoTimeout(5000);
+		try {
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			out.write(HANDSHAKE.getBytes("US-ASCII"));
+			readResponse(in);
+
+			out.write(maskedFrame(OpCode.TEXT, "go".getBytes("US-ASCII")));
+			for(int i = 0;i<300;++i) {
+				assertEquals(message(i), readText(in));
+			}
+
+			out.write(maskedFrame(OpCode.CLOSE, new byte[0]));
+			assertNull(readText(in));
+		} finally {
+			socket.close();
+		}
+
+		server.shutdown(false);
+		assertEquals(0, server.getBufferPool().getBorrowed());
+	}
+
+	private static String message(int i) {
+		return i + ":" + new String(payload(i * 37 % 2000), StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * One write hands the socket as many queued frames as fit under maxBytesPerFlush,
+	 * not one frame, and no more than that.
+	 */
+	@Test
+	public void testMaxBytesPerFlush() throws Exception {
+		final int frameLength = 1004;
+		final AtomicLong flushed = new AtomicLong(-1);
+		WebSocketListener listener = new WebSocketListener() {
+			public void onNewUser(WebSocketUser user) {
+			}
+
+			public void onMessage(WebSocketUser user,String message) {
+				String payload = new String(payload(frameLength - 4), StandardCharsets.US_ASCII);
+				for(int i = 0;i<100;++i) {
+					user.send(payload);
+				}
+
+				long queued = user.getQueuedBytes();
+				try {
+					((SelectorWebSocketUser) user).write();
+				} catch(IOException e) {
+					return;
+				}
+				flushed.set(queued - user.getQueuedBytes());
+			}
+
+			public void onCloseConnection(WebSocketUser user) {
+			}
+		};
+
+		WebSocketServer server = new WebSocketServer();
+		server.setWebSocketListener(listener);
+		server.setMaxBytesPerFlush(1<<14);
+		int port = start(server);
+
+		Socket socket = new Socket("localhost", port);
+		socket.setSoTimeout(5000);
+		try {
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			out.write(HANDSHAKE.getBytes("US-ASCII"));
+			readResponse(in);
+
+			out.write(maskedFrame(OpCode.TEXT, "go".getBytes("US-ASCII")));
+			for(int i = 0;i<100;++i) {
+				assertEquals(frameLength - 4, readText(in).length());
+			}
+
+			assertEquals((1<<14) / frameLength * frameLength, flushed.get());
+
+			out.write(maskedFrame(OpCode.CLOSE, new byte[0]));
+			assertNull(readText(in));
+		} finally {
+			socket.close();
+		}
+
+		server.shutdown(false);
+		assertEquals(0, server.getBufferPool().getBorrowed());
+	}
+
+	/**
+	 * Frames cut off in their header and their payload, across several reads, and a
+	 * read that ends a frame and starts the next.  Then a burst a worker with a tiny
+	 * ring can't take in one go, which leaves bytes over in the read buffer until it
+	 * has room.
+	 */
+	@Test
+	public void testSplitReads() throws Exception {
+		splitReads(0);
+		splitReads(1);
+	}
+
+	private static void splitReads(int workers) throws Exception {
+		WebSocketListener listener = new WebSocketListener() {
+			public void onNewUser(WebSocketUser user) {
+			}
+
+			public void onMessage(WebSocketUser user,String message) {
+				user.send(message);
+			}
+
+			public void onCloseConnection(WebSocketUser user) {
+			}
+		};
+
+		WebSocketServer server = new WebSocketServer();
+		server.setWorkerCount(workers);
+		server.setWorkerRingSize(2);
+		server.setWebSocketListener(listener);
+		int port = start(server);
+
+		Socket socket = new Socket("localhost", port);
+		socket.setTcpNoDelay(true);
+		socket.setSoTimeout(5000);
+		try {
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			out.write(HANDSHAKE.getBytes("US-ASCII"));
+			readResponse(in);
+
+			String first = new String(payload(300), "US-ASCII");
+			byte [] frame = maskedFrame(OpCode.TEXT, first.getBytes("US-ASCII"));
+			int [] splits = {0, 1, 3, 6, 100, frame.length};
+			for(int i = 1;i<splits.length;++i) {
+				out.write(frame, splits[i - 1], splits[i] - splits[i - 1]);
+				out.flush();
+				Thread.sleep(20);
+			}
+			assertEquals(first, readText(in));
+
+			byte [] second = maskedFrame(OpCode.TEXT, "second".getBytes("US-ASCII"));
+			byte [] third = maskedFrame(OpCode.TEXT, "third".getBytes("US-ASCII"));
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			bytes.write(second);
+			bytes.write(third, 0, 5);
+			out.write(bytes.toByteArray());
+			out.flush();
+			Thread.sleep(20);
+			out.write(third, 5, third.length - 5);
+			assertEquals("second", readText(in));
+			assertEquals("third", readText(in));
+
+			bytes.reset();
+			for(int i = 0;i<50;++i) {
+				bytes.write(maskedFrame(OpCode.TEXT, ("burst " + i).getBytes("US-ASCII")));
+			}
+			out.write(bytes.toByteArray());
+			for(int i = 0;i<50;++i) {
+				assertEquals("burst " + i, readText(in));
+			}
+
+			out.write(maskedFrame(OpCode.CLOSE, new byte[0]));
+			assertNull(readText(in));
+		} finally {
+			socket.close();
+		}
+
+		server.shutdown(false);
+		assertEquals(0, server.getBufferPool().getBorrowed());
+	}
+
+	/**
+	 * Two connections on one loop read into the same buffer.  One stops part way
+	 * through a frame's header and part way through its payload while the other
+	 * sends whole frames, and neither sees the other's bytes.  No connection holds a
+	 * pooled buffer between reads.
+	 */
+	@Test
+	public void testSharedReadBuffer() throws Exception {
+		WebSocketListener listener = new WebSocketListener() {
+			public void onNewUser(WebSocketUser user) {
+			}
+
+			public void onMessage(WebSocketUser user,String message) {
+				user.send(message);
+			}
+
+			public void onCloseConnection(WebSocketUser user) {
+			}
+		};
+
+		WebSocketServer server = new WebSocketServer();
+		server.setEventLoopCount(1);
+		server.setWebSocketListener(listener);
+		int port = start(server);
+
+		Socket split = new Socket("localhost", port);
+		Socket whole = new Socket("localhost", port);
+		split.setTcpNoDelay(true);
+		split.setSoTimeout(5000);
+		whole.setSoTimeout(5000);
+		try {
+			DataInputStream splitIn = new DataInputStream(split.getInputStream());
+			DataInputStream wholeIn = new DataInputStream(whole.getInputStream());
+			OutputStream splitOut = split.getOutputStream();
+			OutputStream wholeOut = whole.getOutputStream();
+			splitOut.write(HANDSHAKE.getBytes("US-ASCII"));
+			readResponse(splitIn);
+			wholeOut.write(HANDSHAKE.getBytes("US-ASCII"));
+			readResponse(wholeIn);
+
+			String message = new String(payload(3000), "US-ASCII");
+			byte [] frame = maskedFrame(OpCode.TEXT, message.getBytes("US-ASCII"));
+			int [] splits = {0, 3, 1500, frame.length};
+			for(int i = 1;i<splits.length;++i) {
+				splitOut.write(frame, splits[i - 1], splits[i] - splits[i - 1]);
+				splitOut.flush();
+				Thread.sleep(20);
+
+				String other = i + new String(payload(2000 + i), "US-ASCII");
+				wholeOut.write(maskedFrame(OpCode.TEXT, other.getBytes("US-ASCII")));
+				assertEquals(other, readText(wholeIn));
+				awaitBorrowed(server, 1);
+			}
+			assertEquals(message, readText(splitIn));
+
+			splitOut.write(maskedFrame(OpCode.CLOSE, new byte[0]));
+			assertNull(readText(splitIn));
+			wholeOut.write(maskedFrame(OpCode.CLOSE, new byte[0]));
+			assertNull(readText(wholeIn));
+		} finally {
+			split.close();
+			whole.close();
+		}
+
+		server.shutdown(false);
+		assertEquals(0, server.getBufferPool().getBorrowed());
+	}
+
+	/**
+	 * Wait for the buffers replies were written from to go back to the pool.
+	 */
+	private static void awaitBorrowed(WebSocketServer server,long borrowed) throws Exception {
+		long deadline = System.currentTimeMillis() + 5000;
+		while(server.getBufferPool().getBorrowed() != borrowed) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * A sender on its own thread going past maxQueuedBytes fails the connection, which
+	 * the listener hears of like any other close.
+	 */
+	@Test
+	public void testOverflowFail() throws Exception {
+		SlowClient client = new SlowClient(OverflowPolicy.FAIL);
+		long deadline = System.currentTimeMillis() + 10000;
+		for(int i = 0;client.user.isClosed() == false;++i) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			client.user.send(SlowClient.message(i));
+		}
+
+		assertSame(client.user, client.closedUsers.poll(5, TimeUnit.SECONDS));
+		client.close(false);
+	}
+
+	/**
+	 * Frames that don't fit are dropped and counted, the rest arrive in order.
+	 */
+	@Test
+	public void testOverflowDropNewest() throws Exception {
+		dropFrames(OverflowPolicy.DROP_NEWEST);
+	}
+
+	/**
+	 * Frames that fit push the oldest ones not being written out of the queue, so the
+	 * last one sent always arrives.
+	 */
+	@Test
+	public void testOverflowDropOldest() throws Exception {
+		dropFrames(OverflowPolicy.DROP_OLDEST);
+	}
+
+	private static void dropFrames(OverflowPolicy policy) throws Exception {
+		SlowClient client = new SlowClient(policy);
+		WebSocketUser user = client.user;
+
+		// until the last send counted a drop, so the newest was dropped or the oldest
+		// pushed out by it
+		int sent = 0;
+		long before;
+		long deadline = System.currentTimeMillis() + 10000;
+		do {
+			assertTrue(System.currentTimeMillis() < deadline);
+			before = user.getDroppedFrames();
+			user.send(SlowClient.message(sent++));
+		} while(sent < 50 || user.getDroppedFrames() == before);
+
+		// dropping the oldest happens on the loop, wait for it to catch up
+		while(user.getQueuedBytes() > SlowClient.MAX_QUEUED_BYTES) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		long dropped = user.getDroppedFrames();
+		assertTrue(dropped > 0);
+
+		int last = -1;
+		for(long i = 0;i<sent - dropped;++i) {
+			String message = readText(client.in);
+			int index = Integer.parseInt(message.substring(0, message.indexOf(' ')));
+			assertTrue(index > last);
+			assertEquals(SlowClient.message(index), message);
+			last = index;
+		}
+		if(policy == OverflowPolicy.DROP_OLDEST) {
+			assertEquals(sent - 1, last);
+		} else {
+			assertTrue(last < sent - 1);
+		}
+
+		assertFalse(user.isClosed());
+		client.close(true);
+	}
+
+	/**
+	 * A sender past maxQueuedBytes waits until the client has read enough to bring the
+	 * queue down to the low water mark, then carries on where it left off.
+	 */
+	@Test
+	public void testOverflowBlock() throws Exception {
+		SlowClient client = new SlowClient(OverflowPolicy.BLOCK);
+		final WebSocketUser user = client.user;
+		final AtomicInteger sent = new AtomicInteger();
+		final AtomicBoolean stop = new AtomicBoolean();
+
+		Thread sender = new Thread() {
+			public void run() {
+				while(stop.get() == false) {
+					user.send(SlowClient.message(sent.get()));
+					sent.incrementAndGet();
+				}
+			}
+		};
+		sender.start();
+
+		// blocked once the sender has been waiting on an unwritable user for a while
+		long deadline = System.currentTimeMillis() + 10000;
+		int blockedAt = -1;
+		while(blockedAt != sent.get() || sender.getState() != Thread.State.TIMED_WAITING || user.isWritable()) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			blockedAt = sent.get();
+			Thread.sleep(200);
+		}
+		stop.set(true);
+		assertTrue(sender.isAlive());
+		assertTrue(user.getQueuedBytes() > 1<<14);
+
+		for(int i = 0;;++i) {
+			if(i == sent.get()) {
+				sender.join(5000);
+				if(i == sent.get()) {
+					break;
+				}
+			}
+			assertEquals(SlowClient.message(i), readText(client.in));
+		}
+		assertEquals(0, user.getDroppedFrames());
+		assertTrue(user.isWritable());
+		client.close(true);
+	}
+
+	/**
+	 * A client with a small receive buffer that reads nothing until told to, and the
+	 * server's side of it.
+	 */
+	private static class SlowClient {
+		static final long MAX_QUEUED_BYTES = 1<<16;
+
+		final BlockingQueue<WebSocketUser> closedUsers = new LinkedBlockingQueue<WebSocketUser>();
+		final WebSocketServer server = new WebSocketServer();
+		final Socket socket = new Socket();
+		final DataInputStream in;
+		final WebSocketUser user;
+
+		SlowClient(OverflowPolicy policy) throws Exception {
+			final BlockingQueue<WebSocketUser> users = new LinkedBlockingQueue<WebSocketUser>();
+			server.setWebSocketListener(new WebSocketListener() {
+				public void onNewUser(WebSocketUser user) {
+					users.add(user);
+				}
+
+				public void onMessage(WebSocketUser user,String message) {
+				}
+
+				public void onCloseConnection(WebSocketUser user) {
+					closedUsers.add(user);
+				}
+			});
+			server.setMaxQueuedBytes(MAX_QUEUED_BYTES);
+			server.setWaterMarks(1<<14, 1<<15);
+			server.setOverflowPolicy(policy);
+			int port = start(server);
+
+			socket.setReceiveBufferSize(1<<12);
+			socket.connect(new InetSocketAddress("localhost", port));
+			socket.setSoTimeout(5000);
+			in = new DataInputStream(socket.getInputStream());
+			socket.getOutputStream().write(HANDSHAKE.getBytes(StandardCharsets.US_ASCII));
+			readResponse(in);
+			user = users.poll(5, TimeUnit.SECONDS);
+		}
+
+		static String message(int i) {
+			return i + " " + new String(payload(1<<13), StandardCharsets.US_ASCII);
+		}
+
+		/**
+		 * @param handshake whether to close with a close frame, or just drop the socket
+		 */
+		void close(boolean handshake) throws Exception {
+			try {
+				if(handshake) {
+					socket.getOutputStream().write(maskedFrame(OpCode.CLOSE, new byte[0]));
+					assertNull(readText(in));
+				}
+			} finally {
+				socket.close();
+			}
+
+			server.shutdown(false);
+			assertEquals(0, server.getBufferPool().getBorrowed());
+		}
+	}
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codefrags.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author Austin Miller
+ *
+ */
+public class WorkerTest {
+
+	@Test
+	public void testWorkerRing() throws Exception {
+		final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+		WebSocketListener listener = new WebSocketListener() {
+			public void onNewUser(WebSocketUser user) {
+				messages.add("new");
+			}
+
+			public void onMessage(WebSocketUser user,String message) {
+				messages.add(message);
+			}
+
+			public void onCloseConnection(WebSocketUser user) {
+				messages.add("close");
+			}
+		};
+
+		Worker worker = new Worker(listener, 3);
+		EventLoop loop = new EventLoop(new WebSocketServer(), "test");
+
+		// rounded up to four slots, and turned down once they are all taken
+		assertTrue(worker.dispatch(null, Worker.NEW_USER, null, loop));
+		for(int i = 0;i<3;++i) {
+			assertTrue(worker.dispatch(null, Worker.MESSAGE, "m" + i, loop));
+		}
+		assertFalse(worker.dispatch(null, Worker.MESSAGE, "m3", loop));
+
+		Thread thread = new Thread(worker);
+		thread.start();
+		for(int i = 3;i<1001;++i) {
+			int type = i < 1000 ? Worker.MESSAGE : Worker.CLOSE;
+			while(worker.dispatch(null, type, "m" + i, loop) == false) {
+				Thread.yield();
+			}
+		}
+		worker.shutdown();
+		thread.join();
+
+		assertEquals(1002, messages.size());
+		assertEquals("new", messages.get(0));
+		for(int i = 0;i<1000;++i) {
+			assertEquals("m" + i, messages.get(i + 1));
+		}
+		assertEquals("close", messages.get(1001));
+	}
+
+}